@@ -99,8 +99,11 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
             resources.put(resourceId, new ResourceActivity(resourceId, 0, resourceName,
                 (Long) resourceNode.getProperty(FilesConstants.LAST_MODIFIED)));
           }
-          // increment the count for this particular resource.
-          resources.get(resourceId).activityScore++;
+          // increment the count for this particular resource, an activity may record
+          // several changes.
+          final Object count = node.getProperty("count");
+          resources.get(resourceId).activityScore += (count instanceof Number) ? ((Number) count)
+              .intValue() : 1;
         }
       } catch (StorageClientException e) {
         // if something is wrong with this particular resourceNode,
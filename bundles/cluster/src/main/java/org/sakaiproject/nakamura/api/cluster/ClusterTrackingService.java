@@ -43,6 +43,14 @@ public interface ClusterTrackingService {
    *
    */
   public static final String EVENT_FROM_SERVER = "from-server";
+  /**
+   * The tracking cookies of a batch of pings, separated by new lines.
+   */
+  public static final String EVENT_TRACKING_COOKIES = "tracking-cookies";
+  /**
+   * The users of a batch of pings, in the order of their cookies, separated by new lines.
+   */
+  public static final String EVENT_USERS = "users";
 
   public static final String EVENT_PING_CLUSTER_USER = "org/sakaiproject/nakamura/cluster/user/ping";
 
@@ -42,11 +42,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.management.ManagementFactory;
+import java.util.Collection;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -62,7 +70,7 @@ import javax.servlet.http.HttpServletResponse;
 @Service({ ClusterTrackingService.class, Runnable.class })
 @Properties(value = {
     @Property(name = Scheduler.PROPERTY_SCHEDULER_CONCURRENT, boolValue = false),
-    @Property(name = Scheduler.PROPERTY_SCHEDULER_PERIOD, longValue = 300L) })
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_PERIOD, longValue = ClusterTrackingServiceImpl.DEFAULT_PING_SECONDS, label = "Remote ping interval", description = "The time in seconds between the batches of tracking pings sent to each of the other servers in the cluster.") })
 public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runnable {
 
   /**
@@ -88,6 +96,30 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
   @Property(name="secure-host-url", value = "http://localhost:8081",description = "The URL where other nodes in the cluster can contact this App server, will be different for each app server. Normal urls appended to the end of the url.")
   protected static final String PROP_SECURE_HOST_URL = "secure-host-url";
 
+  @Property(longValue = ClusterTrackingServiceImpl.DEFAULT_REFRESH_SECONDS, label = "Tracking refresh", description = "The least time in seconds between refreshes of the tracking of a cookie. 0 refreshes on every request.")
+  protected static final String PROP_REFRESH_SECONDS = "tracking.refresh.seconds";
+  protected static final long DEFAULT_REFRESH_SECONDS = 60L;
+
+  protected static final long DEFAULT_PING_SECONDS = 10L;
+
+  @Property(boolValue = false, label = "Batch remote pings", description = "Send the tracking pings for each of the other servers as one batch. Only enable once every server in the cluster understands batched pings, until then each ping is sent on its own.")
+  protected static final String PROP_BATCH_PINGS = "tracking.ping.batch";
+
+  /**
+   * How often the registration of this server is refreshed in the cluster.
+   */
+  private static final long REGISTRATION_MILLIS = 300000L;
+
+  /**
+   * The most cookies to remember refresh times for, beyond which they are all forgotten.
+   */
+  private static final int MAX_RECENTLY_TRACKED = 100000;
+
+  /**
+   * Separates the cookies and users in a batched ping, neither can contain it.
+   */
+  static final String BATCH_SEPARATOR = "\n";
+
   /**
    * The Cache Manager service, injected.
    */
@@ -95,7 +127,7 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
   private CacheManagerService cacheManagerService;
 
   @Reference
-  private EventAdmin eventAdmin;
+  protected EventAdmin eventAdmin;
 
   /**
    * A String representing the time when the service started.
@@ -119,6 +151,24 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
   private String thisSecureUrl;
   private UniqueIdGenerator uniqueIdGenerator;
 
+  private long refreshMillis = DEFAULT_REFRESH_SECONDS * 1000L;
+
+  /**
+   * When each cookie was last tracked on this server, and for which user, so that the
+   * tracking cache is only refreshed once per interval.
+   */
+  private final ConcurrentMap<String, TrackedCookie> recentlyTracked = new ConcurrentHashMap<String, TrackedCookie>();
+
+  /**
+   * Pings waiting to be sent, by the server they are for and then by cookie, holding the
+   * latest user for the cookie. Guarded by itself.
+   */
+  private final Map<String, Map<String, String>> pendingPings = new HashMap<String, Map<String, String>>();
+
+  private boolean batchPings;
+
+  private long lastRegistration;
+
   /**
    * Constructor for testing purposes only.
    *
@@ -142,6 +192,9 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
 
     Dictionary<String, Object> properties = ctx.getProperties();
     thisSecureUrl = PropertiesUtil.toString(properties.get(PROP_SECURE_HOST_URL), "");
+    refreshMillis = PropertiesUtil.toLong(properties.get(PROP_REFRESH_SECONDS),
+        DEFAULT_REFRESH_SECONDS) * 1000L;
+    batchPings = PropertiesUtil.toBoolean(properties.get(PROP_BATCH_PINGS), false);
 
     componentStartTime = String.valueOf(System.currentTimeMillis());
     MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
@@ -149,6 +202,7 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
     serverId = ((String) mbeanServer.getAttribute(name, "Name")).replace("@", "-");
     isActive = true;
     pingInstance();
+    lastRegistration = System.currentTimeMillis();
     uniqueIdGenerator = new UniqueIdGenerator(serverNumber);
     isReady = true;
   }
@@ -160,6 +214,7 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    * @throws Exception
    */
   protected void deactivate(ComponentContext ctx) throws Exception {
+    sendPendingPings();
     try {
       removeInstance(serverId);
     } catch ( IllegalStateException e ) {
@@ -188,10 +243,13 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
           String cookieName = cookie.getName();
           if (cookieName.equals(SAKAI_TRACKING)) {
             String trackingCookie = cookie.getValue();
-            if (isServerAlive(trackingCookie)) {
+            if (isRecentlyTracked(trackingCookie, remoteUser)) {
+              tracking = true;
+            } else if (isServerAlive(trackingCookie)) {
               try {
                 pingTracking(trackingCookie, remoteUser);
                 tracking = true;
+                markTracked(trackingCookie, remoteUser);
               } catch (PingRemoteTrackingFailedException e) {
                 LOGGER.warn(e.getMessage());
               }
@@ -229,6 +287,26 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
 
   }
 
+  /**
+   * @return true if the cookie was tracked for the same user within the refresh interval.
+   */
+  private boolean isRecentlyTracked(String trackingCookie, String remoteUser) {
+    TrackedCookie tracked = recentlyTracked.get(trackingCookie);
+    return tracked != null && tracked.isFresh(remoteUser, System.currentTimeMillis());
+  }
+
+  private void markTracked(String trackingCookie, String remoteUser) {
+    if (refreshMillis <= 0) {
+      return;
+    }
+    if (recentlyTracked.size() >= MAX_RECENTLY_TRACKED) {
+      // forgetting only costs a refresh of the tracking cache.
+      recentlyTracked.clear();
+    }
+    recentlyTracked.put(trackingCookie, new TrackedCookie(remoteUser,
+        System.currentTimeMillis() + refreshMillis));
+  }
+
   public String[] getRequestTrackingCookie(HttpServletRequest request) {
     Cookie[] cookies = request.getCookies();
     Set<String> tracking = new HashSet<String>();
@@ -334,6 +412,8 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
   }
 
   /**
+   * Queue a ping for the server the cookie belongs to, it is sent with the next batch.
+   *
    * @param trackingCookie
    * @param remoteUser
    * @throws PingRemoteTrackingFailedException
@@ -345,17 +425,105 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
       throw new PingRemoteTrackingFailedException("Server at " + trackingCookie
           + " not alive ");
     }
-    // send over OSGi and then JMS over the OSGi2JMS Bridge
+    synchronized (pendingPings) {
+      Map<String, String> pings = pendingPings.get(clusterServer.getServerId());
+      if (pings == null) {
+        pings = new LinkedHashMap<String, String>();
+        pendingPings.put(clusterServer.getServerId(), pings);
+      }
+      pings.put(trackingCookie, remoteUser == null ? "" : remoteUser);
+    }
+  }
+
+  /**
+   * Send the queued pings over OSGi and then JMS over the OSGi2JMS Bridge. With
+   * {@link #PROP_BATCH_PINGS} each server gets one event with all the cookies and users
+   * for it, otherwise each ping is sent as its own event.
+   */
+  protected void sendPendingPings() {
+    Map<String, Map<String, String>> pings;
+    synchronized (pendingPings) {
+      if (pendingPings.isEmpty()) {
+        return;
+      }
+      pings = new HashMap<String, Map<String, String>>(pendingPings);
+      pendingPings.clear();
+    }
+    for (Entry<String, Map<String, String>> server : pings.entrySet()) {
+      String toServer = server.getKey();
+      Map<String, String> users = server.getValue();
+      String remotePingTopic = EVENT_PING_CLUSTER_USER + "/"
+          + EventUtils.safeTopicElement(toServer);
+      try {
+        if (batchPings) {
+          Entry<String, String> first = users.entrySet().iterator().next();
+          Dictionary<String, Object> messageDict = newPing(toServer, first.getKey(),
+              first.getValue());
+          messageDict.put(EVENT_TRACKING_COOKIES, join(users.keySet()));
+          messageDict.put(EVENT_USERS, join(users.values()));
+          eventAdmin.postEvent(new Event(remotePingTopic, messageDict));
+        } else {
+          for (Entry<String, String> ping : users.entrySet()) {
+            eventAdmin.postEvent(new Event(remotePingTopic, newPing(toServer,
+                ping.getKey(), ping.getValue())));
+          }
+        }
+      } catch (Exception e) {
+        LOGGER.warn("Failed to send {} tracking pings to {}: {}", new Object[] {
+            users.size(), toServer, e.getMessage() });
+      }
+    }
+  }
+
+  /**
+   * @return the properties of a single ping, which a batch also carries for its first
+   *         cookie so that a server that doesn't understand batches still tracks it.
+   */
+  private Dictionary<String, Object> newPing(String toServer, String trackingCookie,
+      String remoteUser) {
     Dictionary<String, Object> messageDict = new Hashtable<String, Object>();
     messageDict.put(EVENT_FROM_SERVER, serverId);
-    messageDict.put(EVENT_TO_SERVER, clusterServer.getServerId());
+    messageDict.put(EVENT_TO_SERVER, toServer);
     messageDict.put(EVENT_TRACKING_COOKIE, trackingCookie);
-    messageDict.put(EVENT_USER, remoteUser);
-    String remotePingTopic = EVENT_PING_CLUSTER_USER + "/"
-        + EventUtils.safeTopicElement(clusterServer.getServerId());
-    Event pingUserEvent = new Event(remotePingTopic, messageDict);
-    eventAdmin.postEvent(pingUserEvent);
+    if (remoteUser.length() > 0) {
+      messageDict.put(EVENT_USER, remoteUser);
+    }
+    return messageDict;
+  }
 
+  private static String join(Collection<String> values) {
+    StringBuilder joined = new StringBuilder();
+    boolean first = true;
+    for (String value : values) {
+      if (!first) {
+        joined.append(BATCH_SEPARATOR);
+      }
+      joined.append(value);
+      first = false;
+    }
+    return joined.toString();
+  }
+
+  /**
+   * Track the users in a batch of pings from another server.
+   *
+   * @param trackingCookies
+   *          the cookies, separated by {@link #BATCH_SEPARATOR}.
+   * @param remoteUsers
+   *          the user for each cookie, empty for anonymous.
+   */
+  protected void pingTrackingBatch(String trackingCookies, String remoteUsers) {
+    String[] cookies = trackingCookies.split(BATCH_SEPARATOR, -1);
+    String[] users = remoteUsers == null ? new String[0] : remoteUsers.split(
+        BATCH_SEPARATOR, -1);
+    for (int i = 0; i < cookies.length; i++) {
+      String user = i < users.length && users[i].length() > 0 ? users[i] : null;
+      try {
+        pingTracking(cookies[i], user, false);
+      } catch (PingRemoteTrackingFailedException e) {
+        LOGGER.warn(e.getMessage());
+      }
+    }
   }
 
   /**
@@ -456,13 +624,26 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
   /**
    * {@inheritDoc}
    *
-   * Invoked as a task by the Sling Scheduler, once every 5 minutes to update the last
-   * time the server was registered in the cluster cache.
+   * Invoked as a task by the Sling Scheduler, every remote ping interval to send the
+   * queued pings, and once every 5 minutes of those to update the last time the server
+   * was registered in the cluster cache.
    *
    * @see java.lang.Runnable#run()
    */
   public void run() {
+    sendPendingPings();
+    long now = System.currentTimeMillis();
+    if (now - lastRegistration < REGISTRATION_MILLIS) {
+      return;
+    }
+    lastRegistration = now;
     pingInstance();
+    // forget the cookies that are due a refresh anyway.
+    for (Iterator<TrackedCookie> i = recentlyTracked.values().iterator(); i.hasNext();) {
+      if (i.next().expires < now) {
+        i.remove();
+      }
+    }
   }
 
   /**
@@ -492,4 +673,20 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
     return uniqueIdGenerator.nextId();
   }
 
+  /**
+   * When a cookie was tracked until, and for whom.
+   */
+  private static class TrackedCookie {
+    private final String user;
+    private final long expires;
+
+    TrackedCookie(String user, long expires) {
+      this.user = user;
+      this.expires = expires;
+    }
+
+    boolean isFresh(String remoteUser, long now) {
+      return now < expires && (user == null ? remoteUser == null : user.equals(remoteUser));
+    }
+  }
 }
@@ -96,9 +96,22 @@ public class ClusterUserMessageListener implements MessageListener {
       String fromServer = message
           .getStringProperty(ClusterTrackingService.EVENT_FROM_SERVER);
       String toServer = message.getStringProperty(ClusterTrackingService.EVENT_TO_SERVER);
+      // a batch also carries its first ping on its own, for servers that predate batches.
+      String trackingCookies = message
+          .getStringProperty(ClusterTrackingService.EVENT_TRACKING_COOKIES);
+      if (trackingCookies != null) {
+        LOGGER.debug("Started handling cluster user jms batch. from:{} to:{}",
+            fromServer, toServer);
+        clusterTrackingServiceImpl.pingTrackingBatch(trackingCookies,
+            message.getStringProperty(ClusterTrackingService.EVENT_USERS));
+        return;
+      }
       String trackingCookie = message
           .getStringProperty(ClusterTrackingService.EVENT_TRACKING_COOKIE);
       String remoteUser = message.getStringProperty(ClusterTrackingService.EVENT_USER);
+      if (trackingCookie == null) {
+        return;
+      }
       LOGGER.info(
           "Started handling cluster user jms message. from:{} to:{} cookie:{} user:{}",
           new Object[] { fromServer, toServer, trackingCookie, remoteUser });
@@ -17,11 +17,14 @@
  */
 package org.sakaiproject.nakamura.cluster;
 
+import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import org.easymock.Capture;
@@ -29,6 +32,9 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.cluster.cache.ClusterServerImpl;
 import org.sakaiproject.nakamura.api.cluster.cache.ClusterUserImpl;
 import org.sakaiproject.nakamura.api.memory.Cache;
@@ -61,6 +67,7 @@ public class ClusterTrackingServiceImplTest extends AbstractEasyMockTest {
   private Cache<Object> userTrackingCache;
   private Cache<Object> serverTrackingCache;
   private ComponentContext componentContext;
+  private Hashtable<String, Object> dict;
 
   @SuppressWarnings("unchecked")
   @Before
@@ -76,7 +83,7 @@ public class ClusterTrackingServiceImplTest extends AbstractEasyMockTest {
             CacheScope.CLUSTERREPLICATED)).andReturn(serverTrackingCache).anyTimes();
     clusterTrackingServiceImpl = new ClusterTrackingServiceImpl(cacheManagerService);
     componentContext = createMock(ComponentContext.class);
-    Hashtable<String, Object> dict = new Hashtable<String, Object>();
+    dict = new Hashtable<String, Object>();
     dict.put(ClusterTrackingServiceImpl.PROP_SECURE_HOST_URL, "http://localhost:8081");
     expect(componentContext.getProperties()).andReturn(dict).anyTimes();
   }
@@ -386,5 +393,111 @@ public class ClusterTrackingServiceImplTest extends AbstractEasyMockTest {
 
   }
 
+  @Test
+  public void testTrackingIsRefreshedOncePerInterval() throws Exception {
+    String serverId = getServerId();
+    expect(serverTrackingCache.list()).andReturn(new ArrayList<Object>()).times(2);
+    expect(serverTrackingCache.put((String) anyObject(), anyObject())).andReturn(
+        new Object());
+
+    Cookie[] cookies = new Cookie[] { new Cookie("SAKAI-TRACKING", serverId
+        + "-trackingValue") };
+    HttpServletRequest request = createMock(HttpServletRequest.class);
+    HttpServletResponse response = createMock(HttpServletResponse.class);
+    expect(request.getCookies()).andReturn(cookies).times(3);
+    expect(request.getRemoteUser()).andReturn("userid").times(2);
+    expect(request.getRemoteUser()).andReturn("otheruser");
+
+    ClusterServerImpl csImple = new ClusterServerImpl(serverId, 4, "http://sdfsdfs");
+    // only the first request, and the one for a new user, touch the caches.
+    expect(serverTrackingCache.get(serverId)).andReturn(csImple).times(4);
+    expect(userTrackingCache.get(serverId + "-trackingValue")).andReturn(null).times(2);
+    expect(userTrackingCache.put((String) anyObject(), anyObject())).andReturn(
+        new Object()).times(2);
+    serverTrackingCache.remove(serverId);
+
+    replay();
+    clusterTrackingServiceImpl.activate(componentContext);
+    clusterTrackingServiceImpl.trackClusterUser(request, response);
+    clusterTrackingServiceImpl.trackClusterUser(request, response);
+    clusterTrackingServiceImpl.trackClusterUser(request, response);
+    clusterTrackingServiceImpl.deactivate(componentContext);
+    verify();
+  }
+
+  @Test
+  public void testRemotePingsAreBatched() throws Exception {
+    dict.put(ClusterTrackingServiceImpl.PROP_BATCH_PINGS, true);
+    Capture<Event> eventCapture = new Capture<Event>();
+    Capture<Event> unexpected = new Capture<Event>();
+    trackTwoRemoteCookies(eventCapture, unexpected);
+
+    Event event = eventCapture.getValue();
+    assertEquals(ClusterTrackingService.EVENT_PING_CLUSTER_USER + "/otherserver",
+        event.getTopic());
+    assertEquals("otherserver-a\notherserver-b",
+        event.getProperty(ClusterTrackingService.EVENT_TRACKING_COOKIES));
+    assertEquals("ieb\n", event.getProperty(ClusterTrackingService.EVENT_USERS));
+    // servers that don't understand batches still track the first cookie.
+    assertEquals("otherserver-a",
+        event.getProperty(ClusterTrackingService.EVENT_TRACKING_COOKIE));
+    assertEquals("ieb", event.getProperty(ClusterTrackingService.EVENT_USER));
+    assertFalse(unexpected.hasCaptured());
+  }
+
+  @Test
+  public void testRemotePingsAreSentSinglyByDefault() throws Exception {
+    Capture<Event> first = new Capture<Event>();
+    Capture<Event> second = new Capture<Event>();
+    trackTwoRemoteCookies(first, second);
+
+    assertEquals("otherserver-a",
+        first.getValue().getProperty(ClusterTrackingService.EVENT_TRACKING_COOKIE));
+    assertEquals("ieb", first.getValue().getProperty(ClusterTrackingService.EVENT_USER));
+    assertNull(first.getValue().getProperty(ClusterTrackingService.EVENT_TRACKING_COOKIES));
+    assertEquals("otherserver-b",
+        second.getValue().getProperty(ClusterTrackingService.EVENT_TRACKING_COOKIE));
+    assertNull(second.getValue().getProperty(ClusterTrackingService.EVENT_USER));
+  }
+
+  /**
+   * Track two cookies of another server and let the scheduler send the pings for them.
+   */
+  private void trackTwoRemoteCookies(Capture<Event> first, Capture<Event> second)
+      throws Exception {
+    String serverId = getServerId();
+    expect(serverTrackingCache.list()).andReturn(new ArrayList<Object>()).times(2);
+    expect(serverTrackingCache.put((String) anyObject(), anyObject())).andReturn(
+        new Object());
+    ClusterServerImpl remote = new ClusterServerImpl("otherserver", 1, "http://other");
+    expect(serverTrackingCache.get("otherserver")).andReturn(remote).anyTimes();
+    expect(userTrackingCache.get((String) anyObject())).andReturn(null).anyTimes();
+    expect(userTrackingCache.put((String) anyObject(), anyObject())).andReturn(
+        new Object()).anyTimes();
+
+    HttpServletRequest request = createMock(HttpServletRequest.class);
+    HttpServletResponse response = createMock(HttpServletResponse.class);
+    expect(request.getCookies()).andReturn(
+        new Cookie[] { new Cookie("SAKAI-TRACKING", "otherserver-a") });
+    expect(request.getRemoteUser()).andReturn("ieb");
+    expect(request.getCookies()).andReturn(
+        new Cookie[] { new Cookie("SAKAI-TRACKING", "otherserver-b") });
+    expect(request.getRemoteUser()).andReturn(null);
+
+    EventAdmin eventAdmin = createMock(EventAdmin.class);
+    eventAdmin.postEvent(capture(first));
+    expectLastCall().once();
+    eventAdmin.postEvent(capture(second));
+    expectLastCall().times(0, 1);
+    clusterTrackingServiceImpl.eventAdmin = eventAdmin;
+    serverTrackingCache.remove(serverId);
 
+    replay();
+    clusterTrackingServiceImpl.activate(componentContext);
+    clusterTrackingServiceImpl.trackClusterUser(request, response);
+    clusterTrackingServiceImpl.trackClusterUser(request, response);
+    clusterTrackingServiceImpl.run();
+    clusterTrackingServiceImpl.deactivate(componentContext);
+    verify();
+  }
 }
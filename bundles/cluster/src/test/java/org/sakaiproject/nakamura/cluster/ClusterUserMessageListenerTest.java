@@ -141,6 +141,7 @@ public class ClusterUserMessageListenerTest extends AbstractEasyMockTest {
     
     expect(message.getStringProperty("from-server")).andReturn("otherServerId");
     expect(message.getStringProperty("to-server")).andReturn("toserver");
+    expect(message.getStringProperty("tracking-cookies")).andReturn(null);
     expect(message.getStringProperty("tracking-cookie")).andReturn("thistrackingcookie");
     expect(message.getStringProperty("user")).andReturn("ieb");
     ClusterUserImpl clusterUser = new ClusterUserImpl("ieb", "otherServerId");
@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.discussion;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.presence.PresenceService;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the basic info and presence of the authors and editors of posts, looking each
+ * user up once however many posts they wrote. Meant to be used for a single request.
+ */
+public class PostAuthors {
+
+  private final AuthorizableManager authorizableManager;
+  private final BasicUserInfoService basicUserInfoService;
+  private final PresenceService presenceService;
+
+  private final Map<String, ValueMap> profiles = new HashMap<String, ValueMap>();
+  private final Map<String, String[]> presence = new HashMap<String, String[]>();
+
+  public PostAuthors(AuthorizableManager authorizableManager,
+      BasicUserInfoService basicUserInfoService, PresenceService presenceService) {
+    this.authorizableManager = authorizableManager;
+    this.basicUserInfoService = basicUserInfoService;
+    this.presenceService = presenceService;
+  }
+
+  /**
+   * Write the user's basic info and presence into the current object.
+   */
+  public void writeAuthor(ExtendedJSONWriter writer, String userId)
+      throws JSONException, StorageClientException, AccessDeniedException {
+    ValueMap profile = profiles.get(userId);
+    if (profile == null) {
+      Authorizable au = authorizableManager.findAuthorizable(userId);
+      profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
+      profiles.put(userId, profile);
+    }
+    writer.valueMapInternals(profile);
+
+    String[] status = presence.get(userId);
+    if (status == null) {
+      status = new String[] { presenceService.getStatus(userId),
+          presenceService.getLocation(userId) };
+      presence.put(userId, status);
+    }
+    // the same as PresenceUtils.makePresenceJSON writes.
+    writer.key("user");
+    writer.value(userId);
+    writer.key(PresenceService.PRESENCE_STATUS_PROP);
+    writer.value(status[0]);
+    writer.key(PresenceService.PRESENCE_LOCATION_PROP);
+    writer.value(status[1]);
+  }
+}
@@ -0,0 +1,216 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.discussion;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the posts of discussion threads so a thread can be rendered without reading
+ * every post again. A thread is keyed by the deepest path its posts share, so a change to
+ * any content under that path, including a new reply, drops the thread without having
+ * to remember which threads hold which post.
+ *
+ * Each key has a token in a second cache. A thread is stored with the token taken before
+ * its posts were read and is only served while that token is current, so a thread read
+ * across a change is never served. Both caches are cluster invalidated.
+ */
+@Component(immediate = true)
+@Service(value = { DiscussionThreadCache.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Caches the posts of discussion threads."),
+    @Property(name = "event.topics", value = "org/sakaiproject/nakamura/lite/content/*") })
+public class DiscussionThreadCache implements EventHandler {
+
+  static final String CACHE_NAME = DiscussionThreadCache.class.getName() + "-cache";
+  static final String TOKEN_CACHE_NAME = DiscussionThreadCache.class.getName() + "-tokens";
+
+  private static final String CONTENT_TOPICS = StoreListener.TOPIC_BASE + "content/";
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  private final AtomicLong tokens = new AtomicLong();
+
+  static class CachedThread implements Serializable {
+    private static final long serialVersionUID = 1L;
+    final long token;
+    final List<String> paths;
+    final List<CachedPost> posts;
+
+    CachedThread(long token, List<String> paths, List<CachedPost> posts) {
+      this.token = token;
+      this.paths = paths;
+      this.posts = posts;
+    }
+  }
+
+  static class CachedPost implements Serializable {
+    private static final long serialVersionUID = 1L;
+    final String path;
+    final Map<String, Object> properties;
+
+    CachedPost(String path, Map<String, Object> properties) {
+      this.path = path;
+      this.properties = properties;
+    }
+  }
+
+  /**
+   * The state of a thread before its posts are read, see
+   * {@link DiscussionThreadCache#put(Stamp, List, List)}.
+   */
+  public static class Stamp {
+    private final String key;
+    private final Long token;
+
+    Stamp(String key, Long token) {
+      this.key = key;
+      this.token = token;
+    }
+  }
+
+  /**
+   * @param paths
+   *          the paths of the posts in the order the search returned them.
+   * @return the stamp to store the posts with once they have been read.
+   */
+  public Stamp stamp(List<String> paths) {
+    String key = key(paths);
+    Cache<Long> tokenCache = getTokenCache();
+    Long token = tokenCache.get(key);
+    if (token == null) {
+      token = tokens.incrementAndGet();
+      tokenCache.put(key, token);
+    }
+    return new Stamp(key, token);
+  }
+
+  /**
+   * @param paths
+   *          the paths of the posts in the order the search returned them.
+   * @return new copies of the posts at those paths, or null if they have to be read.
+   */
+  public List<Content> get(List<String> paths) {
+    String key = key(paths);
+    CachedThread cached = getCache().get(key);
+    if (cached == null || !cached.paths.equals(paths)) {
+      return null;
+    }
+    Long token = getTokenCache().get(key);
+    if (token == null || token.longValue() != cached.token) {
+      return null;
+    }
+    List<Content> posts = new ArrayList<Content>(cached.posts.size());
+    for (CachedPost post : cached.posts) {
+      posts.add(new Content(post.path, new HashMap<String, Object>(post.properties)));
+    }
+    return posts;
+  }
+
+  /**
+   * Store the posts of a thread, unless the thread changed since the stamp was taken.
+   *
+   * @param stamp
+   *          taken with {@link #stamp(List)} before the posts were read.
+   */
+  public void put(Stamp stamp, List<String> paths, List<Content> posts) {
+    if (!stamp.token.equals(getTokenCache().get(stamp.key))) {
+      return;
+    }
+    List<CachedPost> cached = new ArrayList<CachedPost>(posts.size());
+    for (Content post : posts) {
+      cached.add(new CachedPost(post.getPath(), new HashMap<String, Object>(post
+          .getProperties())));
+    }
+    getCache().put(stamp.key,
+        new CachedThread(stamp.token, new ArrayList<String>(paths), cached));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null || !event.getTopic().startsWith(CONTENT_TOPICS)) {
+      return;
+    }
+    // a thread is keyed by an ancestor of each of its posts.
+    Cache<Long> tokenCache = getTokenCache();
+    Cache<CachedThread> cache = getCache();
+    String key = path;
+    while (true) {
+      tokenCache.remove(key);
+      cache.remove(key);
+      String parent = StorageClientUtils.getParentObjectPath(key);
+      if (parent.equals(key)) {
+        break;
+      }
+      key = parent;
+    }
+  }
+
+  /**
+   * @return the deepest path that all the posts share.
+   */
+  private String key(List<String> paths) {
+    if (paths.isEmpty()) {
+      return "/";
+    }
+    String key = StorageClientUtils.getParentObjectPath(paths.get(0));
+    for (String path : paths) {
+      while (!path.startsWith(key + "/")) {
+        String parent = StorageClientUtils.getParentObjectPath(key);
+        if (parent.equals(key)) {
+          break;
+        }
+        key = parent;
+      }
+    }
+    return key;
+  }
+
+  private Cache<CachedThread> getCache() {
+    return cacheManagerService.getCache(CACHE_NAME, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  private Cache<Long> getTokenCache() {
+    return cacheManagerService.getCache(TOKEN_CACHE_NAME, CacheScope.CLUSTERINVALIDATED);
+  }
+}
@@ -26,10 +26,14 @@ import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
 import org.sakaiproject.nakamura.api.discussion.Post;
+import org.sakaiproject.nakamura.api.discussion.PostAuthors;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
@@ -41,6 +45,7 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.discussion.DiscussionThreadCache;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,8 +57,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
-import javax.jcr.RepositoryException;
-
 /**
  * Formats message node search results
  */
@@ -80,6 +83,9 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
   @Reference
   SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference
+  DiscussionThreadCache threadCache;
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor#writeResults(org.apache.sling.api.SlingHttpServletRequest, org.apache.sling.commons.json.io.JSONWriter, java.util.Iterator)
@@ -90,16 +96,11 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
     try {
       Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
           .adaptTo(javax.jcr.Session.class));
-      ContentManager cm = session.getContentManager();
+      List<Content> posts = getPosts(session, iterator);
       List<String> basePosts = new ArrayList<String>();
       Map<String,List<Post>> postChildren = new HashMap<String, List<Post>>();
       Map<String,Post> allPosts = new HashMap<String, Post>();
-      while (iterator.hasNext()) {
-        Result result = iterator.next();
-        Content content = cm.get(result.getPath());
-        if (content == null) {
-          continue;
-        }
+      for (Content content : posts) {
         Post p = new Post(content, session);
         allPosts.put((String) content
             .getProperty(MessageConstants.PROP_SAKAI_ID), p);
@@ -130,20 +131,60 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
         }
       }
 
-      // The posts are sorted, now return them as json.
+      // The posts are sorted, now return them as json. The authors of the posts are
+      // looked up once for the whole thread.
+      PostAuthors authors = new PostAuthors(session.getAuthorizableManager(),
+          basicUserInfoService, presenceService);
       for (String basePostId : basePosts) {
-        allPosts.get(basePostId).outputPostAsJSON((ExtendedJSONWriter) writer,
-            presenceService, basicUserInfoService, session);
+        allPosts.get(basePostId).outputPostAsJSON((ExtendedJSONWriter) writer, authors);
       }
     } catch (StorageClientException e) {
       throw new RuntimeException(e.getMessage(), e);
     } catch (AccessDeniedException e) {
       throw new RuntimeException(e.getMessage(), e);
-    } catch (RepositoryException e) {
-      throw new RuntimeException(e.getMessage(), e);
     }
   }
 
+  /**
+   * Get the posts the search found, from the thread cache if the same posts have been
+   * read since any of them last changed. Cached posts are only returned if the user can
+   * still read them.
+   */
+  private List<Content> getPosts(Session session, Iterator<Result> iterator)
+      throws StorageClientException, AccessDeniedException {
+    List<String> paths = new ArrayList<String>();
+    while (iterator.hasNext()) {
+      paths.add(iterator.next().getPath());
+    }
+    DiscussionThreadCache.Stamp stamp = threadCache.stamp(paths);
+    List<Content> posts = threadCache.get(paths);
+    if (posts == null) {
+      ContentManager cm = session.getContentManager();
+      posts = new ArrayList<Content>(paths.size());
+      for (String path : paths) {
+        Content content = cm.get(path);
+        if (content != null) {
+          posts.add(content);
+        }
+      }
+      threadCache.put(stamp, paths, posts);
+      return posts;
+    }
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+    List<Content> readable = new ArrayList<Content>(posts.size());
+    for (Content content : posts) {
+      try {
+        accessControlManager.check(Security.ZONE_CONTENT, content.getPath(),
+            Permissions.CAN_READ);
+        readable.add(content);
+      } catch (AccessDeniedException e) {
+        LOG.debug("Skipping post the index lists but {} can no longer read: {}",
+            session.getUserId(), content.getPath());
+      }
+    }
+    return readable;
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -18,7 +18,13 @@
 package org.sakaiproject.nakamura.discussion.searchresults;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.withSettings;
 
@@ -32,7 +38,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
@@ -41,19 +50,26 @@ import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.api.user.counts.CountProvider;
+import org.sakaiproject.nakamura.discussion.DiscussionThreadCache;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 import org.sakaiproject.nakamura.user.BasicUserInfoServiceImpl;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -63,6 +79,7 @@ public class DiscussionThreadedProcessorTest {
 
   private DiscussionThreadedSearchBatchResultProcessor processor;
   private PresenceService presenceService;
+  private DiscussionThreadCache threadCache;
 
   /**
    * {@inheritDoc}
@@ -75,6 +92,24 @@ public class DiscussionThreadedProcessorTest {
     processor.searchServiceFactory = mock(SolrSearchServiceFactory.class);
     presenceService = mock(PresenceService.class);
     processor.presenceService = presenceService;
+    final CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    final Map<String, Cache<Object>> caches = new HashMap<String, Cache<Object>>();
+    when(cacheManagerService.getCache(anyString(), any(CacheScope.class))).thenAnswer(
+        new Answer<Cache<Object>>() {
+          public Cache<Object> answer(InvocationOnMock invocation) throws Throwable {
+            String name = (String) invocation.getArguments()[0];
+            if (!caches.containsKey(name)) {
+              caches.put(name, new MapCacheImpl<Object>(name, CacheScope.INSTANCE));
+            }
+            return caches.get(name);
+          }
+        });
+    threadCache = new DiscussionThreadCache() {
+      {
+        this.cacheManagerService = cacheManagerService;
+      }
+    };
+    processor.threadCache = threadCache;
     processor.basicUserInfoService = new BasicUserInfoServiceImpl() {
 
       public BasicUserInfoService setup() {
@@ -111,10 +146,6 @@ public class DiscussionThreadedProcessorTest {
     ContentManager cm = mock(ContentManager.class);
     when(session.getContentManager()).thenReturn(cm);
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    Writer w = new PrintWriter(baos);
-    ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
-
     // 4 nodes
     // a
     // - b
@@ -152,12 +183,51 @@ public class DiscussionThreadedProcessorTest {
     when(cm.get("/msg/c")).thenReturn(contentC);
     when(cm.get("/msg/d")).thenReturn(contentD);
 
+    assertThread(write(request, results));
+
+    // each author is looked up once for the thread.
+    verify(authMgr, times(1)).findAuthorizable("admin");
+    verify(presenceService, times(1)).getStatus("admin");
+
+    // the same posts again come from the thread cache until one of them changes.
+    assertThread(write(request, results));
+    verify(cm, times(1)).get("/msg/a");
+
+    threadCache.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/UPDATED",
+        ImmutableMap.of("path", "/msg/c")));
+    assertThread(write(request, results));
+    verify(cm, times(2)).get("/msg/a");
+  }
+
+  @Test
+  public void testThreadReadAcrossAChangeIsNotCached() throws Exception {
+    List<String> paths = Lists.newArrayList("/msg/a", "/msg/b");
+    List<Content> posts = Lists.newArrayList(new Content("/msg/a", null), new Content(
+        "/msg/b", null));
+    DiscussionThreadCache.Stamp stamp = threadCache.stamp(paths);
+    threadCache.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/UPDATED",
+        ImmutableMap.of("path", "/msg/b")));
+    threadCache.put(stamp, paths, posts);
+    assertNull(threadCache.get(paths));
+
+    stamp = threadCache.stamp(paths);
+    threadCache.put(stamp, paths, posts);
+    assertNotNull(threadCache.get(paths));
+    // other posts under the same path are another thread.
+    assertNull(threadCache.get(Lists.newArrayList("/msg/a")));
+  }
+
+  private JSONObject write(SlingHttpServletRequest request, List<Result> results)
+      throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Writer w = new PrintWriter(baos);
+    ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
     processor.writeResults(request, writer, results.iterator());
     w.flush();
+    return new JSONObject(baos.toString("UTF-8"));
+  }
 
-    String s = baos.toString("UTF-8");
-
-    JSONObject json = new JSONObject(s);
+  private void assertThread(JSONObject json) throws Exception {
     assertEquals(json.getJSONArray("replies").length(), 2);
     assertEquals(json.getJSONArray("replies").getJSONObject(0).getJSONArray("replies")
         .length(), 1);
@@ -134,6 +134,14 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       @PropertyOption(name = OP_DISABLED, value = "Disabled")
   })
   static final String OPERATION_MODE = "sakai.email.operation.mode";
+  @Property(intValue = 1)
+  static final String SMTP_CONCURRENCY = "sakai.smtp.concurrency";
+  @Property(intValue = 0)
+  static final String SMTP_RATE_LIMIT = "sakai.smtp.rateLimit";
+  @Property(intValue = 100)
+  static final String SMTP_MAX_MESSAGES_PER_CONNECTION = "sakai.smtp.maxMessagesPerConnection";
+  @Property(intValue = 30)
+  static final String SMTP_IDLE_TIMEOUT = "sakai.smtp.idleTimeoutSeconds";
 
   static final String QUEUE_NAME = "org/sakaiproject/nakamura/message/email/outgoing";
   
@@ -181,6 +189,7 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   private String replyAsAddress;
   private String replyAsName;
   private String operationMode;
+  private volatile SmtpTransportPool transportPool;
 
   public LiteOutgoingEmailMessageListener() {
   }
@@ -243,13 +252,22 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
                         sparseSession);
 
                     setOptions(email);
+                    SmtpTransportPool pool = transportPool;
+                    if (OP_SEND.equals(operationMode)) {
+                      // build against the session of the pool that will send it
+                      email.setMailSession(pool.getSession());
+                    }
                     if (LOGGER.isDebugEnabled() || OP_LOG.equals(operationMode)) {
                       // build wrapped message in order to log it
                       email.buildMimeMessage();
                       logEmail(email);
                     }
                     if (OP_SEND.equals(operationMode)) {
-                      email.send();
+                      if (email.getMimeMessage() == null) {
+                        email.buildMimeMessage();
+                      }
+                      // reuses an open connection rather than connecting per message
+                      pool.send(email.getMimeMessage());
                     } else {
                       LOGGER.info("Email sending is not enabled [{}]", operationMode);
                     }
@@ -647,17 +665,32 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     authPass = PropertiesUtil.toString(props.get(SMTP_AUTH_PASS), "");
 
     operationMode = PropertiesUtil.toString(props.get(OPERATION_MODE), OP_SEND);
+    // on modification drop the consumers and connections made with the old settings.
+    closeConnections();
     if (OP_DISABLED.equals(operationMode)) {
       LOGGER.info("Email sending is completely disabled and not connected to JMS. Set to 'noop' to see a log entry per message send request.");
       return;
     }
 
+    int concurrency = Math.max(1,
+        PropertiesUtil.toInteger(props.get(SMTP_CONCURRENCY), 1));
+    int rateLimit = PropertiesUtil.toInteger(props.get(SMTP_RATE_LIMIT), 0);
+    int maxMessagesPerConnection = PropertiesUtil.toInteger(
+        props.get(SMTP_MAX_MESSAGES_PER_CONNECTION), 100);
+    int idleTimeout = PropertiesUtil.toInteger(props.get(SMTP_IDLE_TIMEOUT), 30);
+
+    transportPool = new SmtpTransportPool(smtpServer, smtpPort, useTls, useSsl, authUser,
+        authPass, concurrency, maxMessagesPerConnection, idleTimeout * 1000L, rateLimit);
+
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
-      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-      Queue dest = session.createQueue(QUEUE_NAME);
-      MessageConsumer consumer = session.createConsumer(dest);
-      consumer.setMessageListener(this);
+      // a JMS session delivers to one listener at a time, so one session per consumer.
+      for (int i = 0; i < concurrency; i++) {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        Queue dest = session.createQueue(QUEUE_NAME);
+        MessageConsumer consumer = session.createConsumer(dest);
+        consumer.setMessageListener(this);
+      }
       connection.start();
     } catch (JMSException e) {
       LOGGER.error(e.getMessage(), e);
@@ -673,11 +706,20 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
 
   @Deactivate
   protected void deactivate(ComponentContext ctx) {
+    closeConnections();
+  }
+
+  private void closeConnections() {
     if (connection != null) {
       try {
         connection.close();
       } catch (JMSException e) {
       }
+      connection = null;
+    }
+    if (transportPool != null) {
+      transportPool.close();
+      transportPool = null;
     }
   }
 
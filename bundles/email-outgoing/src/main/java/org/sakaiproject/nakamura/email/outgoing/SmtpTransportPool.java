@@ -0,0 +1,289 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.mail.EmailException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A bounded pool of connected SMTP transports. Messages are sent over a connection that
+ * is kept open between messages, so a burst of queued messages costs one connect and
+ * handshake per connection rather than one per message. A connection is closed after a
+ * number of messages or when it has been idle for too long, as relays tend to drop
+ * those.
+ *
+ * The pool size bounds the number of concurrent connections to the relay and the rate
+ * limit bounds the number of messages per second over all of them.
+ */
+public class SmtpTransportPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+  /**
+   * Same as commons-email so a slow relay does not hold a consumer forever.
+   */
+  private static final String SOCKET_TIMEOUT_MS = "60000";
+
+  private final Session session;
+  private final String protocol;
+  private final String host;
+  private final int port;
+  private final String user;
+  private final String password;
+  private final int maxMessagesPerConnection;
+  private final long idleTimeoutMs;
+  private final long intervalNanos;
+  private final BlockingQueue<PooledTransport> transports;
+
+  private long nextSend;
+  private volatile boolean closed;
+
+  private final AtomicLong connects = new AtomicLong();
+  private final AtomicLong sent = new AtomicLong();
+
+  private static class PooledTransport {
+    Transport transport;
+    int messages;
+    long lastUsed;
+  }
+
+  /**
+   * @param host
+   *          the relay host.
+   * @param port
+   *          the relay port.
+   * @param useTls
+   *          issue STARTTLS after connecting.
+   * @param useSsl
+   *          connect over SSL.
+   * @param user
+   *          optional user to authenticate as.
+   * @param password
+   *          optional password to authenticate with.
+   * @param size
+   *          the maximum number of open connections.
+   * @param maxMessagesPerConnection
+   *          the number of messages to send before reconnecting, 0 to keep the connection
+   *          for as long as the relay allows.
+   * @param idleTimeoutMs
+   *          connections that have not been used for this long are reopened.
+   * @param messagesPerSecond
+   *          the maximum rate over all connections, 0 for no limit.
+   */
+  public SmtpTransportPool(String host, int port, boolean useTls, boolean useSsl,
+      String user, String password, int size, int maxMessagesPerConnection,
+      long idleTimeoutMs, int messagesPerSecond) {
+    this.host = host;
+    this.port = port;
+    this.protocol = useSsl ? "smtps" : "smtp";
+    this.maxMessagesPerConnection = maxMessagesPerConnection;
+    this.idleTimeoutMs = idleTimeoutMs;
+    this.intervalNanos = messagesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1)
+        / messagesPerSecond : 0;
+
+    Properties props = new Properties();
+    props.setProperty("mail.transport.protocol", protocol);
+    props.setProperty("mail." + protocol + ".host", host);
+    props.setProperty("mail." + protocol + ".port", Integer.toString(port));
+    props.setProperty("mail." + protocol + ".connectiontimeout", SOCKET_TIMEOUT_MS);
+    props.setProperty("mail." + protocol + ".timeout", SOCKET_TIMEOUT_MS);
+    if (useTls) {
+      props.setProperty("mail." + protocol + ".starttls.enable", "true");
+    }
+    if (!StringUtils.isBlank(user) && !StringUtils.isBlank(password)) {
+      props.setProperty("mail." + protocol + ".auth", "true");
+      this.user = user;
+      this.password = password;
+    } else {
+      this.user = null;
+      this.password = null;
+    }
+    session = Session.getInstance(props);
+
+    int n = Math.max(1, size);
+    transports = new ArrayBlockingQueue<PooledTransport>(n);
+    for (int i = 0; i < n; i++) {
+      transports.add(new PooledTransport());
+    }
+  }
+
+  /**
+   * @return the mail session messages sent through this pool should be built with.
+   */
+  public Session getSession() {
+    return session;
+  }
+
+  /**
+   * Send a message over a pooled connection, waiting for a connection and for the rate
+   * limit if needed.
+   *
+   * @param message
+   *          the message to send to all of its recipients.
+   * @throws EmailException
+   *           if the message could not be sent, the cause is the exception from the
+   *           transport so the SMTP reply code can be read from it.
+   */
+  public void send(MimeMessage message) throws EmailException {
+    if (closed) {
+      throw new EmailException("SMTP transport pool is closed");
+    }
+    PooledTransport pooled;
+    try {
+      pooled = transports.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new EmailException("Interrupted waiting for an SMTP connection", e);
+    }
+    try {
+      acquireRate();
+      boolean reused = prepare(pooled);
+      try {
+        pooled.transport.sendMessage(message, message.getAllRecipients());
+      } catch (MessagingException e) {
+        if (!reused || e instanceof SendFailedException) {
+          throw e;
+        }
+        // the relay may have dropped a connection that looked alive, try a fresh one.
+        LOGGER.debug("Resending over a new connection: {}", e.getMessage());
+        disconnect(pooled);
+        prepare(pooled);
+        pooled.transport.sendMessage(message, message.getAllRecipients());
+      }
+      pooled.messages++;
+      pooled.lastUsed = System.currentTimeMillis();
+      sent.incrementAndGet();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new EmailException("Interrupted waiting for the SMTP rate limit", e);
+    } catch (MessagingException e) {
+      if (!(e instanceof SendFailedException)) {
+        // a rejected recipient leaves the connection usable, anything else might not.
+        disconnect(pooled);
+      }
+      throw new EmailException("Sending the email to the following server failed : "
+          + host + ":" + port, e);
+    } finally {
+      if (closed) {
+        disconnect(pooled);
+      }
+      transports.add(pooled);
+    }
+  }
+
+  /**
+   * Make sure the transport is connected.
+   *
+   * @return true if an existing connection is being reused.
+   */
+  private boolean prepare(PooledTransport pooled) throws MessagingException {
+    if (pooled.transport != null) {
+      boolean expired = (maxMessagesPerConnection > 0 && pooled.messages >= maxMessagesPerConnection)
+          || System.currentTimeMillis() - pooled.lastUsed > idleTimeoutMs;
+      if (!expired) {
+        // not checked with a NOOP, that would cost a round trip per message. A dead
+        // connection is caught by the resend in send().
+        return true;
+      }
+      disconnect(pooled);
+    }
+    Transport transport = session.getTransport(protocol);
+    transport.connect(host, port, user, password);
+    connects.incrementAndGet();
+    pooled.transport = transport;
+    pooled.messages = 0;
+    pooled.lastUsed = System.currentTimeMillis();
+    return false;
+  }
+
+  private void disconnect(PooledTransport pooled) {
+    if (pooled.transport != null) {
+      try {
+        pooled.transport.close();
+      } catch (MessagingException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      pooled.transport = null;
+    }
+  }
+
+  /**
+   * Wait for the next free slot under the rate limit.
+   */
+  private void acquireRate() throws InterruptedException {
+    if (intervalNanos <= 0) {
+      return;
+    }
+    long wait;
+    synchronized (this) {
+      long now = System.nanoTime();
+      if (nextSend < now) {
+        nextSend = now;
+      }
+      wait = nextSend - now;
+      nextSend += intervalNanos;
+    }
+    if (wait > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+
+  /**
+   * Close all idle connections. Connections that are in use are closed when they are
+   * returned.
+   */
+  public void close() {
+    closed = true;
+    for (PooledTransport pooled : transports.toArray(new PooledTransport[0])) {
+      if (transports.remove(pooled)) {
+        disconnect(pooled);
+        transports.add(pooled);
+      }
+    }
+    LOGGER.info("Closed SMTP transport pool, sent {} messages over {} connections",
+        sent.get(), connects.get());
+  }
+
+  /**
+   * @return the number of connections opened so far.
+   */
+  public long getConnectCount() {
+    return connects.get();
+  }
+
+  /**
+   * @return the number of messages sent so far.
+   */
+  public long getSentCount() {
+    return sent.get();
+  }
+}
@@ -0,0 +1,190 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.mail.EmailException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.wiser.Wiser;
+
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends through the pool to a local SubEthaSMTP server, the library the bundled
+ * SakaiSmtpServer is built on, and reports the messages per second.
+ */
+public class SmtpTransportPoolTest {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(SmtpTransportPoolTest.class);
+
+  private Wiser smtpServer;
+  private int smtpPort;
+
+  @Before
+  public void setUp() throws Exception {
+    ServerSocket ss = new ServerSocket(0);
+    smtpPort = ss.getLocalPort();
+    ss.close();
+
+    smtpServer = new Wiser();
+    smtpServer.setPort(smtpPort);
+    smtpServer.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (smtpServer != null) {
+      smtpServer.stop();
+    }
+  }
+
+  private SmtpTransportPool newPool(int size, int maxMessagesPerConnection, int rate) {
+    return new SmtpTransportPool("localhost", smtpPort, false, false, null, null, size,
+        maxMessagesPerConnection, 30000L, rate);
+  }
+
+  private MimeMessage newMessage(javax.mail.Session session, int i)
+      throws MessagingException {
+    MimeMessage message = new MimeMessage(session);
+    message.setFrom(new InternetAddress("no-reply@localhost.localdomain"));
+    message.setRecipient(RecipientType.TO, new InternetAddress("user" + i
+        + "@localhost.localdomain"));
+    message.setSubject("Message " + i);
+    message.setText("Body of message " + i);
+    return message;
+  }
+
+  @Test
+  public void testConnectionsAreReused() throws Exception {
+    SmtpTransportPool pool = newPool(1, 0, 0);
+    for (int i = 0; i < 20; i++) {
+      pool.send(newMessage(pool.getSession(), i));
+    }
+    pool.close();
+    assertEquals(20, smtpServer.getMessages().size());
+    assertEquals(1, pool.getConnectCount());
+  }
+
+  @Test
+  public void testMaxMessagesPerConnection() throws Exception {
+    SmtpTransportPool pool = newPool(1, 5, 0);
+    for (int i = 0; i < 20; i++) {
+      pool.send(newMessage(pool.getSession(), i));
+    }
+    pool.close();
+    assertEquals(20, smtpServer.getMessages().size());
+    assertEquals(4, pool.getConnectCount());
+  }
+
+  @Test
+  public void testRateLimit() throws Exception {
+    SmtpTransportPool pool = newPool(2, 0, 50);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 21; i++) {
+      pool.send(newMessage(pool.getSession(), i));
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    pool.close();
+    // the first message goes straight away, the next 20 are spaced 20ms apart.
+    assertTrue("Sent too fast: " + elapsed + "ms", elapsed >= 380);
+    assertEquals(21, smtpServer.getMessages().size());
+  }
+
+  @Test
+  public void testServerDown() throws Exception {
+    SmtpTransportPool pool = newPool(1, 0, 0);
+    smtpServer.stop();
+    smtpServer = null;
+    try {
+      pool.send(newMessage(pool.getSession(), 0));
+      fail("Should not be able to send with the server down");
+    } catch (EmailException e) {
+      // the listener looks for this to schedule a retry.
+      assertTrue(e.getCause().toString().contains(ConnectException.class.getName()));
+    }
+    pool.close();
+  }
+
+  @Test
+  public void testThroughput() throws Exception {
+    final int messages = 500;
+    final int threads = 4;
+
+    // a connection per message, as commons-email does on send().
+    SmtpTransportPool unpooled = newPool(1, 0, 0);
+    long start = System.nanoTime();
+    for (int i = 0; i < messages; i++) {
+      Transport.send(newMessage(unpooled.getSession(), i));
+    }
+    double unpooledRate = rate(messages, start);
+
+    final SmtpTransportPool pool = newPool(threads, 0, 0);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger failures = new AtomicInteger();
+    start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = next.getAndIncrement(); i < messages; i = next.getAndIncrement()) {
+              pool.send(newMessage(pool.getSession(), i));
+            }
+          } catch (Exception e) {
+            LOGGER.error(e.getMessage(), e);
+            failures.incrementAndGet();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    done.await();
+    double pooledRate = rate(messages, start);
+    pool.close();
+
+    LOGGER.info("Sent {} messages: {} msg/s with a connection per message, {} msg/s over "
+        + "{} pooled connections", new Object[] { messages, (int) unpooledRate,
+        (int) pooledRate, pool.getConnectCount() });
+    assertEquals(0, failures.get());
+    assertEquals(2 * messages, smtpServer.getMessages().size());
+    assertTrue(pool.getConnectCount() <= threads);
+  }
+
+  private double rate(int messages, long start) {
+    return messages * 1000000000.0 / Math.max(1, System.nanoTime() - start);
+  }
+}
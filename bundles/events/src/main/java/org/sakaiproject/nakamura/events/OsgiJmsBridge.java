@@ -17,17 +17,23 @@
  */
 package org.sakaiproject.nakamura.events;
 
+import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.MessageFormatException;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 
@@ -52,7 +58,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Bridge to send OSGi events onto a JMS topic.
+ * Bridge to send OSGi events onto a JMS topic. Events are queued and sent in batches by a
+ * single sender thread over a long lived session, so publishers do not wait for JMS. The
+ * session is transacted, committing once per batch, if so configured. When the queue is
+ * full, or disabled, events are sent on the publishing thread.
  */
 @Component(label = "%bridge.name", description = "%bridge.description", metatype = true, immediate = true)
 @Service
@@ -74,6 +83,18 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(value = {"org/osgi/service/log/LogEntry/LOG_DEBUG", "org/osgi/service/log/LogEntry/LOG_INFO", "org/osgi/service/log/LogEntry/LOG_TRACE"})
   private static final String IGNORE_EVENT_TOPICS = "bridge.ignore.event.topics";
 
+  @Property(intValue = 10000)
+  static final String QUEUE_SIZE = "bridge.queueSize";
+
+  @Property(intValue = 100)
+  static final String BATCH_SIZE = "bridge.batchSize";
+
+  /**
+   * Put on the queue to stop the sender once it has sent everything before it.
+   */
+  private static final Event STOP = new Event("org/sakaiproject/nakamura/events/bridge/STOP",
+      (Dictionary<String, Object>) new Hashtable<String, Object>());
+
   private Set<String> ignoreEventTopics = new HashSet<String>();
 
 
@@ -92,6 +113,18 @@ public class OsgiJmsBridge implements EventHandler {
 
   private String serverId;
 
+  private int batchSize;
+  private volatile boolean running;
+  private volatile BlockingQueue<Event> queue;
+  private Thread senderThread;
+
+  /**
+   * Only used by the sender thread.
+   */
+  private Connection senderConnection;
+  private Session senderSession;
+  private MessageProducer senderProducer;
+
   /**
    * Default constructor.
    */
@@ -122,7 +155,8 @@ public class OsgiJmsBridge implements EventHandler {
     Dictionary props = ctx.getProperties();
 
     transacted = PropertiesUtil.toBoolean(props.get(SESSION_TRANSACTED), false);
-    acknowledgeMode = PropertiesUtil.toInteger(props.get(ACKNOWLEDGE_MODE), 0);
+    acknowledgeMode = PropertiesUtil.toInteger(props.get(ACKNOWLEDGE_MODE),
+        Session.AUTO_ACKNOWLEDGE);
     connectionClientId = PropertiesUtil.toString(props.get(CONNECTION_CLIENT_ID), "sakai.event.bridge");
     serverId = clusterTrackingService.getCurrentServerId();
 
@@ -135,8 +169,19 @@ public class OsgiJmsBridge implements EventHandler {
       }
     }
 
-    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}",
-        new Object[] { transacted, acknowledgeMode, connectionClientId });
+    int queueSize = PropertiesUtil.toInteger(props.get(QUEUE_SIZE), 10000);
+    batchSize = Math.max(1, PropertiesUtil.toInteger(props.get(BATCH_SIZE), 100));
+    if (queueSize > 0) {
+      queue = new ArrayBlockingQueue<Event>(queueSize);
+      running = true;
+      senderThread = new Thread(new Sender(), "OsgiJmsBridge-sender");
+      senderThread.setDaemon(true);
+      senderThread.start();
+    }
+
+    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}, "
+        + "Queue Size: {}, Batch Size: {}", new Object[] { transacted, acknowledgeMode,
+        connectionClientId, queueSize, batchSize });
   }
 
   /**
@@ -145,8 +190,21 @@ public class OsgiJmsBridge implements EventHandler {
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
+    if (senderThread != null) {
+      // anything published from now on is sent directly.
+      running = false;
+      try {
+        queue.put(STOP);
+        senderThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        senderThread.interrupt();
+      }
+      senderThread = null;
+    }
   }
 
+
   /**
    * {@inheritDoc}
    *
@@ -158,107 +216,156 @@ public class OsgiJmsBridge implements EventHandler {
       // Ignore Log messages in jms.
       return;
     }
-    Connection conn = null;
 
     LOGGER.debug("Processing event {}", event);
     TelemetryCounter.incrementValue("event", "JMSBridge", event.getTopic());
-    Session clientSession = null;
-    try {
+    BlockingQueue<Event> queue = this.queue;
+    if (queue == null || !running || !queue.offer(event)) {
+      // no sender or it is falling behind, send on the publishing thread rather than
+      // dropping the event.
+      sendDirect(event);
+    }
+  }
 
-      conn = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
-      // conn.setClientID(connectionClientId);
-      // post to JMS
-      // Sessions are not thread safe, so we need to create and destroy a session, for
-      // sending.
-      EventDeliveryMode deliveryMode = (EventDeliveryMode) event
-          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
-      EventMessageMode messageMode = (EventMessageMode) event
-          .getProperty(EventDeliveryConstants.MESSAGE_MODE);
-
-      EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
-          .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
-
-      int clientAcknowledgeMode = acknowledgeMode;
-      if (acknowledgeModeForEvent != null) {
-        switch (acknowledgeModeForEvent) {
-        case AUTO_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.AUTO_ACKNOWLEDGE;
-          break;
-        case CLIENT_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.CLIENT_ACKNOWLEDGE;
-          break;
-        case DUPS_OK_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.DUPS_OK_ACKNOWLEDGE;
-          break;
+  /**
+   * Drains the queue, sending up to batchSize events at a time over the long lived sender
+   * session.
+   */
+  private class Sender implements Runnable {
+    public void run() {
+      List<Event> batch = new ArrayList<Event>(batchSize);
+      try {
+        while (true) {
+          batch.add(queue.take());
+          queue.drainTo(batch, batchSize - 1);
+          boolean stop = batch.remove(STOP);
+          if (!batch.isEmpty()) {
+            sendBatch(batch);
+            batch.clear();
+          }
+          if (stop) {
+            // events that raced with deactivate.
+            queue.drainTo(batch);
+            if (!batch.isEmpty()) {
+              sendBatch(batch);
+            }
+            break;
+          }
         }
+      } catch (InterruptedException e) {
+        LOGGER.warn("Event bridge sender interrupted, {} events not sent",
+            batch.size() + queue.size());
+      } finally {
+        closeSender();
       }
+    }
+  }
 
-      clientSession = conn.createSession(transacted, clientAcknowledgeMode);
-
-      Message msg = clientSession.createMessage();
-
-      // may need to set a delivery mode eg persistent for certain types of messages.
-      // this should be specified in the OSGi event.
-      if (messageMode != null) {
-        switch (messageMode) {
-        case PERSISTENT:
-          msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
-          break;
-        case NON_PERSISTENT:
-        default:
-          msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-          break;
+  private void sendBatch(List<Event> batch) {
+    List<Event> pending = new ArrayList<Event>(batch.size());
+    for (Event event : batch) {
+      try {
+        if (getAcknowledgeMode(event) != acknowledgeMode) {
+          // the sender session has the configured acknowledge mode.
+          sendDirect(event);
+        } else {
+          pending.add(event);
         }
-      } else {
-        msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      } catch (RuntimeException e) {
+        LOGGER.error("Unable to send event " + event + " to JMS", e);
       }
-
-      Destination destination = null;
-      if (deliveryMode != null) {
-        switch (deliveryMode) {
-        case P2P:
-          destination = clientSession.createQueue(event.getTopic());
-          break;
-        case BROADCAST:
-        default:
-          destination = clientSession.createTopic(event.getTopic());
-          break;
+    }
+    // a second attempt over a new connection in case the broker dropped the first.
+    for (int attempt = 0; attempt < 2 && !pending.isEmpty(); attempt++) {
+      try {
+        if (senderSession == null) {
+          senderConnection = connFactoryService.getDefaultPooledConnectionFactory()
+              .createConnection();
+          senderSession = senderConnection.createSession(transacted, acknowledgeMode);
+          senderProducer = senderSession.createProducer(null);
         }
-      } else {
-        destination = clientSession.createTopic(event.getTopic());
-      }
-      MessageProducer producer = clientSession.createProducer(destination);
-      msg.setJMSType(event.getTopic());
-
-      for (String name : event.getPropertyNames()) {
-        Object obj = event.getProperty(name);
-        // "Only objectified primitive objects, String, Map and List types are
-        // allowed" as stated by an exception when putting something into the
-        // message that was not of one of these types.
-        if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
-            || obj instanceof Number || obj instanceof Map || obj instanceof String
-            || obj instanceof List || obj instanceof Object[]) {
-          msg.setObjectProperty(name, EventUtils.cleanProperty(obj));
+        Iterator<Event> events = pending.iterator();
+        while (events.hasNext()) {
+          Event event = events.next();
+          Message msg;
+          Destination destination;
+          try {
+            msg = createMessage(senderSession, event);
+            destination = createDestination(senderSession, event);
+          } catch (MessageFormatException e) {
+            // the event can never be sent, don't let it take the rest with it.
+            LOGGER.error("Unable to send event {} to JMS: {}", event, e.getMessage());
+            events.remove();
+            continue;
+          } catch (RuntimeException e) {
+            LOGGER.error("Unable to send event " + event + " to JMS", e);
+            events.remove();
+            continue;
+          }
+          LOGGER.debug("Sending Message {} to {}  ", msg, destination);
+          senderProducer.send(destination, msg);
+          if (!transacted) {
+            // sent, so not sent again if a later event fails.
+            events.remove();
+          }
+        }
+        if (transacted) {
+          senderSession.commit();
         }
+        return;
+      } catch (JMSException e) {
+        logJmsException(e);
+        closeSender();
+      } catch (RuntimeException e) {
+        LOGGER.error(e.getMessage(), e);
+        closeSender();
+      }
+    }
+    if (!pending.isEmpty()) {
+      LOGGER.error("Unable to send {} events to JMS", pending.size());
+    }
+  }
+
+  private void closeSender() {
+    try {
+      if (senderConnection != null) {
+        senderConnection.close();
       }
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+    senderConnection = null;
+    senderSession = null;
+    senderProducer = null;
+  }
 
-      msg.setStringProperty("clusterServerId", serverId);
+  /**
+   * Send a single event on the calling thread with a session from the pooled connection
+   * factory.
+   */
+  private void sendDirect(Event event) {
+    Connection conn = null;
+    Session clientSession = null;
+    try {
+
+      conn = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
+      // conn.setClientID(connectionClientId);
+      // post to JMS
+      // Sessions are not thread safe, so we need to create and destroy a session, for
+      // sending.
+      clientSession = conn.createSession(transacted, getAcknowledgeMode(event));
 
-      // add the current user
+      Message msg = createMessage(clientSession, event);
+      Destination destination = createDestination(clientSession, event);
+      MessageProducer producer = clientSession.createProducer(destination);
 
       LOGGER.debug("Sending Message {} to {}  ",msg, destination);
       producer.send(msg);
-    } catch (JMSException e) {
-      Throwable t = e.getCause();
-      if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
-        if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
-          lastMessage = System.currentTimeMillis();
-          LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
-        }
-        LOGGER.debug(e.getMessage(), e);
-      } else {
-        LOGGER.error(e.getMessage(), e);
+      if (transacted) {
+        clientSession.commit();
       }
+    } catch (JMSException e) {
+      logJmsException(e);
     } finally {
       try {
         if (conn != null) {
@@ -276,4 +383,92 @@ public class OsgiJmsBridge implements EventHandler {
       }
     }
   }
+
+  /**
+   * @return the acknowledge mode the event asks for, or the configured one.
+   */
+  private int getAcknowledgeMode(Event event) {
+    EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
+        .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
+    if (acknowledgeModeForEvent != null) {
+      switch (acknowledgeModeForEvent) {
+      case AUTO_ACKNOWLEDGE:
+        return Session.AUTO_ACKNOWLEDGE;
+      case CLIENT_ACKNOWLEDGE:
+        return Session.CLIENT_ACKNOWLEDGE;
+      case DUPS_OK_ACKNOWLEDGE:
+        return Session.DUPS_OK_ACKNOWLEDGE;
+      }
+    }
+    return acknowledgeMode;
+  }
+
+  private Message createMessage(Session clientSession, Event event) throws JMSException {
+    EventMessageMode messageMode = (EventMessageMode) event
+        .getProperty(EventDeliveryConstants.MESSAGE_MODE);
+
+    Message msg = clientSession.createMessage();
+
+    // may need to set a delivery mode eg persistent for certain types of messages.
+    // this should be specified in the OSGi event.
+    if (messageMode != null) {
+      switch (messageMode) {
+      case PERSISTENT:
+        msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
+        break;
+      case NON_PERSISTENT:
+      default:
+        msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+        break;
+      }
+    } else {
+      msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+    }
+
+    msg.setJMSType(event.getTopic());
+
+    for (String name : event.getPropertyNames()) {
+      Object obj = event.getProperty(name);
+      // "Only objectified primitive objects, String, Map and List types are
+      // allowed" as stated by an exception when putting something into the
+      // message that was not of one of these types.
+      if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
+          || obj instanceof Number || obj instanceof Map || obj instanceof String
+          || obj instanceof List || obj instanceof Object[]) {
+        msg.setObjectProperty(name, EventUtils.cleanProperty(obj));
+      }
+    }
+
+    msg.setStringProperty("clusterServerId", serverId);
+    return msg;
+  }
+
+  private Destination createDestination(Session clientSession, Event event)
+      throws JMSException {
+    EventDeliveryMode deliveryMode = (EventDeliveryMode) event
+        .getProperty(EventDeliveryConstants.DELIVERY_MODE);
+    if (deliveryMode != null) {
+      switch (deliveryMode) {
+      case P2P:
+        return clientSession.createQueue(event.getTopic());
+      case BROADCAST:
+      default:
+        return clientSession.createTopic(event.getTopic());
+      }
+    }
+    return clientSession.createTopic(event.getTopic());
+  }
+
+  private void logJmsException(JMSException e) {
+    Throwable t = e.getCause();
+    if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
+      if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
+        lastMessage = System.currentTimeMillis();
+        LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
+      }
+      LOGGER.debug(e.getMessage(), e);
+    } else {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
 }
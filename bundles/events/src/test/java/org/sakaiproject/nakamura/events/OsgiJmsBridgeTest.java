@@ -19,26 +19,35 @@ package org.sakaiproject.nakamura.events;
 
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageListener;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 import javax.jms.Topic;
 
+import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.activemq.command.ActiveMQMessage;
 import org.junit.Before;
 import org.junit.Test;
@@ -46,11 +55,15 @@ import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Unit test for bridging events from OSGi to JMS.
  */
 public class OsgiJmsBridgeTest {
+  private static final Logger LOGGER = LoggerFactory.getLogger(OsgiJmsBridgeTest.class);
+
   private Hashtable<Object, Object> compProps;
   private ComponentContext ctx;
   private ConnectionFactoryService connFactoryService;
@@ -68,6 +81,8 @@ public class OsgiJmsBridgeTest {
   public void setUp() {
     // construct the default component properties
     compProps = buildComponentProperties();
+    // send on the calling thread unless a test turns the queue on.
+    compProps.put(OsgiJmsBridge.QUEUE_SIZE, 0);
 
     // mock the context and expect a call to get the properties
     ctx = createMock(ComponentContext.class);
@@ -223,6 +238,171 @@ public class OsgiJmsBridgeTest {
     verify(ctx, conn, connFactory, clusterTrackingService);
   }
 
+  /**
+   * Queued events go out in one transaction over a single connection.
+   */
+  @Test
+  public void testBatchedSend() throws Exception {
+    compProps.put(OsgiJmsBridge.QUEUE_SIZE, 100);
+    compProps.put(OsgiJmsBridge.SESSION_TRANSACTED, true);
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+
+    conn = createMock(Connection.class);
+    expect(connFactory.createConnection()).andReturn(conn);
+    sess = createMock(Session.class);
+    expect(conn.createSession(true, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(null)).andReturn(prod);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic((String) anyObject())).andReturn(topic).times(3);
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(3);
+    prod.send((Destination) anyObject(), (Message) anyObject());
+    expectLastCall().times(3);
+    sess.commit();
+    expectLastCall().atLeastOnce();
+    conn.close();
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod,
+        clusterTrackingService);
+
+    sendMessage(buildEventProperties());
+    bridge.handleEvent(event);
+    bridge.handleEvent(event);
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, prod, clusterTrackingService);
+  }
+
+  /**
+   * An event that can't be turned into a message is dropped on its own, the rest of the
+   * batch is still sent, once.
+   */
+  @Test
+  public void testBadEventDoesNotFailBatch() throws Exception {
+    compProps.put(OsgiJmsBridge.QUEUE_SIZE, 100);
+    compProps.put(OsgiJmsBridge.SESSION_TRANSACTED, true);
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+
+    conn = createMock(Connection.class);
+    expect(connFactory.createConnection()).andReturn(conn);
+    sess = createMock(Session.class);
+    expect(conn.createSession(true, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(null)).andReturn(prod);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic((String) anyObject())).andReturn(topic).times(2);
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage())
+        .andThrow(new MessageFormatException("bad property"))
+        .andReturn(new ActiveMQMessage());
+    prod.send((Destination) anyObject(), (Message) anyObject());
+    expectLastCall().times(2);
+    sess.commit();
+    expectLastCall().atLeastOnce();
+    conn.close();
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod,
+        clusterTrackingService);
+
+    sendMessage(buildEventProperties());
+    bridge.handleEvent(event);
+    bridge.handleEvent(event);
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, prod, clusterTrackingService);
+  }
+
+  /**
+   * Without a transacted session the queued events are sent without a commit.
+   */
+  @Test
+  public void testBatchedSendNotTransacted() throws Exception {
+    compProps.put(OsgiJmsBridge.QUEUE_SIZE, 100);
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+
+    conn = createMock(Connection.class);
+    expect(connFactory.createConnection()).andReturn(conn);
+    sess = createMock(Session.class);
+    expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(null)).andReturn(prod);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic((String) anyObject())).andReturn(topic).times(2);
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(2);
+    prod.send((Destination) anyObject(), (Message) anyObject());
+    expectLastCall().times(2);
+    conn.close();
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod,
+        clusterTrackingService);
+
+    sendMessage(buildEventProperties());
+    bridge.handleEvent(event);
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, prod, clusterTrackingService);
+  }
+
+  /**
+   * Bridges events to a consumer through an embedded in-VM broker, once on the publishing
+   * thread and once through the queue, and reports the events per second.
+   */
+  @Test
+  public void testThroughput() throws Exception {
+    final int events = 2000;
+    ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(
+        "vm://bridge-test?broker.persistent=false&broker.useJmx=false");
+    connFactoryService = createNiceMock(ConnectionFactoryService.class);
+    expect(connFactoryService.getDefaultPooledConnectionFactory()).andReturn(factory)
+        .anyTimes();
+    clusterTrackingService = createNiceMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID")
+        .anyTimes();
+    ctx = createNiceMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(compProps).anyTimes();
+    replay(connFactoryService, clusterTrackingService, ctx);
+
+    // keeps the broker up and counts what arrives.
+    Connection consumerConnection = factory.createConnection();
+    try {
+      Session consumerSession = consumerConnection.createSession(false,
+          Session.AUTO_ACKNOWLEDGE);
+      MessageConsumer consumer = consumerSession.createConsumer(consumerSession
+          .createTopic("test-event"));
+      final CountDownLatch[] received = new CountDownLatch[1];
+      consumer.setMessageListener(new MessageListener() {
+        public void onMessage(Message message) {
+          received[0].countDown();
+        }
+      });
+      consumerConnection.start();
+
+      double[] rates = new double[2];
+      int[] queueSizes = { 0, 10000 };
+      for (int i = 0; i < queueSizes.length; i++) {
+        compProps.put(OsgiJmsBridge.QUEUE_SIZE, queueSizes[i]);
+        received[0] = new CountDownLatch(events);
+        OsgiJmsBridge bridge = new OsgiJmsBridge(connFactoryService);
+        bridge.clusterTrackingService = clusterTrackingService;
+        bridge.activate(ctx);
+        Event event = new Event("test-event", buildEventProperties());
+        long start = System.nanoTime();
+        for (int j = 0; j < events; j++) {
+          bridge.handleEvent(event);
+        }
+        assertTrue(received[0].await(60, TimeUnit.SECONDS));
+        rates[i] = events * 1000000000.0 / (System.nanoTime() - start);
+        bridge.deactivate(ctx);
+      }
+      LOGGER.info("Bridged {} events: {} events/s sending directly, {} events/s queued",
+          new Object[] { events, (int) rates[0], (int) rates[1] });
+    } finally {
+      consumerConnection.close();
+    }
+  }
+
   /**
    * Constructs the bridge, activates it, constructs a message with 2 properties
    * and calls the bridge to handle it.
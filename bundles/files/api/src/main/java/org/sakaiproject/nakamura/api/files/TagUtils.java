@@ -203,24 +203,41 @@ public class TagUtils {
   public static void bumpTagCounts(Content nodeTag, String[] tagNames, boolean increase,
       boolean calledByAChild, ContentManager cm) throws StorageClientException,
       AccessDeniedException {
-    // input validation
-    if (nodeTag == null || cm == null) {
-      throw new IllegalArgumentException("Missing a required argument:: nodeTag:" + nodeTag
-          + ", contentManager:" + cm);
-    }
-
-    if (calledByAChild || !TagUtils.alreadyTaggedBelowThisLevel(nodeTag, tagNames, cm)) {
+    for (Content tag : getTagsToCount(nodeTag, tagNames, calledByAChild, cm)) {
       Long tagCount = increase ? 1L : 0L;
-      if (nodeTag.hasProperty(SAKAI_TAG_COUNT)) {
-        tagCount = StorageClientUtils.toLong(nodeTag.getProperty(SAKAI_TAG_COUNT));
+      if (tag.hasProperty(SAKAI_TAG_COUNT)) {
+        tagCount = StorageClientUtils.toLong(tag.getProperty(SAKAI_TAG_COUNT));
         if (increase) {
           tagCount++;
         } else {
           tagCount--;
         }
       }
-      nodeTag.setProperty(SAKAI_TAG_COUNT, tagCount);
-      cm.update(nodeTag);
+      tag.setProperty(SAKAI_TAG_COUNT, tagCount);
+      cm.update(tag);
+    }
+  }
+
+  /**
+   * Find the tags whose count changes when content carrying <code>tagNames</code> is
+   * tagged with, or untagged from, <code>nodeTag</code>. That is the tag itself unless the
+   * content is already tagged below it, and each ancestor tag up to the first one the
+   * content is already counted against.
+   *
+   * @return the tags to count, the tag itself first.
+   */
+  public static List<Content> getTagsToCount(Content nodeTag, String[] tagNames,
+      boolean calledByAChild, ContentManager cm) throws StorageClientException,
+      AccessDeniedException {
+    // input validation
+    if (nodeTag == null || cm == null) {
+      throw new IllegalArgumentException("Missing a required argument:: nodeTag:" + nodeTag
+          + ", contentManager:" + cm);
+    }
+
+    List<Content> rv = new ArrayList<Content>();
+    if (calledByAChild || !TagUtils.alreadyTaggedBelowThisLevel(nodeTag, tagNames, cm)) {
+      rv.add(nodeTag);
     }
 
      // if this node's parent is not the root, we keep going up
@@ -237,8 +254,9 @@ public class TagUtils {
       }
       if (!TagUtils.alreadyTaggedAtOrAboveThisLevel(tagNames, peerTags)) {
         Content parentNode = cm.get(parentPath);
-        bumpTagCounts(parentNode, tagNames, increase, true, cm);
+        rv.addAll(getTagsToCount(parentNode, tagNames, true, cm));
       }
     }
+    return rv;
   }
 }
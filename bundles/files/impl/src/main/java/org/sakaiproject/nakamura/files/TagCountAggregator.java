@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files;
+
+import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_COUNT;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.sakaiproject.nakamura.api.files.TagUtils;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maintains the usage counts of tags. Tagging and untagging only record a delta per tag
+ * in memory, the deltas are merged and written to the tag nodes periodically by a single
+ * flush. Popular tags then cost one write per flush rather than a read-modify-write per
+ * tagging, and concurrent taggers can not overwrite each others increments.
+ */
+@Component(label = "Tag Counts", description = "Aggregates tag usage counts and writes them periodically", immediate = true, metatype = true)
+@Service({ TagCountAggregator.class, Runnable.class })
+@Properties(value = {
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_CONCURRENT, boolValue = false),
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_PERIOD, longValue = 10L) })
+public class TagCountAggregator implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TagCountAggregator.class);
+
+  @Reference
+  protected Repository repository;
+
+  /**
+   * Deltas not yet written, keyed by tag path. Entries are never removed, only drained to
+   * 0, so an increment can not land in a counter that has already been dropped.
+   */
+  private final ConcurrentMap<String, AtomicLong> pending = new ConcurrentHashMap<String, AtomicLong>();
+
+  private final Object flushLock = new Object();
+
+  /**
+   * Count content carrying <code>tagNames</code> being tagged with, or untagged from,
+   * <code>tag</code>. The tag and its ancestors are counted as
+   * {@link TagUtils#bumpTagCounts(Content, String[], boolean, boolean, ContentManager)}
+   * would.
+   *
+   * @param tag
+   *          the tag added or removed.
+   * @param tagNames
+   *          the tags on the content.
+   * @param increase
+   *          true when the tag was added.
+   * @param cm
+   *          used to read the tag tree, tags are readable by everyone.
+   */
+  public void countTagging(Content tag, String[] tagNames, boolean increase,
+      ContentManager cm) throws StorageClientException, AccessDeniedException {
+    for (Content counted : TagUtils.getTagsToCount(tag, tagNames, false, cm)) {
+      add(counted.getPath(), increase ? 1L : -1L);
+    }
+  }
+
+  protected void add(String tagPath, long delta) {
+    AtomicLong counter = pending.get(tagPath);
+    if (counter == null) {
+      AtomicLong newCounter = new AtomicLong();
+      counter = pending.putIfAbsent(tagPath, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    counter.addAndGet(delta);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    flush();
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    flush();
+  }
+
+  /**
+   * Write all pending deltas. Deltas that could not be written are kept for the next
+   * flush.
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      Map<String, Long> deltas = new HashMap<String, Long>();
+      for (Entry<String, AtomicLong> e : pending.entrySet()) {
+        long delta = e.getValue().getAndSet(0);
+        if (delta != 0) {
+          deltas.put(e.getKey(), delta);
+        }
+      }
+      if (deltas.isEmpty()) {
+        return;
+      }
+      Session adminSession = null;
+      try {
+        adminSession = repository.loginAdministrative();
+        ContentManager cm = adminSession.getContentManager();
+        for (Entry<String, Long> delta : deltas.entrySet()) {
+          try {
+            write(cm, delta.getKey(), delta.getValue());
+          } catch (StorageClientException e) {
+            LOGGER.warn("Failed to update the count of tag {}: {}", delta.getKey(),
+                e.getMessage());
+            add(delta.getKey(), delta.getValue());
+          } catch (AccessDeniedException e) {
+            LOGGER.warn("Failed to update the count of tag {}: {}", delta.getKey(),
+                e.getMessage());
+            add(delta.getKey(), delta.getValue());
+          }
+        }
+      } catch (ClientPoolException e) {
+        LOGGER.warn("Unable to update tag counts, will retry: {}", e.getMessage());
+        restore(deltas);
+      } catch (StorageClientException e) {
+        LOGGER.warn("Unable to update tag counts, will retry: {}", e.getMessage());
+        restore(deltas);
+      } catch (AccessDeniedException e) {
+        LOGGER.warn("Unable to update tag counts, will retry: {}", e.getMessage());
+        restore(deltas);
+      } finally {
+        if (adminSession != null) {
+          try {
+            adminSession.logout();
+          } catch (ClientPoolException e) {
+            // noop; nothing to do
+          }
+        }
+      }
+    }
+  }
+
+  private void write(ContentManager cm, String tagPath, long delta)
+      throws StorageClientException, AccessDeniedException {
+    Content tag = cm.get(tagPath);
+    if (tag == null) {
+      LOGGER.debug("Tag {} has gone, dropping a count of {}", tagPath, delta);
+      return;
+    }
+    long count;
+    if (tag.hasProperty(SAKAI_TAG_COUNT)) {
+      count = StorageClientUtils.toLong(tag.getProperty(SAKAI_TAG_COUNT)) + delta;
+    } else {
+      // as bumpTagCounts, an uncounted tag starts from 0.
+      count = Math.max(0L, delta);
+    }
+    tag.setProperty(SAKAI_TAG_COUNT, count);
+    cm.update(tag);
+  }
+
+  private void restore(Map<String, Long> deltas) {
+    for (Entry<String, Long> delta : deltas.entrySet()) {
+      add(delta.getKey(), delta.getValue());
+    }
+  }
+}
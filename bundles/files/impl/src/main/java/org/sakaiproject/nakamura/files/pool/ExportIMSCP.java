@@ -18,10 +18,12 @@
  */
 package org.sakaiproject.nakamura.files.pool;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
@@ -30,11 +32,15 @@ import org.apache.sling.api.resource.ResourceProvider;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
@@ -56,16 +62,32 @@ import org.sakaiproject.nakamura.lom.elements.Title;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -73,18 +95,127 @@ import javax.jcr.RepositoryException;
 import javax.servlet.http.HttpServletRequest;
 
 @Component
-@Service
-@Property(name = ResourceProvider.ROOTS, value = {"/imscp" })
-public class ExportIMSCP implements ResourceProvider {
+@Service({ ResourceProvider.class, EventHandler.class })
+@Properties({
+    @Property(name = ResourceProvider.ROOTS, value = {"/imscp" }),
+    @Property(name = "event.topics", value = "org/sakaiproject/nakamura/lite/content/*") })
+public class ExportIMSCP implements ResourceProvider, EventHandler {
   private static final String PROP_ARRAY_FMT = "/__array__%s__";
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ExportIMSCP.class);
+
+  /**
+   * Set on the exported zip, identifies the version of the document it was built from.
+   */
+  static final String EXPORT_VERSION = "sakai:imscp-version";
+
+  /**
+   * Below this path a node per exported document holds its current revision, which is
+   * replaced whenever any part of the document is saved.
+   */
+  static final String REVISIONS_PATH = "/var/imscp/";
+
+  static final String REVISION = "sakai:imscp-revision";
+
+  /**
+   * Set on the revision node, the package whose own writes do not change the revision.
+   */
+  static final String PACKAGE_PATH = "sakai:imscp-package";
+
+  private static final String CONTENT_TOPICS = StoreListener.TOPIC_BASE + "content/";
+
+  @Property(intValue = ExportIMSCP.DEFAULT_EXPORT_THREADS, label = "Export threads",
+      description = "Maximum number of IMS-CP packages that are built at the same time.")
+  public static final String EXPORT_THREADS = "export.threads";
+  public static final int DEFAULT_EXPORT_THREADS = 2;
+
+  private static final int PIPE_SIZE = 64 * 1024;
   public static final String CONTENT_RESOURCE_PROVIDER = ExportIMSCP.class
       .getName();
   
   @Reference
   protected transient Repository repository;
-  
+
+  /**
+   * pool id to the export in progress for the document.
+   */
+  private final ConcurrentMap<String, FutureTask<Void>> exports = new ConcurrentHashMap<String, FutureTask<Void>>();
+
+  private ExecutorService exportExecutor;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    int threads = PropertiesUtil.toInteger(props.get(EXPORT_THREADS), DEFAULT_EXPORT_THREADS);
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads * 4),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ExportIMSCP-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        },
+        // the request reads the pipe the writer fills, so it can not run the writer itself.
+        new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    exportExecutor = executor;
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (exportExecutor != null) {
+      exportExecutor.shutdown();
+      exportExecutor = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Replaces the revision of an exported document when any of its content is saved, so
+   * the next request rebuilds the package. Documents that were never exported have no
+   * revision node and are left alone.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null || !event.getTopic().startsWith(CONTENT_TOPICS)
+        || path.startsWith("/") || path.indexOf(':') >= 0) {
+      return;
+    }
+    String poolId = path.indexOf('/') > 0 ? path.substring(0, path.indexOf('/')) : path;
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      Content revision = contentManager.get(REVISIONS_PATH + poolId);
+      if (revision == null || path.equals(revision.getProperty(PACKAGE_PATH))) {
+        return;
+      }
+      revision.setProperty(REVISION, newRevision());
+      contentManager.update(revision);
+    } catch (StorageClientException e) {
+      LOGGER.warn("Failed to update the export revision of {}: {}", poolId, e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Failed to update the export revision of {}: {}", poolId, e.getMessage());
+    } finally {
+      if (session != null) {
+        try {
+          session.logout();
+        } catch (ClientPoolException e) {
+          LOGGER.warn("Failed to close admin session ", e);
+        }
+      }
+    }
+  }
+
+  private String newRevision() {
+    return UUID.randomUUID().toString();
+  }
+
   public Resource getResource(ResourceResolver resourceResolver,
       HttpServletRequest request, String path) {
     LOGGER.debug("Got Resource URI [{}]  Path [{}] ", request.getRequestURI(), path);
@@ -102,7 +233,6 @@ public class ExportIMSCP implements ResourceProvider {
     String poolId = null;
     SparseContentResource cpr = null;
     Session session = null;
-    File zipFile = null;
     ContentManager contentManager = null;
     Content content = null;
     try {
@@ -121,30 +251,17 @@ public class ExportIMSCP implements ResourceProvider {
         if ( content != null ) {
           String mimeType = (String)content.getProperty(Content.MIMETYPE_FIELD);
           if ("x-sakai/document".equals(mimeType)) {
-            JSONObject structure = new JSONObject((String)content.getProperty("structure0"));
-            Manifest manifest = getManifest(structure, content, contentManager);
-            zipFile = getZipFile(manifest, content, poolId, contentManager);
-            InputStream input = null;
-            try {
-              input = new FileInputStream(zipFile.getAbsolutePath());
-              String filename = (String)content.getProperty(FilesConstants.POOLED_CONTENT_FILENAME) + ".zip";
-              contentManager.writeBody(poolId + "/" + filename, input);
-              content = contentManager.get(poolId + "/" + filename);
-              content.setProperty(Content.MIMETYPE_FIELD, "application/zip");
-              contentManager.update(content);
-              Session userSession = JackrabbitSparseUtils.getSparseSession(resourceResolver
-                  .adaptTo(javax.jcr.Session.class));
-              
-              cpr = new SparseContentResource(content, userSession,
-                  resourceResolver, "/p/" + poolId + "/" + filename);
-              cpr.getResourceMetadata().put(CONTENT_RESOURCE_PROVIDER, this);
-              
-              LOGGER.debug("Resolved {} as {} ", path, cpr);
-            } finally {
-              if (input != null) {
-                input.close();
-              }
-            }
+            String filename = (String)content.getProperty(FilesConstants.POOLED_CONTENT_FILENAME) + ".zip";
+            export(poolId, poolId + "/" + filename, content, contentManager);
+            content = contentManager.get(poolId + "/" + filename);
+            Session userSession = JackrabbitSparseUtils.getSparseSession(resourceResolver
+                .adaptTo(javax.jcr.Session.class));
+
+            cpr = new SparseContentResource(content, userSession,
+                resourceResolver, "/p/" + poolId + "/" + filename);
+            cpr.getResourceMetadata().put(CONTENT_RESOURCE_PROVIDER, this);
+
+            LOGGER.debug("Resolved {} as {} ", path, cpr);
           }
         }
       }
@@ -155,12 +272,6 @@ public class ExportIMSCP implements ResourceProvider {
     } catch (AccessDeniedException e) {
       LOGGER.warn(e.getMessage());
       LOGGER.debug(e.getMessage(), e);
-    } catch (JSONException e) {
-      LOGGER.warn(e.getMessage());
-      LOGGER.debug(e.getMessage(), e);
-    } catch (IOException e) {
-      LOGGER.warn(e.getMessage());
-      LOGGER.debug(e.getMessage(), e);
     } catch (Exception e) {
       LOGGER.warn(e.getMessage());
       LOGGER.debug(e.getMessage(), e);
@@ -172,13 +283,78 @@ public class ExportIMSCP implements ResourceProvider {
           LOGGER.warn("Failed to close admin session ",e);
         }
       }
-      if (zipFile!= null && zipFile.exists()) {
-        FileUtils.deleteQuietly(zipFile);
-      }
     }
     return cpr;
   }
-  
+
+  /**
+   * Make sure the package at <code>zipPath</code> is up to date with the document. Only
+   * one export of a document runs at a time, concurrent requests wait for it and then
+   * use its result.
+   */
+  private void export(final String poolId, final String zipPath, final Content content,
+      final ContentManager contentManager) throws Exception {
+    FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+      public Void call() throws Exception {
+        buildIfChanged(poolId, zipPath, content, contentManager);
+        return null;
+      }
+    });
+    FutureTask<Void> running = exports.putIfAbsent(poolId, task);
+    if (running == null) {
+      running = task;
+      try {
+        task.run();
+      } finally {
+        exports.remove(poolId, task);
+      }
+    }
+    try {
+      running.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Only the revision of the document and the package are read to decide whether the
+   * package is current, the pages are walked only when it has to be rebuilt.
+   */
+  private void buildIfChanged(String poolId, String zipPath, Content content,
+      ContentManager contentManager) throws Exception {
+    String revisionPath = REVISIONS_PATH + poolId;
+    Content revision = contentManager.get(revisionPath);
+    if (revision == null || !zipPath.equals(revision.getProperty(PACKAGE_PATH))) {
+      // changes to the document are tracked from its first export on.
+      Map<String, Object> props = new LinkedHashMap<String, Object>();
+      props.put(REVISION, newRevision());
+      props.put(PACKAGE_PATH, zipPath);
+      revision = new Content(revisionPath, props);
+      contentManager.update(revision);
+    }
+    String version = (String) revision.getProperty(REVISION);
+
+    Content zipContent = contentManager.get(zipPath);
+    if (zipContent != null && version.equals(zipContent.getProperty(EXPORT_VERSION))
+        && contentManager.hasBody(zipPath, null)) {
+      LOGGER.debug("Reusing package {} for revision {} ", zipPath, version);
+      return;
+    }
+
+    // a save from here on replaces the revision, and the package is built again.
+    JSONObject structure = new JSONObject((String)content.getProperty("structure0"));
+    Manifest manifest = getManifest(structure, content, contentManager);
+    ExportPackage pkg = getPackage(manifest, content, poolId, contentManager);
+    writeZip(pkg, zipPath, contentManager);
+    zipContent = contentManager.get(zipPath);
+    zipContent.setProperty(Content.MIMETYPE_FIELD, "application/zip");
+    zipContent.setProperty(EXPORT_VERSION, version);
+    contentManager.update(zipContent);
+  }
+
   private Manifest getManifest(JSONObject structure, Content content, ContentManager cm)
       throws JSONException, Exception {
     Manifest manifest = new Manifest();
@@ -262,17 +438,16 @@ public class ExportIMSCP implements ResourceProvider {
     }
   }
   
-  private File getZipFile(Manifest manifest, Content content, String poolId, ContentManager contentManager) 
+  /**
+   * Collect the pages and embedded files of the document.
+   */
+  private ExportPackage getPackage(Manifest manifest, Content content, String poolId, ContentManager contentManager)
       throws JSONException, IOException, StorageClientException, AccessDeniedException {
     String resourcesDir = "resources/";
-    String filename = (String)content.getProperty(FilesConstants.POOLED_CONTENT_FILENAME);
-    filename = filename.replaceAll("/", "_");
-    File f = File.createTempFile(filename, ".zip");
-    f.deleteOnExit();
-    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(f));
+    ExportPackage pkg = new ExportPackage(manifest);
     List<org.sakaiproject.nakamura.cp.Resource> resources = manifest.getResources().getResources();
     if (resources == null) {
-      return null;
+      return pkg;
     }
     for (org.sakaiproject.nakamura.cp.Resource resource : resources) {
       Item item = new Item();
@@ -295,20 +470,95 @@ public class ExportIMSCP implements ResourceProvider {
       } 
       
       String page = collectPageContent(content, resource.getIdentifier(), contentManager);
-      page = handlePage(page, contentManager, poolId, zos);
+      page = handlePage(page, contentManager, poolId, pkg.files);
       page = "<html><head><title>" + originTitle + "</title></head><body>" + page + "</body></html>";
-      InputStream input = new ByteArrayInputStream(page.getBytes());
-      ZipEntry zae = new ZipEntry(resourcesDir + title);
-      zos.putNextEntry(zae);
-      IOUtils.copy(input, zos);
+      pkg.pages.put(resourcesDir + title, page);
+    }
+    return pkg;
+  }
+
+  /**
+   * Stream the package into the body at <code>zipPath</code>. The zip is assembled on
+   * the export pool, with its own session, and piped straight into the body rather than
+   * through a temporary file.
+   */
+  private void writeZip(final ExportPackage pkg, String zipPath, ContentManager contentManager)
+      throws IOException, StorageClientException, AccessDeniedException {
+    final PipedOutputStream pipeOut = new PipedOutputStream();
+    PipedInputStream pipeIn = new PipedInputStream(pipeOut, PIPE_SIZE);
+    final Throwable[] error = new Throwable[1];
+    Runnable writer = new Runnable() {
+      public void run() {
+        Session session = null;
+        ZipOutputStream zos = new ZipOutputStream(pipeOut);
+        try {
+          session = repository.loginAdministrative();
+          pkg.write(zos, session.getContentManager());
+          zos.close();
+        } catch (Throwable t) {
+          synchronized (error) {
+            error[0] = t;
+          }
+          IOUtils.closeQuietly(pipeOut);
+        } finally {
+          if (session != null) {
+            try {
+              session.logout();
+            } catch (ClientPoolException e) {
+              LOGGER.warn("Failed to close admin session ", e);
+            }
+          }
+        }
+      }
+    };
+
+    // a failed export must not end up as a truncated body.
+    InputStream input = new FilterInputStream(pipeIn) {
+      @Override
+      public int read() throws IOException {
+        return check(super.read());
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return check(super.read(b, off, len));
+      }
+
+      private int check(int n) throws IOException {
+        if (n < 0) {
+          synchronized (error) {
+            if (error[0] != null) {
+              IOException e = new IOException("Failed to build " + pkg);
+              e.initCause(error[0]);
+              throw e;
+            }
+          }
+        }
+        return n;
+      }
+    };
+    Future<?> written;
+    try {
+      written = exportExecutor.submit(writer);
+    } catch (RejectedExecutionException e) {
+      IOUtils.closeQuietly(pipeIn);
+      IOUtils.closeQuietly(pipeOut);
+      throw new IOException("Too many packages are being exported, not building " + zipPath);
+    }
+    try {
+      contentManager.writeBody(zipPath, input);
+    } finally {
+      // unblocks the writer if the body could not be written.
+      IOUtils.closeQuietly(pipeIn);
+      try {
+        written.get();
+      } catch (ExecutionException e) {
+        // reported through the pipe.
+      } catch (InterruptedException e) {
+        written.cancel(true);
+        Thread.currentThread().interrupt();
+      }
     }
-    String xml = manifest.generateXML();
-    InputStream input = new ByteArrayInputStream(xml.getBytes());
-    ZipEntry zae = new ZipEntry("imsmanifest.xml");
-    zos.putNextEntry(zae);
-    IOUtils.copy(input, zos);
-    zos.close();
-    return f;
   }
 
   /**
@@ -378,7 +628,7 @@ public class ExportIMSCP implements ResourceProvider {
     return page.toString();
   }
 
-  private String handlePage(String page, ContentManager contentManager, String poolId, ZipOutputStream zos) 
+  private String handlePage(String page, ContentManager contentManager, String poolId, Map<String, Content> files) 
       throws StorageClientException, AccessDeniedException, IOException {
     int index = 0; 
     if (StringUtils.isBlank(page)) {
@@ -418,15 +668,51 @@ public class ExportIMSCP implements ResourceProvider {
       else {
         newHtml = "<a href=\"" + fileName + "\">" + fileName + "</a>";
       }
-      InputStream input = contentManager.getInputStream(resourcePath);
-      ZipEntry zae = new ZipEntry("resources/" + fileName);
-      zos.putNextEntry(zae);
-      IOUtils.copy(input, zos);
+      files.put("resources/" + fileName, content);
       page = page.replace(embedHtml, newHtml);
     }
     return page;
   }
   
+  /**
+   * The pages and embedded files of a package, in the order they are written.
+   */
+  private static class ExportPackage {
+    final Manifest manifest;
+    final Map<String, String> pages = new LinkedHashMap<String, String>();
+    final Map<String, Content> files = new LinkedHashMap<String, Content>();
+
+    ExportPackage(Manifest manifest) {
+      this.manifest = manifest;
+    }
+
+    void write(ZipOutputStream zos, ContentManager contentManager) throws Exception {
+      for (Entry<String, Content> file : files.entrySet()) {
+        InputStream input = contentManager.getInputStream(file.getValue().getPath());
+        if (input == null) {
+          continue;
+        }
+        try {
+          zos.putNextEntry(new ZipEntry(file.getKey()));
+          IOUtils.copy(input, zos);
+        } finally {
+          input.close();
+        }
+      }
+      for (Entry<String, String> page : pages.entrySet()) {
+        zos.putNextEntry(new ZipEntry(page.getKey()));
+        zos.write(page.getValue().getBytes());
+      }
+      zos.putNextEntry(new ZipEntry("imsmanifest.xml"));
+      zos.write(manifest.generateXML().getBytes());
+    }
+
+    @Override
+    public String toString() {
+      return "IMS-CP package with " + pages.size() + " pages and " + files.size() + " files";
+    }
+  }
+
   public Iterator<Resource> listChildren(Resource parent) {
     if (LOGGER.isDebugEnabled()) {
       LOGGER.debug("List Children [{}] ", parent.getPath());
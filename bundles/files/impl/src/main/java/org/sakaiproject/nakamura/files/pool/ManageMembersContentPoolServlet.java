@@ -53,6 +53,7 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permission;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
@@ -517,8 +518,8 @@ import javax.servlet.http.HttpServletResponse;
       viewerSet.removeAll(removeViewers);
       viewerSet.addAll(addViewers);
 
-      updateContentMembers(session, pooledContent, viewerSet,  managerSet, editorSet);
-      updateContentAccess(session, pooledContent, aclModifications);
+      updateContent(session, pooledContent, aclModifications, viewerSet, managerSet,
+          editorSet);
 
       this.authorizableCountChanger.notify(UserConstants.CONTENT_ITEMS_PROP, addViewers, addEditors, addManagers,
           removeViewers, removeEditors, removeManagers);
@@ -560,8 +561,23 @@ import javax.servlet.http.HttpServletResponse;
     return result;
   }
   
-  private void updateContentMembers(Session session, Content content, Set<String> viewerSet, Set<String> managerSet, Set<String> editorSet)
-          throws StorageClientException, AccessDeniedException {
+  /**
+   * Apply the ACL changes and then write the member lists in a single content update, so
+   * that the one update event is indexed with the new readers in place. The ACL is kept
+   * apart from the content, if the content can't be written the ACL is put back so the
+   * members and their access change together or not at all.
+   */
+  private void updateContent(Session session, Content content,
+      List<AclModification> aclModifications, Set<String> viewerSet,
+      Set<String> managerSet, Set<String> editorSet) throws StorageClientException,
+      AccessDeniedException {
+    LOGGER.debug("ACL Modifications {}",Arrays.toString(aclModifications.toArray(new AclModification[aclModifications.size()])));
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+    Map<String, Object> previousAcl = accessControlManager.getAcl(Security.ZONE_CONTENT,
+        content.getPath());
+    accessControlManager.setAcl(Security.ZONE_CONTENT, content.getPath(),
+      aclModifications.toArray(new AclModification[aclModifications.size()]));
+
     content.setProperty(POOLED_CONTENT_USER_VIEWER,
         viewerSet.toArray(new String[viewerSet.size()]));
     content.setProperty(POOLED_CONTENT_USER_MANAGER,
@@ -570,14 +586,43 @@ import javax.servlet.http.HttpServletResponse;
         editorSet.toArray(new String[editorSet.size()]));
     LOGGER.debug("Set Managers to {}",Arrays.toString(managerSet.toArray(new String[managerSet.size()])));
     LOGGER.debug("Set Editors to {}",Arrays.toString(editorSet.toArray(new String[editorSet.size()])));
-    LOGGER.debug("Set Viewers to {}",Arrays.toString(viewerSet.toArray(new String[managerSet.size()])));
-    session.getContentManager().update(content, false);
+    LOGGER.debug("Set Viewers to {}",Arrays.toString(viewerSet.toArray(new String[viewerSet.size()])));
+    boolean updated = false;
+    try {
+      session.getContentManager().update(content, false);
+      updated = true;
+    } finally {
+      if (!updated) {
+        restoreAcl(accessControlManager, content.getPath(), previousAcl, aclModifications);
+      }
+    }
   }
 
-  private void updateContentAccess(Session session, Content content, List<AclModification> aclModifications) throws StorageClientException, AccessDeniedException {
-    LOGGER.debug("ACL Modifications {}",Arrays.toString(aclModifications.toArray(new AclModification[aclModifications.size()])));
-    session.getAccessControlManager().setAcl(Security.ZONE_CONTENT, content.getPath(),
-      aclModifications.toArray(new AclModification[aclModifications.size()]));
+  /**
+   * Undo the ACL modifications, putting back what the entries they touched were before.
+   */
+  private void restoreAcl(AccessControlManager accessControlManager, String path,
+      Map<String, Object> previousAcl, List<AclModification> aclModifications) {
+    Set<String> keys = Sets.newLinkedHashSet();
+    for (AclModification modification : aclModifications) {
+      keys.add(modification.getAceKey());
+    }
+    List<AclModification> restore = Lists.newArrayList();
+    for (String key : keys) {
+      if (previousAcl.containsKey(key)) {
+        restore.add(new AclModification(key, StorageClientUtils.toInt(previousAcl.get(key)),
+            Operation.OP_REPLACE));
+      } else {
+        restore.add(new AclModification(key, 0, Operation.OP_DEL));
+      }
+    }
+    try {
+      accessControlManager.setAcl(Security.ZONE_CONTENT, path,
+          restore.toArray(new AclModification[restore.size()]));
+    } catch (Exception e) {
+      LOGGER.error("Failed to restore the ACL of {} after its members could not be updated: {}",
+          path, e.getMessage());
+    }
   }
 
 }
@@ -18,10 +18,13 @@
 package org.sakaiproject.nakamura.files.pool;
 
 import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_PRECONDITION_FAILED;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_IF_MODIFIED_SINCE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_LAST_MODIFIED;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.sling.api.resource.Resource;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -29,8 +32,17 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 import javax.jcr.RepositoryException;
@@ -40,6 +52,31 @@ import javax.servlet.http.HttpServletResponse;
 
 public class StreamHelper {
 
+  static final String HEADER_ETAG = "ETag";
+  static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+  static final String HEADER_IF_MATCH = "If-Match";
+  static final String HEADER_IF_UNMODIFIED_SINCE = "If-Unmodified-Since";
+  static final String HEADER_IF_RANGE = "If-Range";
+  static final String HEADER_RANGE = "Range";
+  static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+  static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+  /**
+   * Where the body of a stream is stored, unique to the body so it makes a good entity
+   * tag.
+   */
+  static final String BODY_LOCATION_FIELD = "_bodyLocation";
+
+  /**
+   * More ranges than this are answered with the whole body, small scattered ranges cost
+   * more than they save.
+   */
+  static final int MAX_RANGES = 20;
+
+  static final String MULTIPART_BOUNDARY = "SAKAI_BYTERANGE_BOUNDARY";
+
+  private static final int BUFFER_SIZE = 8192;
+
   public void stream(HttpServletRequest request, ContentManager contentManager, Content node, String alternativeStream, HttpServletResponse response, Resource resource, ServletContext servletContext) throws IOException, StorageClientException, AccessDeniedException {
     InputStream dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
 
@@ -47,18 +84,107 @@ public class StreamHelper {
       response.sendError(HttpServletResponse.SC_NOT_FOUND);
       return;
     }
-    
-    Map<String, Object> properties = node.getProperties();
-    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
-    if (unmodified(request, modifTime)) {
-      response.setStatus(SC_NOT_MODIFIED);
-      return;
+
+    try {
+      Map<String, Object> properties = node.getProperties();
+      long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
+      long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+      String etag = getETag(node, properties, alternativeStream, modifTime, length);
+
+      // If-Match and If-Unmodified-Since guard against sending a body the client does not
+      // expect, typically while resuming a download.
+      String ifMatch = request.getHeader(HEADER_IF_MATCH);
+      if ((ifMatch != null && !matches(ifMatch, etag)) || modifiedSince(request, modifTime)) {
+        response.sendError(SC_PRECONDITION_FAILED);
+        return;
+      }
+      // If-None-Match takes precedence over If-Modified-Since.
+      String ifNoneMatch = request.getHeader(HEADER_IF_NONE_MATCH);
+      if (ifNoneMatch != null ? matches(ifNoneMatch, etag) : unmodified(request, modifTime)) {
+        response.setHeader(HEADER_ETAG, etag);
+        response.setStatus(SC_NOT_MODIFIED);
+        return;
+      }
+
+      String contentType = setHeaders(properties, resource, response, alternativeStream, servletContext);
+      response.setHeader(HEADER_ETAG, etag);
+      if (length <= 0) {
+        // without a length ranges cannot be resolved.
+        setContentLength(response, length);
+        copy(dataStream, 0, Long.MAX_VALUE, response.getOutputStream());
+        return;
+      }
+      response.setHeader(HEADER_ACCEPT_RANGES, "bytes");
+
+      List<long[]> ranges = null;
+      if (rangeApplies(request, etag, modifTime)) {
+        ranges = parseRanges(request.getHeader(HEADER_RANGE), length);
+      }
+      if (ranges == null) {
+        setContentLength(response, length);
+        copy(dataStream, 0, length, response.getOutputStream());
+      } else if (ranges.isEmpty()) {
+        response.setHeader(HEADER_CONTENT_RANGE, "bytes */" + length);
+        response.sendError(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      } else if (ranges.size() == 1) {
+        long[] range = ranges.get(0);
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setHeader(HEADER_CONTENT_RANGE, contentRange(range, length));
+        setContentLength(response, range[1] - range[0] + 1);
+        copy(dataStream, range[0], range[1] - range[0] + 1, response.getOutputStream());
+      } else {
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
+        OutputStream out = response.getOutputStream();
+        // ranges are in ascending order so the stream only moves forward.
+        long position = 0;
+        for (long[] range : ranges) {
+          StringBuilder part = new StringBuilder();
+          part.append("\r\n--").append(MULTIPART_BOUNDARY).append("\r\n");
+          if (contentType != null) {
+            part.append("Content-Type: ").append(contentType).append("\r\n");
+          }
+          part.append("Content-Range: ").append(contentRange(range, length)).append("\r\n\r\n");
+          out.write(part.toString().getBytes("US-ASCII"));
+          copy(dataStream, range[0] - position, range[1] - range[0] + 1, out);
+          position = range[1] + 1;
+        }
+        out.write(("\r\n--" + MULTIPART_BOUNDARY + "--\r\n").getBytes("US-ASCII"));
+      }
+    } finally {
+      dataStream.close();
     }
+  }
 
-    setHeaders(properties, resource, response, alternativeStream, servletContext);
-    setContentLength(properties, response, alternativeStream);
-    IOUtils.copyLarge(dataStream, response.getOutputStream());
-    dataStream.close();
+  /**
+   * A strong entity tag for the stream. The body location changes whenever the body is
+   * replaced, if the store does not expose it the tag is a hash of what identifies the
+   * version of the body.
+   */
+  String getETag(Content node, Map<String, Object> properties, String alternativeStream,
+      long modifTime, long length) {
+    String location = (String) properties.get(StorageClientUtils.getAltField(
+        BODY_LOCATION_FIELD, alternativeStream));
+    String id;
+    if (location != null) {
+      id = location + ":" + length;
+    } else {
+      id = node.getPath() + ":" + alternativeStream + ":" + modifTime + ":" + length;
+    }
+    return "\"" + StorageClientUtils.insecureHash(id) + "\"";
+  }
+
+  /**
+   * @return true if the header value is * or lists the entity tag.
+   */
+  private boolean matches(String header, String etag) {
+    for (String tag : StringUtils.split(header, ',')) {
+      tag = tag.trim();
+      if ("*".equals(tag) || etag.equals(tag)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   /**
@@ -85,14 +211,185 @@ public class StreamHelper {
     return false;
   }
 
+  /**
+   * @return true if the request has an <code>If-Unmodified-Since</code> header and the
+   *         stream was modified after it.
+   */
+  private boolean modifiedSince(HttpServletRequest request, long modifTime) {
+    if (request.getHeader(HEADER_IF_UNMODIFIED_SINCE) == null) {
+      return false;
+    }
+    long ius = getDateHeader(request, HEADER_IF_UNMODIFIED_SINCE);
+    return ius >= 0 && modifTime > 0 && modifTime / 1000 > ius / 1000;
+  }
+
+  /**
+   * A <code>Range</code> header is only honoured if the <code>If-Range</code> header, when
+   * present, still identifies the current body.
+   */
+  private boolean rangeApplies(HttpServletRequest request, String etag, long modifTime) {
+    if (request.getHeader(HEADER_RANGE) == null) {
+      return false;
+    }
+    String ifRange = request.getHeader(HEADER_IF_RANGE);
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      // weak tags never match in If-Range.
+      return etag.equals(ifRange);
+    }
+    long date = getDateHeader(request, HEADER_IF_RANGE);
+    return date >= 0 && modifTime > 0 && modifTime / 1000 <= date / 1000;
+  }
+
+  private long getDateHeader(HttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      // not a date, ignore the header.
+      return -1;
+    }
+  }
+
+  /**
+   * Parse a <code>Range</code> header.
+   *
+   * @return null if the header is not a valid byte range set, in which case it is
+   *         ignored, an empty list if none of the ranges can be satisfied, otherwise the
+   *         satisfiable ranges as inclusive first and last positions, sorted and with
+   *         overlapping ranges merged.
+   */
+  List<long[]> parseRanges(String header, long length) {
+    header = header.trim();
+    if (!header.startsWith("bytes=")) {
+      return null;
+    }
+    List<long[]> ranges = new ArrayList<long[]>();
+    for (String spec : StringUtils.split(header.substring("bytes=".length()), ',')) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      long first;
+      long last;
+      try {
+        if (dash == 0) {
+          // suffix range, the last n bytes.
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix <= 0) {
+            continue;
+          }
+          first = Math.max(0, length - suffix);
+          last = length - 1;
+        } else {
+          first = Long.parseLong(spec.substring(0, dash));
+          last = dash == spec.length() - 1 ? length - 1 : Long.parseLong(spec
+              .substring(dash + 1));
+          if (last < first) {
+            return null;
+          }
+          if (first >= length) {
+            continue;
+          }
+          last = Math.min(last, length - 1);
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      ranges.add(new long[] { first, last });
+    }
+    if (ranges.size() > MAX_RANGES) {
+      return null;
+    }
+    return merge(ranges);
+  }
+
+  private List<long[]> merge(List<long[]> ranges) {
+    if (ranges.size() < 2) {
+      return ranges;
+    }
+    long[][] sorted = ranges.toArray(new long[ranges.size()][]);
+    Arrays.sort(sorted, new Comparator<long[]>() {
+      public int compare(long[] a, long[] b) {
+        return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+      }
+    });
+    List<long[]> merged = new ArrayList<long[]>();
+    long[] current = sorted[0];
+    for (int i = 1; i < sorted.length; i++) {
+      if (sorted[i][0] <= current[1] + 1) {
+        current = new long[] { current[0], Math.max(current[1], sorted[i][1]) };
+      } else {
+        merged.add(current);
+        current = sorted[i];
+      }
+    }
+    merged.add(current);
+    return merged;
+  }
+
+  private String contentRange(long[] range, long length) {
+    return "bytes " + range[0] + "-" + range[1] + "/" + length;
+  }
+
+  /**
+   * Copy <code>count</code> bytes, after skipping <code>skip</code> bytes. File backed
+   * bodies are positioned on their channel instead of skipping through the stream. The
+   * servlet output is not a file or socket channel, so the transfer itself is still a
+   * buffered copy.
+   */
+  void copy(InputStream in, long skip, long count, OutputStream out) throws IOException {
+    if (in instanceof FileInputStream) {
+      FileChannel channel = ((FileInputStream) in).getChannel();
+      WritableByteChannel target = Channels.newChannel(out);
+      long position = channel.position() + skip;
+      long end = Math.min(channel.size(), count == Long.MAX_VALUE ? Long.MAX_VALUE
+          : position + count);
+      while (position < end) {
+        long n = channel.transferTo(position, end - position, target);
+        if (n <= 0) {
+          break;
+        }
+        position += n;
+      }
+      // keep the stream position in step for the next range.
+      channel.position(position);
+      return;
+    }
+    while (skip > 0) {
+      long n = in.skip(skip);
+      if (n <= 0) {
+        // skip may stop short, read to be sure we are not at the end.
+        if (in.read() < 0) {
+          return;
+        }
+        n = 1;
+      }
+      skip -= n;
+    }
+    byte[] buffer = new byte[BUFFER_SIZE];
+    while (count > 0) {
+      int n = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+      if (n < 0) {
+        break;
+      }
+      out.write(buffer, 0, n);
+      count -= n;
+    }
+  }
+
   /**
    * @param resource
    * @param request
    * @param response
-   * @param servletContext 
+   * @param servletContext
+   * @return the content type of the stream, or null if not known.
    * @throws RepositoryException
    */
-  private void setHeaders(Map<String, Object> properties, Resource resource, HttpServletResponse response, String alternativeStream, ServletContext servletContext) {
+  private String setHeaders(Map<String, Object> properties, Resource resource, HttpServletResponse response, String alternativeStream, ServletContext servletContext) {
 
     long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
     if (modifTime > 0) {
@@ -114,6 +411,7 @@ public class StreamHelper {
     if (encoding != null) {
       response.setCharacterEncoding(encoding);
     }
+    return contentType;
   }
 
   /**
@@ -128,8 +426,7 @@ public class StreamHelper {
    *          The content length to be set. If this value is equal to or less than zero,
    *          the header is not set.
    */
-  private void setContentLength(Map<String,Object> properties, HttpServletResponse response, String alternativeStream) {
-    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+  private void setContentLength(HttpServletResponse response, long length) {
     if (length > 0) {
       if (length < Integer.MAX_VALUE) {
         response.setContentLength((int) length);
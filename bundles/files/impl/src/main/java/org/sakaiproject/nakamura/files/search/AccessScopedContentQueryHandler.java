@@ -22,6 +22,7 @@ import com.google.common.base.Joiner;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.solr.client.solrj.util.ClientUtils;
@@ -32,19 +33,26 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.search.SearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.MissingParameterException;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchPropertyProvider;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.AuthorizableUtil;
 import org.sakaiproject.nakamura.util.SparseUtils;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * The {@code MeQueryHandler} backs the search functionality for the role-based content
@@ -56,6 +64,8 @@ import java.util.Map;
  * <li>/var/search/pool/me/viewer.json (DEPRECATED)</li>
  * <li>/var/search/pool/me/role.json</li>
  * </ul>
+ * The principals of each user and the results of searches without a general query are
+ * held in the {@link ManagedContentCache}.
  */
 @Service(value={ SolrSearchPropertyProvider.class, SolrSearchResultProcessor.class })
 @Component(inherit=true)
@@ -75,12 +85,17 @@ public class AccessScopedContentQueryHandler extends AbstractContentSearchQueryH
     viewer
   }
   
+  @Reference
+  protected ManagedContentCache managedContentCache;
+
   public AccessScopedContentQueryHandler() {
     
   }
   
-  public AccessScopedContentQueryHandler(SolrSearchServiceFactory searchServiceFactory, Repository repository) {
+  public AccessScopedContentQueryHandler(SolrSearchServiceFactory searchServiceFactory,
+      Repository repository, ManagedContentCache managedContentCache) {
     super(searchServiceFactory, repository);
+    this.managedContentCache = managedContentCache;
   }
   
   /**
@@ -151,12 +166,24 @@ public class AccessScopedContentQueryHandler extends AbstractContentSearchQueryH
       adminSession = repository.loginAdministrative();
       authorizableManager = adminSession.getAuthorizableManager();
       Authorizable au = authorizableManager.findAuthorizable(userid);
-      List<Authorizable> groups = AuthorizableUtil.getUserFacingGroups(au, authorizableManager);
-      groups.add(au);
-      
-      List<String> groupStrs = new ArrayList<String>(groups.size());
-      for (Authorizable memberAuthz : groups) {
-        groupStrs.add(ClientUtils.escapeQueryChars(memberAuthz.getId()));
+      List<String> groupStrs = managedContentCache.getPrincipals(userid,
+          au.getPrincipals());
+      if (groupStrs == null) {
+        ManagedContentCache.Stamp stamp = managedContentCache.stampPrincipals(userid);
+        // every group is recorded, a change to one the user is in through a group that is
+        // not user facing still drops the principals.
+        List<String> groupIds = new ArrayList<String>();
+        groupStrs = new ArrayList<String>();
+        for (Iterator<Group> memberOf = au.memberOf(authorizableManager); memberOf.hasNext();) {
+          Group group = memberOf.next();
+          groupIds.add(group.getId());
+          if (AuthorizableUtil.isUserFacing(group, false)) {
+            groupStrs.add(ClientUtils.escapeQueryChars(group.getId()));
+          }
+        }
+        groupStrs.add(ClientUtils.escapeQueryChars(au.getId()));
+        managedContentCache.putPrincipals(stamp, userid, au.getPrincipals(), groupIds,
+            groupStrs);
       }
       
       filters.add(String.format(ROLE_TEMPLATE, role.toString(), JOINER_OR.join(groupStrs)));
@@ -172,4 +199,33 @@ public class AccessScopedContentQueryHandler extends AbstractContentSearchQueryH
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * The results are cached per user, query and page. Searches with a general query also
+   * match widget data below the content, which is not tracked, and are always run.
+   *
+   * @see org.sakaiproject.nakamura.files.search.AbstractContentSearchQueryHandler#getSearchResultSet(org.apache.sling.api.SlingHttpServletRequest, org.sakaiproject.nakamura.api.search.solr.Query)
+   */
+  @Override
+  public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request, Query query)
+      throws SolrSearchException {
+    Map<String, String> parametersMap = loadParametersMap(request);
+    configureQuery(parametersMap, query);
+    if (hasGeneralQuery(parametersMap)) {
+      return searchServiceFactory.getSearchResultSet(request, query);
+    }
+    String key = request.getRemoteUser() + ";" + query.getQueryString() + ";"
+        + new TreeMap<String, Object>(query.getOptions()) + ";"
+        + request.getParameter(SolrSearchConstants.PARAMS_PAGE) + ";"
+        + request.getParameter(SolrSearchConstants.PARAMS_ITEMS_PER_PAGE);
+    SolrSearchResultSet results = managedContentCache.getResults(key);
+    if (results == null) {
+      ManagedContentCache.Stamp stamp = managedContentCache.stampResults();
+      results = managedContentCache.putResults(stamp, key,
+          searchServiceFactory.getSearchResultSet(request, query));
+    }
+    return results;
+  }
+
 }
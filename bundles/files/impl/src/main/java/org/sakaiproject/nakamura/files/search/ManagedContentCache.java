@@ -0,0 +1,339 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds, per user, the principals that pooled content is searched for by role, and the
+ * results of those searches.
+ *
+ * The principals of a user are dropped when the user or any group they were in changes.
+ * The user's own principals are also compared when reading, so a user that has just
+ * joined a group is not served the principals from before. Results are dropped when any
+ * pooled content is added, updated or deleted, which covers changes to its members and
+ * ACL, and expire after a short time as the index lags behind the content events.
+ *
+ * Entries record the tokens they were computed under, a change removes the token so an
+ * entry put by a search that raced the change is not served. Tokens and entries are
+ * cluster invalidated.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { ManagedContentCache.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Caches the pooled content searches of each user by role."),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/authorizables/*",
+        "org/sakaiproject/nakamura/lite/content/*" }) })
+public class ManagedContentCache implements EventHandler {
+
+  private static final String AUTHORIZABLE_TOPICS = StoreListener.TOPIC_BASE
+      + "authorizables/";
+
+  static final String CACHE_NAME = ManagedContentCache.class.getName() + "-cache";
+  static final String TOKEN_CACHE_NAME = ManagedContentCache.class.getName() + "-tokens";
+
+  /**
+   * the token of all pooled content, authorizable ids never start with a slash.
+   */
+  private static final String CONTENT_TOKEN = "/pooled-content";
+
+  @Property(longValue = ManagedContentCache.DEFAULT_RESULT_TTL, label = "Result TTL (ms)",
+      description = "How long the results of a search may be served from the cache.")
+  public static final String RESULT_TTL = "result.ttl";
+  public static final long DEFAULT_RESULT_TTL = 30000L;
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  private long resultTtl = DEFAULT_RESULT_TTL;
+
+  private final AtomicLong tokens = new AtomicLong();
+
+  /**
+   * bumped on every local authorizable event, principals read across one are not cached
+   * as the groups were read before their tokens were taken.
+   */
+  private final AtomicLong membershipGeneration = new AtomicLong();
+
+  static class CachedEntry implements Serializable {
+    private static final long serialVersionUID = 4290170232413893562L;
+    final Serializable value;
+    final long created;
+    final Map<String, Long> tokens;
+    final String[] userPrincipals;
+
+    CachedEntry(Serializable value, long created, Map<String, Long> tokens,
+        String[] userPrincipals) {
+      this.value = value;
+      this.created = created;
+      this.tokens = tokens;
+      this.userPrincipals = userPrincipals;
+    }
+  }
+
+  /**
+   * Taken before searching, and handed back when caching what was found.
+   */
+  public static class Stamp {
+    private final Map<String, Long> tokens;
+    private final long membershipGeneration;
+
+    Stamp(Map<String, Long> tokens, long membershipGeneration) {
+      this.tokens = tokens;
+      this.membershipGeneration = membershipGeneration;
+    }
+  }
+
+  /**
+   * The page of results of a search, held so it can be served again.
+   */
+  static class CachedResultSet implements SolrSearchResultSet, Serializable {
+    private static final long serialVersionUID = -5524301186813950290L;
+    private final ArrayList<String> paths = new ArrayList<String>();
+    private final long size;
+    private final ArrayList<FacetField> facetFields;
+
+    CachedResultSet(SolrSearchResultSet resultSet) {
+      for (Iterator<Result> results = resultSet.getResultSetIterator(); results.hasNext();) {
+        paths.add(results.next().getPath());
+      }
+      size = resultSet.getSize();
+      facetFields = resultSet.getFacetFields() == null ? null : new ArrayList<FacetField>(
+          resultSet.getFacetFields());
+    }
+
+    public Iterator<Result> getResultSetIterator() {
+      final Iterator<String> iterator = paths.iterator();
+      return new Iterator<Result>() {
+        public boolean hasNext() {
+          return iterator.hasNext();
+        }
+
+        public Result next() {
+          final String path = iterator.next();
+          return new Result() {
+            public String getPath() {
+              return path;
+            }
+
+            public Map<String, Collection<Object>> getProperties() {
+              return Collections.emptyMap();
+            }
+
+            public Object getFirstValue(String name) {
+              return null;
+            }
+          };
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public List<FacetField> getFacetFields() {
+      return facetFields;
+    }
+  }
+
+  @Activate
+  @Modified
+  protected void modified(Map<?, ?> props) {
+    resultTtl = PropertiesUtil.toLong(props.get(RESULT_TTL), DEFAULT_RESULT_TTL);
+  }
+
+  /**
+   * @return the stamp to cache the principals of the user read from now on with.
+   */
+  public Stamp stampPrincipals(String userId) {
+    Map<String, Long> stampTokens = new HashMap<String, Long>();
+    stampTokens.put(userId, getToken(userId));
+    return new Stamp(stampTokens, membershipGeneration.get());
+  }
+
+  /**
+   * @return the stamp to cache results found from now on with.
+   */
+  public Stamp stampResults() {
+    Map<String, Long> stampTokens = new HashMap<String, Long>();
+    stampTokens.put(CONTENT_TOKEN, getToken(CONTENT_TOKEN));
+    return new Stamp(stampTokens, membershipGeneration.get());
+  }
+
+  /**
+   * @param userPrincipals
+   *          the principals currently held by the user, if they are not the ones the
+   *          cached principals were read with the user's groups have changed.
+   * @return the cached principals of the user or null if they have to be read.
+   */
+  @SuppressWarnings("unchecked")
+  public List<String> getPrincipals(String userId, String[] userPrincipals) {
+    CachedEntry cached = get(principalsKey(userId));
+    if (cached == null || !Arrays.equals(cached.userPrincipals, sorted(userPrincipals))) {
+      return null;
+    }
+    return (List<String>) cached.value;
+  }
+
+  /**
+   * Cache the principals of a user read after the stamp was taken.
+   *
+   * @param groupIds
+   *          every group the user was a member of when the principals were read, a change
+   *          to any of them drops the principals.
+   */
+  public void putPrincipals(Stamp stamp, String userId, String[] userPrincipals,
+      Collection<String> groupIds, List<String> principals) {
+    Map<String, Long> entryTokens = new HashMap<String, Long>(stamp.tokens);
+    for (String groupId : groupIds) {
+      entryTokens.put(groupId, getToken(groupId));
+    }
+    if (stamp.membershipGeneration != membershipGeneration.get()) {
+      // a group changed while the principals were read, they may be stale.
+      return;
+    }
+    getCache().put(principalsKey(userId), new CachedEntry(new ArrayList<String>(principals),
+        System.currentTimeMillis(), entryTokens, sorted(userPrincipals)));
+  }
+
+  /**
+   * @return the cached results of the search or null if it has to be run.
+   */
+  public SolrSearchResultSet getResults(String key) {
+    CachedEntry cached = get(resultsKey(key));
+    if (cached == null || System.currentTimeMillis() - cached.created > resultTtl) {
+      return null;
+    }
+    return (SolrSearchResultSet) cached.value;
+  }
+
+  /**
+   * Cache the results of a search run after the stamp was taken.
+   *
+   * @return the results to serve, <code>resultSet</code> may only be iterated once.
+   */
+  public SolrSearchResultSet putResults(Stamp stamp, String key, SolrSearchResultSet resultSet) {
+    CachedResultSet results = new CachedResultSet(resultSet);
+    getCache().put(resultsKey(key), new CachedEntry(results, System.currentTimeMillis(),
+        stamp.tokens, null));
+    return results;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null) {
+      return;
+    }
+    if (event.getTopic().startsWith(AUTHORIZABLE_TOPICS)) {
+      membershipGeneration.incrementAndGet();
+      getTokenCache().remove(path);
+    } else if (path.indexOf('/') < 0 && path.indexOf(':') < 0) {
+      // pooled content lives at the root, its members are set on the item itself.
+      getTokenCache().remove(CONTENT_TOKEN);
+    }
+  }
+
+  private CachedEntry get(String key) {
+    CachedEntry cached = getCache().get(key);
+    if (cached == null) {
+      return null;
+    }
+    Cache<Long> tokenCache = getTokenCache();
+    for (Entry<String, Long> token : cached.tokens.entrySet()) {
+      if (!token.getValue().equals(tokenCache.get(token.getKey()))) {
+        return null;
+      }
+    }
+    return cached;
+  }
+
+  private String[] sorted(String[] principals) {
+    String[] sorted = principals == null ? new String[0] : principals.clone();
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  private String principalsKey(String userId) {
+    return "principals;" + userId;
+  }
+
+  private String resultsKey(String key) {
+    return "results;" + key;
+  }
+
+  /**
+   * @return the current token of the id, a new one if it has none.
+   */
+  private Long getToken(String id) {
+    Cache<Long> tokenCache = getTokenCache();
+    Long token = tokenCache.get(id);
+    if (token == null) {
+      token = tokens.incrementAndGet();
+      tokenCache.put(id, token);
+    }
+    return token;
+  }
+
+  private Cache<CachedEntry> getCache() {
+    return cacheManagerService.getCache(CACHE_NAME, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  private Cache<Long> getTokenCache() {
+    return cacheManagerService.getCache(TOKEN_CACHE_NAME, CacheScope.CLUSTERINVALIDATED);
+  }
+}
@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrQuery.ORDER;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Keeps a random selection of the pooled content that anonymous and logged in users can
+ * read, refreshed periodically from Solr, so that the random content feeds can pick from
+ * memory rather than run a randomly sorted query for every visitor. The pool only holds
+ * candidates: callers must still check that the user can read what they pick.
+ */
+@Component(label = "Random Content Pool", description = "Periodically refreshed selection of public content for the random content feeds", immediate = true, metatype = true)
+@Service({ RandomContentPool.class, Runnable.class })
+@Properties(value = {
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_CONCURRENT, boolValue = false),
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_PERIOD, longValue = 300L) })
+public class RandomContentPool implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RandomContentPool.class);
+
+  @Property(intValue = RandomContentPool.DEFAULT_POOL_SIZE, label = "Pool size", description = "Number of items to hold for each access scope.")
+  public static final String POOL_SIZE = "pool.size";
+  public static final int DEFAULT_POOL_SIZE = 500;
+
+  /**
+   * Readers of content anonymous users can see.
+   */
+  static final String PUBLIC_READERS = "readers:" + User.ANON_USER;
+
+  /**
+   * Readers of content logged in users can see without being given access.
+   */
+  static final String LOGGED_IN_READERS = "readers:(everyone OR " + User.ANON_USER + ")";
+
+  private static final String[] FIELDS = { "id", "description", "tag", "hasPreview",
+      "manager", "viewer" };
+
+  @Reference
+  protected SolrServerService solrServerService;
+
+  private int poolSize = DEFAULT_POOL_SIZE;
+
+  private final Random random = new Random();
+
+  /**
+   * The candidates by scope, replaced as a whole on refresh. Null until first loaded.
+   */
+  private volatile Map<String, List<Result>> pools;
+
+  @Activate
+  @Modified
+  protected void modified(Map<?, ?> props) {
+    poolSize = PropertiesUtil.toInteger(props.get(POOL_SIZE), DEFAULT_POOL_SIZE);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    refresh();
+  }
+
+  /**
+   * Reload the pools from Solr. The current pools are kept if Solr can't be queried.
+   */
+  public void refresh() {
+    try {
+      int seed = random.nextInt(10000);
+      pools = ImmutableMap.of(PUBLIC_READERS, load(PUBLIC_READERS, seed),
+          LOGGED_IN_READERS, load(LOGGED_IN_READERS, seed));
+    } catch (SolrServerException e) {
+      LOGGER.warn("Unable to refresh the random content pool: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Get the candidates for a user in random order, those with a description, tags or a
+   * preview first.
+   *
+   * @param userId
+   *          the user the content is for, anonymous users get the content anyone can
+   *          read.
+   * @param excludeMember
+   *          if not null, leave out content this user is a manager or viewer of.
+   * @return a new list of candidates, the caller still has to check it can read them.
+   */
+  public List<Result> getCandidates(String userId, String excludeMember) {
+    if (pools == null) {
+      synchronized (this) {
+        if (pools == null) {
+          refresh();
+        }
+      }
+    }
+    Map<String, List<Result>> current = pools;
+    if (current == null) {
+      return Collections.emptyList();
+    }
+    List<Result> pool = current.get(User.ANON_USER.equals(userId) || userId == null
+        ? PUBLIC_READERS : LOGGED_IN_READERS);
+
+    List<Result> priority = Lists.newArrayList();
+    List<Result> standard = Lists.newArrayList();
+    for (Result result : pool) {
+      if (excludeMember != null && isMember(result, excludeMember)) {
+        continue;
+      }
+      if (result.getFirstValue("description") != null
+          || result.getFirstValue("tag") != null
+          || result.getFirstValue("hasPreview") != null) {
+        priority.add(result);
+      } else {
+        standard.add(result);
+      }
+    }
+    Collections.shuffle(priority);
+    Collections.shuffle(standard);
+    priority.addAll(standard);
+    return priority;
+  }
+
+  private boolean isMember(Result result, String userId) {
+    for (String field : new String[] { "manager", "viewer" }) {
+      Collection<Object> members = result.getProperties().get(field);
+      if (members != null && members.contains(userId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private List<Result> load(String readers, int seed) throws SolrServerException {
+    SolrQuery query = new SolrQuery("resourceType:sakai/pooled-content");
+    query.addFilterQuery(readers);
+    query.setFields(FIELDS);
+    query.setRows(poolSize);
+    query.setSortField("random_" + seed, ORDER.desc);
+    ImmutableList.Builder<Result> pool = ImmutableList.builder();
+    for (SolrDocument doc : solrServerService.getServer().query(query).getResults()) {
+      pool.add(new PooledResult(doc));
+    }
+    return pool.build();
+  }
+
+  /**
+   * A candidate, holding the stored fields of its Solr document.
+   */
+  private static class PooledResult implements Result {
+    private final String path;
+    private final Map<String, Collection<Object>> properties;
+
+    PooledResult(SolrDocument doc) {
+      this.path = (String) doc.getFirstValue("id");
+      this.properties = doc.getFieldValuesMap();
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public Map<String, Collection<Object>> getProperties() {
+      return properties;
+    }
+
+    public Object getFirstValue(String name) {
+      Collection<Object> values = properties.get(name);
+      if (values == null || values.isEmpty()) {
+        return null;
+      }
+      return values.iterator().next();
+    }
+  }
+}
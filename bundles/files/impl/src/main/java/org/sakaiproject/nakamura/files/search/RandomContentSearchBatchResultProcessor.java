@@ -21,10 +21,15 @@ import com.google.common.collect.Lists;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
-import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.response.FacetField;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
@@ -34,20 +39,18 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
 
 /**
  * Batch result processor for a random selection of content. It is expected that this
  * processor will never have to deal with more than just a few entries. As of the time of
- * writing, the defaults are to return 4 entries but search for 4x the number of items to
- * return (16 total) for a better selection of random content. These settings were
- * specified by the UI team as what is needed for the random content carousel.
+ * writing, the default is to return 4 entries, as specified by the UI team for the random
+ * content carousel. The entries are picked from the {@link RandomContentPool} rather than
+ * searched for on every request, those with a description, tag or preview first.
  */
 @Component(inherit = true, metatype=true)
 @Properties(value = {
@@ -57,16 +60,11 @@ import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARA
 @Service(value = SolrSearchBatchResultProcessor.class)
 public class RandomContentSearchBatchResultProcessor extends LiteFileSearchBatchResultProcessor {
 
-
-  /*
-   * Increase the numbers of items the solr query returns by this amount.
-   */
-  @Property(name = "solrItemsMultiplier", intValue = 4)
-  private int solrItemsMultiplier;
-
   public static final Logger LOGGER = LoggerFactory
   .getLogger(RandomContentSearchBatchResultProcessor.class);
 
+  @Reference
+  protected RandomContentPool randomContentPool;
 
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request, Query query) throws SolrSearchException {
 
@@ -76,54 +74,38 @@ public class RandomContentSearchBatchResultProcessor extends LiteFileSearchBatch
     String originalItems = String.valueOf(options.get(PARAMS_ITEMS_PER_PAGE)); // items
     int originalItemsInt = Integer.parseInt(originalItems);
 
-    // increase the number of items solr will return.
-    int newItemsInt = originalItemsInt * solrItemsMultiplier;
-
-    // increase the maximum items returned by solr
-    query.getOptions().put(PARAMS_ITEMS_PER_PAGE, Integer.toString(newItemsInt));
-
-    // do the query
-    SolrSearchResultSet rs = searchServiceFactory.getSearchResultSet(request, query);
-
-    // set query option back to original value
-    query.getOptions().put(PARAMS_ITEMS_PER_PAGE, originalItems);
-
-    // split up the results into prioritized (has description, tag or preview)
-    // and standard results so we can return a randomized list with as many
-    // prioritized results as possible.
-    List<Result> priorityResults = Lists.newArrayList();
-    List<Result> standardResults = Lists.newArrayList();
-
-    Iterator<Result> results = rs.getResultSetIterator();
-    while (results.hasNext()) {
-      Result result = results.next();
-      if (result.getFirstValue("description") != null
-          || result.getFirstValue("tag") != null
-          || result.getFirstValue("hasPreview") != null) {
-        priorityResults.add(result);
-      } else {
-        standardResults.add(result);
+    // the pool is shared by everyone in the same scope, keep the picks this user can
+    // read.
+    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+        .adaptTo(javax.jcr.Session.class));
+    List<Result> retval = Lists.newArrayList();
+    try {
+      ContentManager contentManager = session.getContentManager();
+      for (Result candidate : randomContentPool.getCandidates(request.getRemoteUser(),
+          null)) {
+        if (retval.size() >= originalItemsInt) {
+          break;
+        }
+        if (canRead(contentManager, candidate.getPath())) {
+          retval.add(candidate);
+        }
       }
+    } catch (StorageClientException e) {
+      throw new SolrSearchException(500, e.getMessage());
     }
 
-    // choose random entries to return
-    List<Result> retval = chooseRandomResults(priorityResults, originalItemsInt);
-
-    // fill up the pick list with extras if we don't have enough priority results.
-    retval.addAll(chooseRandomResults(standardResults, originalItemsInt - retval.size()));
-
     // create new SolrSearchResultSet object, to be returned by this method.
     SolrSearchResultSet randomSolrResultSet = new RandomContentSolrSearchResultSetImpl(retval);
     return randomSolrResultSet;
   }
 
-  /**
-   * When the bundle gets activated we retrieve the OSGi properties.
-   *
-   * @param props
-   */
-  protected void activate(Map<?, ?> props) {
-    solrItemsMultiplier = PropertiesUtil.toInteger(props.get("solrItemsMultiplier"), 4);
+  private boolean canRead(ContentManager contentManager, String path)
+      throws StorageClientException {
+    try {
+      return contentManager.get(path) != null;
+    } catch (AccessDeniedException e) {
+      return false;
+    }
   }
 
   // inner class, use by method getSearchResultSet(..),
@@ -148,30 +130,4 @@ public class RandomContentSearchBatchResultProcessor extends LiteFileSearchBatch
     }
 
   }
-
-  /**
-   * Randomly choose a set of entries.
-   *
-   * @param results
-   *          The list to pick from. This list is not modified.
-   * @param numToChoose
-   *          The number of entries to pick. The limit is set to Math.min(results.size(),
-   *          numToChoose) to not go out of bounds.
-   * @return
-   */
-  private List<Result> chooseRandomResults(List<Result> results, int numToChoose) {
-    List<Result> picks = Lists.newArrayList();
-    if (numToChoose > 0) {
-      ArrayList<Result> pickList = Lists.newArrayList(results);
-      Random rand = new Random();
-      int limit = Math.min(pickList.size(), numToChoose);
-      for (int i = 0; i < limit; i++) {
-        // Pick the next integer limited to the original limit minus the number
-        // removed from the list. This keeps the picks from going out of bounds.
-        int choose = rand.nextInt(limit - i);
-        picks.add(pickList.remove(choose));
-      }
-    }
-    return picks;
-  }
 }
@@ -34,9 +34,6 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -67,10 +64,8 @@ public class RelatedContentSearchBatchResultProcessor extends
   private static final Logger LOG = LoggerFactory
       .getLogger(RelatedContentSearchBatchResultProcessor.class);
 
-  private static final String DEFAULT_SEARCH_PROC_TARGET = "(&("
-      + SolrSearchResultProcessor.DEFAULT_PROCESSOR_PROP + "=true))";
-  @Reference(target = DEFAULT_SEARCH_PROC_TARGET)
-  private transient SolrSearchResultProcessor defaultSearchProcessor;
+  @Reference
+  protected transient RandomContentPool randomContentPool;
 
   /**
    * "These go to eleven"
@@ -96,35 +91,20 @@ public class RelatedContentSearchBatchResultProcessor extends
           .getResourceResolver().adaptTo(javax.jcr.Session.class));
       final String user = SearchRequestUtils.getUser(request);
 
-      // query to find ALL content that is not mine, boost some fields that have values
-      final StringBuilder sourceQuery = new StringBuilder(
-          "(resourceType:sakai/pooled-content AND (manager:((everyone OR anonymous) AND NOT ");
-      sourceQuery.append(user);
-      sourceQuery.append(") OR viewer:((everyone OR anonymous) AND NOT ");
-      sourceQuery.append(user);
-      sourceQuery
-          .append("))) OR (resourceType:sakai/pooled-content AND (manager:((everyone OR anonymous) AND NOT ");
-      sourceQuery.append(user);
-      sourceQuery.append(") OR viewer:((everyone OR anonymous) AND NOT ");
-      sourceQuery.append(user);
-      // FYI: ^4 == 4 times boost; default boost value is one
-      sourceQuery.append(")) AND (description:[* TO *] OR tag:[* TO *]))^4");
-
       try {
-        final Iterator<Result> i = SolrSearchUtil.getRandomResults(request,
-            defaultSearchProcessor, sourceQuery.toString(), "items",
-            String.valueOf(VOLUME), "page", "0", "sort", "score desc");
-
-        if (i != null) {
+        // content that is not mine, picked from the pool rather than searched for.
+        final Iterator<Result> i = randomContentPool.getCandidates(
+            request.getRemoteUser(), user).iterator();
 
-          final ContentManager contentManager = session.getContentManager();
-          while (i.hasNext() && uniquePathsProcessed.size() <= VOLUME) {
-            final Result result = i.next();
-            final String path = (String) result.getFirstValue("path");
-            if (uniquePathsProcessed.contains(path)) {
-              // we have already painted this result
-              continue;
-            }
+        final ContentManager contentManager = session.getContentManager();
+        while (i.hasNext() && uniquePathsProcessed.size() <= VOLUME) {
+          final Result result = i.next();
+          final String path = result.getPath();
+          if (uniquePathsProcessed.contains(path)) {
+            // we have already painted this result
+            continue;
+          }
+          try {
             final Content content = contentManager.get(path);
             if (content != null) {
               super.handleContent(content, session, write, 0);
@@ -133,21 +113,16 @@ public class RelatedContentSearchBatchResultProcessor extends
               // fail quietly in this edge case
               LOG.debug("Content not found: {}", path);
             }
-          }
-          if (uniquePathsProcessed.size() < VOLUME) {
-            LOG.debug(
-                "Did not meet functional specification. There should be at least {} results; actual size was: {}",
-                VOLUME, uniquePathsProcessed.size());
+          } catch (AccessDeniedException e) {
+            // the pool is shared, quietly skip what this user can't read.
+            LOG.debug(e.getLocalizedMessage(), e);
           }
         }
-
-      } catch (AccessDeniedException e) {
-        // quietly swallow access denied
-        LOG.debug(e.getLocalizedMessage(), e);
-
-      } catch (SolrSearchException e) {
-        LOGGER.error(e.getMessage(), e);
-        throw new IllegalStateException(e);
+        if (uniquePathsProcessed.size() < VOLUME) {
+          LOG.debug(
+              "Did not meet functional specification. There should be at least {} results; actual size was: {}",
+              VOLUME, uniquePathsProcessed.size());
+        }
 
       } catch (StorageClientException e) {
         LOG.error(e.getLocalizedMessage(), e);
@@ -160,4 +135,5 @@ public class RelatedContentSearchBatchResultProcessor extends
           new Object[] { (float) (endTicks - startTicks) / 1000 });
     }
   }
+
 }
@@ -44,8 +44,6 @@ import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.files.TagUtils;
-import org.sakaiproject.nakamura.api.lite.ClientPoolException;
-import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -57,6 +55,7 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.lite.AbstractSparsePostOperation;
 import org.sakaiproject.nakamura.api.resource.lite.SparsePostOperation;
 import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.files.TagCountAggregator;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -83,7 +82,7 @@ public class DeleteTagOperation extends AbstractSparsePostOperation {
   private static final Logger LOGGER = LoggerFactory.getLogger(DeleteTagOperation.class);
 
   @Reference
-  private Repository repository;
+  protected transient TagCountAggregator tagCountAggregator;
 
   /**
    * {@inheritDoc}
@@ -173,23 +172,9 @@ public class DeleteTagOperation extends AbstractSparsePostOperation {
           authManager.updateAuthorizable(authorizable);
         }
       } else {
-        Session adminSession = null;
-        try {
-          adminSession = repository.loginAdministrative();
-          ContentManager cm = adminSession.getContentManager();
-          Content adminTag = cm.get(key);
-          String[] tagNames = StorageClientUtils.nonNullStringArray((String[]) content
-              .getProperty(SAKAI_TAGS));
-          TagUtils.bumpTagCounts(adminTag, tagNames, false, false, cm);
-        } finally {
-          if (adminSession != null) {
-            try {
-              adminSession.logout();
-            } catch (ClientPoolException e) {
-              // noop; nothing to do
-            }
-          }
-        }
+        String[] tagNames = StorageClientUtils.nonNullStringArray((String[]) content
+            .getProperty(SAKAI_TAGS));
+        tagCountAggregator.countTagging(tag, tagNames, false, contentManager);
       }
     }
   }
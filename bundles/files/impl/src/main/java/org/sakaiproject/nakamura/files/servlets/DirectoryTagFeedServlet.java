@@ -20,7 +20,13 @@ package org.sakaiproject.nakamura.files.servlets;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.RT_SAKAI_TAG;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -31,23 +37,32 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.GroupParams;
+import org.apache.solr.common.util.NamedList;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceExtension;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
-import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.search.SearchServiceFactory;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
@@ -56,17 +71,25 @@ import org.sakaiproject.nakamura.files.search.LiteFileSearchBatchResultProcessor
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.sakaiproject.nakamura.util.ServletUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
-@SlingServlet(extensions = { "json" }, generateComponent = true, generateService = true,
+@Component(metatype = true)
+@SlingServlet(extensions = { "json" }, generateComponent = false, generateService = true,
   methods = { "GET" }, resourceTypes = { "sakai/directory" },
   selectors = {"tagged"}
 )
@@ -80,7 +103,8 @@ import javax.servlet.http.HttpServletResponse;
   "This servlet responds to requests on content of type 'sakai/directory', using the 'tagged' selector.",
   "For example: <pre>/tags/directory.tagged.json</pre>",
   "The result is a feed of sample content items, one item per category in the given directory.",
-  "This can be used as a preview of the different types and categories of content in the system."
+  "This can be used as a preview of the different types and categories of content in the system.",
+  "The feed is built from two Solr queries whatever the number of categories and is cached per user for a short while, the items are picked at random anyway."
 },
   bindings = {
 @ServiceBinding(type = BindingType.TYPE, bindings = { "sakai/directory" },
@@ -102,6 +126,25 @@ response = {
 public class DirectoryTagFeedServlet extends SlingSafeMethodsServlet {
   private static final long serialVersionUID = -8815248520601921760L;
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryTagFeedServlet.class);
+
+  static final String CACHE_NAME = DirectoryTagFeedServlet.class.getName() + "-cache";
+
+  public static final long DEFAULT_CACHE_TTL = 60;
+  @Property(longValue = DEFAULT_CACHE_TTL, label = "Cache TTL (seconds)",
+      description = "How long a rendered feed is reused for the same user and directory, 0 to render every request.")
+  public static final String CACHE_TTL = "directory.feed.cacheTtl";
+
+  public static final int DEFAULT_MAX_TAGS_PER_BRANCH = 100;
+  @Property(intValue = DEFAULT_MAX_TAGS_PER_BRANCH, label = "Tags per branch",
+      description = "The maximum number of tags read for each branch of the directory.")
+  public static final String MAX_TAGS_PER_BRANCH = "directory.feed.maxTagsPerBranch";
+
+  /**
+   * Random items fetched per branch so one with a description can be preferred.
+   */
+  private static final int CANDIDATES_PER_BRANCH = 5;
+
   @Reference
   protected transient SearchServiceFactory searchServiceFactory;
 
@@ -114,6 +157,36 @@ public class DirectoryTagFeedServlet extends SlingSafeMethodsServlet {
   @Reference
   private ProfileService profileService;
 
+  @Reference
+  protected transient CacheManagerService cacheManagerService;
+
+  private long cacheTtl = DEFAULT_CACHE_TTL * 1000L;
+  private int maxTagsPerBranch = DEFAULT_MAX_TAGS_PER_BRANCH;
+
+  protected transient SolrSearchBatchResultProcessor resultProcessor;
+
+  private static class FeedEntry implements Serializable {
+    private static final long serialVersionUID = 2883367497236446281L;
+    final String json;
+    final long expires;
+
+    FeedEntry(String json, long expires) {
+      this.json = json;
+      this.expires = expires;
+    }
+  }
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> props) {
+    cacheTtl = PropertiesUtil.toLong(props.get(CACHE_TTL), DEFAULT_CACHE_TTL) * 1000L;
+    maxTagsPerBranch = PropertiesUtil.toInteger(props.get(MAX_TAGS_PER_BRANCH),
+        DEFAULT_MAX_TAGS_PER_BRANCH);
+    resultProcessor = new LiteFileSearchBatchResultProcessor(solrSearchServiceFactory,
+        profileService);
+    getCache().clear();
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -146,91 +219,186 @@ public class DirectoryTagFeedServlet extends SlingSafeMethodsServlet {
     }
     
     request.setAttribute("depth", depth);
-    JSONWriter write = new JSONWriter(response.getWriter());
-    write.setTidy(ServletUtils.isTidy(request));
     Resource directoryResource = request.getResource();
+    // the items are only visible to their readers so the feed is cached per user.
+    String cacheKey = request.getRemoteUser() + ";" + directoryResource.getPath() + ";"
+        + depth + ";" + ServletUtils.isTidy(request);
+    Cache<FeedEntry> cache = getCache();
+    if (cacheTtl > 0) {
+      FeedEntry cached = cache.get(cacheKey);
+      if (cached != null && cached.expires > System.currentTimeMillis()) {
+        response.getWriter().write(cached.json);
+        return;
+      }
+    }
+
+    StringWriter feed = new StringWriter();
+    JSONWriter write = new JSONWriter(feed);
+    write.setTidy(ServletUtils.isTidy(request));
     try {
       write.object();
       Content directory = directoryResource.adaptTo(Content.class);
       if (directory != null) {
         ContentManager cm = directoryResource.adaptTo(ContentManager.class);
-        Iterator<Content> children = cm.listChildren(directoryResource.getPath());
-        while (children.hasNext()) {
-          Content child = children.next();
-          write.key(PathUtils.lastElement(child.getPath()));
+        List<Content> branches = Lists.newArrayList(cm.listChildren(directoryResource
+            .getPath()));
+        Map<String, Set<String>> tags = getTagsForDirectoryBranches(directory, branches,
+            request);
+        Map<String, Result> items = getOneTaggedItemForBranches(tags, request);
+        for (Content branch : branches) {
+          write.key(PathUtils.lastElement(branch.getPath()));
           write.object();
-          ExtendedJSONWriter.writeNodeContentsToWriter(write, child);
+          ExtendedJSONWriter.writeNodeContentsToWriter(write, branch);
           write.key("content");
-          writeOneTaggedItemForTags(request, getTagsForDirectoryBranch(child, cm, request), write);
+          Result item = items.get(branch.getPath());
+          if (item != null) {
+            resultProcessor.writeResults(request, write, singleResult(item));
+          } else {
+            // write an empty result
+            write.object().endObject();
+          }
           write.endObject();
         }
       }
       write.endObject();
     } catch (Exception e) {
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getLocalizedMessage());
+      return;
+    }
+    String json = feed.toString();
+    if (cacheTtl > 0) {
+      cache.put(cacheKey, new FeedEntry(json, System.currentTimeMillis() + cacheTtl));
     }
+    response.getWriter().write(json);
   }
 
-  private List<String> getTagsForDirectoryBranch(Content branch, ContentManager cm,
-      SlingHttpServletRequest request) throws SolrSearchException {
-    String queryString = "path:" + ClientUtils.escapeQueryChars(branch.getPath())
+  /**
+   * Get the tags under each branch of the directory with a single query, grouped by
+   * branch.
+   *
+   * @return the tag names keyed by branch path, branches without tags are left out.
+   */
+  private Map<String, Set<String>> getTagsForDirectoryBranches(Content directory,
+      List<Content> branches, SlingHttpServletRequest request) throws SolrSearchException {
+    Map<String, Set<String>> rv = Maps.newLinkedHashMap();
+    if (branches.isEmpty()) {
+      return rv;
+    }
+    Map<String, String> groupQueries = Maps.newLinkedHashMap();
+    for (Content branch : branches) {
+      groupQueries.put(branch.getPath(),
+          "path:" + ClientUtils.escapeQueryChars(branch.getPath()));
+    }
+    String queryString = "path:" + ClientUtils.escapeQueryChars(directory.getPath())
         + " AND resourceType:" + ClientUtils.escapeQueryChars(RT_SAKAI_TAG);
-    ArrayList<String> rv = new ArrayList<String>();
-
-    Query solrQuery = new Query(queryString, ImmutableMap.<String, Object>of());
+    Query solrQuery = new Query(queryString, ImmutableMap.<String, Object> of(
+        GroupParams.GROUP, "true",
+        GroupParams.GROUP_QUERY, groupQueries.values(),
+        GroupParams.GROUP_LIMIT, String.valueOf(maxTagsPerBranch),
+        CommonParams.FL, "path,tagname"));
     SolrSearchResultSet rs = solrSearchServiceFactory.getSearchResultSet(request, solrQuery);
-    Iterator<Result> results = rs.getResultSetIterator();
-    while (results.hasNext()) {
-      Result result = results.next();
-      rv.add(String.valueOf(result.getFirstValue("tagname")));
+    Map<String, SolrDocumentList> groups = getGroups(rs);
+    for (Entry<String, String> groupQuery : groupQueries.entrySet()) {
+      SolrDocumentList docs = groups.get(groupQuery.getValue());
+      if (docs == null || docs.isEmpty()) {
+        continue;
+      }
+      Set<String> branchTags = Sets.newLinkedHashSet();
+      for (SolrDocument doc : docs) {
+        Object tagName = doc.getFirstValue("tagname");
+        if (tagName != null) {
+          branchTags.add(String.valueOf(tagName));
+        }
+      }
+      if (!branchTags.isEmpty()) {
+        rv.put(groupQuery.getKey(), branchTags);
+      }
     }
-
     return rv;
   }
 
-  private void writeOneTaggedItemForTags(SlingHttpServletRequest request,
-      List<String> tags, JSONWriter write) throws JSONException, SolrSearchException {
-    if (tags == null || tags.size() == 0) {
-      write.object().endObject();
-      return;
+  /**
+   * Pick one random item tagged with any of the tags of each branch, with a single query
+   * that has a group per branch.
+   *
+   * @return the item picked keyed by branch path.
+   */
+  private Map<String, Result> getOneTaggedItemForBranches(Map<String, Set<String>> tags,
+      SlingHttpServletRequest request) throws SolrSearchException {
+    Map<String, Result> rv = Maps.newHashMap();
+    if (tags.isEmpty()) {
+      return rv;
     }
-
     // BL120 KERN-1617 Need to include Content tagged with tag uuid
-    final StringBuilder sb = new StringBuilder();
-    sb.append("tag:(");
-    String sep = "";
-    for (String tag : tags) {
-      sb.append(sep).append(ClientUtils.escapeQueryChars(tag));
-      sep = " ";
+    Map<String, String> groupQueries = Maps.newLinkedHashMap();
+    for (Entry<String, Set<String>> branchTags : tags.entrySet()) {
+      final StringBuilder sb = new StringBuilder();
+      sb.append("tag:(");
+      String sep = "";
+      for (String tag : branchTags.getValue()) {
+        sb.append(sep).append(ClientUtils.escapeQueryChars(tag));
+        sep = " ";
+      }
+      sb.append(")");
+      groupQueries.put(branchTags.getKey(), sb.toString());
     }
-    sb.append(") AND resourceType:").append(ClientUtils.escapeQueryChars(FilesConstants.POOLED_CONTENT_RT));
     final int random = (int) (Math.random() * 10000);
     String sortRandom = "random_" + String.valueOf(random) + " asc";
-    final String queryString = sb.toString();
-    Query solrQuery = new Query(queryString, ImmutableMap.of("sort", (Object) sortRandom));
-    final SolrSearchBatchResultProcessor rp = new LiteFileSearchBatchResultProcessor(
-        solrSearchServiceFactory, profileService);
-    final SolrSearchResultSet srs = rp.getSearchResultSet(request, solrQuery);
-    if (srs.getResultSetIterator().hasNext()) {
-      rp.writeResults(request, write, selectOneResult(srs.getResultSetIterator()));
-    } else {
-      // write an empty result
-      write.object().endObject();
+    final String queryString = "resourceType:"
+        + ClientUtils.escapeQueryChars(FilesConstants.POOLED_CONTENT_RT);
+    Query solrQuery = new Query(queryString, ImmutableMap.<String, Object> of(
+        CommonParams.SORT, sortRandom,
+        GroupParams.GROUP, "true",
+        GroupParams.GROUP_QUERY, groupQueries.values(),
+        GroupParams.GROUP_LIMIT, String.valueOf(CANDIDATES_PER_BRANCH)));
+    SolrSearchResultSet rs = solrSearchServiceFactory.getSearchResultSet(request, solrQuery);
+    Map<String, SolrDocumentList> groups = getGroups(rs);
+    for (Entry<String, String> groupQuery : groupQueries.entrySet()) {
+      SolrDocumentList docs = groups.get(groupQuery.getValue());
+      if (docs != null && !docs.isEmpty()) {
+        rv.put(groupQuery.getKey(), selectOneResult(docs));
+      }
+    }
+    return rv;
+  }
+
+  /**
+   * @return the documents of each group keyed by the group query.
+   */
+  @SuppressWarnings("unchecked")
+  private Map<String, SolrDocumentList> getGroups(SolrSearchResultSet rs) {
+    Map<String, SolrDocumentList> rv = Maps.newHashMap();
+    if (!(rs instanceof SolrQueryResponseWrapper)) {
+      LOGGER.warn("Grouped results are not available from {} ", rs);
+      return rv;
     }
+    NamedList<Object> response = ((SolrQueryResponseWrapper) rs).getQueryResponse()
+        .getResponse();
+    NamedList<Object> grouped = (NamedList<Object>) response.get("grouped");
+    if (grouped != null) {
+      for (int i = 0; i < grouped.size(); i++) {
+        NamedList<Object> group = (NamedList<Object>) grouped.getVal(i);
+        SolrDocumentList docs = (SolrDocumentList) group.get("doclist");
+        if (docs != null) {
+          rv.put(grouped.getName(i), docs);
+        }
+      }
+    }
+    return rv;
   }
 
-  private Iterator<Result> selectOneResult(Iterator<Result> resultSetIterator) {
-    Result bestResult = null;
-    while(resultSetIterator.hasNext()) {
-      Result result = resultSetIterator.next();
-      bestResult = result;
-      if (isBest(result)) {
+  private Result selectOneResult(SolrDocumentList docs) {
+    SolrDocument bestResult = null;
+    for (SolrDocument doc : docs) {
+      bestResult = doc;
+      if (isBest(doc)) {
         break;
       }
     }
-    
-    final Result finalResult = bestResult;
-    
+    return new DocumentResult(bestResult);
+  }
+
+  private Iterator<Result> singleResult(final Result finalResult) {
     return new Iterator<Result>() {
       boolean hasBeenRetrieved = false;
 
@@ -258,8 +426,35 @@ public class DirectoryTagFeedServlet extends SlingSafeMethodsServlet {
     };
   }
 
-  private boolean isBest(Result result) {
+  private boolean isBest(SolrDocument result) {
     return (result.getFirstValue("description") != null );
   }
 
+  private Cache<FeedEntry> getCache() {
+    return cacheManagerService.getCache(CACHE_NAME, CacheScope.INSTANCE);
+  }
+
+  /**
+   * A result read straight from a group of the Solr response.
+   */
+  private static class DocumentResult implements Result {
+    private final SolrDocument doc;
+
+    DocumentResult(SolrDocument doc) {
+      this.doc = doc;
+    }
+
+    public String getPath() {
+      return (String) doc.getFirstValue("path");
+    }
+
+    public Map<String, Collection<Object>> getProperties() {
+      return doc.getFieldValuesMap();
+    }
+
+    public Object getFirstValue(String name) {
+      return doc.getFirstValue(name);
+    }
+  }
+
 }
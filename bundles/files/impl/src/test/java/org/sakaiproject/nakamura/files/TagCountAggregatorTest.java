@@ -0,0 +1,154 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files;
+
+import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.RT_SAKAI_TAG;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_COUNT;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_NAME;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TagCountAggregatorTest {
+
+  private static final String[] TAGS = { "/tags/popular", "/tags/popular/child",
+      "/tags/rare" };
+
+  private Repository repository;
+  private Session session;
+  private ContentManager contentManager;
+  private TagCountAggregator aggregator;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = (Repository) new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+    contentManager = session.getContentManager();
+    for (String tag : TAGS) {
+      contentManager.update(new Content(tag, ImmutableMap.<String, Object> of(
+          SLING_RESOURCE_TYPE_PROPERTY, RT_SAKAI_TAG, SAKAI_TAG_NAME,
+          tag.substring("/tags/".length()))));
+    }
+    // an existing count, so decrements flushed before the matching increments are kept.
+    Content rare = contentManager.get(TAGS[2]);
+    rare.setProperty(SAKAI_TAG_COUNT, 100L);
+    contentManager.update(rare);
+    aggregator = new TagCountAggregator();
+    aggregator.repository = repository;
+  }
+
+  private long count(String tag) throws Exception {
+    return StorageClientUtils.toLong(contentManager.get(tag).getProperty(SAKAI_TAG_COUNT));
+  }
+
+  @Test
+  public void testCountsAncestors() throws Exception {
+    aggregator.countTagging(contentManager.get("/tags/popular/child"),
+        new String[] { "popular/child" }, true, contentManager);
+    assertNull(contentManager.get("/tags/popular").getProperty(SAKAI_TAG_COUNT));
+
+    aggregator.flush();
+    assertEquals(1, count("/tags/popular/child"));
+    assertEquals(1, count("/tags/popular"));
+
+    aggregator.countTagging(contentManager.get("/tags/popular/child"),
+        new String[] { "popular/child" }, false, contentManager);
+    aggregator.flush();
+    assertEquals(0, count("/tags/popular/child"));
+    assertEquals(0, count("/tags/popular"));
+  }
+
+  @Test
+  public void testNoIncrementsLostUnderConcurrency() throws Exception {
+    final int threads = 8;
+    final int increments = 2000;
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final AtomicInteger failures = new AtomicInteger();
+
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < increments; i++) {
+              aggregator.add(TAGS[0], 1);
+              // every other thread also untags the rare tag now and then.
+              if (i % 10 == 0) {
+                aggregator.add(TAGS[2], thread % 2 == 0 ? 1 : -1);
+              }
+              aggregator.add(TAGS[1], 1);
+            }
+          } catch (Exception e) {
+            failures.incrementAndGet();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    // flush continuously while the counts are being bumped.
+    Thread flusher = new Thread() {
+      @Override
+      public void run() {
+        while (running.get()) {
+          aggregator.run();
+        }
+      }
+    };
+    flusher.start();
+
+    start.countDown();
+    done.await();
+    running.set(false);
+    flusher.join();
+    aggregator.flush();
+
+    assertEquals(0, failures.get());
+    assertEquals(threads * increments, count(TAGS[0]));
+    assertEquals(threads * increments, count(TAGS[1]));
+    assertEquals(100, count(TAGS[2]));
+  }
+
+  @Test
+  public void testDeletedTagIsDropped() throws Exception {
+    aggregator.add("/tags/gone", 3);
+    aggregator.add(TAGS[0], 3);
+    aggregator.flush();
+    assertEquals(3, count(TAGS[0]));
+    assertNull(contentManager.get("/tags/gone"));
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.Assert;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+public class ExportIMSCPTest {
+
+  private static final String POOL_ID = "poolId";
+  private static final String ZIP_PATH = POOL_ID + "/doc.zip";
+
+  private ExportIMSCP exportIMSCP;
+  private ContentManager contentManager;
+  private ResourceResolver resourceResolver;
+  private Content document;
+  private Content zip;
+  private Content revision;
+  private List<String> entries;
+  private CountDownLatch writing;
+
+  @Before
+  public void before() throws Exception {
+    Repository repository = mock(Repository.class);
+    Session session = mock(Session.class);
+    contentManager = mock(ContentManager.class);
+    resourceResolver = mock(ResourceResolver.class);
+    when(repository.loginAdministrative()).thenReturn(session);
+    when(session.getContentManager()).thenReturn(contentManager);
+
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(Content.MIMETYPE_FIELD, "x-sakai/document");
+    props.put(FilesConstants.POOLED_CONTENT_FILENAME, "doc");
+    props.put("structure0", "{\"page1\":{\"_title\":\"Page 1\",\"_ref\":\"ref1\"}}");
+    document = new Content(POOL_ID, props);
+    when(contentManager.get(POOL_ID)).thenReturn(document);
+    when(contentManager.exists(POOL_ID + "/ref1")).thenReturn(true);
+    when(contentManager.get(ZIP_PATH)).thenAnswer(new Answer<Content>() {
+      public Content answer(InvocationOnMock invocation) throws Throwable {
+        return zip;
+      }
+    });
+    when(contentManager.hasBody(ZIP_PATH, null)).thenAnswer(new Answer<Boolean>() {
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        return zip != null;
+      }
+    });
+    when(contentManager.get(ExportIMSCP.REVISIONS_PATH + POOL_ID)).thenAnswer(
+        new Answer<Content>() {
+          public Content answer(InvocationOnMock invocation) throws Throwable {
+            return revision;
+          }
+        });
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        Content c = (Content) invocation.getArguments()[0];
+        if (c.getPath().equals(ExportIMSCP.REVISIONS_PATH + POOL_ID)) {
+          revision = new Content(c.getPath(), c.getProperties());
+        }
+        return null;
+      }
+    }).when(contentManager).update(any(Content.class));
+    entries = new ArrayList<String>();
+    writing = new CountDownLatch(0);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        writing.await();
+        ZipInputStream zis = new ZipInputStream((InputStream) invocation.getArguments()[1]);
+        entries.clear();
+        for (ZipEntry e = zis.getNextEntry(); e != null; e = zis.getNextEntry()) {
+          entries.add(e.getName());
+        }
+        if (zip == null) {
+          zip = new Content(ZIP_PATH, new HashMap<String, Object>());
+        }
+        return null;
+      }
+    }).when(contentManager).writeBody(eq(ZIP_PATH), any(InputStream.class));
+
+    exportIMSCP = new ExportIMSCP();
+    exportIMSCP.repository = repository;
+    exportIMSCP.activate(new HashMap<String, Object>());
+  }
+
+  @After
+  public void after() {
+    exportIMSCP.deactivate();
+  }
+
+  private void saved(String path) {
+    exportIMSCP.handleEvent(new Event(StoreListener.TOPIC_BASE + "content/"
+        + StoreListener.UPDATED_TOPIC, ImmutableMap.of("path", path)));
+  }
+
+  @Test
+  public void testReusedUntilChanged() throws Exception {
+    exportIMSCP.getResource(resourceResolver, "/imscp/" + POOL_ID);
+    verify(contentManager, times(1)).writeBody(eq(ZIP_PATH), any(InputStream.class));
+    Assert.assertEquals("[resources/ref1.html, imsmanifest.xml]", entries.toString());
+    Assert.assertEquals("application/zip", zip.getProperty(Content.MIMETYPE_FIELD));
+    Assert.assertNotNull(zip.getProperty(ExportIMSCP.EXPORT_VERSION));
+
+    Assert.assertEquals(revision.getProperty(ExportIMSCP.REVISION),
+        zip.getProperty(ExportIMSCP.EXPORT_VERSION));
+
+    // nothing changed, the package is served as is without walking the pages.
+    saved(ZIP_PATH);
+    exportIMSCP.getResource(resourceResolver, "/imscp/" + POOL_ID);
+    verify(contentManager, times(1)).writeBody(eq(ZIP_PATH), any(InputStream.class));
+    verify(contentManager, times(1)).get(POOL_ID + "/ref1/rows");
+
+    document.setProperty("structure0",
+        "{\"page1\":{\"_title\":\"Renamed\",\"_ref\":\"ref1\"}}");
+    saved(POOL_ID);
+    exportIMSCP.getResource(resourceResolver, "/imscp/" + POOL_ID);
+    verify(contentManager, times(2)).writeBody(eq(ZIP_PATH), any(InputStream.class));
+    Assert.assertEquals(revision.getProperty(ExportIMSCP.REVISION),
+        zip.getProperty(ExportIMSCP.EXPORT_VERSION));
+  }
+
+  @Test
+  public void testSavesToOtherContentAreIgnored() throws Exception {
+    saved("otherPoolId/page");
+    saved("a:user/public");
+    Assert.assertNull(revision);
+    verify(contentManager, times(0)).update(any(Content.class));
+  }
+
+  @Test
+  public void testConcurrentRequestsBuildOnce() throws Exception {
+    writing = new CountDownLatch(1);
+    final int threads = 5;
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          exportIMSCP.getResource(resourceResolver, "/imscp/" + POOL_ID);
+          done.countDown();
+        }
+      }.start();
+    }
+    // let the other requests pile up behind the first build.
+    Thread.sleep(200);
+    writing.countDown();
+    done.await();
+    verify(contentManager, times(1)).writeBody(anyString(), any(InputStream.class));
+  }
+}
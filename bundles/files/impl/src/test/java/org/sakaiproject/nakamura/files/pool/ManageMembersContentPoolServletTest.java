@@ -25,10 +25,12 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_USER_EDITOR;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_USER_MANAGER;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_USER_VIEWER;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.principal.ItemBasedPrincipal;
@@ -61,6 +63,7 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.user.AuthorizableCountChanger;
+import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 
 import java.io.IOException;
@@ -68,6 +71,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.security.Principal;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 
 import javax.jcr.Node;
@@ -426,6 +430,30 @@ public class ManageMembersContentPoolServletTest {
     assertFalse("'bob' should not still be in the viewers list.",Arrays.asList(viewers).contains("bob"));
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testCombinedChangeNotifiesEveryChangedMember() throws Exception {
+    when(request.getParameterValues(":viewer")).thenReturn(new String[] { "charly" });
+    when(request.getParameterValues(":editor")).thenReturn(new String[] { "mark" });
+    when(request.getParameterValues(":viewer@Delete")).thenReturn(
+        new String[] { "bob", "john" });
+
+    servlet.doPost(request, response);
+
+    verify(response).setStatus(200);
+    Content content = sparseSession.getContentManager().get("pooled-content-id");
+    assertEquals(ImmutableSet.of("mark", "SkyDivers", "Accountants", "charly"),
+        ImmutableSet.copyOf((String[]) content.getProperty(POOLED_CONTENT_USER_VIEWER)));
+    assertEquals(ImmutableSet.of("mark"),
+        ImmutableSet.copyOf((String[]) content.getProperty(POOLED_CONTENT_USER_EDITOR)));
+    // every changed name is notified in a single call, including ones that are not
+    // authorizables.
+    verify(authorizableCountChanger).notify(eq(UserConstants.CONTENT_ITEMS_PROP),
+        eq(Arrays.asList("charly")), eq(Arrays.asList("mark")),
+        eq(Collections.<String> emptyList()), eq(Arrays.asList("bob", "john")),
+        eq(Collections.<String> emptyList()), eq(Collections.<String> emptyList()));
+  }
+
   /**
    * Verify that when you switch a user from a viewer to an editor (or manager), that they
    * will have sufficient access to read the the content.
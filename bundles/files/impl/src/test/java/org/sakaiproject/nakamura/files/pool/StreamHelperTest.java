@@ -0,0 +1,220 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.Assert;
+
+import org.apache.sling.api.resource.Resource;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class StreamHelperTest {
+
+  private static final String BODY = "0123456789abcdefghijklmnopqrstuvwxyz";
+  private static final long MODIFIED = 1309276646000L;
+
+  private StreamHelper streamHelper;
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+  private ContentManager contentManager;
+  private Resource resource;
+  private Content content;
+  private ByteArrayOutputStream output;
+
+  @Before
+  public void before() throws Exception {
+    streamHelper = new StreamHelper();
+    request = Mockito.mock(HttpServletRequest.class);
+    response = Mockito.mock(HttpServletResponse.class);
+    contentManager = Mockito.mock(ContentManager.class);
+    resource = Mockito.mock(Resource.class);
+    content = new Content("poolId", ImmutableMap.of(Content.LENGTH_FIELD,
+        (Object) BODY.length(), Content.LASTMODIFIED_FIELD, MODIFIED,
+        Content.MIMETYPE_FIELD, "text/plain", StreamHelper.BODY_LOCATION_FIELD,
+        "2011/5/-V/7P/mM/-V7PmMdM-QDHyHslMftAMF21H4s"));
+    Mockito.when(contentManager.getInputStream("poolId", null)).thenReturn(
+        new ByteArrayInputStream(BODY.getBytes("UTF-8")));
+    output = new ByteArrayOutputStream();
+    Mockito.when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        output.write(b);
+      }
+    });
+  }
+
+  private String stream() throws Exception {
+    streamHelper.stream(request, contentManager, content, null, response, resource, null);
+    return output.toString("UTF-8");
+  }
+
+  private String etag() {
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    Mockito.verify(response).setHeader(Mockito.eq(StreamHelper.HEADER_ETAG), etag.capture());
+    return etag.getValue();
+  }
+
+  @Test
+  public void testFullBody() throws Exception {
+    Assert.assertEquals(BODY, stream());
+    Mockito.verify(response).setContentLength(BODY.length());
+    Mockito.verify(response).setHeader(StreamHelper.HEADER_ACCEPT_RANGES, "bytes");
+    Mockito.verify(response, Mockito.never()).setStatus(Mockito.anyInt());
+    String etag = etag();
+    Assert.assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+  }
+
+  @Test
+  public void testSingleRange() throws Exception {
+    Mockito.when(request.getHeader(StreamHelper.HEADER_RANGE)).thenReturn("bytes=10-19");
+    Assert.assertEquals("abcdefghij", stream());
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    Mockito.verify(response).setHeader(StreamHelper.HEADER_CONTENT_RANGE, "bytes 10-19/36");
+    Mockito.verify(response).setContentLength(10);
+  }
+
+  @Test
+  public void testSuffixAndOpenRanges() throws Exception {
+    Mockito.when(request.getHeader(StreamHelper.HEADER_RANGE)).thenReturn("bytes=-6");
+    Assert.assertEquals("uvwxyz", stream());
+    Mockito.verify(response).setHeader(StreamHelper.HEADER_CONTENT_RANGE, "bytes 30-35/36");
+
+    List<long[]> ranges = streamHelper.parseRanges("bytes=30-", 36);
+    Assert.assertEquals(1, ranges.size());
+    Assert.assertEquals(30, ranges.get(0)[0]);
+    Assert.assertEquals(35, ranges.get(0)[1]);
+    // overlapping and adjacent ranges are merged.
+    ranges = streamHelper.parseRanges("bytes=20-25,0-4,3-9,26-27", 36);
+    Assert.assertEquals(2, ranges.size());
+    Assert.assertEquals(9, ranges.get(0)[1]);
+    Assert.assertEquals(20, ranges.get(1)[0]);
+    Assert.assertEquals(27, ranges.get(1)[1]);
+    // not a byte range set, ignored.
+    Assert.assertNull(streamHelper.parseRanges("bytes=5-1", 36));
+    Assert.assertNull(streamHelper.parseRanges("items=1-2", 36));
+  }
+
+  @Test
+  public void testMultipleRanges() throws Exception {
+    Mockito.when(request.getHeader(StreamHelper.HEADER_RANGE)).thenReturn(
+        "bytes=30-31,0-1");
+    String body = stream();
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    Mockito.verify(response).setContentType(
+        "multipart/byteranges; boundary=" + StreamHelper.MULTIPART_BOUNDARY);
+    Assert.assertEquals("\r\n--" + StreamHelper.MULTIPART_BOUNDARY + "\r\n"
+        + "Content-Type: text/plain\r\nContent-Range: bytes 0-1/36\r\n\r\n01"
+        + "\r\n--" + StreamHelper.MULTIPART_BOUNDARY + "\r\n"
+        + "Content-Type: text/plain\r\nContent-Range: bytes 30-31/36\r\n\r\nuv"
+        + "\r\n--" + StreamHelper.MULTIPART_BOUNDARY + "--\r\n", body);
+  }
+
+  @Test
+  public void testUnsatisfiableRange() throws Exception {
+    Mockito.when(request.getHeader(StreamHelper.HEADER_RANGE)).thenReturn("bytes=100-200");
+    Assert.assertEquals("", stream());
+    Mockito.verify(response).setHeader(StreamHelper.HEADER_CONTENT_RANGE, "bytes */36");
+    Mockito.verify(response).sendError(
+        HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+  }
+
+  @Test
+  public void testIfNoneMatch() throws Exception {
+    stream();
+    String etag = etag();
+
+    before();
+    Mockito.when(request.getHeader(StreamHelper.HEADER_IF_NONE_MATCH)).thenReturn(etag);
+    Assert.assertEquals("", stream());
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+    before();
+    Mockito.when(request.getHeader(StreamHelper.HEADER_IF_NONE_MATCH)).thenReturn(
+        "\"something-else\"");
+    Assert.assertEquals(BODY, stream());
+  }
+
+  @Test
+  public void testIfRange() throws Exception {
+    stream();
+    String etag = etag();
+
+    // the range is honoured while the body is unchanged.
+    before();
+    Mockito.when(request.getHeader(StreamHelper.HEADER_RANGE)).thenReturn("bytes=0-1");
+    Mockito.when(request.getHeader(StreamHelper.HEADER_IF_RANGE)).thenReturn(etag);
+    Assert.assertEquals("01", stream());
+
+    // and the whole body is sent when it changed.
+    before();
+    Mockito.when(request.getHeader(StreamHelper.HEADER_RANGE)).thenReturn("bytes=0-1");
+    Mockito.when(request.getHeader(StreamHelper.HEADER_IF_RANGE)).thenReturn(
+        "\"older\"");
+    Assert.assertEquals(BODY, stream());
+    Mockito.verify(response, Mockito.never()).setStatus(Mockito.anyInt());
+  }
+
+  @Test
+  public void testIfMatchFails() throws Exception {
+    Mockito.when(request.getHeader(StreamHelper.HEADER_IF_MATCH)).thenReturn("\"older\"");
+    Assert.assertEquals("", stream());
+    Mockito.verify(response).sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+  }
+
+  @Test
+  public void testFileBackedRanges() throws Exception {
+    File file = File.createTempFile("streamhelper", ".txt");
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(BODY.getBytes("UTF-8"));
+      out.close();
+      Mockito.when(contentManager.getInputStream("poolId", null)).thenReturn(
+          new FileInputStream(file));
+      Mockito.when(request.getHeader(StreamHelper.HEADER_RANGE)).thenReturn(
+          "bytes=2-3,34-");
+      String body = stream();
+      Assert.assertTrue(body, body.contains("Content-Range: bytes 2-3/36\r\n\r\n23\r\n"));
+      Assert.assertTrue(body, body.contains("Content-Range: bytes 34-35/36\r\n\r\nyz\r\n"));
+
+      before();
+      Mockito.when(contentManager.getInputStream("poolId", null)).thenReturn(
+          new FileInputStream(file));
+      Assert.assertEquals(BODY, stream());
+    } finally {
+      file.delete();
+    }
+  }
+}
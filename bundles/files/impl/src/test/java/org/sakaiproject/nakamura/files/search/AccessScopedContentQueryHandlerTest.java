@@ -17,31 +17,51 @@
  */
 package org.sakaiproject.nakamura.files.search;
 
+import com.google.common.collect.ImmutableMap;
+
 import junit.framework.Assert;
 
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.request.RequestParameterMap;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.search.solr.DomainObjectSearchQueryHandler.TEMPLATE_PROPS;
 import org.sakaiproject.nakamura.api.search.solr.MissingParameterException;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.files.search.AbstractContentSearchQueryHandler.REQUEST_PARAMETERS;
 import org.sakaiproject.nakamura.files.search.AccessScopedContentQueryHandler.SearchableRole;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -64,13 +84,36 @@ public class AccessScopedContentQueryHandlerTest {
   @Mock
   SolrSearchServiceFactory searchServiceFactory;
 
+  @Mock
+  CacheManagerService cacheManagerService;
+
+  ManagedContentCache managedContentCache;
+
+  @Before
+  public void setUp() {
+    final Map<String, Cache<Object>> caches = new HashMap<String, Cache<Object>>();
+    Mockito.when(cacheManagerService.getCache(Matchers.anyString(),
+        Matchers.eq(CacheScope.CLUSTERINVALIDATED))).thenAnswer(new Answer<Cache<Object>>() {
+      public Cache<Object> answer(InvocationOnMock invocation) throws Throwable {
+        String name = (String) invocation.getArguments()[0];
+        if (!caches.containsKey(name)) {
+          caches.put(name, new MapCacheImpl<Object>(name, CacheScope.CLUSTERINVALIDATED));
+        }
+        return caches.get(name);
+      }
+    });
+    managedContentCache = new ManagedContentCache();
+    managedContentCache.cacheManagerService = cacheManagerService;
+    managedContentCache.modified(new HashMap<String, Object>());
+  }
+
   /**
    * Verify that if no role can be determined, an IllegalArgumentException is thrown
    * from the handler.
    */
   @Test(expected=MissingParameterException.class)
   public void testNoRole() {
-    AccessScopedContentQueryHandler meQueryHandler = new AccessScopedContentQueryHandler(searchServiceFactory, repository);
+    AccessScopedContentQueryHandler meQueryHandler = new AccessScopedContentQueryHandler(searchServiceFactory, repository, managedContentCache);
     Map<String, String> parameterMap = new HashMap<String, String>();
     
     SlingHttpServletRequest request = Mockito.mock(SlingHttpServletRequest.class);
@@ -85,7 +128,7 @@ public class AccessScopedContentQueryHandlerTest {
    */
   @Test(expected=IllegalArgumentException.class)
   public void testInvalidRole() {
-    AccessScopedContentQueryHandler meQueryHandler = new AccessScopedContentQueryHandler(searchServiceFactory, repository);
+    AccessScopedContentQueryHandler meQueryHandler = new AccessScopedContentQueryHandler(searchServiceFactory, repository, managedContentCache);
     Map<String, String> parameterMap = new HashMap<String, String>();
     
     SlingHttpServletRequest request = Mockito.mock(SlingHttpServletRequest.class);
@@ -106,7 +149,7 @@ public class AccessScopedContentQueryHandlerTest {
   @Test
   public void testValidRequest() throws ClientPoolException, StorageClientException,
       AccessDeniedException {
-    AccessScopedContentQueryHandler meQueryHandler = new AccessScopedContentQueryHandler(searchServiceFactory, repository);
+    AccessScopedContentQueryHandler meQueryHandler = new AccessScopedContentQueryHandler(searchServiceFactory, repository, managedContentCache);
     Map<String, String> parameterMap = new HashMap<String, String>();
     
     //mock the repository to generate the lucene query
@@ -146,6 +189,84 @@ public class AccessScopedContentQueryHandlerTest {
     Assert.assertEquals(parameterMap.get(REQUEST_PARAMETERS.role.toString()), "manager");
   }
   
+  /**
+   * Verify that a repeated search is served from the cache, and that a change to the
+   * members of pooled content drops it.
+   */
+  @Test
+  public void testRepeatSearchIsCachedUntilContentChanges() throws Exception {
+    AccessScopedContentQueryHandler meQueryHandler = new AccessScopedContentQueryHandler(searchServiceFactory, repository, managedContentCache);
+    Session adminSession = Mockito.mock(Session.class);
+    AuthorizableManager am = Mockito.mock(AuthorizableManager.class);
+    Authorizable mrvisser = Mockito.mock(Authorizable.class);
+    final Group myGroup = Mockito.mock(Group.class);
+    Mockito.when(repository.loginAdministrative()).thenReturn(adminSession);
+    Mockito.when(adminSession.getAuthorizableManager()).thenReturn(am);
+    Mockito.when(am.findAuthorizable("mrvisser")).thenReturn(mrvisser);
+    Mockito.when(mrvisser.getId()).thenReturn("mrvisser");
+    Mockito.when(mrvisser.getPrincipals()).thenReturn(new String[] { "mrvisser-group" });
+    Mockito.when(mrvisser.memberOf(am)).thenAnswer(new Answer<Iterator<Group>>() {
+      public Iterator<Group> answer(InvocationOnMock invocation) throws Throwable {
+        return Arrays.<Group> asList(myGroup).iterator();
+      }
+    });
+    Mockito.when(myGroup.getId()).thenReturn("mrvisser-group");
+    Mockito.when(myGroup.isGroup()).thenReturn(true);
+    Mockito.when(myGroup.getProperty(UserConstants.GROUP_TITLE_PROPERTY)).thenReturn("mrvisser group");
+
+    SlingHttpServletRequest request = Mockito.mock(SlingHttpServletRequest.class);
+    mockRequestForUserId(request, "mrvisser");
+    RequestPathInfo pathInfo = Mockito.mock(RequestPathInfo.class);
+    Mockito.when(request.getRequestPathInfo()).thenReturn(pathInfo);
+    RequestParameterMap params = Mockito.mock(RequestParameterMap.class);
+    Mockito.when(params.entrySet()).thenReturn(
+        Collections.<Map.Entry<String, RequestParameter[]>> emptySet());
+    Mockito.when(request.getRequestParameterMap()).thenReturn(params);
+    SolrSearchResultSet resultSet = Mockito.mock(SolrSearchResultSet.class);
+    final Result result = Mockito.mock(Result.class);
+    Mockito.when(result.getPath()).thenReturn("poolId");
+    Mockito.when(resultSet.getResultSetIterator()).thenAnswer(new Answer<Iterator<Result>>() {
+      public Iterator<Result> answer(InvocationOnMock invocation) throws Throwable {
+        return Arrays.asList(result).iterator();
+      }
+    });
+    Mockito.when(resultSet.getSize()).thenReturn(1L);
+    Mockito.when(searchServiceFactory.getSearchResultSet(Matchers.eq(request),
+        Matchers.any(Query.class))).thenReturn(resultSet);
+
+    for (int i = 0; i < 2; i++) {
+      Map<String, String> parameterMap = new HashMap<String, String>();
+      mockForRole(parameterMap, SearchableRole.manager);
+      meQueryHandler.loadUserProperties(request, parameterMap);
+      SolrSearchResultSet rs = meQueryHandler.getSearchResultSet(request, new Query(
+          parameterMap.get(TEMPLATE_PROPS._q.toString())));
+      Assert.assertEquals(1L, rs.getSize());
+      Assert.assertEquals("poolId", rs.getResultSetIterator().next().getPath());
+    }
+    Mockito.verify(searchServiceFactory, Mockito.times(1)).getSearchResultSet(
+        Matchers.eq(request), Matchers.any(Query.class));
+    Mockito.verify(mrvisser, Mockito.times(1)).memberOf(am);
+
+    // a manager is added to some pooled content.
+    managedContentCache.handleEvent(new Event(StoreListener.TOPIC_BASE + "content/"
+        + StoreListener.UPDATED_TOPIC, ImmutableMap.of("path", "otherPoolId")));
+    Map<String, String> parameterMap = new HashMap<String, String>();
+    mockForRole(parameterMap, SearchableRole.manager);
+    meQueryHandler.loadUserProperties(request, parameterMap);
+    meQueryHandler.getSearchResultSet(request, new Query(
+        parameterMap.get(TEMPLATE_PROPS._q.toString())));
+    Mockito.verify(searchServiceFactory, Mockito.times(2)).getSearchResultSet(
+        Matchers.eq(request), Matchers.any(Query.class));
+    Mockito.verify(mrvisser, Mockito.times(1)).memberOf(am);
+
+    // the user joins another group.
+    Mockito.when(mrvisser.getPrincipals()).thenReturn(
+        new String[] { "mrvisser-group", "other-group" });
+    meQueryHandler.loadUserProperties(request, new HashMap<String, String>(
+        ImmutableMap.of(REQUEST_PARAMETERS.role.toString(), "manager")));
+    Mockito.verify(mrvisser, Mockito.times(2)).memberOf(am);
+  }
+
   private void mockRequestForUserId(SlingHttpServletRequest request, String userId) {
     Mockito.when(request.getRemoteUser()).thenReturn(userId);
   }
@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatcher;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RandomContentPoolTest {
+
+  @Mock
+  private SolrServerService solrServerService;
+
+  @Mock
+  private SolrServer server;
+
+  private RandomContentPool pool;
+
+  @Before
+  public void setUp() throws Exception {
+    when(solrServerService.getServer()).thenReturn(server);
+    QueryResponse publicResponse = response(doc("public1", null, "bob"),
+        doc("public2", "described", null));
+    QueryResponse loggedInResponse = response(doc("public1", null, "bob"),
+        doc("public2", "described", null), doc("everyone1", null, null));
+    when(server.query(argThat(new HasFilter(RandomContentPool.PUBLIC_READERS)))).thenReturn(
+        publicResponse);
+    when(server.query(argThat(new HasFilter(RandomContentPool.LOGGED_IN_READERS))))
+        .thenReturn(loggedInResponse);
+
+    pool = new RandomContentPool();
+    pool.solrServerService = solrServerService;
+    pool.modified(ImmutableMap.of());
+  }
+
+  @Test
+  public void testScopeFollowsUser() throws Exception {
+    assertEquals(2, pool.getCandidates(User.ANON_USER, null).size());
+    assertEquals(2, pool.getCandidates(null, null).size());
+    assertEquals(3, pool.getCandidates("alice", null).size());
+    // loaded once, one query per scope.
+    verify(server, times(2)).query(any(SolrParams.class));
+  }
+
+  @Test
+  public void testDescribedContentComesFirst() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      assertEquals("public2", pool.getCandidates("alice", null).get(0).getPath());
+    }
+  }
+
+  @Test
+  public void testMembersContentIsLeftOut() throws Exception {
+    List<Result> candidates = pool.getCandidates("alice", "bob");
+    assertEquals(2, candidates.size());
+    for (Result candidate : candidates) {
+      assertTrue(!"public1".equals(candidate.getPath()));
+    }
+  }
+
+  @Test
+  public void testFailedRefreshKeepsPool() throws Exception {
+    pool.refresh();
+    when(server.query(any(SolrParams.class))).thenThrow(new SolrServerException("down"));
+    pool.refresh();
+    assertEquals(3, pool.getCandidates("alice", null).size());
+  }
+
+  private QueryResponse response(SolrDocument... docs) {
+    SolrDocumentList results = new SolrDocumentList();
+    results.addAll(Arrays.asList(docs));
+    QueryResponse response = mock(QueryResponse.class);
+    when(response.getResults()).thenReturn(results);
+    return response;
+  }
+
+  private SolrDocument doc(String id, String description, String manager) {
+    SolrDocument doc = new SolrDocument();
+    doc.addField("id", id);
+    if (description != null) {
+      doc.addField("description", description);
+    }
+    if (manager != null) {
+      doc.addField("manager", manager);
+    }
+    return doc;
+  }
+
+  private static class HasFilter extends ArgumentMatcher<SolrParams> {
+    private final String filter;
+
+    HasFilter(String filter) {
+      this.filter = filter;
+    }
+
+    @Override
+    public boolean matches(Object argument) {
+      return argument instanceof SolrQuery
+          && Arrays.asList(((SolrQuery) argument).getFilterQueries()).contains(filter);
+    }
+  }
+}
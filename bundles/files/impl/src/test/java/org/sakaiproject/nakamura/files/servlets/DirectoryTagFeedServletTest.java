@@ -0,0 +1,336 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.servlets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrQuery.ORDER;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
+import org.apache.solr.core.SolrConfig;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrResourceLoader;
+import org.apache.solr.schema.IndexSchema;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders the feed against an embedded Solr core that uses the production schema and
+ * counts the requests made to it.
+ */
+public class DirectoryTagFeedServletTest {
+
+  private static final String DIRECTORY = "/tags/directory";
+
+  private File solrHome;
+  private CoreContainer container;
+  private SolrServer server;
+  private AtomicInteger solrRequests;
+  private DirectoryTagFeedServlet servlet;
+  private ContentManager contentManager;
+  private List<Content> branches;
+  private SolrSearchBatchResultProcessor resultProcessor;
+
+  /**
+   * Runs queries the way the search bundle does, with the options as request
+   * parameters.
+   */
+  private class CountingSolrSearchServiceFactory implements SolrSearchServiceFactory {
+
+    public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
+        Query query, boolean asAnon) throws SolrSearchException {
+      solrRequests.incrementAndGet();
+      SolrQuery solrQuery = new SolrQuery(query.getQueryString());
+      for (Entry<String, Object> option : query.getOptions().entrySet()) {
+        if ("sort".equals(option.getKey())) {
+          String[] sort = String.valueOf(option.getValue()).split(" ");
+          solrQuery.setSortField(sort[0], ORDER.valueOf(sort[1]));
+        } else if (option.getValue() instanceof Iterable) {
+          for (Object v : (Iterable<?>) option.getValue()) {
+            solrQuery.add(option.getKey(), String.valueOf(v));
+          }
+        } else {
+          solrQuery.add(option.getKey(), String.valueOf(option.getValue()));
+        }
+      }
+      try {
+        return new ResultSet(server.query(solrQuery));
+      } catch (Exception e) {
+        throw new SolrSearchException(500, e.getMessage());
+      }
+    }
+
+    public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
+        Query query) throws SolrSearchException {
+      return getSearchResultSet(request, query, false);
+    }
+  }
+
+  private static class ResultSet implements SolrSearchResultSet, SolrQueryResponseWrapper {
+    private final QueryResponse response;
+
+    ResultSet(QueryResponse response) {
+      this.response = response;
+    }
+
+    public QueryResponse getQueryResponse() {
+      return response;
+    }
+
+    public Iterator<Result> getResultSetIterator() {
+      return Iterators.emptyIterator();
+    }
+
+    public long getSize() {
+      return 0;
+    }
+
+    public List<FacetField> getFacetFields() {
+      return response.getFacetFields();
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    solrHome = new File("target/directoryTagFeedTest/" + System.nanoTime());
+    File conf = new File(solrHome, "conf");
+    conf.mkdirs();
+    // the production configuration, from the solr bundle.
+    for (String name : new String[] { "solrconfig.xml", "schema.xml", "stopwords.txt",
+        "synonyms.txt", "protwords.txt" }) {
+      InputStream in = getClass().getClassLoader().getResourceAsStream(name);
+      OutputStream out = new FileOutputStream(new File(conf, name));
+      byte[] buffer = new byte[4096];
+      for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+        out.write(buffer, 0, n);
+      }
+      in.close();
+      out.close();
+    }
+    SolrResourceLoader loader = new SolrResourceLoader(solrHome.getAbsolutePath());
+    container = new CoreContainer(loader);
+    SolrConfig config = new SolrConfig(loader, "solrconfig.xml", null);
+    IndexSchema schema = new IndexSchema(config, "schema.xml", null);
+    CoreDescriptor descriptor = new CoreDescriptor(container, "test",
+        solrHome.getAbsolutePath());
+    SolrCore core = new SolrCore("test", new File(solrHome, "data").getAbsolutePath(),
+        config, schema, descriptor);
+    container.register("test", core, false);
+    server = new EmbeddedSolrServer(container, "test");
+    solrRequests = new AtomicInteger();
+
+    contentManager = mock(ContentManager.class);
+    branches = Lists.newArrayList();
+    when(contentManager.listChildren(DIRECTORY)).thenAnswer(new Answer<Iterator<Content>>() {
+      public Iterator<Content> answer(InvocationOnMock invocation) throws Throwable {
+        return branches.iterator();
+      }
+    });
+
+    CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    when(cacheManagerService.getCache(anyString(), any(CacheScope.class))).thenReturn(
+        new MapCacheImpl<Object>(DirectoryTagFeedServlet.CACHE_NAME, CacheScope.INSTANCE));
+
+    servlet = new DirectoryTagFeedServlet();
+    servlet.solrSearchServiceFactory = new CountingSolrSearchServiceFactory();
+    servlet.cacheManagerService = cacheManagerService;
+    servlet.activate(ImmutableMap.<String, Object> of());
+
+    // write the path of the item picked rather than loading it from sparse.
+    resultProcessor = mock(SolrSearchBatchResultProcessor.class);
+    servlet.resultProcessor = resultProcessor;
+    doAnswer(new Answer<Void>() {
+      @SuppressWarnings("unchecked")
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        JSONWriter write = (JSONWriter) invocation.getArguments()[1];
+        Iterator<Result> results = (Iterator<Result>) invocation.getArguments()[2];
+        while (results.hasNext()) {
+          write.object().key("path").value(results.next().getPath()).endObject();
+        }
+        return null;
+      }
+    }).when(resultProcessor).writeResults(any(SlingHttpServletRequest.class),
+        any(JSONWriter.class), any(Iterator.class));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    container.shutdown();
+  }
+
+  private void addBranch(String name, String... tags) throws Exception {
+    String branchPath = DIRECTORY + "/" + name;
+    branches.add(new Content(branchPath, ImmutableMap.<String, Object> of("sakai:tag-name",
+        name)));
+    for (String tag : tags) {
+      SolrInputDocument doc = new SolrInputDocument();
+      String tagPath = branchPath + "/" + tag;
+      doc.addField("id", tagPath);
+      doc.addField("path", tagPath);
+      doc.addField("path", branchPath);
+      doc.addField("path", DIRECTORY);
+      doc.addField("resourceType", FilesConstants.RT_SAKAI_TAG);
+      doc.addField("tagname", tag);
+      server.add(doc);
+    }
+  }
+
+  private void addItem(String id, String description, String... tags) throws Exception {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("id", id);
+    doc.addField("path", id);
+    doc.addField("resourceType", FilesConstants.POOLED_CONTENT_RT);
+    if (description != null) {
+      doc.addField("description", description);
+    }
+    for (String tag : tags) {
+      doc.addField("tag", tag);
+    }
+    server.add(doc);
+  }
+
+  private String letters(int i) {
+    return new String(new char[] { (char) ('a' + i / 26), (char) ('a' + i % 26) });
+  }
+
+  private JSONObject render(String user) throws Exception {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    RequestPathInfo pathInfo = mock(RequestPathInfo.class);
+    Resource resource = mock(Resource.class);
+    when(request.getRequestPathInfo()).thenReturn(pathInfo);
+    when(pathInfo.getSelectors()).thenReturn(new String[] { "tagged" });
+    when(request.getResource()).thenReturn(resource);
+    when(request.getRemoteUser()).thenReturn(user);
+    when(resource.getPath()).thenReturn(DIRECTORY);
+    when(resource.adaptTo(Content.class)).thenReturn(new Content(DIRECTORY,
+        ImmutableMap.<String, Object> of()));
+    when(resource.adaptTo(ContentManager.class)).thenReturn(contentManager);
+    StringWriter output = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(output));
+    servlet.doGet(request, response);
+    return new JSONObject(output.toString());
+  }
+
+  private String pickedPath(JSONObject feed, String branch) throws Exception {
+    return feed.getJSONObject(branch).getJSONObject("content").optString("path", null);
+  }
+
+  @Test
+  public void testRequestsDoNotGrowWithBranches() throws Exception {
+    for (int i = 0; i < 30; i++) {
+      addBranch("branch" + i, "topic" + letters(i), "subject" + letters(i));
+      addItem("item" + i, null, "subject" + letters(i));
+    }
+    addBranch("empty");
+    server.commit();
+
+    JSONObject feed = render("alice");
+
+    assertEquals(2, solrRequests.get());
+    assertEquals(31, feed.length());
+    for (int i = 0; i < 30; i++) {
+      assertEquals("item" + i, pickedPath(feed, "branch" + i));
+    }
+    assertFalse(feed.getJSONObject("empty").getJSONObject("content").keys().hasNext());
+  }
+
+  @Test
+  public void testPrefersItemsWithADescription() throws Exception {
+    addBranch("medicine", "anatomy", "surgery");
+    addItem("plain", null, "anatomy");
+    addItem("described", "A description", "surgery");
+    server.commit();
+
+    for (int i = 0; i < 5; i++) {
+      assertEquals("described", pickedPath(render("user" + i), "medicine"));
+    }
+  }
+
+  @Test
+  public void testFeedIsCachedPerUser() throws Exception {
+    addBranch("physics", "quantum");
+    addItem("item", null, "quantum");
+    server.commit();
+
+    String first = render("alice").toString();
+    assertEquals(2, solrRequests.get());
+    assertEquals(first, render("alice").toString());
+    assertEquals(2, solrRequests.get());
+
+    // other users may not be able to read the same items.
+    render("bob");
+    assertEquals(4, solrRequests.get());
+
+    servlet.activate(ImmutableMap.<String, Object> of(DirectoryTagFeedServlet.CACHE_TTL,
+        0L));
+    servlet.resultProcessor = resultProcessor;
+    render("alice");
+    render("alice");
+    assertEquals(8, solrRequests.get());
+  }
+}
@@ -25,6 +25,7 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.withSettings;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAGS;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_COUNT;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_NAME;
 import static org.sakaiproject.nakamura.api.user.UserConstants.USER_PROFILE_RESOURCE_TYPE;
 
@@ -51,6 +52,7 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
 import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.files.TagCountAggregator;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 
 import java.util.Arrays;
@@ -71,6 +73,7 @@ public class SparseTagOperationTest {
   Repository repository;
   Content content;
   Content profile;
+  TagCountAggregator tagCountAggregator;
 
   @Before
   public void setUp() throws Exception {
@@ -118,6 +121,9 @@ public class SparseTagOperationTest {
 
     operation = new SparseTagOperation();
     operation.eventAdmin = mock(EventAdmin.class);
+    tagCountAggregator = new TagCountAggregator();
+    tagCountAggregator.repository = repository;
+    operation.tagCountAggregator = tagCountAggregator;
     resolver = mock(ResourceResolver.class);
     jcrSession = mock(javax.jcr.Session.class, withSettings().extraInterfaces(SessionAdaptable.class));
     request = mock(SlingHttpServletRequest.class);
@@ -193,6 +199,11 @@ public class SparseTagOperationTest {
 
       Arrays.sort(tags);
       assertTrue (Arrays.binarySearch(tags, "foo") > -1);
+
+      // the count is written by the next flush.
+      assertNull(tagResult.getProperty(SAKAI_TAG_COUNT));
+      tagCountAggregator.flush();
+      assertEquals(1L, contentManager.get("/tags/foo").getProperty(SAKAI_TAG_COUNT));
   }
 
 
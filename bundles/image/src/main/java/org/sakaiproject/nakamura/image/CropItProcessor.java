@@ -18,13 +18,13 @@
 package org.sakaiproject.nakamura.image;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 
 import org.apache.sanselan.ImageFormat;
 import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
-import org.apache.sanselan.util.IOUtils;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.sakaiproject.nakamura.api.jcr.JCRConstants;
@@ -40,15 +40,25 @@ import org.slf4j.LoggerFactory;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
+import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
@@ -59,6 +69,47 @@ public class CropItProcessor {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CropItProcessor.class);
 
+  /**
+   * The formats decoded through ImageIO, by ImageIO format name.
+   */
+  private static final Map<String, ImageFormat> IMAGEIO_FORMATS = ImmutableMap.of(
+      "jpeg", ImageFormat.IMAGE_FORMAT_JPEG, "jpg", ImageFormat.IMAGE_FORMAT_JPEG, "png",
+      ImageFormat.IMAGE_FORMAT_PNG, "gif", ImageFormat.IMAGE_FORMAT_GIF, "bmp",
+      ImageFormat.IMAGE_FORMAT_BMP);
+
+  /**
+   * The mime types Sanselan gives those formats.
+   */
+  private static final Map<ImageFormat, String> MIME_TYPES = ImmutableMap.of(
+      ImageFormat.IMAGE_FORMAT_JPEG, "image/jpeg", ImageFormat.IMAGE_FORMAT_PNG,
+      "image/png", ImageFormat.IMAGE_FORMAT_GIF, "image/gif", ImageFormat.IMAGE_FORMAT_BMP,
+      "image/bmp");
+
+  /**
+   * The decoded area of an image that is being cropped.
+   */
+  static class Region {
+    final BufferedImage image;
+    final ImageFormat format;
+    final String mimeType;
+    final int sourceWidth;
+    final int sourceHeight;
+    /**
+     * The memory reserved for the crop, to be released once it is done.
+     */
+    final int reservation;
+
+    Region(BufferedImage image, ImageFormat format, String mimeType, int sourceWidth,
+        int sourceHeight, int reservation) {
+      this.image = image;
+      this.format = format;
+      this.mimeType = mimeType;
+      this.sourceWidth = sourceWidth;
+      this.sourceHeight = sourceHeight;
+      this.reservation = reservation;
+    }
+  }
+
   /**
    *
    * @param session
@@ -87,11 +138,27 @@ public class CropItProcessor {
    */
   public static String[] crop(ResourceResolver resourceResolver, int x, int y, int width, int height,
       List<Dimension> dimensions, String img, String save) throws ImageException, StorageClientException, AccessDeniedException {
+    return crop(resourceResolver, x, y, width, height, dimensions, img, save, null);
+  }
+
+  /**
+   * Crop an image as {@link #crop(ResourceResolver, int, int, int, int, List, String, String)}
+   * does, reserving the memory for the decoded image from <code>memoryBudget</code>.
+   *
+   * @param memoryBudget
+   *          the budget to reserve from, or null to decode without a reservation.
+   */
+  public static String[] crop(ResourceResolver resourceResolver, int x, int y, int width,
+      int height, List<Dimension> dimensions, String img, String save,
+      MemoryBudget memoryBudget) throws ImageException, StorageClientException,
+      AccessDeniedException {
 
     Session session = StorageClientUtils.adaptToSession(resourceResolver.adaptTo(javax.jcr.Session.class));
     ContentManager contentManager = session.getContentManager();
 
     InputStream in = null;
+    ImageInputStream iis = null;
+    Region region = null;
 
     // The array that will contain all the cropped and resized images.
     String[] arrFiles = new String[dimensions.size()];
@@ -129,32 +196,21 @@ public class CropItProcessor {
           throw new ImageException(406, "Image "+img+" too large to crop > 100MB Si "+in.available());
         }
         try {
-
-          // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
-          // ImageInfo _and_ the BufferedImage.
-          // I've tried using a BufferedInputStream which allows you to reset, but for BMP
-          // this doesn't help.
-          byte[] bytes = IOUtils.getInputStreamBytes(in);
-          ImageInfo info = Sanselan.getImageInfo(bytes);
-          BufferedImage imgBuf = getBufferedImage(bytes, info);
-
-          // Set the correct width & height.
-          width = (width <= 0) ? info.getWidth() : width;
-          height = (height <= 0) ? info.getHeight() : height;
-
-          if (x + width > info.getWidth()) {
-            width = info.getWidth() - x;
+          // Decode only the area being cropped, subsampled where the outputs are much
+          // smaller than it. Formats ImageIO can't read are decoded whole by Sanselan.
+          iis = ImageIO.createImageInputStream(in);
+          if (iis == null) {
+            throw new ImageException(500, "Unable to read image in order to crop it.");
           }
-          if (y + height > info.getHeight()) {
-            height = info.getHeight() - y;
+          region = readRegion(iis, x, y, width, height, dimensions, memoryBudget, img);
+          if (region == null) {
+            region = readWholeImage(iis, x, y, width, height, memoryBudget, img);
           }
 
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
-
-          // Loop the dimensions and create and save an image for each
-          // one.
-          for (int i = 0; i < dimensions.size(); i++) {
+          // Scale from the largest output to the smallest, each one from the previous
+          // output when that is large enough.
+          BufferedImage previous = null;
+          for (int i : getLargestFirst(dimensions)) {
 
             Dimension d = dimensions.get(i);
 
@@ -162,33 +218,37 @@ public class CropItProcessor {
             int iWidth = d.width;
             int iHeight = d.height;
 
-            iWidth = (iWidth <= 0) ? info.getWidth() : iWidth;
-            iHeight = (iHeight <= 0) ? info.getHeight() : iHeight;
+            iWidth = (iWidth <= 0) ? region.sourceWidth : iWidth;
+            iHeight = (iHeight <= 0) ? region.sourceHeight : iHeight;
+
+            BufferedImage source = region.image;
+            if (previous != null && previous.getWidth() >= iWidth
+                && previous.getHeight() >= iHeight) {
+              source = previous;
+            }
+            BufferedImage scaled = getScaledInstance(source, iWidth, iHeight);
 
             // Create the image.
-            byte[] image = scaleAndWriteToByteArray(iWidth, iHeight, subImage, imgName, info);
+            byte[] image = writeToByteArray(scaled, region.format);
 
             if ( image != null ) {
 
               String sPath = save + "/" + iWidth + "x" + iHeight + "_" + imgName;
               // Save new image to JCR.
-              saveImageToContentStore(sPath, info.getMimeType(), image, session);
+              saveImageToContentStore(sPath, region.mimeType, image, session);
 
               arrFiles[i] = sPath;
             } else {
               LOGGER.warn("Failed to scale image "+img+" to "+iWidth+" by "+iHeight+" defaulting to full size");
               arrFiles[i] = img;
             }
+            previous = scaled;
           }
         } catch (ImageReadException e) {
           // This is not a valid image.
           LOGGER.error("Can't parse this format. Image {}, mime Type {} :{}", new Object[]{img, mimeType, e.getMessage()});
           LOGGER.debug("Cause: ", e);
           throw new ImageException(406, "Can't parse this format.  Image "+img+", mime Type "+mimeType);
-        } catch (ImageWriteException e) {
-          LOGGER.error("Can't crop this Image {}, mime Type {}  :{} ", new Object[]{img, mimeType, e.getMessage()});
-          LOGGER.debug("Cause: ", e);
-          throw new ImageException(406, "Can't crop this Image "+img+", mime Type "+mimeType);
         }
 
     } catch (IOException e) {
@@ -204,7 +264,17 @@ public class CropItProcessor {
       LOGGER.error("Unable to read image in order to crop it.", e);
       throw new ImageException(500, "Unable to read image in order to crop it.");
     } finally {
+      if (region != null) {
+        release(memoryBudget, region.reservation);
+      }
       // close the streams
+      if (iis != null) {
+        try {
+          iis.close();
+        } catch (IOException e) {
+          LOGGER.debug("Exception closing image inputstream.");
+        }
+      }
       if (in != null) {
         try {
           in.close();
@@ -216,6 +286,206 @@ public class CropItProcessor {
     return arrFiles;
   }
 
+  /**
+   * Decode the area to crop through ImageIO, subsampling it when the outputs are much
+   * smaller than the area.
+   *
+   * @return the decoded area, or null if ImageIO can't decode the image.
+   * @throws ImageException
+   *           if the area is outside the image or there is no memory to decode it.
+   */
+  static Region readRegion(ImageInputStream iis, int x, int y, int width, int height,
+      List<Dimension> dimensions, MemoryBudget memoryBudget, String img)
+      throws IOException, ImageException {
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+    if (!readers.hasNext()) {
+      return null;
+    }
+    ImageReader reader = readers.next();
+    ImageFormat format = IMAGEIO_FORMATS.get(reader.getFormatName().toLowerCase(Locale.ENGLISH));
+    int reservation = 0;
+    try {
+      if (format == null) {
+        return null;
+      }
+      reader.setInput(iis, false, true);
+      int sourceWidth = reader.getWidth(0);
+      int sourceHeight = reader.getHeight(0);
+      Rectangle area = getCropArea(x, y, width, height, sourceWidth, sourceHeight);
+      int subsampling = getSubsampling(area, dimensions, sourceWidth, sourceHeight);
+      reservation = reserve(memoryBudget, estimateBytes(
+          (area.width + subsampling - 1) / subsampling,
+          (area.height + subsampling - 1) / subsampling), img);
+
+      ImageReadParam param = reader.getDefaultReadParam();
+      param.setSourceRegion(area);
+      param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+      BufferedImage image = toScalableImage(reader.read(0, param));
+      Region region = new Region(image, format, MIME_TYPES.get(format), sourceWidth,
+          sourceHeight, reservation);
+      reservation = 0;
+      return region;
+    } catch (IIOException e) {
+      // eg CMYK jpegs, let Sanselan try.
+      LOGGER.debug("ImageIO can't decode {}: {}", img, e.getMessage());
+      return null;
+    } finally {
+      release(memoryBudget, reservation);
+      reader.dispose();
+    }
+  }
+
+  /**
+   * Decode the whole image with Sanselan, for the formats ImageIO can't read, and cut the
+   * area to crop out of it.
+   */
+  static Region readWholeImage(ImageInputStream iis, int x, int y, int width, int height,
+      MemoryBudget memoryBudget, String img) throws IOException, ImageReadException,
+      ImageException {
+    iis.seek(0);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = iis.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    byte[] bytes = out.toByteArray();
+    out = null;
+
+    ImageInfo info = Sanselan.getImageInfo(bytes);
+    Rectangle area = getCropArea(x, y, width, height, info.getWidth(), info.getHeight());
+    int reservation = reserve(memoryBudget, estimateBytes(info.getWidth(),
+        info.getHeight()), img);
+    try {
+      BufferedImage imgBuf = getBufferedImage(bytes, info);
+      bytes = null;
+      // Cut the desired piece out of the image.
+      BufferedImage subImage = imgBuf.getSubimage(area.x, area.y, area.width, area.height);
+      Region region = new Region(subImage, info.getFormat(), info.getMimeType(),
+          info.getWidth(), info.getHeight(), reservation);
+      reservation = 0;
+      return region;
+    } finally {
+      release(memoryBudget, reservation);
+    }
+  }
+
+  /**
+   * Work out the area to crop, a width or height of 0 or less meaning all of it.
+   *
+   * @throws ImageException
+   *           if the area lies outside the image.
+   */
+  static Rectangle getCropArea(int x, int y, int width, int height, int sourceWidth,
+      int sourceHeight) throws ImageException {
+    // Set the correct width & height.
+    width = (width <= 0) ? sourceWidth : width;
+    height = (height <= 0) ? sourceHeight : height;
+
+    if (x + width > sourceWidth) {
+      width = sourceWidth - x;
+    }
+    if (y + height > sourceHeight) {
+      height = sourceHeight - y;
+    }
+    if (width <= 0 || height <= 0) {
+      throw new ImageException(400, "The area to crop lies outside the image.");
+    }
+    return new Rectangle(x, y, width, height);
+  }
+
+  /**
+   * The subsampling to decode the area with. Keeps at least twice the largest output in
+   * each direction so that the scaling still has pixels to average.
+   */
+  static int getSubsampling(Rectangle area, List<Dimension> dimensions, int sourceWidth,
+      int sourceHeight) {
+    int targetWidth = 1;
+    int targetHeight = 1;
+    for (Dimension d : dimensions) {
+      targetWidth = Math.max(targetWidth, (d.width <= 0) ? sourceWidth : d.width);
+      targetHeight = Math.max(targetHeight, (d.height <= 0) ? sourceHeight : d.height);
+    }
+    return Math.max(1, Math.min(area.width / (2 * targetWidth), area.height
+        / (2 * targetHeight)));
+  }
+
+  /**
+   * The memory needed to crop an area decoded to <code>width</code> by
+   * <code>height</code>: four bytes a pixel, twice over for the first scaling step and the
+   * outputs.
+   */
+  static long estimateBytes(int width, int height) {
+    return 8L * width * height;
+  }
+
+  /**
+   * The indexes of the dimensions, largest area first.
+   */
+  static List<Integer> getLargestFirst(final List<Dimension> dimensions) {
+    List<Integer> order = Lists.newArrayList();
+    for (int i = 0; i < dimensions.size(); i++) {
+      order.add(i);
+    }
+    Collections.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        long areaA = area(dimensions.get(a));
+        long areaB = area(dimensions.get(b));
+        return areaA > areaB ? -1 : (areaA < areaB ? 1 : 0);
+      }
+
+      private long area(Dimension d) {
+        // full size outputs are the largest.
+        if (d.width <= 0 || d.height <= 0) {
+          return Long.MAX_VALUE;
+        }
+        return (long) d.width * d.height;
+      }
+    });
+    return order;
+  }
+
+  private static int reserve(MemoryBudget memoryBudget, long bytes, String img)
+      throws ImageException {
+    if (memoryBudget == null) {
+      return 0;
+    }
+    try {
+      int reservation = memoryBudget.reserve(bytes);
+      if (reservation >= 0) {
+        return reservation;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    LOGGER.info("No memory to crop {} ({} bytes), too many images are being cropped", img,
+        bytes);
+    throw new ImageException(503, "Too many images are being cropped, please try again later.");
+  }
+
+  private static void release(MemoryBudget memoryBudget, int reservation) {
+    if (memoryBudget != null) {
+      memoryBudget.release(reservation);
+    }
+  }
+
+  /**
+   * ImageIO decodes some images, eg grey scale PNGs with alpha, into a custom type that
+   * can't be scaled into, those are converted.
+   */
+  private static BufferedImage toScalableImage(BufferedImage image) {
+    if (image.getType() != BufferedImage.TYPE_CUSTOM) {
+      return image;
+    }
+    BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), image
+        .getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+        : BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2 = converted.createGraphics();
+    g2.drawImage(image, 0, 0, null);
+    g2.dispose();
+    return converted;
+  }
+
   /**
    * @param bytes
    * @param info
@@ -316,17 +586,30 @@ public class CropItProcessor {
     try {
       // Get a scaled image.
       BufferedImage imgScaled = getScaledInstance(img, width, height);
+      return writeToByteArray(imgScaled, info.getFormat());
+    } catch (Exception e) {
+      LOGGER.error("Failed to process image "+e.getMessage(), e);
+    }
+    return null;
+  }
 
+  /**
+   * Encode an image in the given format.
+   *
+   * @return the encoded image, or null if it could not be encoded.
+   */
+  protected static byte[] writeToByteArray(BufferedImage img, ImageFormat format) {
+    try {
       // Convert image to a stream
       ByteArrayOutputStream out = new ByteArrayOutputStream();
 
       // Write to stream.
-      if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG) {
-        ImageIO.write(imgScaled, "jpg", out);
-      } else if (info.getFormat() == ImageFormat.IMAGE_FORMAT_PNG) {
-        ImageIO.write(imgScaled, "png", out);
+      if (format == ImageFormat.IMAGE_FORMAT_JPEG) {
+        ImageIO.write(img, "jpg", out);
+      } else if (format == ImageFormat.IMAGE_FORMAT_PNG) {
+        ImageIO.write(img, "png", out);
       } else {
-        Sanselan.writeImage(imgScaled, out, info.getFormat(), null);
+        Sanselan.writeImage(img, out, format, null);
       }
       out.close();
       return out.toByteArray();
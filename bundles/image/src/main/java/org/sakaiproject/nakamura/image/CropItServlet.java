@@ -17,6 +17,9 @@
  */
 package org.sakaiproject.nakamura.image;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
@@ -27,6 +30,7 @@ import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -47,6 +51,19 @@ import java.awt.Dimension;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -54,7 +71,8 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * This servlet will crop and cut images.
  */
-@SlingServlet(paths = "/var/image/cropit", methods = { "POST" })
+@SlingServlet(paths = "/var/image/cropit", methods = { "POST" }, generateComponent = false)
+@Component(metatype = true)
 @Properties(value = { @Property(name = "service.description", value = "Crops an image."),
     @Property(name = "service.vendor", value = "The Sakai Foundation") })
 @ServiceDocumentation(name = "CropItServlet", okForVersion = "1.2", shortDescription = "Crop an " +
@@ -72,12 +90,62 @@ import javax.servlet.http.HttpServletResponse;
         + "Example: {\"files\":[\"/test/16x16_gateway.png\",\"/test/32x32_gateway.png\"]}"),
     @ServiceResponse(code = 400, description = "There is a missing (or invalid) parameter."),
     @ServiceResponse(code = 406, description = "The provided image is not a valid imagetype."),
+    @ServiceResponse(code = 503, description = "Too many images are being cropped, the request may be repeated later."),
     @ServiceResponse(code = 500, description = "Failure, explanation is in the HTML.") }))
 public class CropItServlet extends SlingAllMethodsServlet {
 
   private static final Logger logger = LoggerFactory.getLogger(CropItServlet.class);
   private static final long serialVersionUID = 7893384805719426200L;
 
+  @Property(intValue = CropItServlet.DEFAULT_CROP_THREADS, label = "Crop threads",
+      description = "Maximum number of images that are cropped at the same time.")
+  public static final String CROP_THREADS = "crop.threads";
+  public static final int DEFAULT_CROP_THREADS = 4;
+
+  @Property(intValue = CropItServlet.DEFAULT_CROP_MEMORY, label = "Crop memory (MB)",
+      description = "Memory the decoded images being cropped may take between them, crops wait while it is in use.")
+  public static final String CROP_MEMORY = "crop.memory";
+  public static final int DEFAULT_CROP_MEMORY = 256;
+
+  @Property(intValue = CropItServlet.DEFAULT_CROP_WAIT, label = "Crop wait (seconds)",
+      description = "How long a crop waits for memory before it is refused.")
+  public static final String CROP_WAIT = "crop.wait";
+  public static final int DEFAULT_CROP_WAIT = 30;
+
+  private transient ExecutorService cropExecutor;
+  private transient MemoryBudget memoryBudget;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    int threads = PropertiesUtil.toInteger(props.get(CROP_THREADS), DEFAULT_CROP_THREADS);
+    long memory = PropertiesUtil.toLong(props.get(CROP_MEMORY), DEFAULT_CROP_MEMORY);
+    long wait = PropertiesUtil.toLong(props.get(CROP_WAIT), DEFAULT_CROP_WAIT);
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads * 4),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CropItServlet-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        },
+        // when saturated the request is turned away rather than cropping on its thread.
+        new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    cropExecutor = executor;
+    memoryBudget = new MemoryBudget(memory * 1024L * 1024L, TimeUnit.SECONDS.toMillis(wait));
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (cropExecutor != null) {
+      cropExecutor.shutdown();
+      cropExecutor = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -149,7 +217,7 @@ public class CropItServlet extends SlingAllMethodsServlet {
 //      save = PathUtils.normalizePath(save) + "/";
 //      requestSave = PathUtils.normalizePath(requestSave) + "/";
 
-      String[] crop = CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, requestImg,
+      String[] crop = crop(resourceResolver, x, y, width, height, dimensions, requestImg,
           save);
 
       response.setContentType("application/json");
@@ -196,6 +264,79 @@ public class CropItServlet extends SlingAllMethodsServlet {
     }
   }
 
+  /**
+   * Crop on one of the crop threads, waiting for the result.
+   */
+  private String[] crop(final ResourceResolver resourceResolver, final int x, final int y,
+      final int width, final int height, final List<Dimension> dimensions,
+      final String img, final String save) throws ImageException,
+      StorageClientException, AccessDeniedException {
+    // the crop runs on the request's resolver, it has to be done with before the request
+    // is.
+    final AtomicBoolean started = new AtomicBoolean();
+    final CountDownLatch finished = new CountDownLatch(1);
+    Future<String[]> result;
+    try {
+      result = cropExecutor.submit(new Callable<String[]>() {
+        public String[] call() throws Exception {
+          if (!started.compareAndSet(false, true)) {
+            // given up on before it started.
+            return null;
+          }
+          try {
+            return CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions,
+                img, save, memoryBudget);
+          } finally {
+            finished.countDown();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      throw new ImageException(503, "Too many images are being cropped, please try again later.");
+    }
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      if (started.compareAndSet(false, true)) {
+        result.cancel(false);
+      } else {
+        result.cancel(true);
+        awaitUninterruptibly(finished);
+      }
+      Thread.currentThread().interrupt();
+      throw new ImageException(503, "Interrupted while cropping the image.");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ImageException) {
+        throw (ImageException) cause;
+      } else if (cause instanceof StorageClientException) {
+        throw (StorageClientException) cause;
+      } else if (cause instanceof AccessDeniedException) {
+        throw (AccessDeniedException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      logger.error(cause.getMessage(), cause);
+      throw new ImageException(500, "Unable to crop the image.");
+    }
+  }
+
+  /**
+   * Wait for a cancelled crop to stop using the request's resolver.
+   */
+  private void awaitUninterruptibly(CountDownLatch finished) {
+    while (true) {
+      try {
+        finished.await();
+        return;
+      } catch (InterruptedException e) {
+        // the caller restores the interrupt once the crop is done.
+      }
+    }
+  }
+
   private String expandAuthorizable(Session session, String path) throws StorageClientException, AccessDeniedException {
     int start = 0;
     if ( path.startsWith("/~") ) {
@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the memory used by the images that are being cropped at the same time. A crop
+ * reserves the estimated size of its decoded pixels before decoding them and waits, for a
+ * limited time, while others have the budget in use. A crop larger than the whole budget
+ * reserves all of it and so runs on its own.
+ */
+public class MemoryBudget {
+
+  private static final int KB = 1024;
+
+  private final Semaphore kilobytes;
+  private final int capacity;
+  private final long waitMillis;
+
+  /**
+   * @param bytes
+   *          the memory that crops may use between them.
+   * @param waitMillis
+   *          how long a crop waits for its reservation before giving up.
+   */
+  public MemoryBudget(long bytes, long waitMillis) {
+    this.capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / KB));
+    this.kilobytes = new Semaphore(capacity, true);
+    this.waitMillis = waitMillis;
+  }
+
+  /**
+   * Reserve memory for a crop.
+   *
+   * @param bytes
+   *          the estimated memory the crop needs.
+   * @return the reservation to hand back to {@link #release(int)}, or -1 if it could not
+   *         be made in time.
+   * @throws InterruptedException
+   */
+  public int reserve(long bytes) throws InterruptedException {
+    int permits = (int) Math.min(capacity, Math.max(1, (bytes + KB - 1) / KB));
+    if (kilobytes.tryAcquire(permits, waitMillis, TimeUnit.MILLISECONDS)) {
+      return permits;
+    }
+    return -1;
+  }
+
+  /**
+   * Hand back a reservation made by {@link #reserve(long)}.
+   */
+  public void release(int reservation) {
+    if (reservation > 0) {
+      kilobytes.release(reservation);
+    }
+  }
+
+  /**
+   * @return the number of bytes not currently reserved.
+   */
+  public long getAvailable() {
+    return (long) kilobytes.availablePermits() * KB;
+  }
+}
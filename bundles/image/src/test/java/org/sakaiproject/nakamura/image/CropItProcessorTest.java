@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.image;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
@@ -42,14 +43,19 @@ import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.jackrabbit.SparseMapUserManager;
 
 import java.awt.Dimension;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.RepositoryException;
 
 /**
@@ -149,4 +155,66 @@ public class CropItProcessorTest {
     assertEquals(scaledImage.getHeight(), 50);
   }
 
+  @Test
+  public void testLargeImageIsDecodedSubsampled() throws Exception {
+    byte[] jpeg = createJpeg(3000, 2000);
+    // a 3000x2000 image decodes to 24MB, the crop has to fit in 1MB.
+    MemoryBudget memoryBudget = new MemoryBudget(1024 * 1024, 0);
+    ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg));
+    CropItProcessor.Region region = CropItProcessor.readRegion(iis, 1000, 0, 0, 0,
+        dimensions, memoryBudget, "big.jpg");
+
+    // the 2000x2000 area is decoded at no less than twice the 50x50 output.
+    assertEquals(100, region.image.getWidth());
+    assertEquals(100, region.image.getHeight());
+    assertEquals(3000, region.sourceWidth);
+    assertTrue(region.reservation > 0);
+    assertTrue(memoryBudget.getAvailable() < 1024 * 1024);
+    // the pixels actually decoded fit in what was reserved for them.
+    assertTrue(getDecodedBytes(region.image) <= region.reservation * 1024L);
+    memoryBudget.release(region.reservation);
+    assertEquals(1024 * 1024, memoryBudget.getAvailable());
+  }
+
+  @Test
+  public void testCropWaitsForMemory() throws Exception {
+    MemoryBudget memoryBudget = new MemoryBudget(1024 * 1024, 0);
+    int all = memoryBudget.reserve(1024 * 1024);
+    ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(
+        createJpeg(200, 200)));
+    try {
+      CropItProcessor.readRegion(iis, 0, 0, 0, 0, dimensions, memoryBudget, "small.jpg");
+      fail("There is no memory left to crop with.");
+    } catch (ImageException e) {
+      assertEquals(503, e.getCode());
+    }
+    memoryBudget.release(all);
+    assertEquals(1024 * 1024, memoryBudget.getAvailable());
+  }
+
+  @Test
+  public void testLargestFirst() {
+    List<Dimension> sizes = new ArrayList<Dimension>();
+    sizes.add(new Dimension(32, 32));
+    sizes.add(new Dimension(256, 256));
+    sizes.add(new Dimension(0, 0));
+    sizes.add(new Dimension(128, 128));
+    assertEquals(Arrays.asList(2, 1, 3, 0), CropItProcessor.getLargestFirst(sizes));
+  }
+
+  private long getDecodedBytes(BufferedImage image) {
+    DataBuffer buffer = image.getRaster().getDataBuffer();
+    return (long) buffer.getSize() * buffer.getNumBanks()
+        * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+  }
+
+  private byte[] createJpeg(int width, int height) throws IOException {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2 = image.createGraphics();
+    g2.fillRect(width / 4, height / 4, width / 2, height / 2);
+    g2.dispose();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpg", out);
+    return out.toByteArray();
+  }
 }
@@ -48,6 +48,7 @@ import org.sakaiproject.nakamura.util.StringUtils;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Collections;
 
 import javax.jcr.RepositoryException;
 import javax.servlet.ServletException;
@@ -70,6 +71,7 @@ public class CropItServletTest extends AbstractEasyMockTest {
     super.setUp();
 
     servlet = new CropItServlet();
+    servlet.activate(Collections.emptyMap());
   }
 
   @Test
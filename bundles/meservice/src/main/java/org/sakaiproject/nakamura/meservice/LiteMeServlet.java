@@ -24,7 +24,10 @@ import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARA
 
 import com.google.common.collect.ImmutableMap;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.jackrabbit.util.ISO9075;
@@ -34,6 +37,8 @@ import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONString;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.params.CommonParams;
 import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
@@ -45,6 +50,7 @@ import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.http.cache.DynamicContentResponseCache;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -73,6 +79,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -82,6 +89,15 @@ import java.util.Map.Entry;
 import java.util.MissingResourceException;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.RepositoryException;
 import javax.servlet.ServletException;
@@ -128,7 +144,7 @@ import javax.servlet.http.HttpServletResponse;
     @ServiceResponse(code = 401, description = "Unauthorized: credentials provided were not acceptable to return information for."),
     @ServiceResponse(code = 500, description = "Unable to return information about current user.") }))
 @SlingServlet(paths = { "/system/me" }, generateComponent = false, methods = { "GET" })
-@Component
+@Component(metatype = true)
 public class LiteMeServlet extends SlingSafeMethodsServlet {
   private static final long serialVersionUID = -3786472219389695181L;
   private static final Logger LOG = LoggerFactory.getLogger(LiteMeServlet.class);
@@ -151,6 +167,103 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   @Reference
   protected transient LocaleUtils localeUtils;
 
+  @Reference
+  protected transient Repository repository;
+
+  @Reference
+  protected transient MeSectionCache meSectionCache;
+
+  @Property(intValue = LiteMeServlet.DEFAULT_SECTION_THREADS, label = "Section threads",
+      description = "Maximum number of threads used to gather the membership sections of the feed concurrently with the rest of it.")
+  public static final String SECTION_THREADS = "section.threads";
+  public static final int DEFAULT_SECTION_THREADS = 10;
+
+  private transient ExecutorService sectionExecutor;
+
+  /**
+   * A section of the feed that has already been rendered to JSON.
+   */
+  private static class JSONFragment implements JSONString {
+    private final String json;
+
+    JSONFragment(String json) {
+      this.json = json;
+    }
+
+    public String toJSONString() {
+      return json;
+    }
+  }
+
+  /**
+   * Renders the user and groups sections, both need the memberships of the user. Runs
+   * on its own session as sparse sessions must not be shared between threads. The user
+   * section is rendered without the locale, see
+   * {@link #addLocale(String, Authorizable, SlingHttpServletRequest)}.
+   */
+  private class MembershipSections implements Callable<String[]> {
+    private final String sessionUserId;
+    private final Authorizable au;
+    private final MeSectionCache.Stamp stamp;
+
+    MembershipSections(String sessionUserId, Authorizable au, MeSectionCache.Stamp stamp) {
+      this.sessionUserId = sessionUserId;
+      this.au = au;
+      this.stamp = stamp;
+    }
+
+    public String[] call() throws Exception {
+      Session session = repository.loginAdministrative(sessionUserId);
+      try {
+        Set<String> subjects = getSubjects(au, session.getAuthorizableManager());
+        StringWriter user = new StringWriter();
+        ExtendedJSONWriter userWriter = new ExtendedJSONWriter(user);
+        userWriter.object();
+        writeGeneralInfo(userWriter, au, subjects, localeUtils.getProperties(au));
+        userWriter.endObject();
+        Set<String> groupIds = new HashSet<String>(subjects);
+        StringWriter groups = new StringWriter();
+        writeGroups(new ExtendedJSONWriter(groups), session, au, groupIds);
+        meSectionCache.put(stamp, au.getId(), MeSectionCache.SECTION_USER,
+            user.toString(), groupIds);
+        meSectionCache.put(stamp, au.getId(), MeSectionCache.SECTION_GROUPS,
+            groups.toString(), groupIds);
+        return new String[] { user.toString(), groups.toString() };
+      } finally {
+        session.logout();
+      }
+    }
+  }
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    int threads = PropertiesUtil.toInteger(props.get(SECTION_THREADS),
+        DEFAULT_SECTION_THREADS);
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads * 4),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "LiteMeServlet-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        },
+        // when saturated the request thread renders the sections itself.
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    sectionExecutor = executor;
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (sectionExecutor != null) {
+      sectionExecutor.shutdown();
+      sectionExecutor = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -186,30 +299,99 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
         response.sendError(HttpServletResponse.SC_BAD_REQUEST,"User "+userId+" not found.");
         return;
       }
+
+      // Sections are only cached for a user looking at their own feed, what another user
+      // gets to see depends on their access.
+      boolean cacheable = !UserConstants.ANON_USERID.equals(session.getUserId())
+          && session.getUserId().equals(au.getId());
+      String user = null;
+      String groups = null;
+      Future<String[]> membership = null;
+      MeSectionCache.Stamp stamp = null;
+      if (cacheable) {
+        // taken before anything is read, so a change made while rendering is not cached.
+        stamp = meSectionCache.stamp(au.getId(), au.getPrincipals());
+        user = meSectionCache.get(au.getId(), MeSectionCache.SECTION_USER,
+            au.getPrincipals());
+        groups = meSectionCache.get(au.getId(), MeSectionCache.SECTION_GROUPS,
+            au.getPrincipals());
+        if (user == null || groups == null) {
+          membership = sectionExecutor.submit(new MembershipSections(session.getUserId(),
+              au, stamp));
+        }
+      }
+
+      // The remaining sections use the request session and so stay on this thread.
+      String profile = cacheable ? meSectionCache.get(au.getId(),
+          MeSectionCache.SECTION_PROFILE) : null;
+      if (profile == null) {
+        StringWriter sw = new StringWriter();
+        new ExtendedJSONWriter(sw).valueMap(new ValueMapDecorator(basicUserInfoService
+            .getProperties(au)));
+        profile = sw.toString();
+        if (cacheable) {
+          meSectionCache.put(stamp, au.getId(), MeSectionCache.SECTION_PROFILE, profile);
+        }
+      }
+      String messages = cacheable ? meSectionCache.get(au.getId(),
+          MeSectionCache.SECTION_MESSAGES) : null;
+      if (messages == null) {
+        StringWriter sw = new StringWriter();
+        writeMessageCounts(new ExtendedJSONWriter(sw), session, au, request);
+        messages = sw.toString();
+        if (cacheable) {
+          meSectionCache.put(stamp, au.getId(), MeSectionCache.SECTION_MESSAGES, messages);
+        }
+      }
+      String contacts = cacheable ? meSectionCache.get(au.getId(),
+          MeSectionCache.SECTION_CONTACTS) : null;
+      if (contacts == null) {
+        StringWriter sw = new StringWriter();
+        writeContactCounts(new ExtendedJSONWriter(sw), au, request);
+        contacts = sw.toString();
+        if (cacheable) {
+          meSectionCache.put(stamp, au.getId(), MeSectionCache.SECTION_CONTACTS, contacts);
+        }
+      }
+      if (membership != null) {
+        String[] sections = getSections(membership);
+        user = sections[0];
+        groups = sections[1];
+      }
+      if (cacheable) {
+        user = addLocale(user, au, request);
+      } else {
+        StringWriter sw = new StringWriter();
+        writeUserJSON(new ExtendedJSONWriter(sw), session, au, request);
+        user = sw.toString();
+        sw = new StringWriter();
+        writeGroups(new ExtendedJSONWriter(sw), session, au);
+        groups = sw.toString();
+      }
+
       PrintWriter w = response.getWriter();
       ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
       writer.setTidy(ServletUtils.isTidy(request));
       writer.object();
       // User info
       writer.key("user");
-      writeUserJSON(writer, session, au, request);
+      writer.value(new JSONFragment(user));
 
       // Dump this user his info
       writer.key("profile");
-      ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
-      writer.valueMap(profile);
+      writer.value(new JSONFragment(profile));
 
       // Dump this user his number of unread messages.
       writer.key("messages");
-      writeMessageCounts(writer, session, au, request);
+      writer.value(new JSONFragment(messages));
 
       // Dump this user his number of contacts.
       writer.key("contacts");
-      writeContactCounts(writer, au, request);
+      writer.value(new JSONFragment(contacts));
 
       // Dump the groups for this user.
       writer.key("groups");
-      writeGroups(writer, session, au);
+      writer.value(new JSONFragment(groups));
 
       writer.endObject();
 
@@ -239,6 +421,55 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
 
   }
 
+  /**
+   * The timezone offset depends on the time of the request, so the locale is added to the
+   * user section on every request rather than cached with it.
+   *
+   * @param user
+   *          the user section rendered without the locale.
+   * @return the user section with the locale.
+   */
+  private String addLocale(String user, Authorizable au,
+      SlingHttpServletRequest request) throws JSONException {
+    StringWriter sw = new StringWriter();
+    ExtendedJSONWriter writer = new ExtendedJSONWriter(sw);
+    writer.object();
+    writeLocale(writer, localeUtils.getProperties(au), request);
+    writer.endObject();
+    String locale = sw.toString();
+    if (user.length() <= 2) {
+      return locale;
+    }
+    // both are objects, join them by dropping the closing and opening braces.
+    return user.substring(0, user.length() - 1) + "," + locale.substring(1);
+  }
+
+  /**
+   * Wait for the membership sections and rethrow whatever went wrong rendering them.
+   */
+  private String[] getSections(Future<String[]> membership) throws JSONException,
+      StorageClientException, AccessDeniedException {
+    try {
+      return membership.get();
+    } catch (InterruptedException e) {
+      membership.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new StorageClientException("Interrupted waiting for the membership sections", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof JSONException) {
+        throw (JSONException) cause;
+      } else if (cause instanceof StorageClientException) {
+        throw (StorageClientException) cause;
+      } else if (cause instanceof AccessDeniedException) {
+        throw (AccessDeniedException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new StorageClientException(cause.getMessage(), cause);
+    }
+  }
+
   /**
    * @param writer
    * @param session
@@ -251,6 +482,16 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
    */
   protected void writeGroups(ExtendedJSONWriter writer, Session session, Authorizable au)
       throws JSONException, StorageClientException, AccessDeniedException {
+    writeGroups(writer, session, au, null);
+  }
+
+  /**
+   * @param groupIds
+   *          if not null, the ids of the groups written are added to it.
+   */
+  protected void writeGroups(ExtendedJSONWriter writer, Session session, Authorizable au,
+      Set<String> groupIds) throws JSONException, StorageClientException,
+      AccessDeniedException {
     AuthorizableManager authorizableManager = session.getAuthorizableManager();
     writer.array();
     if (!UserConstants.ANON_USERID.equals(au.getId())) {
@@ -273,6 +514,9 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
             continue;
           }
         }
+        if (groupIds != null) {
+          groupIds.add(group.getId());
+        }
         ValueMap groupProfile = new ValueMapDecorator(basicUserInfoService.getProperties(group));
         if (groupProfile != null) {
           writer.valueMap(groupProfile);
@@ -402,6 +646,21 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   protected void writeUserJSON(ExtendedJSONWriter write, Session session,
       Authorizable authorizable, SlingHttpServletRequest request)
       throws JSONException, StorageClientException {
+    Set<String> subjects = null;
+    if (authorizable != null && !UserConstants.ANON_USERID.equals(session.getUserId())) {
+      subjects = getSubjects(authorizable, session.getAuthorizableManager());
+    }
+    writeUserJSON(write, session, authorizable, request, subjects);
+  }
+
+  /**
+   * @param subjects
+   *          the groups of the authorizable as returned by
+   *          {@link #getSubjects(Authorizable, AuthorizableManager)}
+   */
+  protected void writeUserJSON(ExtendedJSONWriter write, Session session,
+      Authorizable authorizable, SlingHttpServletRequest request, Set<String> subjects)
+      throws JSONException, StorageClientException {
 
     String user = session.getUserId();
     boolean isAnonymous = (UserConstants.ANON_USERID.equals(user));
@@ -416,7 +675,6 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
       write.value(false);
       write.endObject();
     } else {
-      Set<String> subjects = getSubjects(authorizable, session.getAuthorizableManager());
       Map<String, Object> properties = localeUtils.getProperties(authorizable);
 
       write.object();
@@ -0,0 +1,295 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.util.PathUtils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the rendered JSON of the sections of the /system/me feed per user. Sections are
+ * dropped when the user, a group the user is in, or content under the user's home
+ * changes. Sections that come from Solr are also expired after a short time as the index
+ * lags behind the content events.
+ *
+ * Each section records a token for the user, and membership sections one for each of the
+ * user's groups, taken before the section was rendered. A change removes the token of the
+ * authorizable, so any section holding the old token, including one put by a render that
+ * raced the change, is no longer served. Tokens and sections are cluster invalidated, so
+ * a change on one server drops the sections held by the others.
+ *
+ * A user who joins a group did not record a token for it. Membership sections also record
+ * the user's own principals, and are not served once the principals the user holds when
+ * reading differ. An event only ever removes the token of the authorizable it names.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { MeSectionCache.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Caches the sections of the /system/me feed."),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/authorizables/*",
+        "org/sakaiproject/nakamura/lite/content/*" }) })
+public class MeSectionCache implements EventHandler {
+
+  public static final String SECTION_USER = "user";
+  public static final String SECTION_PROFILE = "profile";
+  public static final String SECTION_MESSAGES = "messages";
+  public static final String SECTION_CONTACTS = "contacts";
+  public static final String SECTION_GROUPS = "groups";
+
+  private static final String[] SECTIONS = { SECTION_USER, SECTION_PROFILE,
+      SECTION_MESSAGES, SECTION_CONTACTS, SECTION_GROUPS };
+
+  private static final String AUTHORIZABLE_TOPICS = StoreListener.TOPIC_BASE
+      + "authorizables/";
+
+  static final String CACHE_NAME = MeSectionCache.class.getName() + "-cache";
+  static final String TOKEN_CACHE_NAME = MeSectionCache.class.getName() + "-tokens";
+
+  @Property(longValue = MeSectionCache.DEFAULT_SEARCH_SECTION_TTL, label = "Search section TTL (ms)",
+      description = "How long the sections computed from Solr (unread messages and contacts) may be served from the cache.")
+  public static final String SEARCH_SECTION_TTL = "search.section.ttl";
+  public static final long DEFAULT_SEARCH_SECTION_TTL = 30000L;
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  private long searchSectionTtl = DEFAULT_SEARCH_SECTION_TTL;
+
+  private final AtomicLong tokens = new AtomicLong();
+
+  /**
+   * bumped on every local authorizable event, membership sections rendered across one are
+   * not cached as the groups were read before their tokens were taken.
+   */
+  private final AtomicLong membershipGeneration = new AtomicLong();
+
+  static class CachedSection implements Serializable {
+    private static final long serialVersionUID = -3107716591843208233L;
+    final String json;
+    final long created;
+    final Long userToken;
+    final Map<String, Long> groupTokens;
+    final String[] userPrincipals;
+
+    CachedSection(String json, long created, Long userToken, Map<String, Long> groupTokens,
+        String[] userPrincipals) {
+      this.json = json;
+      this.created = created;
+      this.userToken = userToken;
+      this.groupTokens = groupTokens;
+      this.userPrincipals = userPrincipals;
+    }
+  }
+
+  /**
+   * Taken before rendering the sections of a user, and handed back when caching them.
+   */
+  public static class Stamp {
+    private final Long userToken;
+    private final long membershipGeneration;
+    private final String[] userPrincipals;
+
+    Stamp(Long userToken, long membershipGeneration, String[] userPrincipals) {
+      this.userToken = userToken;
+      this.membershipGeneration = membershipGeneration;
+      this.userPrincipals = userPrincipals;
+    }
+  }
+
+  @Activate
+  @Modified
+  protected void modified(Map<?, ?> props) {
+    searchSectionTtl = PropertiesUtil.toLong(props.get(SEARCH_SECTION_TTL),
+        DEFAULT_SEARCH_SECTION_TTL);
+  }
+
+  /**
+   * @return the stamp to cache sections of the user rendered from now on with.
+   */
+  public Stamp stamp(String userId) {
+    return stamp(userId, null);
+  }
+
+  /**
+   * @param userPrincipals
+   *          the principals the user holds, recorded with membership sections.
+   * @return the stamp to cache sections of the user rendered from now on with.
+   */
+  public Stamp stamp(String userId, String[] userPrincipals) {
+    return new Stamp(getToken(userId), membershipGeneration.get(), sorted(userPrincipals));
+  }
+
+  /**
+   * @return the cached JSON for the section or null if it has to be computed.
+   */
+  public String get(String userId, String section) {
+    return get(userId, section, null);
+  }
+
+  /**
+   * @param userPrincipals
+   *          the principals the user holds now, a membership section cached with other
+   *          principals is not served.
+   * @return the cached JSON for the section or null if it has to be computed.
+   */
+  public String get(String userId, String section, String[] userPrincipals) {
+    CachedSection cached = getCache().get(key(userId, section));
+    if (cached == null) {
+      return null;
+    }
+    if (cached.userPrincipals != null
+        && !Arrays.equals(cached.userPrincipals, sorted(userPrincipals))) {
+      return null;
+    }
+    if ((SECTION_MESSAGES.equals(section) || SECTION_CONTACTS.equals(section))
+        && System.currentTimeMillis() - cached.created > searchSectionTtl) {
+      return null;
+    }
+    Cache<Long> tokenCache = getTokenCache();
+    if (!cached.userToken.equals(tokenCache.get(userId))) {
+      return null;
+    }
+    if (cached.groupTokens != null) {
+      for (Entry<String, Long> groupToken : cached.groupTokens.entrySet()) {
+        if (!groupToken.getValue().equals(tokenCache.get(groupToken.getKey()))) {
+          return null;
+        }
+      }
+    }
+    return cached.json;
+  }
+
+  /**
+   * Cache a section rendered after the stamp was taken.
+   */
+  public void put(Stamp stamp, String userId, String section, String json) {
+    getCache().put(key(userId, section),
+        new CachedSection(json, System.currentTimeMillis(), stamp.userToken, null, null));
+  }
+
+  /**
+   * Cache a section that depends on the user's group membership.
+   *
+   * @param groupIds
+   *          the groups the user was a member of when the section was rendered, a change
+   *          to any of them drops the section.
+   */
+  public void put(Stamp stamp, String userId, String section, String json,
+      Collection<String> groupIds) {
+    Map<String, Long> groupTokens = new HashMap<String, Long>();
+    for (String groupId : groupIds) {
+      groupTokens.put(groupId, getToken(groupId));
+    }
+    if (stamp.membershipGeneration != membershipGeneration.get()) {
+      // a group changed while the section was rendered, the groups may be stale.
+      return;
+    }
+    getCache().put(key(userId, section),
+        new CachedSection(json, System.currentTimeMillis(), stamp.userToken, groupTokens,
+            stamp.userPrincipals));
+  }
+
+  /**
+   * Drop every section for the user.
+   */
+  public void invalidate(String userId) {
+    getTokenCache().remove(userId);
+    invalidate(userId, SECTIONS);
+  }
+
+  private void invalidate(String userId, String[] sections) {
+    Cache<CachedSection> cache = getCache();
+    for (String section : sections) {
+      cache.remove(key(userId, section));
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null) {
+      return;
+    }
+    if (event.getTopic().startsWith(AUTHORIZABLE_TOPICS)) {
+      membershipGeneration.incrementAndGet();
+      // members that were in the group hold its token, those that have just joined hold
+      // other principals than their sections were cached with.
+      invalidate(path);
+    } else if (path.startsWith("a:")) {
+      // profile, messages and contacts all live under the authorizable's home.
+      invalidate(PathUtils.getAuthorizableId(path));
+    }
+  }
+
+  private String[] sorted(String[] principals) {
+    String[] sorted = principals == null ? new String[0] : principals.clone();
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  private String key(String userId, String section) {
+    return userId + ";" + section;
+  }
+
+  /**
+   * @return the current token of the authorizable, a new one if it has none.
+   */
+  private Long getToken(String id) {
+    Cache<Long> tokenCache = getTokenCache();
+    Long token = tokenCache.get(id);
+    if (token == null) {
+      token = tokens.incrementAndGet();
+      tokenCache.put(id, token);
+    }
+    return token;
+  }
+
+  private Cache<CachedSection> getCache() {
+    return cacheManagerService.getCache(CACHE_NAME, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  private Cache<Long> getTokenCache() {
+    return cacheManagerService.getCache(TOKEN_CACHE_NAME, CacheScope.CLUSTERINVALIDATED);
+  }
+}
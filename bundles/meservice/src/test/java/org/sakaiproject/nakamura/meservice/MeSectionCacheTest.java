@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class MeSectionCacheTest {
+
+  @Mock
+  CacheManagerService cacheManagerService;
+
+  MeSectionCache meSectionCache;
+
+  @Before
+  public void setUp() throws Exception {
+    final Map<String, Cache<Object>> caches = new HashMap<String, Cache<Object>>();
+    when(cacheManagerService.getCache(anyString(), any(CacheScope.class))).thenAnswer(
+        new Answer<Cache<Object>>() {
+          public Cache<Object> answer(InvocationOnMock invocation) {
+            String name = (String) invocation.getArguments()[0];
+            if (!caches.containsKey(name)) {
+              caches.put(name, new MapCacheImpl<Object>(name,
+                  CacheScope.CLUSTERINVALIDATED));
+            }
+            return caches.get(name);
+          }
+        });
+    meSectionCache = new MeSectionCache();
+    meSectionCache.cacheManagerService = cacheManagerService;
+    meSectionCache.modified(new HashMap<String, Object>());
+  }
+
+  private void put(String userId, String section, String json) {
+    meSectionCache.put(meSectionCache.stamp(userId), userId, section, json);
+  }
+
+  private void put(String userId, String section, String json,
+      Collection<String> groupIds) {
+    meSectionCache.put(meSectionCache.stamp(userId, groupIds.toArray(new String[0])),
+        userId, section, json, groupIds);
+  }
+
+  private Event event(String topic, String path) {
+    return new Event(topic, ImmutableMap.of("path", path));
+  }
+
+  @Test
+  public void testContentUnderHomeInvalidates() {
+    put("alice", MeSectionCache.SECTION_MESSAGES, "{\"unread\":1}");
+    put("bob", MeSectionCache.SECTION_MESSAGES, "{\"unread\":2}");
+    assertEquals("{\"unread\":1}",
+        meSectionCache.get("alice", MeSectionCache.SECTION_MESSAGES));
+
+    meSectionCache.handleEvent(event("org/sakaiproject/nakamura/lite/content/ADDED",
+        "a:alice/message/inbox/1234"));
+
+    assertNull(meSectionCache.get("alice", MeSectionCache.SECTION_MESSAGES));
+    assertEquals("{\"unread\":2}",
+        meSectionCache.get("bob", MeSectionCache.SECTION_MESSAGES));
+  }
+
+  @Test
+  public void testGroupChangeInvalidatesMembers() {
+    // bob was in the group when his sections were cached but has since left it.
+    put("bob", MeSectionCache.SECTION_GROUPS, "[]", ImmutableList.of("course"));
+    // alice has just joined.
+    put("alice", MeSectionCache.SECTION_GROUPS, "[]", Collections.<String> emptyList());
+    put("alice", MeSectionCache.SECTION_PROFILE, "{}");
+
+    meSectionCache.handleEvent(event(
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED", "course"));
+
+    assertNull(meSectionCache.get("bob", MeSectionCache.SECTION_GROUPS,
+        new String[] { "course" }));
+    assertEquals("[]", meSectionCache.get("alice", MeSectionCache.SECTION_GROUPS,
+        new String[0]));
+    // alice holds the group now, so her cached groups are not served.
+    assertNull(meSectionCache.get("alice", MeSectionCache.SECTION_GROUPS,
+        new String[] { "course" }));
+    // the membership of alice changed, her profile did not.
+    assertEquals("{}", meSectionCache.get("alice", MeSectionCache.SECTION_PROFILE,
+        new String[] { "course" }));
+  }
+
+  @Test
+  public void testPutAfterInvalidationIsNotServed() {
+    MeSectionCache.Stamp stamp = meSectionCache.stamp("alice");
+    // the profile changes while the old one is being rendered.
+    meSectionCache.handleEvent(event("org/sakaiproject/nakamura/lite/content/UPDATED",
+        "a:alice/public/authprofile"));
+    meSectionCache.put(stamp, "alice", MeSectionCache.SECTION_PROFILE, "{\"old\":true}");
+    assertNull(meSectionCache.get("alice", MeSectionCache.SECTION_PROFILE));
+
+    stamp = meSectionCache.stamp("alice");
+    // alice joins a group while her groups are being rendered.
+    meSectionCache.handleEvent(event(
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED", "course"));
+    meSectionCache.put(stamp, "alice", MeSectionCache.SECTION_GROUPS, "[]",
+        Collections.<String> emptyList());
+    assertNull(meSectionCache.get("alice", MeSectionCache.SECTION_GROUPS));
+  }
+
+  @Test
+  public void testSearchSectionsExpire() throws Exception {
+    meSectionCache.modified(ImmutableMap.of(MeSectionCache.SEARCH_SECTION_TTL, 0L));
+    put("alice", MeSectionCache.SECTION_CONTACTS, "{}");
+    put("alice", MeSectionCache.SECTION_PROFILE, "{}");
+    Thread.sleep(5);
+    assertNull(meSectionCache.get("alice", MeSectionCache.SECTION_CONTACTS));
+    assertEquals("{}", meSectionCache.get("alice", MeSectionCache.SECTION_PROFILE));
+  }
+}
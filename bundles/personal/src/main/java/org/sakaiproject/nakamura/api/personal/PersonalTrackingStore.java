@@ -17,6 +17,10 @@
  */
 package org.sakaiproject.nakamura.api.personal;
 
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+
 import java.util.Calendar;
 
 public interface PersonalTrackingStore {
@@ -33,5 +37,23 @@ public interface PersonalTrackingStore {
    * @param timestamp date and time of the activity
    */
   void recordActivity(String resourceId, String resourceType, String activityType, String userId, Calendar timestamp);
-  
+
+  /**
+   * Record a number of activities on one resource at once, adding them to the activity
+   * count of the resource in a single update.
+   *
+   * @param session the session to record the activity with
+   * @param resourceId the identifier of the group or content that was modified
+   * @param resourceType content | group
+   * @param activityType ADDED | CHANGED
+   * @param userId the id of the user who performed the latest activity
+   * @param timestamp date and time of the latest activity
+   * @param count the number of activities being recorded
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  void recordActivity(Session session, String resourceId, String resourceType,
+      String activityType, String userId, Calendar timestamp, int count)
+      throws StorageClientException, AccessDeniedException;
+
 }
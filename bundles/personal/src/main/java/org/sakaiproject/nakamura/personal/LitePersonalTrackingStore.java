@@ -44,8 +44,20 @@ public class LitePersonalTrackingStore implements PersonalTrackingStore {
   private static final Logger LOG = LoggerFactory
       .getLogger(LitePersonalTrackingStore.class);
 
+  /**
+   * Count updates to the same resource are serialized on one of these, picked by the
+   * tracking path, so updates to different resources rarely wait on each other.
+   */
+  private final Object[] countLocks = new Object[64];
+
   @Reference
-  private transient Repository repository;
+  protected transient Repository repository;
+
+  public LitePersonalTrackingStore() {
+    for (int i = 0; i < countLocks.length; i++) {
+      countLocks[i] = new Object();
+    }
+  }
 
   /**
    * {@inheritDoc}
@@ -58,37 +70,7 @@ public class LitePersonalTrackingStore implements PersonalTrackingStore {
     Session session = null;
     try {
       session = repository.loginAdministrative();
-      final ContentManager cm = session.getContentManager();
-      final String trackingNodePath = "/activity/" + resourceType + "/" + resourceId;
-      Content trackingNode = cm.get(trackingNodePath);
-      if (trackingNode == null) {
-        trackingNode = new Content(trackingNodePath, new HashMap<String, Object>());
-      }
-      if (!trackingNode.hasProperty("count")) {
-        trackingNode.setProperty("count", BigDecimal.ZERO);
-      }
-      if (!trackingNode.hasProperty("sling:resourceType")) {
-        trackingNode.setProperty("sling:resourceType", "sakai/resource-activity");
-      }
-      final String generatedNodeName = Base64
-          .encodeBase64URLSafeString(asShorterByteArray(UUID.randomUUID()));
-      final String activityNodePath = trackingNodePath + "/" + generatedNodeName;
-      Content activityNode = null;
-      if (cm.exists(activityNodePath)) {
-        activityNode = cm.get(activityNodePath);
-      } else {
-        activityNode = new Content(activityNodePath, new HashMap<String, Object>());
-      }
-      BigDecimal activityCount = (BigDecimal) trackingNode.getProperty("count");
-      activityNode.setProperty("sling:resourceType", "sakai/resource-update");
-      trackingNode.setProperty("count", activityCount.add(BigDecimal.ONE));
-      activityNode.setProperty("resourceId", resourceId);
-      activityNode.setProperty("resourcetype", resourceType);
-      activityNode.setProperty("activitytype", activityType);
-      activityNode.setProperty("timestamp", timestamp);
-      activityNode.setProperty("userid", userId);
-      cm.update(activityNode);
-      cm.update(trackingNode);
+      recordActivity(session, resourceId, resourceType, activityType, userId, timestamp, 1);
     } catch (AccessDeniedException e) {
       LOG.error(e.getLocalizedMessage(), e);
     } catch (StorageClientException e) {
@@ -106,6 +88,60 @@ public class LitePersonalTrackingStore implements PersonalTrackingStore {
 
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * Records one activity node holding the number of activities, and adds that number to
+   * the count on the tracking node. Updates to the count of one resource are serialized
+   * so that updates from this server are not lost.
+   *
+   * @see org.sakaiproject.nakamura.api.personal.PersonalTrackingStore#recordActivity(org.sakaiproject.nakamura.api.lite.Session,
+   *      java.lang.String, java.lang.String, java.lang.String, java.lang.String,
+   *      java.util.Calendar, int)
+   */
+  public void recordActivity(Session session, String resourceId, String resourceType,
+      String activityType, String userId, Calendar timestamp, int count)
+      throws StorageClientException, AccessDeniedException {
+    final ContentManager cm = session.getContentManager();
+    final String trackingNodePath = "/activity/" + resourceType + "/" + resourceId;
+    final String generatedNodeName = Base64
+        .encodeBase64URLSafeString(asShorterByteArray(UUID.randomUUID()));
+    final String activityNodePath = trackingNodePath + "/" + generatedNodeName;
+    Content activityNode = null;
+    if (cm.exists(activityNodePath)) {
+      activityNode = cm.get(activityNodePath);
+    } else {
+      activityNode = new Content(activityNodePath, new HashMap<String, Object>());
+    }
+    activityNode.setProperty("sling:resourceType", "sakai/resource-update");
+    activityNode.setProperty("resourceId", resourceId);
+    activityNode.setProperty("resourcetype", resourceType);
+    activityNode.setProperty("activitytype", activityType);
+    activityNode.setProperty("timestamp", timestamp);
+    activityNode.setProperty("userid", userId);
+    activityNode.setProperty("count", count);
+    cm.update(activityNode);
+    synchronized (getCountLock(trackingNodePath)) {
+      Content trackingNode = cm.get(trackingNodePath);
+      if (trackingNode == null) {
+        trackingNode = new Content(trackingNodePath, new HashMap<String, Object>());
+      }
+      if (!trackingNode.hasProperty("count")) {
+        trackingNode.setProperty("count", BigDecimal.ZERO);
+      }
+      if (!trackingNode.hasProperty("sling:resourceType")) {
+        trackingNode.setProperty("sling:resourceType", "sakai/resource-activity");
+      }
+      BigDecimal activityCount = (BigDecimal) trackingNode.getProperty("count");
+      trackingNode.setProperty("count", activityCount.add(BigDecimal.valueOf(count)));
+      cm.update(trackingNode);
+    }
+  }
+
+  private Object getCountLock(String trackingNodePath) {
+    return countLocks[(trackingNodePath.hashCode() & Integer.MAX_VALUE) % countLocks.length];
+  }
+
   private byte[] asShorterByteArray(UUID uuid) {
 
     long msb = uuid.getMostSignificantBits();
@@ -17,11 +17,14 @@
  */
 package org.sakaiproject.nakamura.personal;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
@@ -38,9 +41,25 @@ import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
-@Component(inherit = true, label = "%sakai-event.name", immediate = true)
+/**
+ * Counts changes to groups, pages and pooled content. Events are queued and recorded in
+ * batches by a single writer thread on one administrative session, with the changes to
+ * each resource in a batch recorded as one activity. When the queue is full publishers
+ * wait for a while for space, and record the change themselves if there is still none.
+ * Changes that fail to be recorded are put back on the queue and retried with a later
+ * batch, a few times at most.
+ */
+@Component(inherit = true, label = "%sakai-event.name", immediate = true, metatype = true)
 @Service
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
@@ -52,13 +71,73 @@ public class ResourceChangeCounter implements EventHandler {
 
   private static final Logger LOG = LoggerFactory.getLogger(ResourceChangeCounter.class);
   protected static final String SAKAI_POOLED_CONTENT = "sakai/pooled-content";
-  
+
+  @Property(intValue = 10000, label = "Queue size", description = "Number of changes that can wait to be recorded.")
+  static final String QUEUE_SIZE = "tracking.queueSize";
+
+  @Property(intValue = 1000, label = "Batch size", description = "Maximum number of changes recorded together.")
+  static final String BATCH_SIZE = "tracking.batchSize";
+
+  @Property(longValue = 1000L, label = "Queue wait", description = "Milliseconds to wait for space on a full queue before recording a change directly.")
+  static final String QUEUE_WAIT = "tracking.queueWait";
+
+  /**
+   * How many times the writer tries to record a change before giving up on it.
+   */
+  static final int MAX_ATTEMPTS = 3;
+
+  /**
+   * Put on the queue to stop the writer once it has recorded everything before it.
+   */
+  private static final Change STOP = new Change(null, null, null);
+
   @Reference
   protected PersonalTrackingStore store;
-  
+
   @Reference
   protected Repository repository;
 
+  private int batchSize;
+  private long queueWait;
+  private volatile boolean running;
+  private volatile BlockingQueue<Change> queue;
+  private Thread writerThread;
+
+  @Activate
+  protected void activate(Map<String, Object> props) {
+    int queueSize = Math.max(1, PropertiesUtil.toInteger(props.get(QUEUE_SIZE), 10000));
+    batchSize = Math.max(1, PropertiesUtil.toInteger(props.get(BATCH_SIZE), 1000));
+    queueWait = PropertiesUtil.toLong(props.get(QUEUE_WAIT), 1000L);
+    queue = new ArrayBlockingQueue<Change>(queueSize);
+    running = true;
+    startWriter();
+  }
+
+  /**
+   * Start the thread that drains the queue.
+   */
+  protected void startWriter() {
+    writerThread = new Thread(new Writer(), "ResourceChangeCounter-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> props) {
+    // anything counted from now on is recorded directly.
+    running = false;
+    if (writerThread != null) {
+      try {
+        queue.put(STOP);
+        writerThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        writerThread.interrupt();
+      }
+      writerThread = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
@@ -67,64 +146,211 @@ public class ResourceChangeCounter implements EventHandler {
     // be fast
     final String path = (String) event.getProperty("path");
     if (path != null) {
-      Session adminSession = null;
+      Change change = new Change(path, (String) event.getProperty("userid"),
+          Calendar.getInstance());
+      BlockingQueue<Change> queue = this.queue;
+      try {
+        if (queue != null && running
+            && queue.offer(change, queueWait, TimeUnit.MILLISECONDS)) {
+          return;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      // no writer or it is falling too far behind, record on the publishing thread
+      // rather than lose the change.
+      for (Change failed : record(Collections.singletonList(change))) {
+        LOG.error("Failed to record {} changes to {}", failed.count, failed.path);
+      }
+    }
+  }
+
+  /**
+   * Drains the queue, recording up to batchSize changes at a time.
+   */
+  private class Writer implements Runnable {
+    public void run() {
+      List<Change> batch = new ArrayList<Change>(batchSize);
+      try {
+        while (true) {
+          batch.add(queue.take());
+          queue.drainTo(batch, batchSize - 1);
+          boolean stop = batch.remove(STOP);
+          recordBatch(batch);
+          batch.clear();
+          if (stop) {
+            // changes that raced with deactivate.
+            queue.drainTo(batch);
+            recordBatch(batch);
+            break;
+          }
+        }
+      } catch (InterruptedException e) {
+        LOG.warn("Resource change writer interrupted, {} changes not recorded",
+            batch.size() + queue.size());
+      }
+    }
+  }
+
+  /**
+   * Record the changes waiting on the queue on the calling thread, up to batchSize at a
+   * time, for when there is no writer.
+   */
+  void flush() {
+    List<Change> batch = new ArrayList<Change>(batchSize);
+    while (queue.drainTo(batch, batchSize) > 0) {
+      batch.remove(STOP);
+      recordBatch(batch);
+      batch.clear();
+    }
+  }
+
+  /**
+   * Record a batch on the writer thread, changes that fail are put back on the queue to
+   * be retried with a later batch.
+   */
+  private void recordBatch(List<Change> batch) {
+    if (!batch.isEmpty()) {
+      List<Change> failed;
       try {
-        adminSession = repository.loginAdministrative();
-        final Content content = adminSession.getContentManager().get(path);
-        if (content == null) {
-          LOG.debug("Unable to record change for nonexistent content: " + path);
-        } else {
-          if (content.hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)) {
+        failed = record(batch);
+      } catch (RuntimeException e) {
+        LOG.error("Failed to record " + batch.size() + " resource changes", e);
+        failed = batch;
+      }
+      for (Change change : failed) {
+        change.attempts++;
+        // never wait here, the writer is the one emptying the queue.
+        if (change.attempts >= MAX_ATTEMPTS || !running || !queue.offer(change)) {
+          LOG.error("Gave up recording {} changes to {} after {} attempts", new Object[] {
+              change.count, change.path, change.attempts });
+        }
+      }
+    }
+  }
+
+  /**
+   * Record a batch of changes on one session, looking each changed path up once and
+   * recording one activity per resource.
+   *
+   * @return the changes that could not be recorded, merged by path.
+   */
+  protected List<Change> record(List<Change> changes) {
+    Map<String, Change> byPath = aggregate(changes);
+    List<Change> failed = new ArrayList<Change>();
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      Map<String, Change> byResource = new LinkedHashMap<String, Change>();
+      for (Change change : byPath.values()) {
+        try {
+          final Content content = adminSession.getContentManager().get(change.path);
+          if (content == null) {
+            LOG.debug("Unable to record change for nonexistent content: " + change.path);
+          } else if (content.hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)) {
             final String resourceType = (String) content
-            .getProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY);
+                .getProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY);
             if (resourceIsOfInterest(resourceType)) {
-              countThisEvent(event, resourceType, adminSession);
+              resolveResource(change, resourceType, adminSession, byResource);
             }
           }
+        } catch (StorageClientException e) {
+          LOG.error(e.getLocalizedMessage(), e);
+          failed.add(change);
+        } catch (AccessDeniedException e) {
+          LOG.error(e.getLocalizedMessage(), e);
+          failed.add(change);
         }
-      } catch (ClientPoolException e) {
-        LOG.error(e.getLocalizedMessage(), e);
-      } catch (StorageClientException e) {
-        LOG.error(e.getLocalizedMessage(), e);
-      } catch (AccessDeniedException e) {
-        LOG.error(e.getLocalizedMessage(), e);
-      } finally {
-        if (adminSession != null) {
-          try {
-            adminSession.logout();
-          } catch (ClientPoolException e) {
-            LOG.error(e.getLocalizedMessage(), e);
-            throw new IllegalStateException(e);
-          }
+      }
+      for (Change change : byResource.values()) {
+        try {
+          store.recordActivity(adminSession, change.resourceId, change.resourceType,
+              "CHANGE", change.userId, change.timestamp, change.count);
+        } catch (StorageClientException e) {
+          LOG.error(e.getLocalizedMessage(), e);
+          failed.add(change);
+        } catch (AccessDeniedException e) {
+          LOG.error(e.getLocalizedMessage(), e);
+          failed.add(change);
+        }
+      }
+    } catch (ClientPoolException e) {
+      LOG.error(e.getLocalizedMessage(), e);
+      return new ArrayList<Change>(byPath.values());
+    } catch (StorageClientException e) {
+      LOG.error(e.getLocalizedMessage(), e);
+      return new ArrayList<Change>(byPath.values());
+    } catch (AccessDeniedException e) {
+      LOG.error(e.getLocalizedMessage(), e);
+      return new ArrayList<Change>(byPath.values());
+    } finally {
+      if (adminSession != null) {
+        try {
+          adminSession.logout();
+        } catch (ClientPoolException e) {
+          LOG.error(e.getLocalizedMessage(), e);
+          throw new IllegalStateException(e);
         }
       }
     }
+    return failed;
   }
 
-  private void countThisEvent(final Event e, final String eventResourceType,
-      final Session session) throws AccessDeniedException, StorageClientException {
+  /**
+   * Merge the changes to each path, keeping the latest user and time.
+   */
+  private Map<String, Change> aggregate(List<Change> changes) {
+    Map<String, Change> byPath = new LinkedHashMap<String, Change>();
+    for (Change change : changes) {
+      Change merged = byPath.get(change.path);
+      if (merged == null) {
+        merged = new Change(change.path, change.userId, change.timestamp);
+        merged.count = change.count;
+        merged.attempts = change.attempts;
+        byPath.put(change.path, merged);
+      } else {
+        merged.merge(change.userId, change.timestamp, change.count);
+        merged.attempts = Math.max(merged.attempts, change.attempts);
+      }
+    }
+    return byPath;
+  }
 
-    String userId = (String)e.getProperty("userid");
-    String path = (String)e.getProperty("path");
-    String activityType = "CHANGE";
+  private void resolveResource(final Change change, final String eventResourceType,
+      final Session session, Map<String, Change> byResource) throws AccessDeniedException,
+      StorageClientException {
+    String path = change.path;
     String resourceId = null;
     String resourceType = null;
-    if (path != null) {
-      if (path.startsWith("a:")) {
-        resourceId = PathUtils.getAuthorizableId(path);
-        final Authorizable az = session.getAuthorizableManager().findAuthorizable(
-            resourceId);
-        if (az != null) {
-          resourceType = (az instanceof Group) ? "group" : "user";
-        }
-      } else {
-        if (SAKAI_POOLED_CONTENT.equals(eventResourceType)) {
-          resourceType = "content";
-          resourceId = path.substring(path.lastIndexOf("/") + 1);
-        }
+    if (path.startsWith("a:")) {
+      resourceId = PathUtils.getAuthorizableId(path);
+      final Authorizable az = session.getAuthorizableManager().findAuthorizable(
+          resourceId);
+      if (az != null) {
+        resourceType = (az instanceof Group) ? "group" : "user";
       }
+    } else {
+      if (SAKAI_POOLED_CONTENT.equals(eventResourceType)) {
+        resourceType = "content";
+        resourceId = path.substring(path.lastIndexOf("/") + 1);
+      }
+    }
+    if (resourceId == null || resourceType == null) {
+      return;
+    }
+    String key = resourceType + "/" + resourceId;
+    Change merged = byResource.get(key);
+    if (merged == null) {
+      merged = new Change(path, change.userId, change.timestamp);
+      merged.count = change.count;
+      merged.attempts = change.attempts;
+      merged.resourceId = resourceId;
+      merged.resourceType = resourceType;
+      byResource.put(key, merged);
+    } else {
+      merged.merge(change.userId, change.timestamp, change.count);
+      merged.attempts = Math.max(merged.attempts, change.attempts);
     }
-    store.recordActivity(resourceId, resourceType, activityType, userId, Calendar.getInstance());
   }
 
   private boolean resourceIsOfInterest(String resourceType) {
@@ -133,4 +359,34 @@ public class ResourceChangeCounter implements EventHandler {
         || SAKAI_POOLED_CONTENT.equals(resourceType));
   }
 
+  /**
+   * One or more changes to a path, and once resolved, to a resource.
+   */
+  static class Change {
+    final String path;
+    String userId;
+    Calendar timestamp;
+    int count = 1;
+    /**
+     * How many times recording the change has failed.
+     */
+    int attempts;
+    String resourceId;
+    String resourceType;
+
+    Change(String path, String userId, Calendar timestamp) {
+      this.path = path;
+      this.userId = userId;
+      this.timestamp = timestamp;
+    }
+
+    void merge(String userId, Calendar timestamp, int count) {
+      this.count += count;
+      if (!timestamp.before(this.timestamp)) {
+        this.userId = userId;
+        this.timestamp = timestamp;
+      }
+    }
+  }
+
 }
@@ -0,0 +1,229 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.personal;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+
+public class ResourceChangeCounterTest {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ResourceChangeCounterTest.class);
+
+  private static final int THREADS = 10;
+  private static final int EVENTS = 1000;
+  private static final int ROUNDS = 10;
+
+  private ContentManager contentManager;
+  private LitePersonalTrackingStore store;
+  private ResourceChangeCounter counter;
+
+  @Before
+  public void setUp() throws Exception {
+    Repository repository = (Repository) new BaseMemoryRepository().getRepository();
+    Session session = repository.loginAdministrative();
+    contentManager = session.getContentManager();
+    for (String id : new String[] { "p1", "p2" }) {
+      contentManager.update(new Content(id, ImmutableMap.<String, Object> of(
+          "sling:resourceType", ResourceChangeCounter.SAKAI_POOLED_CONTENT)));
+    }
+
+    LitePersonalTrackingStore trackingStore = new LitePersonalTrackingStore();
+    trackingStore.repository = repository;
+    store = spy(trackingStore);
+    counter = new ResourceChangeCounter();
+    counter.repository = repository;
+    counter.store = store;
+  }
+
+  @Test
+  public void testConcurrentChangesAreCountedInBatches() throws Exception {
+    // the test drives the flushes, one batch per round.
+    counter = newCounterWithoutWriter();
+    counter.activate(ImmutableMap.<String, Object> of(ResourceChangeCounter.QUEUE_SIZE,
+        EVENTS / ROUNDS, ResourceChangeCounter.BATCH_SIZE, EVENTS / ROUNDS));
+    long begin = System.currentTimeMillis();
+    for (int round = 0; round < ROUNDS; round++) {
+      final CountDownLatch start = new CountDownLatch(1);
+      Thread[] publishers = new Thread[THREADS];
+      for (int t = 0; t < THREADS; t++) {
+        final String path = (t % 2 == 0) ? "p1" : "p2";
+        final String userId = "user" + t;
+        publishers[t] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              start.await();
+            } catch (InterruptedException e) {
+              return;
+            }
+            for (int i = 0; i < EVENTS / ROUNDS / THREADS; i++) {
+              counter.handleEvent(changeEvent(path, userId));
+            }
+          }
+        };
+        publishers[t].start();
+      }
+      start.countDown();
+      for (Thread publisher : publishers) {
+        publisher.join();
+      }
+      counter.flush();
+    }
+    counter.deactivate(ImmutableMap.<String, Object> of());
+
+    assertEquals(EVENTS / 2, getCount("p1"));
+    assertEquals(EVENTS / 2, getCount("p2"));
+    assertEquals(EVENTS / 2, sumActivities("p1"));
+    assertEquals(EVENTS / 2, sumActivities("p2"));
+
+    // one activity per resource per batch.
+    int activities = countActivities("p1") + countActivities("p2");
+    LOGGER.info("Recorded {} changes as {} activities in {} ms", new Object[] { EVENTS,
+        activities, System.currentTimeMillis() - begin });
+    assertEquals(2 * ROUNDS, activities);
+    verify(store, times(2 * ROUNDS)).recordActivity(any(Session.class), anyString(),
+        anyString(), anyString(), anyString(), any(Calendar.class), anyInt());
+  }
+
+  @Test
+  public void testFailedBatchIsRetried() throws Exception {
+    doThrow(new StorageClientException("store unavailable")).doCallRealMethod()
+        .when(store).recordActivity(any(Session.class), anyString(), anyString(),
+            anyString(), anyString(), any(Calendar.class), anyInt());
+    counter = newCounterWithoutWriter();
+    counter.activate(ImmutableMap.<String, Object> of());
+    counter.handleEvent(changeEvent("p1", "user0"));
+    counter.handleEvent(changeEvent("p1", "user1"));
+    counter.flush();
+
+    assertEquals(2, getCount("p1"));
+    assertEquals(1, countActivities("p1"));
+    verify(store, times(2)).recordActivity(any(Session.class), anyString(), anyString(),
+        anyString(), anyString(), any(Calendar.class), anyInt());
+  }
+
+  @Test
+  public void testChangeIsGivenUpAfterRepeatedFailures() throws Exception {
+    doThrow(new IllegalStateException("store unavailable")).when(store).recordActivity(
+        any(Session.class), anyString(), anyString(), anyString(), anyString(),
+        any(Calendar.class), anyInt());
+    counter = newCounterWithoutWriter();
+    counter.activate(ImmutableMap.<String, Object> of());
+    counter.handleEvent(changeEvent("p1", "user0"));
+    counter.flush();
+
+    verify(store, times(ResourceChangeCounter.MAX_ATTEMPTS)).recordActivity(
+        any(Session.class), anyString(), anyString(), anyString(), anyString(),
+        any(Calendar.class), anyInt());
+  }
+
+  @Test
+  public void testWriterSurvivesAFailedBatch() throws Exception {
+    doThrow(new IllegalStateException("store unavailable")).doCallRealMethod()
+        .when(store).recordActivity(any(Session.class), anyString(), anyString(),
+            anyString(), anyString(), any(Calendar.class), anyInt());
+    counter.activate(ImmutableMap.<String, Object> of());
+    counter.handleEvent(changeEvent("p1", "user0"));
+    // wait for the failed batch and its retry before sending the next.
+    verify(store, timeout(5000).times(2)).recordActivity(any(Session.class), anyString(),
+        anyString(), anyString(), anyString(), any(Calendar.class), anyInt());
+    counter.handleEvent(changeEvent("p2", "user0"));
+    counter.deactivate(ImmutableMap.<String, Object> of());
+
+    assertEquals(1, getCount("p1"));
+    assertEquals(1, getCount("p2"));
+  }
+
+  @Test
+  public void testChangesAreRecordedWithoutWriter() throws Exception {
+    counter.handleEvent(changeEvent("p1", "user0"));
+    counter.handleEvent(changeEvent("a:nobody/public", "user0"));
+    assertEquals(1, getCount("p1"));
+    assertEquals(1, countActivities("p1"));
+  }
+
+  private ResourceChangeCounter newCounterWithoutWriter() {
+    ResourceChangeCounter withoutWriter = new ResourceChangeCounter() {
+      @Override
+      protected void startWriter() {
+      }
+    };
+    withoutWriter.repository = counter.repository;
+    withoutWriter.store = store;
+    return withoutWriter;
+  }
+
+  private Event changeEvent(String path, String userId) {
+    Dictionary<String, Object> props = new Hashtable<String, Object>();
+    props.put("path", path);
+    props.put("userid", userId);
+    return new Event("org/sakaiproject/nakamura/lite/content/UPDATED", props);
+  }
+
+  private int getCount(String id) throws Exception {
+    return ((BigDecimal) contentManager.get("/activity/content/" + id).getProperty("count"))
+        .intValue();
+  }
+
+  private int countActivities(String id) throws Exception {
+    int activities = 0;
+    for (Iterator<Content> i = contentManager.listChildren("/activity/content/" + id); i
+        .hasNext(); i.next()) {
+      activities++;
+    }
+    return activities;
+  }
+
+  private long sumActivities(String id) throws Exception {
+    long sum = 0;
+    for (Iterator<Content> i = contentManager.listChildren("/activity/content/" + id); i
+        .hasNext();) {
+      sum += ((Number) i.next().getProperty("count")).longValue();
+    }
+    return sum;
+  }
+}
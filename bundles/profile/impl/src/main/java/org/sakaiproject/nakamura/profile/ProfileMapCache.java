@@ -0,0 +1,266 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+import org.sakaiproject.nakamura.util.PathUtils;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds resolved profile maps per authorizable and access level. Only the levels that
+ * every viewer at that level shares are cached: anonymous viewers, and logged in viewers
+ * with no relationship to the profile's owner. Administrators and viewers holding a
+ * principal named in the ACLs of the profile see it differently, they neither fill nor
+ * read the cache. Entries are dropped when the authorizable, its home or its profile
+ * changes, on every server in the cluster.
+ */
+@Component(immediate = true)
+@Service(value = { ProfileMapCache.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Caches resolved profile maps."),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/authorizables/*",
+        "org/sakaiproject/nakamura/lite/content/*" }) })
+public class ProfileMapCache implements EventHandler {
+
+  public static final String LEVEL_ANONYMOUS = "anonymous";
+  public static final String LEVEL_EVERYONE = "everyone";
+
+  private static final String[] LEVELS = { LEVEL_ANONYMOUS, LEVEL_EVERYONE };
+
+  static final String CACHE_NAME = ProfileMapCache.class.getName() + "-cache";
+
+  private static final String AUTHORIZABLE_TOPICS = StoreListener.TOPIC_BASE
+      + "authorizables/";
+
+  /**
+   * How often the hit and miss counts are published to telemetry.
+   */
+  private static final long TELEMETRY_INTERVAL = 10000L;
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong lastPublished = new AtomicLong();
+
+  static class CachedProfile implements Serializable {
+    private static final long serialVersionUID = -3326814364932105147L;
+    final Map<String, Object> profileMap;
+    /**
+     * The principals named in the ACLs of the profile when it was resolved.
+     */
+    final String[] aclPrincipals;
+
+    CachedProfile(Map<String, Object> profileMap, String[] aclPrincipals) {
+      this.profileMap = profileMap;
+      this.aclPrincipals = aclPrincipals;
+    }
+  }
+
+  /**
+   * Work out which cached level a viewer sees a profile at.
+   *
+   * @param authorizableId
+   *          the owner of the profile.
+   * @param userId
+   *          the viewer.
+   * @param principals
+   *          the viewer's principals, may be null for anonymous viewers.
+   * @return the level, or null if the viewer may see more than others at any level and
+   *         the profile has to be read for them. Administrators are never given a level.
+   */
+  public String getAccessLevel(String authorizableId, String userId, String[] principals) {
+    if (userId == null || User.ANON_USER.equals(userId)) {
+      return LEVEL_ANONYMOUS;
+    }
+    if (User.ADMIN_USER.equals(userId) || authorizableId.equals(userId)) {
+      return null;
+    }
+    if (principals != null) {
+      for (String principal : principals) {
+        // a member or manager of the group, or one of the user's contacts.
+        if (authorizableId.equals(principal) || principal.startsWith(authorizableId + "-")
+            || principal.equals("g-contacts-" + authorizableId)
+            || Group.ADMINISTRATORS_GROUP.equals(principal)) {
+          return null;
+        }
+      }
+    }
+    return LEVEL_EVERYONE;
+  }
+
+  /**
+   * @param principals
+   *          the viewer's principals, may be null for anonymous viewers.
+   * @return a copy of the cached map, or null if it has to be resolved for the viewer.
+   */
+  public Map<String, Object> get(String authorizableId, String level, String[] principals) {
+    CachedProfile cached = getCache().get(key(authorizableId, level));
+    if (cached != null && holdsAny(principals, Arrays.asList(cached.aclPrincipals))) {
+      cached = null;
+    }
+    if (cached == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    publishTelemetry();
+    return (cached == null) ? null : copy(cached.profileMap);
+  }
+
+  /**
+   * Cache the map a viewer resolved, unless the viewer holds one of the principals the
+   * ACLs of the profile name and so may not see what others at the level see.
+   *
+   * @param principals
+   *          the principals of the viewer that resolved the map.
+   * @param aclPrincipals
+   *          the principals named in the ACLs of the profile, other than everyone and
+   *          anonymous.
+   */
+  public void put(String authorizableId, String level, String[] principals,
+      Map<String, Object> profileMap, Collection<String> aclPrincipals) {
+    if (holdsAny(principals, aclPrincipals)) {
+      return;
+    }
+    getCache().put(key(authorizableId, level), new CachedProfile(copy(profileMap),
+        aclPrincipals.toArray(new String[aclPrincipals.size()])));
+  }
+
+  /**
+   * Drop the maps of the authorizable at every level.
+   */
+  public void invalidate(String authorizableId) {
+    Cache<CachedProfile> cache = getCache();
+    for (String level : LEVELS) {
+      cache.remove(key(authorizableId, level));
+    }
+  }
+
+  /**
+   * @return the fraction of lookups that were served from the cache.
+   */
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return (total == 0) ? 0.0 : h / (double) total;
+  }
+
+  /**
+   * Publish the counts at most once per interval, by whichever lookup gets there first.
+   */
+  private void publishTelemetry() {
+    long now = System.currentTimeMillis();
+    long last = lastPublished.get();
+    if (now - last >= TELEMETRY_INTERVAL && lastPublished.compareAndSet(last, now)) {
+      TelemetryCounter.setValue("profile", "ProfileMapCache", "hit", hits.get());
+      TelemetryCounter.setValue("profile", "ProfileMapCache", "miss", misses.get());
+      TelemetryCounter.setValue("profile", "ProfileMapCache", "hitRate", getHitRate());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null) {
+      return;
+    }
+    if (event.getTopic().startsWith(AUTHORIZABLE_TOPICS)) {
+      invalidate(path);
+    } else if (path.startsWith("a:")) {
+      String authorizableId = PathUtils.getAuthorizableId(path);
+      if (authorizableId != null && isProfilePath(authorizableId, path)) {
+        invalidate(authorizableId);
+      }
+    }
+  }
+
+  /**
+   * @return true if the path is the profile or one of its sections, or a path above the
+   *         profile whose ACL the profile inherits. Files, messages and pages under the
+   *         home don't change the profile.
+   */
+  private boolean isProfilePath(String authorizableId, String path) {
+    String profilePath = LitePersonalUtils.getProfilePath(authorizableId);
+    return path.equals(profilePath) || path.startsWith(profilePath + "/")
+        || path.equals(LitePersonalUtils.getPublicPath(authorizableId))
+        || path.equals(LitePersonalUtils.getHomePath(authorizableId));
+  }
+
+  private boolean holdsAny(String[] principals, Collection<String> aclPrincipals) {
+    if (principals != null) {
+      for (String principal : principals) {
+        if (aclPrincipals.contains(principal)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Profile maps hold nested maps for the sections of the profile, callers get their own
+   * copies of those too.
+   */
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> copy(Map<String, Object> map) {
+    Map<String, Object> copy = new HashMap<String, Object>(map);
+    for (Entry<String, Object> e : copy.entrySet()) {
+      if (e.getValue() instanceof Map) {
+        e.setValue(copy((Map<String, Object>) e.getValue()));
+      }
+    }
+    return copy;
+  }
+
+  private String key(String authorizableId, String level) {
+    return authorizableId + ";" + level;
+  }
+
+  private Cache<CachedProfile> getCache() {
+    return cacheManagerService.getCache(CACHE_NAME, CacheScope.CLUSTERINVALIDATED);
+  }
+}
@@ -38,12 +38,16 @@ import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.http.cache.DynamicContentResponseCache;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
@@ -60,9 +64,11 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -96,6 +102,12 @@ public class ProfileServiceImpl implements ProfileService {
   @Reference
   private DynamicContentResponseCache responseCache;
 
+  @Reference
+  protected ProfileMapCache profileMapCache;
+
+  @Reference
+  protected Repository repository;
+
   @Activate @Modified
   protected void activate(Map<?, ?> props) {
     emailLocation = PropertiesUtil.toString(props.get(EMAIL_LOCATION), null);
@@ -181,18 +193,98 @@ public class ProfileServiceImpl implements ProfileService {
     }
     String profilePath = LitePersonalUtils.getProfilePath(authorizable.getId());
     org.sakaiproject.nakamura.api.lite.Session sparseSession = StorageClientUtils.adaptToSession(session);
+    String[] principals = getViewerPrincipals(sparseSession);
+    String level = (principals == null) ? null : profileMapCache.getAccessLevel(
+        authorizable.getId(), sparseSession.getUserId(), principals);
+    if (level != null) {
+      Map<String, Object> cached = profileMapCache.get(authorizable.getId(), level,
+          principals);
+      if (cached != null) {
+        return new ValueMapDecorator(cached);
+      }
+    }
     ContentManager contentManager = sparseSession.getContentManager();
     ValueMap profileMap = new ValueMapDecorator(new HashMap<String, Object>());
-    
-    if (contentManager.exists(profilePath)) {
-      Content profileContent = contentManager.get(profilePath);
+
+    Content profileContent = contentManager.get(profilePath);
+    if (profileContent != null) {
       profileMap.putAll(getResolvedProfileMap(authorizable, profileContent, session));
     }
 
     profileMap.putAll(basicUserInfoService.getProperties(authorizable));
+    if (level != null) {
+      profileMapCache.put(authorizable.getId(), level, principals, profileMap,
+          getAclPrincipals(authorizable.getId()));
+    }
     return profileMap;
   }
 
+  /**
+   * @return the principals of the session's user, none for anonymous, or null if their
+   *         view of profiles can't be shared with other users.
+   */
+  private String[] getViewerPrincipals(org.sakaiproject.nakamura.api.lite.Session sparseSession)
+      throws StorageClientException, AccessDeniedException {
+    String userId = sparseSession.getUserId();
+    if (userId == null || User.ANON_USER.equals(userId)) {
+      return new String[0];
+    }
+    Authorizable user = sparseSession.getAuthorizableManager().findAuthorizable(userId);
+    if (user == null || (user instanceof User && ((User) user).isAdmin())) {
+      return null;
+    }
+    return user.getPrincipals();
+  }
+
+  /**
+   * Read with an administrative session, as viewers may not read the ACLs of others.
+   *
+   * @return the principals named in the ACLs of the profile, its sections and the paths
+   *         above it up to the home, other than everyone and anonymous.
+   */
+  private Set<String> getAclPrincipals(String authorizableId)
+      throws StorageClientException, AccessDeniedException {
+    Set<String> principals = new HashSet<String>();
+    org.sakaiproject.nakamura.api.lite.Session adminSession = repository
+        .loginAdministrative();
+    try {
+      AccessControlManager accessControlManager = adminSession.getAccessControlManager();
+      addAclPrincipals(accessControlManager, LitePersonalUtils.getHomePath(authorizableId),
+          principals);
+      addAclPrincipals(accessControlManager,
+          LitePersonalUtils.getPublicPath(authorizableId), principals);
+      Content profileContent = adminSession.getContentManager().get(
+          LitePersonalUtils.getProfilePath(authorizableId));
+      if (profileContent != null) {
+        addSectionAclPrincipals(accessControlManager, profileContent, principals);
+      }
+    } finally {
+      adminSession.logout();
+    }
+    principals.remove(Group.EVERYONE);
+    principals.remove(User.ANON_USER);
+    return principals;
+  }
+
+  private void addSectionAclPrincipals(AccessControlManager accessControlManager,
+      Content content, Set<String> principals) throws StorageClientException,
+      AccessDeniedException {
+    addAclPrincipals(accessControlManager, content.getPath(), principals);
+    for (Content child : content.listChildren()) {
+      addSectionAclPrincipals(accessControlManager, child, principals);
+    }
+  }
+
+  private void addAclPrincipals(AccessControlManager accessControlManager, String path,
+      Set<String> principals) throws StorageClientException, AccessDeniedException {
+    for (String key : accessControlManager.getAcl(Security.ZONE_CONTENT, path).keySet()) {
+      String principal = AclModification.getPrincipal(key);
+      if (principal != null) {
+        principals.add(principal);
+      }
+    }
+  }
+
   /**
    * {@inheritDoc}
    * @param jcrSession 
@@ -351,6 +443,7 @@ public class ProfileServiceImpl implements ProfileService {
     String authorizableId = PathUtils.getAuthorizableId(profilePath);
     // update the authorizable
     if (authorizableId != null) {
+      profileMapCache.invalidate(authorizableId);
       AuthorizableManager authorizableManager = session.getAuthorizableManager();
       Authorizable a = authorizableManager.findAuthorizable(authorizableId);
       if (a != null) {
@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ProfileMapCacheTest {
+
+  @Mock
+  CacheManagerService cacheManagerService;
+
+  ProfileMapCache profileMapCache;
+
+  private static final String[] PLAIN = { "everyone" };
+  private static final Set<String> NO_ACL_PRINCIPALS = Collections.emptySet();
+
+  @Before
+  public void setUp() {
+    Cache<Object> cache = new MapCacheImpl<Object>(ProfileMapCache.CACHE_NAME,
+        CacheScope.INSTANCE);
+    when(cacheManagerService.getCache(anyString(), any(CacheScope.class))).thenReturn(
+        cache);
+    profileMapCache = new ProfileMapCache();
+    profileMapCache.cacheManagerService = cacheManagerService;
+  }
+
+  @Test
+  public void testAccessLevels() {
+    assertEquals(ProfileMapCache.LEVEL_ANONYMOUS,
+        profileMapCache.getAccessLevel("alice", "anonymous", null));
+    assertEquals(ProfileMapCache.LEVEL_EVERYONE,
+        profileMapCache.getAccessLevel("alice", "bob", new String[] { "everyone" }));
+    // the owner, admin, contacts and group members and managers see more.
+    assertNull(profileMapCache.getAccessLevel("alice", "alice", new String[0]));
+    assertNull(profileMapCache.getAccessLevel("alice", "admin", new String[0]));
+    assertNull(profileMapCache.getAccessLevel("alice", "bob",
+        new String[] { "g-contacts-alice" }));
+    assertNull(profileMapCache.getAccessLevel("course", "bob", new String[] { "course" }));
+    assertNull(profileMapCache.getAccessLevel("course", "bob",
+        new String[] { "course-managers" }));
+    assertNull(profileMapCache.getAccessLevel("alice", "carol",
+        new String[] { "everyone", "administrators" }));
+  }
+
+  @Test
+  public void testPrivilegedViewersDoNotShareTheCache() {
+    // the aboutme section is only readable by alice's friends.
+    Set<String> aclPrincipals = ImmutableSet.of("alice-friends");
+    String[] friend = { "everyone", "alice-friends" };
+    Map<String, Object> seenByFriend = ImmutableMap.<String, Object> of("aboutme",
+        "hello friends");
+    Map<String, Object> seenByAll = ImmutableMap.<String, Object> of("userid", "alice");
+
+    // what a friend sees is not kept for others.
+    profileMapCache.put("alice", ProfileMapCache.LEVEL_EVERYONE, friend, seenByFriend,
+        aclPrincipals);
+    assertNull(profileMapCache.get("alice", ProfileMapCache.LEVEL_EVERYONE, PLAIN));
+
+    // and what others see is not served to a friend.
+    profileMapCache.put("alice", ProfileMapCache.LEVEL_EVERYONE, PLAIN, seenByAll,
+        aclPrincipals);
+    assertNull(profileMapCache.get("alice", ProfileMapCache.LEVEL_EVERYONE, friend));
+    assertEquals(seenByAll, profileMapCache.get("alice", ProfileMapCache.LEVEL_EVERYONE,
+        PLAIN));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testCallersGetCopies() {
+    Map<String, Object> section = new HashMap<String, Object>();
+    section.put("aboutme", "hello");
+    Map<String, Object> profile = new HashMap<String, Object>();
+    profile.put("aboutme", section);
+    profileMapCache.put("alice", ProfileMapCache.LEVEL_EVERYONE, PLAIN, profile,
+        NO_ACL_PRINCIPALS);
+
+    Map<String, Object> cached = profileMapCache.get("alice",
+        ProfileMapCache.LEVEL_EVERYONE, PLAIN);
+    assertEquals(profile, cached);
+    cached.put("extra", "value");
+    ((Map<String, Object>) cached.get("aboutme")).clear();
+    assertEquals(profile, profileMapCache.get("alice", ProfileMapCache.LEVEL_EVERYONE,
+        PLAIN));
+    assertNull(profileMapCache.get("alice", ProfileMapCache.LEVEL_ANONYMOUS, null));
+    assertEquals(2 / 3.0, profileMapCache.getHitRate(), 0.001);
+  }
+
+  @Test
+  public void testChangesInvalidate() {
+    Map<String, Object> profile = ImmutableMap.<String, Object> of("userid", "alice");
+    profileMapCache.put("alice", ProfileMapCache.LEVEL_EVERYONE, PLAIN, profile,
+        NO_ACL_PRINCIPALS);
+    profileMapCache.put("alice", ProfileMapCache.LEVEL_ANONYMOUS, null, profile,
+        NO_ACL_PRINCIPALS);
+    profileMapCache.put("bob", ProfileMapCache.LEVEL_EVERYONE, PLAIN, profile,
+        NO_ACL_PRINCIPALS);
+
+    // nothing under the home other than the profile changes it.
+    profileMapCache.handleEvent(event("org/sakaiproject/nakamura/lite/content/UPDATED",
+        "a:alice/private/messages/m1"));
+    profileMapCache.handleEvent(event("org/sakaiproject/nakamura/lite/content/UPDATED",
+        "a:alice/public/pages/page1"));
+    assertEquals(profile, profileMapCache.get("alice", ProfileMapCache.LEVEL_EVERYONE,
+        PLAIN));
+
+    profileMapCache.handleEvent(event("org/sakaiproject/nakamura/lite/content/UPDATED",
+        "a:alice/public/authprofile/aboutme"));
+    assertNull(profileMapCache.get("alice", ProfileMapCache.LEVEL_EVERYONE, PLAIN));
+    assertNull(profileMapCache.get("alice", ProfileMapCache.LEVEL_ANONYMOUS, null));
+    assertEquals(profile, profileMapCache.get("bob", ProfileMapCache.LEVEL_EVERYONE,
+        PLAIN));
+
+    profileMapCache.handleEvent(event(
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED", "bob"));
+    assertNull(profileMapCache.get("bob", ProfileMapCache.LEVEL_EVERYONE, PLAIN));
+  }
+
+  private Event event(String topic, String path) {
+    return new Event(topic, ImmutableMap.of("path", path));
+  }
+}
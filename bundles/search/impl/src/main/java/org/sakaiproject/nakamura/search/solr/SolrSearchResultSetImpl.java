@@ -80,7 +80,19 @@ public class SolrSearchResultSetImpl implements SolrSearchResultSet, SolrQueryRe
   @SuppressWarnings("unchecked")
   private void loadGroupedResponse(NamedList<Object> response) {
     NamedList<Object> grouped = (NamedList<Object>) response.get("grouped");
-    if (grouped.size() > 0) {
+    if (grouped.size() > 0 && ((NamedList<Object>) grouped.getVal(0)).get("groups") == null) {
+      // grouped by group.query, there is a single list of documents per query.
+      long numFound = 0;
+      for (int i = 0; i < grouped.size(); i++) {
+        SolrDocumentList docList = (SolrDocumentList) ((NamedList<Object>) grouped.getVal(i))
+            .get("doclist");
+        if (docList != null) {
+          numFound += docList.getNumFound();
+          responseList.addAll(docList);
+        }
+      }
+      responseList.setNumFound(numFound);
+    } else if (grouped.size() > 0) {
       NamedList<Object> groupings = (NamedList<Object>) grouped.getVal(0);
       Integer numFound = (Integer) groupings.get("ngroups");
       if (numFound == null) {
@@ -2,172 +2,297 @@ package org.apache.jackrabbit.core.security.principal;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A reasonably dumb LRU map, but its concurrent.
+ * A concurrent, bounded LRU map. The key space is split over a number of segments, each
+ * of which is an access ordered {@link LinkedHashMap} guarded by its own lock, so
+ * eviction is O(1) (the eldest entry of the segment is dropped) and threads working on
+ * different keys rarely contend. The LRU order is maintained per segment, which is a
+ * close approximation of a global LRU when keys hash evenly.
+ *
+ * Hit, miss and eviction counts are kept and exposed through {@link #getHitCount()},
+ * {@link #getMissCount()} and {@link #getEvictionCount()}.
+ *
  * @param <K>
  * @param <V>
  */
 public class ConcurrentLRUMap<K, V> implements Map<K, V> {
 
-  public class Holder<T> {
+  private static final int DEFAULT_MAX_SIZE = 100;
+  private static final int DEFAULT_CONCURRENCY = 16;
 
-    protected long last;
-    protected V value;
-    private K key;
+  private static final class Segment<K, V> extends LinkedHashMap<K, V> {
+    private static final long serialVersionUID = 8425136257453542461L;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int capacity;
+    private final AtomicLong evictions;
 
-    public Holder(K key, V value) {
-      this.key = key;
-      this.value = value;
-      this.last = System.currentTimeMillis();
-    }
-
-    public int compareTo(Holder<T> o) {
-      return (int) (this.last - o.last);
+    Segment(int capacity, AtomicLong evictions) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+      this.evictions = evictions;
     }
 
     @Override
-    public boolean equals(Object obj) {
-      boolean eq = false;
-      if (obj != null) {
-        try {
-          @SuppressWarnings("unchecked")
-          Holder<T> t = (Holder<T>) obj;
-          eq = value.equals(t.value);
-        } catch (ClassCastException e) {
-          eq = false;
-        }
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      if (size() > capacity) {
+        evictions.incrementAndGet();
+        return true;
       }
-      return eq;
+      return false;
     }
-
-    @Override
-    public int hashCode() {
-      return value.hashCode();
-    }
-
   }
 
-  /**
-   * 
-   */
-  private Map<K, Holder<V>> delegate = new ConcurrentHashMap<K, Holder<V>>();
-  private int maxSize = 100;
+  private final Segment<K, V>[] segments;
+  private final int segmentMask;
+  private final int maxSize;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
 
   public ConcurrentLRUMap() {
+    this(DEFAULT_MAX_SIZE);
   }
 
   public ConcurrentLRUMap(int size) {
+    this(size, DEFAULT_CONCURRENCY);
+  }
+
+  /**
+   * @param size
+   *          the maximum number of entries held by the map.
+   * @param concurrency
+   *          the number of segments (rounded up to a power of 2). Small maps use fewer
+   *          segments so that every segment can hold at least a handful of entries.
+   */
+  @SuppressWarnings("unchecked")
+  public ConcurrentLRUMap(int size, int concurrency) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Size must be at least 1, was " + size);
+    }
     maxSize = size;
+    int nsegments = 1;
+    while (nsegments < concurrency && nsegments * 2 * 8 <= size) {
+      nsegments = nsegments * 2;
+    }
+    segmentMask = nsegments - 1;
+    segments = new Segment[nsegments];
+    int perSegment = size / nsegments;
+    int remainder = size % nsegments;
+    for (int i = 0; i < nsegments; i++) {
+      segments[i] = new Segment<K, V>(perSegment + (i < remainder ? 1 : 0), evictions);
+    }
+  }
+
+  private Segment<K, V> segmentFor(Object key) {
+    int h = (key == null) ? 0 : key.hashCode();
+    // spread the bits so that keys with poor low order bits still distribute.
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return segments[h & segmentMask];
   }
 
   public int size() {
-    return delegate.size();
+    int size = 0;
+    for (Segment<K, V> s : segments) {
+      s.lock.lock();
+      try {
+        size += s.size();
+      } finally {
+        s.lock.unlock();
+      }
+    }
+    return size;
   }
 
   public boolean isEmpty() {
-    return delegate.isEmpty();
+    return size() == 0;
   }
 
   public boolean containsKey(Object key) {
-    return delegate.containsKey(key);
+    Segment<K, V> s = segmentFor(key);
+    s.lock.lock();
+    try {
+      // containsKey does not touch the access order.
+      return s.containsKey(key);
+    } finally {
+      s.lock.unlock();
+    }
   }
 
   public boolean containsValue(Object value) {
-    @SuppressWarnings("unchecked")
-    Holder<V> v = new Holder<V>(null, (V) value);
-    return delegate.containsValue(v);
-  }
-
-  public V put(K key, V value) {
-    if ( delegate.size() > maxSize ) {
-      List<Holder<V>> l = new ArrayList<Holder<V>>(delegate.values());
-      Collections.sort(l,new Comparator<Holder<V>>() {
-
-        public int compare(Holder<V> o1, Holder<V> o2) {
-          return (int) (o1.last - o2.last);
+    for (Segment<K, V> s : segments) {
+      s.lock.lock();
+      try {
+        if (s.containsValue(value)) {
+          return true;
         }
-      });
-      int i = 0;
-      while ( delegate.size() > maxSize && i < l.size() ) {
-        delegate.remove(l.get(i++).key);
+      } finally {
+        s.lock.unlock();
       }
     }
-    Holder<V> v = delegate.put(key, new Holder<V>(key, value));
+    return false;
+  }
+
+  public V get(Object key) {
+    Segment<K, V> s = segmentFor(key);
+    V v;
+    s.lock.lock();
+    try {
+      v = s.get(key);
+    } finally {
+      s.lock.unlock();
+    }
     if (v == null) {
-      return null;
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return v;
+  }
+
+  public V put(K key, V value) {
+    Segment<K, V> s = segmentFor(key);
+    s.lock.lock();
+    try {
+      return s.put(key, value);
+    } finally {
+      s.lock.unlock();
     }
-    return v.value;
   }
 
   public V remove(Object key) {
-    Holder<V> v = delegate.remove(key);
-    if (v == null) {
-      return null;
+    Segment<K, V> s = segmentFor(key);
+    s.lock.lock();
+    try {
+      return s.remove(key);
+    } finally {
+      s.lock.unlock();
     }
-    return v.value;
   }
 
   public void putAll(Map<? extends K, ? extends V> t) {
-    for ( java.util.Map.Entry<? extends K, ? extends V> e : t.entrySet()) {
+    for (Map.Entry<? extends K, ? extends V> e : t.entrySet()) {
       put(e.getKey(), e.getValue());
     }
   }
 
   public void clear() {
-    delegate.clear();
+    for (Segment<K, V> s : segments) {
+      s.lock.lock();
+      try {
+        s.clear();
+      } finally {
+        s.lock.unlock();
+      }
+    }
   }
 
+  /**
+   * @return a snapshot of the keys, changes to the set are not reflected in the map.
+   */
   public Set<K> keySet() {
-    return delegate.keySet();
+    Set<K> keys = new HashSet<K>();
+    for (Segment<K, V> s : segments) {
+      s.lock.lock();
+      try {
+        keys.addAll(s.keySet());
+      } finally {
+        s.lock.unlock();
+      }
+    }
+    return keys;
   }
 
+  /**
+   * @return a snapshot of the values, changes to the collection are not reflected in the
+   *         map.
+   */
   public Collection<V> values() {
     List<V> values = new ArrayList<V>();
-    for (Holder<V> v : delegate.values()) {
-      values.add(v.value);
+    for (Segment<K, V> s : segments) {
+      s.lock.lock();
+      try {
+        values.addAll(s.values());
+      } finally {
+        s.lock.unlock();
+      }
     }
     return values;
   }
 
+  /**
+   * @return a snapshot of the entries, {@link Map.Entry#setValue(Object)} writes through
+   *         to the map.
+   */
   public Set<Entry<K, V>> entrySet() {
     Set<Entry<K, V>> set = new HashSet<Map.Entry<K, V>>();
-    for (final Entry<K, Holder<V>> e : delegate.entrySet()) {
-      set.add(new Entry<K, V>() {
+    for (Segment<K, V> s : segments) {
+      s.lock.lock();
+      try {
+        for (final Entry<K, V> e : s.entrySet()) {
+          final K key = e.getKey();
+          final V value = e.getValue();
+          set.add(new Entry<K, V>() {
 
-        public K getKey() {
-          return e.getKey();
-        }
+            public K getKey() {
+              return key;
+            }
 
-        public V getValue() {
-          return ((Holder<V>) e.getValue()).value;
-        }
+            public V getValue() {
+              return value;
+            }
 
-        public V setValue(V value) {
-          Holder<V> h = e.setValue((Holder<V>) new Holder<V>(e.getKey(), value));
-          if (h == null) {
-            return null;
-          }
-          return h.value;
+            public V setValue(V value) {
+              return put(key, value);
+            }
+          });
         }
-      });
+      } finally {
+        s.lock.unlock();
+      }
     }
     return set;
   }
 
-  public V get(Object key) {
-    Holder<V> v = delegate.get(key);
-    if (v == null) {
-      return null;
-    }
-    v.last = System.currentTimeMillis();
-    return v.value;
+  /**
+   * @return the maximum number of entries this map will hold.
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return the number of {@link #get(Object)} calls that found a value.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of {@link #get(Object)} calls that did not find a value.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of entries dropped to keep the map within its maximum size.
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "ConcurrentLRUMap size:" + size() + " max:" + maxSize + " hits:" + hits.get()
+        + " misses:" + misses.get() + " evictions:" + evictions.get();
   }
 }
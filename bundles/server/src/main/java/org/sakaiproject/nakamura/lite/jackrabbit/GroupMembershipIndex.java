@@ -0,0 +1,237 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jackrabbit;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index of the transitive group closure of each authorizable, ie every principal an
+ * authorizable holds directly or through nested group membership. Closures are computed
+ * on first use with a single breadth first walk and then answered from a cache.
+ *
+ * Each closure records the ids it was built from, and each of those ids has a marker in
+ * a second cache. {@link #invalidate(String)}, which must be called whenever an
+ * authorizable changes, removes the marker, so every closure built through the
+ * authorizable is recomputed on its next use. Both caches are cluster invalidated, so a
+ * change on one server is seen by the others and neither cache grows without bound.
+ */
+public class GroupMembershipIndex {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GroupMembershipIndex.class);
+
+  public static final String CLOSURE_CACHE = "groupMembershipClosureCache";
+  public static final String MARKER_CACHE = "groupMembershipMarkerCache";
+
+  /**
+   * authorizable id to the groups it is transitively a member of.
+   */
+  private final Cache<Closure> closures;
+
+  /**
+   * ids that have not changed since the closures built through them were computed.
+   */
+  private final Cache<Boolean> markers;
+
+  /**
+   * bumped on every local invalidation, a closure computed across an invalidation is not
+   * stored as it might have been built from stale membership.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  public GroupMembershipIndex(CacheManagerService cacheManagerService) {
+    closures = cacheManagerService.getCache(CLOSURE_CACHE, CacheScope.CLUSTERINVALIDATED);
+    markers = cacheManagerService.getCache(MARKER_CACHE, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  /**
+   * @param id
+   *          the authorizable id
+   * @param authorizableManager
+   *          used to load authorizables when the closure is not in the index.
+   * @return the ids of every existing authorizable reachable through the principals of
+   *         the authorizable, in breadth first order. null if the authorizable does not
+   *         exist.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public Set<String> getClosure(String id, AuthorizableManager authorizableManager)
+      throws AccessDeniedException, StorageClientException {
+    Closure closure = getCurrent(id);
+    if (closure != null) {
+      return closure.groups;
+    }
+    long start = generation.get();
+    Authorizable a = authorizableManager.findAuthorizable(id);
+    if (a == null) {
+      return null;
+    }
+    // every id visited, including the ones that did not resolve, so that creating a
+    // missing group also invalidates the closures that referenced it.
+    Set<String> seen = new HashSet<String>();
+    seen.add(id);
+    Set<String> groups = computeClosure(a, seen, authorizableManager, this);
+    closure = new Closure(groups, seen);
+    if (start == generation.get()) {
+      for (String s : seen) {
+        if (!markers.containsKey(s)) {
+          markers.put(s, Boolean.TRUE);
+        }
+      }
+      closures.put(id, closure);
+      if (start != generation.get()) {
+        // an invalidation raced with the registration above, don't trust the entry.
+        closures.remove(id);
+      }
+    }
+    return closure.groups;
+  }
+
+  /**
+   * Compute a closure without an index, for use before the index is available.
+   *
+   * @return the closure as {@link #getClosure(String, AuthorizableManager)} would, or
+   *         null if the authorizable does not exist.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public static Set<String> walk(String id, AuthorizableManager authorizableManager)
+      throws AccessDeniedException, StorageClientException {
+    Authorizable a = authorizableManager.findAuthorizable(id);
+    if (a == null) {
+      return null;
+    }
+    return computeClosure(a, new HashSet<String>(), authorizableManager, null);
+  }
+
+  /**
+   * @return the indexed closure if none of the ids it was built from has changed since.
+   */
+  private Closure getCurrent(String id) {
+    Closure closure = closures.get(id);
+    if (closure == null) {
+      return null;
+    }
+    for (String s : closure.seen) {
+      if (!markers.containsKey(s)) {
+        return null;
+      }
+    }
+    return closure;
+  }
+
+  private static Set<String> computeClosure(Authorizable authorizable, Set<String> seen,
+      AuthorizableManager authorizableManager, GroupMembershipIndex index) {
+    Set<String> closure = new LinkedHashSet<String>();
+    LinkedList<String> queue = new LinkedList<String>();
+    addAll(queue, seen, authorizable.getPrincipals());
+    while (!queue.isEmpty()) {
+      String pid = queue.removeFirst();
+      try {
+        Authorizable a = authorizableManager.findAuthorizable(pid);
+        if (a != null) {
+          closure.add(pid);
+          if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.Group) {
+            Closure known = index == null ? null : index.getCurrent(pid);
+            if (known != null) {
+              // the rest of this branch is already indexed.
+              seen.addAll(known.seen);
+              closure.addAll(known.groups);
+            } else {
+              addAll(queue, seen, a.getPrincipals());
+            }
+          }
+        }
+      } catch (AccessDeniedException e) {
+        LOGGER.debug(e.getMessage(), e);
+      } catch (StorageClientException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+    return Collections.unmodifiableSet(closure);
+  }
+
+  private static void addAll(LinkedList<String> queue, Set<String> seen,
+      String[] principals) {
+    if (principals != null) {
+      for (String p : principals) {
+        if (seen.add(p)) {
+          queue.add(p);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop the closure of the authorizable and of every authorizable that reached the
+   * authorizable through its groups, on every server in the cluster.
+   *
+   * @param id
+   *          the id of the authorizable that changed.
+   */
+  public void invalidate(String id) {
+    generation.incrementAndGet();
+    markers.remove(id);
+    closures.remove(id);
+  }
+
+  /**
+   * Drop every closure.
+   */
+  public void clear() {
+    generation.incrementAndGet();
+    markers.clear();
+    closures.clear();
+  }
+
+  /**
+   * @return the number of authorizables with an indexed closure.
+   */
+  public int size() {
+    return closures.list().size();
+  }
+
+  /**
+   * The groups of an authorizable and the ids they were computed from.
+   */
+  private static class Closure implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final Set<String> groups;
+    private final Set<String> seen;
+
+    Closure(Set<String> groups, Set<String> seen) {
+      this.groups = groups;
+      this.seen = seen;
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jackrabbit;
+
+import static org.sakaiproject.nakamura.api.lite.StoreListener.ADDED_TOPIC;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.DELETE_TOPIC;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.TOPIC_BASE;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.UPDATED_TOPIC;
+
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+/**
+ * Creates the {@link GroupMembershipIndex} and keeps it in step with the authorizable
+ * events emitted by the sparse AuthorizableManager. Registered in
+ * OSGI-INF/serviceComponents.xml, it registers itself for the events on activation.
+ */
+public class GroupMembershipIndexEventHandler implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(GroupMembershipIndexEventHandler.class);
+
+  static final String[] TOPICS = new String[] {
+      TOPIC_BASE + "authorizables/" + ADDED_TOPIC,
+      TOPIC_BASE + "authorizables/" + DELETE_TOPIC,
+      TOPIC_BASE + "authorizables/" + UPDATED_TOPIC };
+
+  private CacheManagerService cacheManagerService;
+
+  private ServiceRegistration registration;
+
+  /**
+   * Reused to look up the members of groups that change, null until first needed.
+   */
+  private Session session;
+
+  protected void activate(ComponentContext context) {
+    SparseRepositoryHolder.setGroupMembershipIndex(new GroupMembershipIndex(
+        cacheManagerService));
+    Dictionary<String, Object> props = new Hashtable<String, Object>();
+    props.put(EventConstants.EVENT_TOPIC, TOPICS);
+    registration = context.getBundleContext().registerService(
+        EventHandler.class.getName(), this, props);
+  }
+
+  protected void deactivate(ComponentContext context) {
+    if (registration != null) {
+      registration.unregister();
+      registration = null;
+    }
+    SparseRepositoryHolder.setGroupMembershipIndex(null);
+    synchronized (this) {
+      logout();
+    }
+  }
+
+  protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = null;
+  }
+
+  public void handleEvent(Event event) {
+    String id = (String) event.getProperty("path");
+    GroupMembershipIndex index = SparseRepositoryHolder.getGroupMembershipIndex();
+    if (id == null || index == null) {
+      return;
+    }
+    index.invalidate(id);
+    if (event.getTopic().endsWith(DELETE_TOPIC)) {
+      // the members of a deleted group reached it through their own principals.
+      return;
+    }
+    // removed members already depend on the group, but members that have just been added
+    // do not, so invalidate the current members of a group as well.
+    synchronized (this) {
+      try {
+        Session adminSession = getSession();
+        if (adminSession == null) {
+          index.clear();
+          return;
+        }
+        Authorizable authorizable = adminSession.getAuthorizableManager()
+            .findAuthorizable(id);
+        if (authorizable instanceof Group) {
+          for (String member : ((Group) authorizable).getMembers()) {
+            index.invalidate(member);
+          }
+        }
+      } catch (StorageClientException e) {
+        LOGGER.warn(e.getMessage(), e);
+        logout();
+        index.clear();
+      } catch (AccessDeniedException e) {
+        LOGGER.warn(e.getMessage(), e);
+        logout();
+        index.clear();
+      }
+    }
+  }
+
+  private Session getSession() throws ClientPoolException, StorageClientException,
+      AccessDeniedException {
+    if (session == null) {
+      Repository repository = SparseRepositoryHolder.getSparseRepositoryInstance();
+      if (repository != null) {
+        session = repository.loginAdministrative();
+      }
+    }
+    return session;
+  }
+
+  private void logout() {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.warn(e.getMessage(), e);
+      }
+      session = null;
+    }
+  }
+}
@@ -41,9 +41,9 @@ import org.slf4j.LoggerFactory;
 
 import java.security.Principal;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -139,12 +139,13 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   public PrincipalIterator getGroupMembership(final Principal principal) {
     final List<String> memberIds = new ArrayList<String>();
     try {
-      org.sakaiproject.nakamura.api.lite.authorizable.Authorizable a = authorizableManager
-          .findAuthorizable(principal.getName());
-      if (a == null) {
+      GroupMembershipIndex index = SparseRepositoryHolder.getGroupMembershipIndex();
+      Set<String> closure = index == null ? GroupMembershipIndex.walk(principal.getName(),
+          authorizableManager) : index.getClosure(principal.getName(), authorizableManager);
+      if (closure == null) {
         return PrincipalIteratorAdapter.EMPTY;
       }
-      Collections.addAll(memberIds, a.getPrincipals());
+      memberIds.addAll(closure);
     } catch (AccessDeniedException e) {
       LOGGER.debug(e.getMessage(), e);
     } catch (StorageClientException e) {
@@ -153,7 +154,6 @@ public class SparsePrincipalProvider implements PrincipalProvider {
     if (everyonePrincipal.isMember(principal)
         && !memberIds.contains(everyonePrincipal.getName())) {
       memberIds.add(everyonePrincipal.getName());
-      addToCache(principal);
     }
 
     return new PrincipalIteratorAdapter(new PreemptiveIterator<Principal>() {
@@ -165,35 +165,21 @@ public class SparsePrincipalProvider implements PrincipalProvider {
         while (p < memberIds.size()) {
           String id = memberIds.get(p);
           p++;
+          if (everyonePrincipal.getName().equals(id)) {
+            prin = everyonePrincipal;
+            return true;
+          }
+          prin = cache.get(id);
+          if (prin != null) {
+            return true;
+          }
           try {
-            if (everyonePrincipal.getName().equals(id)) {
-              prin = everyonePrincipal;
+            org.sakaiproject.nakamura.api.lite.authorizable.Authorizable a = authorizableManager
+                .findAuthorizable(id);
+            if (a != null) {
+              prin = new SparsePrincipal(a, this.getClass().getName());
+              addToCache(prin);
               return true;
-            } else {
-              org.sakaiproject.nakamura.api.lite.authorizable.Authorizable a = authorizableManager
-                  .findAuthorizable(id);
-              if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.Group) {
-                for (String pid : a.getPrincipals()) {
-                  if (!memberIds.contains(pid)) {
-                    memberIds.add(pid);
-                  }
-                }
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
-                  prin = new SparsePrincipal(a, this.getClass().getName());
-                  addToCache(prin);
-                }
-                return true;
-              } else if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.User) {
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
-                  prin = new SparsePrincipal(a, this.getClass().getName());
-                  addToCache(prin);
-                }
-                return true;
-              }
             }
           } catch (AccessDeniedException e) {
             LOGGER.info(e.getMessage(), e);
@@ -259,6 +245,7 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   }
 
   public void close() {
+    LOGGER.debug("Closing principal provider, cache stats {} ", cache);
     try {
       session.logout();
     } catch (ClientPoolException e) {
@@ -277,10 +264,10 @@ public class SparsePrincipalProvider implements PrincipalProvider {
    */
   public Principal getPrincipal(String principalName) {
     checkInitialized();
-    if (cache.containsKey(principalName)) {
-      return (Principal) cache.get(principalName);
+    Principal principal = cache.get(principalName);
+    if (principal != null) {
+      return principal;
     }
-    Principal principal = null;
     try {
       principal = providePrincipal(principalName);
     } catch (RepositoryException e) {
@@ -318,7 +305,7 @@ public class SparsePrincipalProvider implements PrincipalProvider {
    *          to be cached.
    */
   protected void addToCache(Principal principal) {
-
+    cache.put(principal.getName(), principal);
   }
 
   /**
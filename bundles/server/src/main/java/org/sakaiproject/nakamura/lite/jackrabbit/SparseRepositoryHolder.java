@@ -26,6 +26,7 @@ public class SparseRepositoryHolder {
   private static final Logger LOGGER = LoggerFactory
       .getLogger(SparseRepositoryHolder.class);
   private static Repository sparseRepositoryInstance;
+  private static volatile GroupMembershipIndex groupMembershipIndex;
 
   public static void setSparseRespository(Repository repository) {
     sparseRepositoryInstance = repository;
@@ -38,4 +39,16 @@ public class SparseRepositoryHolder {
     }
     return sparseRepositoryInstance;
   }
+
+  public static void setGroupMembershipIndex(GroupMembershipIndex index) {
+    groupMembershipIndex = index;
+  }
+
+  /**
+   * @return the group membership index shared by all the principal providers, null until
+   *         the cache manager is available.
+   */
+  public static GroupMembershipIndex getGroupMembershipIndex() {
+    return groupMembershipIndex;
+  }
 }
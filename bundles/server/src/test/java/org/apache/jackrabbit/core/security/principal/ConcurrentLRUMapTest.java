@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.principal;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ */
+public class ConcurrentLRUMapTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrentLRUMapTest.class);
+
+  @Test
+  public void testBounded() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(1000);
+    for (int i = 0; i < 10000; i++) {
+      map.put("key" + i, "value" + i);
+      Assert.assertTrue(map.size() <= 1000);
+    }
+    Assert.assertEquals(1000, map.size());
+    Assert.assertEquals(9000, map.getEvictionCount());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() {
+    // a single segment so the LRU order is exact.
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(3, 1);
+    map.put("a", "1");
+    map.put("b", "2");
+    map.put("c", "3");
+    Assert.assertEquals("1", map.get("a"));
+    map.put("d", "4");
+    Assert.assertTrue(map.containsKey("a"));
+    Assert.assertFalse(map.containsKey("b"));
+    Assert.assertTrue(map.containsKey("c"));
+    Assert.assertTrue(map.containsKey("d"));
+  }
+
+  @Test
+  public void testStatistics() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    map.put("a", "1");
+    map.get("a");
+    map.get("a");
+    map.get("b");
+    Assert.assertEquals(2, map.getHitCount());
+    Assert.assertEquals(1, map.getMissCount());
+    Assert.assertEquals(0, map.getEvictionCount());
+  }
+
+  @Test
+  public void testMapOperations() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(100);
+    map.put("a", "1");
+    Assert.assertEquals("1", map.put("a", "2"));
+    Assert.assertTrue(map.containsValue("2"));
+    Assert.assertFalse(map.containsValue("1"));
+    Assert.assertEquals(1, map.keySet().size());
+    Assert.assertEquals(1, map.values().size());
+    Assert.assertEquals(1, map.entrySet().size());
+    map.entrySet().iterator().next().setValue("3");
+    Assert.assertEquals("3", map.get("a"));
+    Assert.assertEquals("3", map.remove("a"));
+    Assert.assertTrue(map.isEmpty());
+    map.put("b", "1");
+    map.clear();
+    Assert.assertNull(map.get("b"));
+  }
+
+  @Test
+  public void testConcurrentThroughput() throws InterruptedException {
+    for (int size : new int[] { 10000, 100000 }) {
+      ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(size);
+      long ops = runConcurrent(map, size, 8, 200000);
+      Assert.assertTrue(map.size() <= size);
+      LOGGER.info("Size {} {} ", size, map);
+      LOGGER.info("Size {} ops/s {} ", size, ops);
+    }
+  }
+
+  /**
+   * Run a mixed get/put load with twice as many distinct keys as the map can hold, so
+   * that roughly half of the reads miss and eviction is exercised continuously.
+   *
+   * @return the number of operations per second over all threads.
+   */
+  private long runConcurrent(final ConcurrentLRUMap<String, String> map, final int size,
+      int nthreads, final int opsPerThread) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch end = new CountDownLatch(nthreads);
+    final AtomicLong failures = new AtomicLong();
+    for (int t = 0; t < nthreads; t++) {
+      final Random random = new Random(t);
+      Thread thread = new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < opsPerThread; i++) {
+              String key = String.valueOf(random.nextInt(size * 2));
+              if (map.get(key) == null) {
+                map.put(key, key);
+              }
+            }
+          } catch (Throwable e) {
+            LOGGER.error(e.getMessage(), e);
+            failures.incrementAndGet();
+          } finally {
+            end.countDown();
+          }
+        }
+      });
+      thread.start();
+    }
+    long t0 = System.nanoTime();
+    start.countDown();
+    end.await();
+    long elapsed = Math.max(1L, System.nanoTime() - t0);
+    Assert.assertEquals(0, failures.get());
+    return (long) nthreads * opsPerThread * 1000000000L / elapsed;
+  }
+}
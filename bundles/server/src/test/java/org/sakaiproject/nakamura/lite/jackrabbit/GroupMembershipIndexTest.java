@@ -0,0 +1,278 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jackrabbit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks the index against the recursive memberOf walk on random group graphs.
+ */
+public class GroupMembershipIndexTest {
+
+  private static final int USERS = 200;
+  private static final int GROUPS = 100;
+
+  private Map<String, Authorizable> authorizables;
+  private Map<String, String[]> principals;
+  private AuthorizableManager authorizableManager;
+
+  @Before
+  public void setUp() throws Exception {
+    authorizables = new HashMap<String, Authorizable>();
+    principals = new HashMap<String, String[]>();
+    authorizableManager = mock(AuthorizableManager.class);
+    when(authorizableManager.findAuthorizable(anyString())).thenAnswer(
+        new Answer<Authorizable>() {
+          public Authorizable answer(InvocationOnMock invocation) throws Throwable {
+            return authorizables.get(invocation.getArguments()[0]);
+          }
+        });
+  }
+
+  private void add(Class<? extends Authorizable> type, final String id) {
+    Authorizable a = mock(type);
+    when(a.getId()).thenReturn(id);
+    when(a.getPrincipals()).thenAnswer(new Answer<String[]>() {
+      public String[] answer(InvocationOnMock invocation) throws Throwable {
+        String[] p = principals.get(id);
+        return p == null ? new String[0] : p;
+      }
+    });
+    authorizables.put(id, a);
+  }
+
+  /**
+   * Build a random graph. Groups may contain other groups, including cycles, and some
+   * principals refer to groups that do not exist.
+   */
+  private void buildGraph(Random random) {
+    for (int i = 0; i < USERS; i++) {
+      add(User.class, "user" + i);
+      principals.put("user" + i, randomGroups(random, 4));
+    }
+    for (int i = 0; i < GROUPS; i++) {
+      add(Group.class, "group" + i);
+      principals.put("group" + i, randomGroups(random, 3));
+    }
+  }
+
+  private String[] randomGroups(Random random, int max) {
+    int n = random.nextInt(max + 1);
+    String[] groups = new String[n];
+    for (int i = 0; i < n; i++) {
+      // a few ids past the end do not exist.
+      groups[i] = "group" + random.nextInt(GROUPS + 5);
+    }
+    return groups;
+  }
+
+  /**
+   * The recursive walk the principal provider used before the index.
+   */
+  private Set<String> walk(String id) throws Exception {
+    Set<String> result = new HashSet<String>();
+    Authorizable start = authorizableManager.findAuthorizable(id);
+    List<String> memberIds = new ArrayList<String>();
+    Collections.addAll(memberIds, start.getPrincipals());
+    int p = 0;
+    while (p < memberIds.size()) {
+      String mid = memberIds.get(p++);
+      Authorizable a = authorizableManager.findAuthorizable(mid);
+      if (a instanceof Group) {
+        for (String pid : a.getPrincipals()) {
+          if (!memberIds.contains(pid)) {
+            memberIds.add(pid);
+          }
+        }
+        result.add(mid);
+      } else if (a instanceof User) {
+        result.add(mid);
+      }
+    }
+    return result;
+  }
+
+  private void assertMatchesWalk(GroupMembershipIndex index) throws Exception {
+    for (String id : authorizables.keySet()) {
+      Assert.assertEquals(id, walk(id),
+          new HashSet<String>(index.getClosure(id, authorizableManager)));
+    }
+  }
+
+  @Test
+  public void testRandomGraphs() throws Exception {
+    for (int seed = 0; seed < 20; seed++) {
+      setUp();
+      buildGraph(new Random(seed));
+      GroupMembershipIndex index = newIndex();
+      assertMatchesWalk(index);
+      // second pass is answered from the index.
+      assertMatchesWalk(index);
+      Assert.assertEquals(authorizables.size(), index.size());
+    }
+  }
+
+  @Test
+  public void testIncrementalChanges() throws Exception {
+    Random random = new Random(42);
+    buildGraph(random);
+    GroupMembershipIndex index = newIndex();
+    assertMatchesWalk(index);
+    for (int i = 0; i < 200; i++) {
+      String id;
+      if (random.nextBoolean()) {
+        id = "group" + random.nextInt(GROUPS + 5);
+        if (!authorizables.containsKey(id)) {
+          // create one of the missing groups.
+          add(Group.class, id);
+        }
+      } else {
+        id = "user" + random.nextInt(USERS);
+      }
+      principals.put(id, randomGroups(random, 3));
+      index.invalidate(id);
+      assertMatchesWalk(index);
+    }
+  }
+
+  @Test
+  public void testMissing() throws Exception {
+    GroupMembershipIndex index = newIndex();
+    Assert.assertNull(index.getClosure("nobody", authorizableManager));
+  }
+
+  @Test
+  public void testInvalidationReachesOtherServers() throws Exception {
+    add(User.class, "alice");
+    add(Group.class, "inner");
+    add(Group.class, "outer");
+    principals.put("alice", new String[] { "inner" });
+    principals.put("inner", new String[] { "outer" });
+
+    // two servers, removals on one are seen by the other.
+    Map<String, List<ClusterCache<Object>>> cluster = new HashMap<String, List<ClusterCache<Object>>>();
+    GroupMembershipIndex here = newIndex(cluster);
+    GroupMembershipIndex there = newIndex(cluster);
+    Assert.assertEquals(new HashSet<String>(Arrays.asList("inner", "outer")),
+        there.getClosure("alice", authorizableManager));
+
+    // outer leaves a new group, the change is handled on the other server.
+    add(Group.class, "top");
+    principals.put("outer", new String[] { "top" });
+    here.invalidate("outer");
+    Assert.assertEquals(new HashSet<String>(Arrays.asList("inner", "outer", "top")),
+        there.getClosure("alice", authorizableManager));
+  }
+
+  private GroupMembershipIndex newIndex() {
+    return newIndex(new HashMap<String, List<ClusterCache<Object>>>());
+  }
+
+  private GroupMembershipIndex newIndex(
+      final Map<String, List<ClusterCache<Object>>> cluster) {
+    CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    when(cacheManagerService.getCache(anyString(), any(CacheScope.class))).thenAnswer(
+        new Answer<Cache<Object>>() {
+          public Cache<Object> answer(InvocationOnMock invocation) throws Throwable {
+            String name = (String) invocation.getArguments()[0];
+            List<ClusterCache<Object>> peers = cluster.get(name);
+            if (peers == null) {
+              peers = new ArrayList<ClusterCache<Object>>();
+              cluster.put(name, peers);
+            }
+            ClusterCache<Object> cache = new ClusterCache<Object>(peers);
+            peers.add(cache);
+            return cache;
+          }
+        });
+    return new GroupMembershipIndex(cacheManagerService);
+  }
+
+  /**
+   * A cluster invalidated cache, puts stay local and removals reach every peer.
+   */
+  private static class ClusterCache<V> implements Cache<V> {
+    private final Map<String, V> map = new HashMap<String, V>();
+    private final List<ClusterCache<V>> peers;
+
+    ClusterCache(List<ClusterCache<V>> peers) {
+      this.peers = peers;
+    }
+
+    public V put(String key, V payload) {
+      return map.put(key, payload);
+    }
+
+    public boolean containsKey(String key) {
+      return map.containsKey(key);
+    }
+
+    public V get(String key) {
+      return map.get(key);
+    }
+
+    public void clear() {
+      for (ClusterCache<V> peer : peers) {
+        peer.map.clear();
+      }
+    }
+
+    public void remove(String key) {
+      for (ClusterCache<V> peer : peers) {
+        peer.map.remove(key);
+      }
+    }
+
+    public void removeChildren(String key) {
+      remove(key);
+    }
+
+    public List<V> list() {
+      return new ArrayList<V>(map.values());
+    }
+
+    public void checkCompatableScope(CacheScope scope) {
+    }
+  }
+}
@@ -179,10 +179,20 @@ public class SakaiSmtpServer implements SimpleMessageListener {
           String messageId = (String) createdMessage.getProperty("message-id");
           LOGGER.info("Created message {} at: {} ", messageId, messagePath);
 
-          // we might want alias expansion
+          // we might want alias expansion. Once the first copy is written the message is
+          // accepted, a retry by the sender would give the earlier recipients another
+          // copy, so a copy that fails is only logged.
           for (int i = 1; i < paths.size(); i++) {
             String targetPath = paths.get(i);
-            messagingService.copyMessageNode(createdMessage, targetPath, session);
+            try {
+              messagingService.copyMessageNode(createdMessage, targetPath, session);
+            } catch (StorageClientException e) {
+              LOGGER.error("Unable to copy message " + messageId + " to " + targetPath, e);
+            } catch (AccessDeniedException e) {
+              LOGGER.error("Unable to copy message " + messageId + " to " + targetPath, e);
+            } catch (IOException e) {
+              LOGGER.error("Unable to copy message " + messageId + " to " + targetPath, e);
+            }
           }
         }
 
@@ -192,8 +202,10 @@ public class SakaiSmtpServer implements SimpleMessageListener {
       throw new IOException("Message can not be written to repository");
     } catch (StorageClientException e) {
       LOGGER.error("Unable to write message", e);
+      throw new IOException("Message can not be written to repository");
     } catch (AccessDeniedException e) {
       LOGGER.error("Unable to write message", e);
+      throw new IOException("Message can not be written to repository");
     } finally {
       if (session != null) {
         try {
@@ -230,16 +242,44 @@ public class SakaiSmtpServer implements SimpleMessageListener {
             data));
         Content message = messagingService.create(session, mapProperties,
             (String) mapProperties.get("sakai:message-id"), storePath);
-        writeMultipartToNode(session, message, multipart);
+        boolean written = false;
+        try {
+          writeMultipartToNode(session, message, multipart);
+          written = true;
+        } finally {
+          if (!written) {
+            removePartialMessage(session, message);
+          }
+        }
         return message;
     } else {
       Content node = messagingService.create(session, mapProperties);
-      // set up to stream the body.
-      session.getContentManager().writeBody(node.getPath(), data);
+      boolean written = false;
+      try {
+        // set up to stream the body.
+        session.getContentManager().writeBody(node.getPath(), data);
+        written = true;
+      } finally {
+        if (!written) {
+          removePartialMessage(session, node);
+        }
+      }
       return node;
     }
   }
 
+  /**
+   * Remove a message whose body could not be written, so the sender's retry is the only
+   * copy the recipient gets.
+   */
+  private void removePartialMessage(Session session, Content message) {
+    try {
+      session.getContentManager().delete(message.getPath(), true);
+    } catch (Exception e) {
+      LOGGER.error("Unable to remove partially written message " + message.getPath(), e);
+    }
+  }
+
   private void writeMultipartToNode(Session session, Content message, MimeMultipart multipart) throws MessagingException, AccessDeniedException, StorageClientException, IOException
       {
     int count = multipart.getCount();
@@ -21,8 +21,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -34,6 +36,7 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
@@ -51,6 +54,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.ServerSocket;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.List;
@@ -187,6 +191,101 @@ public class SakaiSmtpServerTest {
     sakaiSmtpServer.deactivate(componentContext);
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAliasDeliveryCopiesToEachRecipient() throws Exception {
+    when(messagingService.expandAliases("physics")).thenReturn(
+        Arrays.asList("alice", "carol", "dave"));
+    when(messagingService.getFullPathToStore(eq("carol"), any(Session.class))).thenReturn(
+        "a:carol/message");
+    when(messagingService.getFullPathToStore(eq("dave"), any(Session.class))).thenReturn(
+        "a:dave/message");
+    InputStream dataStream = new ByteArrayInputStream(TESTMESSAGE_GOOD.getBytes("UTF-8"));
+    when(messagingService.create(any(Session.class), any(Map.class))).thenReturn(
+        myMessageNode);
+
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.contentRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+
+    sakaiSmtpServer.deliver("bob@localhost", "physics@localhost", dataStream);
+
+    verify(contentManager, times(1)).writeBody(eq("a:bob/message/messagenode"),
+        eq(dataStream));
+    // every other recipient gets a full copy, body and parts included.
+    verify(messagingService).copyMessageNode(myMessageNode, "a:carol/message",
+        adminSession);
+    verify(messagingService).copyMessageNode(myMessageNode, "a:dave/message",
+        adminSession);
+
+    sakaiSmtpServer.deactivate(componentContext);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testFailedCopyDoesNotRejectTheMessage() throws Exception {
+    when(messagingService.expandAliases("physics")).thenReturn(
+        Arrays.asList("alice", "carol", "dave"));
+    when(messagingService.getFullPathToStore(eq("carol"), any(Session.class))).thenReturn(
+        "a:carol/message");
+    when(messagingService.getFullPathToStore(eq("dave"), any(Session.class))).thenReturn(
+        "a:dave/message");
+    when(messagingService.create(any(Session.class), any(Map.class))).thenReturn(
+        myMessageNode);
+    Mockito.doThrow(new StorageClientException("Unit Test Generated Exception, its Ok"))
+        .when(messagingService).copyMessageNode(myMessageNode, "a:carol/message",
+            adminSession);
+
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.contentRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+    try {
+      // alice already has the message, a retry would give her a second one.
+      sakaiSmtpServer.deliver("bob@localhost", "physics@localhost",
+          new ByteArrayInputStream(TESTMESSAGE_GOOD.getBytes("UTF-8")));
+    } finally {
+      sakaiSmtpServer.deactivate(componentContext);
+    }
+    verify(messagingService).copyMessageNode(myMessageNode, "a:dave/message",
+        adminSession);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testFailedFirstWriteIsRemovedAndNotAccepted() throws Exception {
+    when(messagingService.expandAliases("physics")).thenReturn(
+        Arrays.asList("alice", "carol"));
+    when(messagingService.getFullPathToStore(eq("carol"), any(Session.class))).thenReturn(
+        "a:carol/message");
+    when(messagingService.create(any(Session.class), any(Map.class))).thenReturn(
+        myMessageNode);
+    Mockito.doThrow(new StorageClientException("Unit Test Generated Exception, its Ok"))
+        .when(contentManager).writeBody(eq("a:bob/message/messagenode"),
+            any(InputStream.class));
+
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.contentRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+    try {
+      sakaiSmtpServer.deliver("bob@localhost", "physics@localhost",
+          new ByteArrayInputStream(TESTMESSAGE_GOOD.getBytes("UTF-8")));
+      fail("Nobody has the message, the sender has to retry.");
+    } catch (IOException e) {
+      // expected
+    } finally {
+      sakaiSmtpServer.deactivate(componentContext);
+    }
+    verify(contentManager).delete("a:bob/message/messagenode", true);
+    verify(messagingService, never()).copyMessageNode(any(Content.class),
+        any(String.class), any(Session.class));
+  }
+
   @Test
   public void testSafePort() throws IOException {
     ServerSocket s1 = null;
@@ -20,11 +20,17 @@ package org.sakaiproject.nakamura.templates.velocity;
 import org.apache.commons.collections.ExtendedProperties;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.request.RequestParameter;
-import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.velocity.Template;
+import org.apache.velocity.context.AbstractContext;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.templates.TemplateNodeSource;
 import org.sakaiproject.nakamura.api.templates.TemplateService;
@@ -39,57 +45,97 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.jcr.Node;
 import javax.jcr.Repository;
 
 @Service
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 public class VelocityTemplateService implements TemplateService, TemplateNodeSource {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(VelocityTemplateService.class);
 
-  private VelocityEngine velocityEngine;
+  private static final String LOG_TAG = "templateprocessing";
+
+  @Property(intValue = VelocityTemplateService.DEFAULT_CACHE_SIZE, label = "Template cache size", description = "Number of parsed templates to keep for reuse.")
+  public static final String CACHE_SIZE = "template.cache.size";
+  public static final int DEFAULT_CACHE_SIZE = 200;
+
+  private RuntimeInstance runtime;
+
+  /**
+   * Parsed templates by their text, least recently used first.
+   */
+  private Map<String, Template> templates;
 
   @Reference
   protected Repository repository;
 
+  /**
+   * {@inheritDoc}
+   *
+   * The template is parsed the first time it is seen and reused after that, so repeated
+   * renders of the same text only merge the parameters.
+   *
+   * @see org.sakaiproject.nakamura.api.templates.TemplateService#evaluateTemplate(java.util.Map,
+   *      java.lang.String)
+   */
   public String evaluateTemplate(Map<String, ? extends Object> parameters, String template) {
-    return evaluateTemplate(parameters, new StringReader(template));
+    Template parsed;
+    synchronized (templates) {
+      parsed = templates.get(template);
+    }
+    if (parsed == null) {
+      parsed = parse(new StringReader(template));
+      synchronized (templates) {
+        templates.put(template, parsed);
+      }
+    }
+    return merge(parameters, parsed);
   }
 
   public String evaluateTemplate(Map<String, ? extends Object> parameters, Reader templateReader) {
-    Map<String, String> sanitizedParameters = sanitize(parameters);
-    VelocityContext context = new VelocityContext(sanitizedParameters);
+    return merge(parameters, parse(templateReader));
+  }
+
+  private Template parse(Reader templateReader) {
+    try {
+      Template template = new Template();
+      template.setRuntimeServices(runtime);
+      template.setName(LOG_TAG);
+      template.setData(runtime.parse(templateReader, LOG_TAG));
+      template.initDocument();
+      return template;
+    } catch (ParseException e) {
+      throw new ParseErrorException(e);
+    }
+  }
+
+  private String merge(Map<String, ? extends Object> parameters, Template template) {
     // combine template with parameter map
     StringWriter templateWriter = new StringWriter();
     try {
-      velocityEngine.evaluate(context, templateWriter, "templateprocessing",
-          templateReader);
+      template.merge(new ParameterContext(parameters), templateWriter);
     } catch (IOException e) {
       LOGGER.error(e.getMessage(), e);
     }
     return templateWriter.toString();
   }
 
-  private Map<String,String> sanitize(Map<String, ? extends Object> parameters) {
-    Map<String,String> rv = new HashMap<String,String>();
-    for (Entry<String, ? extends Object> param : parameters.entrySet()) {
-      Object value = param.getValue();
-      String key = param.getKey();
-      if (value instanceof RequestParameter) {
-        rv.put(key, String.valueOf((RequestParameter) value));
-      } else if (value instanceof String[]) {
-        String[] values = (String[])value;
-        rv.put(key, values[0]);
-      } else {
-        rv.put(key, String.valueOf(value));
-      }
+  private static String sanitize(Object value) {
+    if (value instanceof RequestParameter) {
+      return String.valueOf((RequestParameter) value);
+    } else if (value instanceof String[]) {
+      String[] values = (String[]) value;
+      return values[0];
+    } else {
+      return String.valueOf(value);
     }
-    return rv;
   }
 
   public Collection<String> missingTerms(String template) {
@@ -139,21 +185,82 @@ public class VelocityTemplateService implements TemplateService, TemplateNodeSou
   }
 
   protected void activate(ComponentContext ctx) throws Exception {
-    velocityEngine = new VelocityEngine();
-    velocityEngine.setProperty(VelocityEngine.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
+    final int cacheSize = PropertiesUtil.toInteger(ctx.getProperties().get(CACHE_SIZE),
+        DEFAULT_CACHE_SIZE);
+    templates = new LinkedHashMap<String, Template>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+        return size() > cacheSize;
+      }
+    };
+
+    runtime = new RuntimeInstance();
+    runtime.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
         this.getClass()));
 
-    velocityEngine.setProperty(VelocityEngine.RESOURCE_LOADER, "jcr");
-    velocityEngine.setProperty("jcr.resource.loader.class",
+    runtime.setProperty(RuntimeConstants.RESOURCE_LOADER, "jcr");
+    runtime.setProperty("jcr.resource.loader.class",
         JcrResourceLoader.class.getName());
     ExtendedProperties configuration = new ExtendedProperties();
     configuration.addProperty("jcr.resource.loader.resourceSource", this);
-    velocityEngine.setExtendedProperties(configuration);
-    velocityEngine.init();
+    runtime.setConfiguration(configuration);
+    runtime.init();
   }
 
   public Node getNode() {
     // Velocity calls this, but it doesn't seem to make a difference in practice
     return null;
   }
+
+  /**
+   * A context over the caller's parameters that sanitizes each value as the template asks
+   * for it, rather than copying the whole map up front. Values the template sets are kept
+   * apart so the parameters are left untouched.
+   */
+  private static class ParameterContext extends AbstractContext {
+    private final Map<String, ? extends Object> parameters;
+    private final Map<String, Object> local = new HashMap<String, Object>();
+
+    ParameterContext(Map<String, ? extends Object> parameters) {
+      this.parameters = parameters;
+    }
+
+    @Override
+    public Object internalGet(String key) {
+      if (local.containsKey(key)) {
+        return local.get(key);
+      }
+      if (parameters.containsKey(key)) {
+        return sanitize(parameters.get(key));
+      }
+      return null;
+    }
+
+    @Override
+    public Object internalPut(String key, Object value) {
+      Object previous = internalGet(key);
+      local.put(key, value);
+      return previous;
+    }
+
+    @Override
+    public boolean internalContainsKey(Object key) {
+      return local.containsKey(key) || parameters.containsKey(key);
+    }
+
+    @Override
+    public Object[] internalGetKeys() {
+      Set<Object> keys = new HashSet<Object>(parameters.keySet());
+      keys.addAll(local.keySet());
+      return keys.toArray();
+    }
+
+    @Override
+    public Object internalRemove(Object key) {
+      // parameters can't be removed, only values the template has set.
+      return local.remove(key);
+    }
+  }
 }
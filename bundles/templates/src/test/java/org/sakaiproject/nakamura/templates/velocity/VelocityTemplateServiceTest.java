@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.templates.velocity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+public class VelocityTemplateServiceTest {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(VelocityTemplateServiceTest.class);
+
+  private static final String EMAIL = "Hi ${name},\n\n"
+      + "#if ($sender)${sender} has sent you a message#else You have a new message#end"
+      + " in ${site}.\n\nSubject: ${subject}\n\n${body}\n\n"
+      + "You can read it at ${link}\n\n"
+      + "To change how often you are sent messages, visit ${preferences}.\n";
+
+  private static final int RENDERS = 5000;
+
+  private VelocityTemplateService service;
+  private Map<String, Object> parameters;
+
+  @Before
+  public void setUp() throws Exception {
+    service = new VelocityTemplateService();
+    ComponentContext ctx = mock(ComponentContext.class);
+    when(ctx.getProperties()).thenReturn(new Hashtable<String, Object>());
+    service.activate(ctx);
+
+    parameters = new HashMap<String, Object>();
+    parameters.put("name", "Alice");
+    parameters.put("sender", new String[] { "Bob", "Carol" });
+    parameters.put("site", "Physics 101");
+    parameters.put("subject", "Lab notes");
+    parameters.put("body", "The notes for this week are attached.");
+    parameters.put("link", "http://localhost:8080/~alice/inbox");
+    parameters.put("preferences", "http://localhost:8080/me");
+  }
+
+  @Test
+  public void testCachedTemplateRendersEachCall() throws Exception {
+    String first = service.evaluateTemplate(parameters, EMAIL);
+    assertTrue(first.startsWith("Hi Alice,"));
+    assertTrue(first.contains("Bob has sent you a message in Physics 101."));
+
+    parameters.put("name", "Dave");
+    parameters.remove("sender");
+    String second = service.evaluateTemplate(parameters, EMAIL);
+    assertTrue(second.startsWith("Hi Dave,"));
+    assertTrue(second.contains("You have a new message in Physics 101."));
+    assertEquals(second, service.evaluateTemplate(parameters, new StringReader(EMAIL)));
+  }
+
+  @Test
+  public void testSetDoesNotChangeParameters() throws Exception {
+    Map<String, Object> params = new HashMap<String, Object>();
+    params.put("a", "1");
+    assertEquals("2 2", service.evaluateTemplate(params, "#set($a = \"2\")$a ${a}"));
+    assertEquals("1", params.get("a"));
+    assertEquals("1", service.evaluateTemplate(params, "$a"));
+  }
+
+  @Test
+  public void testRenderingIsFasterThanParsing() throws Exception {
+    VelocityEngine engine = new VelocityEngine();
+    engine.init();
+
+    // warm up both paths.
+    for (int i = 0; i < RENDERS / 10; i++) {
+      evaluate(engine);
+      service.evaluateTemplate(parameters, EMAIL);
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < RENDERS; i++) {
+      evaluate(engine);
+    }
+    long parsing = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < RENDERS; i++) {
+      service.evaluateTemplate(parameters, EMAIL);
+    }
+    long cached = System.nanoTime() - start;
+
+    LOGGER.info("Rendered {} emails in {} ms parsing each time, {} ms from the cache",
+        new Object[] { RENDERS, parsing / 1000000, cached / 1000000 });
+    assertTrue(cached < parsing);
+  }
+
+  private String evaluate(VelocityEngine engine) throws Exception {
+    Map<String, String> copy = new HashMap<String, String>();
+    for (Map.Entry<String, Object> param : parameters.entrySet()) {
+      Object value = param.getValue();
+      copy.put(param.getKey(), value instanceof String[] ? ((String[]) value)[0]
+          : String.valueOf(value));
+    }
+    StringWriter writer = new StringWriter();
+    engine.evaluate(new VelocityContext(copy), writer, "benchmark", new StringReader(EMAIL));
+    return writer.toString();
+  }
+}
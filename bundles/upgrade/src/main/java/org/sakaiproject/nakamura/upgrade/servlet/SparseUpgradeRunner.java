@@ -0,0 +1,529 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.upgrade.servlet;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.jcr.ContentReloaderService;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Feedback;
+import org.sakaiproject.nakamura.api.lite.MigrateContentService;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the sparse upgrade in the background rather than inside the request that asks
+ * for it. The upgrade is a sequence of phases and the state of the run, including the
+ * phase it is in and its progress, is checkpointed to {@link #STATE_PATH}.
+ *
+ * Only one server in the cluster runs the upgrade. The server that runs it holds a lease
+ * in the state, its id and a heartbeat that is renewed at every checkpoint and every time
+ * this component is run by the scheduler. A run that is paused, because the server
+ * running it stopped, or whose heartbeat is older than {@link #LEASE_TIMEOUT}, because
+ * the server died, is picked up again at the phase it was in by the first server to see
+ * it. Sparse has no conditional write, so a lease is confirmed by reading it back, and a
+ * server that finds another server's lease at a checkpoint stops.
+ */
+@Component(immediate = true)
+@Service(value = { SparseUpgradeRunner.class, Runnable.class })
+@Properties(value = {
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_CONCURRENT, boolValue = false),
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_PERIOD, longValue = 10L) })
+public class SparseUpgradeRunner implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SparseUpgradeRunner.class);
+
+  static final String STATE_PATH = "/var/upgrade/sparse";
+
+  static final String STATUS = "status";
+  static final String PHASE = "phase";
+  static final String DRY_RUN = "dryRun";
+  static final String LIMIT = "limit";
+  static final String REINDEX_ALL = "reindexAll";
+  static final String STARTED = "started";
+  static final String UPDATED = "updated";
+  static final String DONE = "done";
+  static final String TO_DO = "toDo";
+  static final String ROWS_PER_SECOND = "rowsPerSecond";
+  static final String MESSAGE = "message";
+  static final String OWNER = "owner";
+  static final String LEASE = "lease";
+  static final String HEARTBEAT = "heartbeat";
+
+  static final String RUNNING = "running";
+  static final String PAUSED = "paused";
+  static final String FINISHED = "finished";
+  static final String FAILED = "failed";
+
+  /**
+   * How often progress within the migration phase is checkpointed.
+   */
+  private static final long CHECKPOINT_INTERVAL = 10000L;
+
+  /**
+   * How long a running upgrade can go without a heartbeat before another server takes it
+   * over.
+   */
+  static final long LEASE_TIMEOUT = 60000L;
+
+  /**
+   * How long deactivation waits for the upgrade thread to stop.
+   */
+  private static final long JOIN_TIMEOUT = 30000L;
+
+  /**
+   * The phases of an upgrade, in the order they run.
+   */
+  enum Phase {
+    MIGRATE, TAGS, RELOAD, REINDEX, COMPLETE
+  }
+
+  @Reference
+  protected MigrateContentService migrationService;
+
+  @Reference
+  protected TagMigrator tagMigrator;
+
+  @Reference
+  protected ContentReloaderService reloaderService;
+
+  @Reference
+  protected Repository repository;
+
+  @Reference
+  protected ClusterTrackingService clusterTrackingService;
+
+  private ExecutorService executor;
+
+  /**
+   * The state of the current or last run, as checkpointed.
+   */
+  private volatile Map<String, Object> state = ImmutableMap.of();
+
+  /**
+   * The lease held by the upgrade running on this server, null if it isn't running one.
+   */
+  private volatile String lease;
+
+  private volatile long done;
+  private volatile long toDo;
+  private volatile long phaseStarted;
+
+  @Activate
+  protected void activate(Map<?, ?> props) throws Exception {
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "SparseUpgrade");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    run();
+  }
+
+  @Deactivate
+  protected void deactivate(Map<?, ?> props) {
+    if (executor != null) {
+      // the upgrade pauses when interrupted, and is resumed by the next server to see it.
+      executor.shutdownNow();
+      try {
+        if (!executor.awaitTermination(JOIN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+          LOGGER.warn("The sparse upgrade did not stop, it stops at its next checkpoint "
+              + "once another server holds the lease");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      executor = null;
+    }
+  }
+
+  /**
+   * Renews the lease of the upgrade running on this server, or resumes an upgrade that
+   * is paused or whose server has stopped renewing its lease.
+   *
+   * {@inheritDoc}
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      String current = lease;
+      if (current != null) {
+        checkpoint(session, ImmutableMap.<String, Object> of(), current);
+      } else {
+        resume(session);
+      }
+    } catch (LeaseLostException e) {
+      LOGGER.info(e.getMessage());
+    } catch (Exception e) {
+      LOGGER.warn("Unable to check the sparse upgrade: {}", e.getMessage());
+    } finally {
+      logout(session);
+    }
+  }
+
+  /**
+   * Start an upgrade in the background.
+   *
+   * @return false if an upgrade is already running.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public synchronized boolean start(boolean dryRun, int limit, boolean reindexAll)
+      throws StorageClientException, AccessDeniedException {
+    if (lease != null || executor == null) {
+      return false;
+    }
+    Session session = repository.loginAdministrative();
+    try {
+      Map<String, Object> saved = readState(session);
+      if (PAUSED.equals(saved.get(STATUS))
+          || (RUNNING.equals(saved.get(STATUS)) && !isExpired(saved))) {
+        return false;
+      }
+      Map<String, Object> initial = new HashMap<String, Object>();
+      initial.put(PHASE, Phase.MIGRATE.name());
+      initial.put(DRY_RUN, dryRun);
+      initial.put(LIMIT, limit);
+      initial.put(REINDEX_ALL, reindexAll);
+      initial.put(STARTED, System.currentTimeMillis());
+      initial.put(DONE, 0L);
+      initial.put(TO_DO, 0L);
+      initial.put(MESSAGE, "");
+      return acquire(session, initial, Phase.MIGRATE);
+    } finally {
+      logout(session);
+    }
+  }
+
+  /**
+   * @return the checkpointed state of the current or last upgrade, with the progress of
+   *         the phase that is running.
+   */
+  public Map<String, Object> getStatus() {
+    Map<String, Object> status = new HashMap<String, Object>();
+    for (Map.Entry<String, Object> property : state.entrySet()) {
+      // leave out the internal properties of the state content.
+      if (!property.getKey().startsWith("_") && !LEASE.equals(property.getKey())) {
+        status.put(property.getKey(), property.getValue());
+      }
+    }
+    if (lease != null) {
+      long elapsed = Math.max(1, System.currentTimeMillis() - phaseStarted);
+      status.put(DONE, done);
+      status.put(TO_DO, toDo);
+      status.put(ROWS_PER_SECOND, done * 1000 / elapsed);
+    }
+    return status;
+  }
+
+  private synchronized void resume(Session session) throws StorageClientException,
+      AccessDeniedException {
+    if (lease != null || executor == null) {
+      return;
+    }
+    Map<String, Object> saved = readState(session);
+    boolean paused = PAUSED.equals(saved.get(STATUS));
+    if (paused || (RUNNING.equals(saved.get(STATUS)) && isExpired(saved))) {
+      Phase phase = Phase.valueOf((String) saved.get(PHASE));
+      if (acquire(session, new HashMap<String, Object>(), phase)) {
+        LOGGER.info("Resuming the sparse upgrade at {}, it was {} on {}", new Object[] {
+            phase, paused ? PAUSED : "abandoned", saved.get(OWNER) });
+      }
+    }
+  }
+
+  /**
+   * Take the lease on the upgrade and run it from a phase.
+   *
+   * @return true if this server now holds the lease.
+   */
+  private boolean acquire(Session session, Map<String, Object> properties, Phase from)
+      throws StorageClientException, AccessDeniedException {
+    String newLease = UUID.randomUUID().toString();
+    properties.put(STATUS, RUNNING);
+    properties.put(OWNER, clusterTrackingService.getCurrentServerId());
+    properties.put(LEASE, newLease);
+    checkpoint(session, properties, null);
+    // another server may have claimed it at the same time, the last write wins.
+    if (!newLease.equals(readState(session).get(LEASE))) {
+      return false;
+    }
+    lease = newLease;
+    submit(from, newLease);
+    return true;
+  }
+
+  private void submit(final Phase from, final String runLease) {
+    executor.execute(new Runnable() {
+      public void run() {
+        upgrade(from, runLease);
+      }
+    });
+  }
+
+  private void upgrade(Phase from, String runLease) {
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      boolean dryRun = (Boolean) state.get(DRY_RUN);
+      boolean reindexAll = (Boolean) state.get(REINDEX_ALL);
+      for (Phase phase = from; phase != Phase.COMPLETE; phase = Phase.values()[phase
+          .ordinal() + 1]) {
+        checkpoint(session, ImmutableMap.<String, Object> of(PHASE, phase.name(), DONE,
+            0L, TO_DO, 0L), runLease);
+        done = 0;
+        toDo = 0;
+        phaseStarted = System.currentTimeMillis();
+        LOGGER.info("Sparse upgrade {} starting, dryRun = {}, reindexAll = {}",
+            new Object[] { phase, dryRun, reindexAll });
+        runPhase(session, phase, dryRun, reindexAll, runLease);
+        if (Thread.currentThread().isInterrupted()) {
+          pause(session, phase, runLease);
+          return;
+        }
+      }
+      checkpoint(session, ImmutableMap.<String, Object> of(STATUS, FINISHED, PHASE,
+          Phase.COMPLETE.name(), LEASE, ""), runLease);
+      LOGGER.info("Sparse upgrade finished");
+    } catch (LeaseLostException e) {
+      LOGGER.info(e.getMessage());
+    } catch (Exception e) {
+      if (isInterruption(e)) {
+        pause(session, Phase.valueOf((String) state.get(PHASE)), runLease);
+        return;
+      }
+      LOGGER.error("Got exception processing sparse upgrade", e);
+      try {
+        if (session != null) {
+          checkpoint(session, ImmutableMap.<String, Object> of(STATUS, FAILED, MESSAGE,
+              String.valueOf(e.getMessage()), LEASE, ""), runLease);
+        }
+      } catch (Exception ex) {
+        LOGGER.error("Unable to record the failed sparse upgrade", ex);
+      }
+    } finally {
+      synchronized (this) {
+        if (runLease.equals(lease)) {
+          lease = null;
+        }
+      }
+      logout(session);
+    }
+  }
+
+  /**
+   * Record that the upgrade was stopped and give up the lease, so that the next server
+   * to see it resumes it without waiting for the lease to expire.
+   */
+  private void pause(Session session, Phase phase, String runLease) {
+    LOGGER.info("Sparse upgrade stopped during {}, it will resume there", phase);
+    // clear the interrupt so the state can still be written.
+    boolean interrupted = Thread.interrupted();
+    try {
+      if (session != null) {
+        checkpoint(session, ImmutableMap.<String, Object> of(STATUS, PAUSED, LEASE, ""),
+            runLease);
+      }
+    } catch (LeaseLostException e) {
+      LOGGER.info(e.getMessage());
+    } catch (Exception e) {
+      LOGGER.warn("Unable to record the paused sparse upgrade, it resumes once its lease "
+          + "expires: {}", e.getMessage());
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private boolean isInterruption(Throwable e) {
+    if (Thread.currentThread().isInterrupted()) {
+      return true;
+    }
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof InterruptedException || t instanceof InterruptedIOException
+          || t instanceof ClosedByInterruptException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isExpired(Map<String, Object> saved) {
+    Object heartbeat = saved.get(HEARTBEAT);
+    return !(heartbeat instanceof Long)
+        || System.currentTimeMillis() - (Long) heartbeat > LEASE_TIMEOUT;
+  }
+
+  private void runPhase(Session session, Phase phase, boolean dryRun, boolean reindexAll,
+      String runLease) throws Exception {
+    switch (phase) {
+    case MIGRATE:
+      // rows the migrators have already converted are left as they are, so a resumed
+      // migration only does the work that remains.
+      migrationService.migrate(dryRun, (Integer) state.get(LIMIT), reindexAll,
+          getFeedback(session, runLease));
+      break;
+    case TAGS:
+      // migrate tags from JCR to Sparse
+      tagMigrator.migrate(getFeedback(session, runLease), dryRun, reindexAll);
+      break;
+    case RELOAD:
+      // reload content for all OSGi bundles
+      if (!dryRun) {
+        reloaderService.reloadContent();
+      }
+      break;
+    case REINDEX:
+      if (reindexAll && !dryRun) {
+        session.getContentManager().triggerRefreshAll();
+        session.getAuthorizableManager().triggerRefreshAll();
+      }
+      break;
+    default:
+      break;
+    }
+  }
+
+  private Feedback getFeedback(final Session session, final String runLease) {
+    return new Feedback() {
+      private long lastCheckpoint = System.currentTimeMillis();
+
+      public void log(String format, Object... params) {
+        LOGGER.info(MessageFormat.format(format, params));
+      }
+
+      public void exception(Throwable e) {
+        LOGGER.warn("An exception occurred while migrating: {}: {}", e.getClass()
+            .getName(), e.getMessage());
+      }
+
+      public void newLogFile(File currentFile) {
+        LOGGER.info("Opening New Upgrade Log File {}  ", currentFile.getAbsoluteFile());
+      }
+
+      public void progress(boolean dryRun, long done, long toDo) {
+        SparseUpgradeRunner.this.done = done;
+        SparseUpgradeRunner.this.toDo = toDo;
+        long now = System.currentTimeMillis();
+        if (now - lastCheckpoint > CHECKPOINT_INTERVAL) {
+          lastCheckpoint = now;
+          try {
+            checkpoint(session, ImmutableMap.<String, Object> of(DONE, done, TO_DO, toDo),
+                runLease);
+          } catch (StorageClientException e) {
+            LOGGER.warn("Unable to checkpoint the sparse upgrade: {}", e.getMessage());
+          } catch (AccessDeniedException e) {
+            LOGGER.warn("Unable to checkpoint the sparse upgrade: {}", e.getMessage());
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Merge some properties into the saved state.
+   *
+   * @param runLease
+   *          the lease the caller holds, the state is only written if it still holds it.
+   *          null to write regardless.
+   * @throws LeaseLostException
+   *           if another server holds the lease.
+   */
+  private synchronized void checkpoint(Session session, Map<String, Object> properties,
+      String runLease) throws StorageClientException, AccessDeniedException {
+    ContentManager contentManager = session.getContentManager();
+    Content saved = contentManager.get(STATE_PATH);
+    if (saved == null) {
+      saved = new Content(STATE_PATH, new HashMap<String, Object>());
+    }
+    if (runLease != null && !runLease.equals(saved.getProperty(LEASE))) {
+      state = ImmutableMap.copyOf(saved.getProperties());
+      throw new LeaseLostException(saved.getProperty(OWNER));
+    }
+    for (Map.Entry<String, Object> property : properties.entrySet()) {
+      saved.setProperty(property.getKey(), property.getValue());
+    }
+    long now = System.currentTimeMillis();
+    saved.setProperty(UPDATED, now);
+    saved.setProperty(HEARTBEAT, now);
+    contentManager.update(saved);
+    state = ImmutableMap.copyOf(contentManager.get(STATE_PATH).getProperties());
+  }
+
+  private Map<String, Object> readState(Session session) throws StorageClientException,
+      AccessDeniedException {
+    Content saved = session.getContentManager().get(STATE_PATH);
+    if (saved != null) {
+      state = ImmutableMap.copyOf(saved.getProperties());
+    }
+    return state;
+  }
+
+  private void logout(Session session) {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.error(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Thrown at a checkpoint of an upgrade whose lease another server has taken.
+   */
+  static class LeaseLostException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    LeaseLostException(Object owner) {
+      super("The sparse upgrade is now run by " + owner + ", stopping here");
+    }
+  }
+}
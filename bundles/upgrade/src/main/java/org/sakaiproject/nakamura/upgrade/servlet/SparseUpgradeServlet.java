@@ -24,26 +24,25 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
-import org.sakaiproject.nakamura.api.jcr.ContentReloaderService;
-import org.sakaiproject.nakamura.api.lite.Feedback;
-import org.sakaiproject.nakamura.api.lite.MigrateContentService;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.IOException;
-import java.text.MessageFormat;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -51,15 +50,17 @@ import javax.servlet.http.HttpServletResponse;
 @ServiceDocumentation(name = "Sparse Upgrade Servlet", okForVersion = "1.2",
         description = "Upgrades data stored in sparsemapcontent storage layer by running all the PropertyMigrator instances " +
                 "that are registered. Note that the upgrade only works for JDBC storage clients. The upgrade may take a long " +
-                "time to run; progress of the upgrade gets written to the response every so often and can be seen in realtime if " +
-                "your client supports buffered HTTP requests. Use -N option in curl to enable this. Your system log will have " +
-                "more detail on the progress of the upgrade.",
+                "time to run, so it runs in the background: POST starts it and GET reports its status and progress. The " +
+                "upgrade runs on one server in the cluster and checkpoints the phase it is in. An upgrade cut short by a " +
+                "restart resumes in that phase, on the first server to see it. Your " +
+                "system log will have more detail on the progress of the upgrade.",
         shortDescription = "Upgrades data stored in sparsemapcontent",
         bindings = @ServiceBinding(type = BindingType.PATH, bindings = "/system/sparseupgrade"),
-        methods = @ServiceMethod(name = "POST",
-                description = {"Upgrades data stored in sparsemapcontent",
+        methods = {
+            @ServiceMethod(name = "POST",
+                description = {"Starts upgrading data stored in sparsemapcontent",
                         "Example<br>" +
-                                "<pre>curl -N -u admin:password -e http://localhost:8080 -FdryRun=false -FreindexAll=true -Flimit=5000 " +
+                                "<pre>curl -u admin:password -e http://localhost:8080 -FdryRun=false -FreindexAll=true -Flimit=5000 " +
                                 "http://localhost:8080/system/sparseupgrade</pre>"},
                 parameters = {
                         @ServiceParameter(name = "dryRun", description = "Whether this is a dry run or not; in dry run, no data is actually " +
@@ -70,10 +71,20 @@ import javax.servlet.http.HttpServletResponse;
                                 "This will also force reindexing of every row in Solr. Makes the upgrade take longer. Default=false.")
                 },
                 response = {
-                        @ServiceResponse(code = 200, description = "Success, the upgrade ran with no issues."),
-                        @ServiceResponse(code = 500, description = "Failure with HTML explanation.")}
-        ))
-@SlingServlet(paths = {"/system/sparseupgrade"}, generateComponent = true, generateService = true, methods = {"POST"})
+                        @ServiceResponse(code = 202, description = "The upgrade has started, the body contains its status as json."),
+                        @ServiceResponse(code = 409, description = "An upgrade is already running."),
+                        @ServiceResponse(code = 500, description = "Failure with HTML explanation.")}),
+            @ServiceMethod(name = "GET",
+                description = {"Reports the status of the current or last upgrade: its status (running, paused, finished or " +
+                        "failed), the server running it, its phase, the rows done and to do in the phase and the rows " +
+                        "per second.",
+                        "Example<br>" +
+                                "<pre>curl -u admin:password http://localhost:8080/system/sparseupgrade</pre>"},
+                response = {
+                        @ServiceResponse(code = 200, description = "The body contains the upgrade status as json."),
+                        @ServiceResponse(code = 500, description = "Failure with HTML explanation.")})
+        })
+@SlingServlet(paths = {"/system/sparseupgrade"}, generateComponent = true, generateService = true, methods = {"GET", "POST"})
 public class SparseUpgradeServlet extends SlingAllMethodsServlet {
 
   private static final long serialVersionUID = 5989265499956848433L;
@@ -81,23 +92,28 @@ public class SparseUpgradeServlet extends SlingAllMethodsServlet {
   private static final Logger LOGGER = LoggerFactory.getLogger(SparseUpgradeServlet.class);
 
   @Reference
-  private MigrateContentService migrationService;
-
-  @Reference
-  private TagMigrator tagMigrator;
+  protected SparseUpgradeRunner upgradeRunner;
 
-  @Reference
-  private ContentReloaderService reloaderService;
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws ServletException, IOException {
+    try {
+      if (!isAdmin(request)) {
+        response.sendError(HttpServletResponse.SC_FORBIDDEN, "You must be an admin to see upgrades");
+        return;
+      }
+      writeStatus(response);
+    } catch (Exception e) {
+      LOGGER.error("Got exception reporting sparse upgrade", e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
+  }
 
   @Override
   protected void doPost(SlingHttpServletRequest request, final SlingHttpServletResponse response) throws ServletException, IOException {
     try {
 
       // make sure user's an admin
-      Session currentSession = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
-      AuthorizableManager authorizableManager = currentSession.getAuthorizableManager();
-      User currentUser = (User) authorizableManager.findAuthorizable(currentSession.getUserId());
-      if (!currentUser.isAdmin()) {
+      if (!isAdmin(request)) {
         response.sendError(HttpServletResponse.SC_FORBIDDEN, "You must be an admin to run upgrades");
         return;
       }
@@ -120,30 +136,14 @@ public class SparseUpgradeServlet extends SlingAllMethodsServlet {
         limit = Integer.parseInt(limitParam.getString());
       }
 
-      String msg = "About to call migration service with dryRun = " + dryRun + "; limit = " + limit
-              + "; reindexAll = " + reindexAll + "; check your server log for more detailed information.";
-      writeToResponse(msg, response);
-      LOGGER.info(msg);
-
-      // do the actual migration
-      this.migrationService.migrate(dryRun, limit, reindexAll, getFeedback(response));
-
-      // migrate tags from JCR to Sparse
-      this.tagMigrator.migrate(response, dryRun, reindexAll);
-
-      // reload content for all OSGi bundles
-      if (!dryRun) {
-        LOGGER.info("Reloading all content from OSGi bundles");
-        this.reloaderService.reloadContent();
-      }
-
-      // reindex solr if necessary
-      if (reindexAll && !dryRun) {
-        msg = "Reindexing all content and authorizables in Solr...";
-        writeToResponse(msg, response);
-        LOGGER.info(msg);
-        reindexSolr(request);
+      if (!upgradeRunner.start(dryRun, limit, reindexAll)) {
+        response.sendError(HttpServletResponse.SC_CONFLICT, "An upgrade is already running");
+        return;
       }
+      LOGGER.info("Started sparse upgrade with dryRun = {}; limit = {}; reindexAll = {}",
+          new Object[] { dryRun, limit, reindexAll });
+      response.setStatus(HttpServletResponse.SC_ACCEPTED);
+      writeStatus(response);
 
     } catch (Exception e) {
       LOGGER.error("Got exception processing sparse upgrade", e);
@@ -151,42 +151,21 @@ public class SparseUpgradeServlet extends SlingAllMethodsServlet {
     }
   }
 
-  private Feedback getFeedback(final SlingHttpServletResponse response) {
-    return new Feedback() {
-      public void log(String format, Object... params) {
-        LOGGER.info(MessageFormat.format(format, params));
-      }
-
-      public void exception(Throwable e) {
-        String msg = "An exception occurred while migrating: " + e.getClass().getName() + ": " +
-                e.getMessage() + "; check server log for more details.";
-        writeToResponse(msg, response);
-      }
-
-      public void newLogFile(File currentFile) {
-        LOGGER.info("Opening New Upgrade Log File {}  ", currentFile.getAbsoluteFile());
-      }
-
-      public void progress(boolean dryRun, long done, long toDo) {
-        String msg = "Processed " + done + " of " + toDo + ", " + ((done * 100) / toDo) + "% complete, dryRun=" + dryRun;
-        writeToResponse(msg, response);
-      }
-
-    };
+  private boolean isAdmin(SlingHttpServletRequest request) throws StorageClientException, AccessDeniedException {
+    Session currentSession = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
+    AuthorizableManager authorizableManager = currentSession.getAuthorizableManager();
+    User currentUser = (User) authorizableManager.findAuthorizable(currentSession.getUserId());
+    return currentUser.isAdmin();
   }
 
-  private void reindexSolr(SlingHttpServletRequest request) throws StorageClientException {
-    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
-    session.getContentManager().triggerRefreshAll();
-    session.getAuthorizableManager().triggerRefreshAll();
-  }
-
-  static void writeToResponse(String msg, SlingHttpServletResponse response) {
-    try {
-      response.getWriter().write(msg + "\n");
-      response.getWriter().flush(); // so the client sees updates
-    } catch (IOException ioe) {
-      LOGGER.error("Got IOException trying to write http response", ioe);
+  private void writeStatus(SlingHttpServletResponse response) throws IOException, JSONException {
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    JSONWriter writer = new JSONWriter(response.getWriter());
+    writer.object();
+    for (Map.Entry<String, Object> property : upgradeRunner.getStatus().entrySet()) {
+      writer.key(property.getKey()).value(property.getValue());
     }
+    writer.endObject();
   }
 }
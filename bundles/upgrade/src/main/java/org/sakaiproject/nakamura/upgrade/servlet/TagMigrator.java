@@ -22,7 +22,6 @@ import com.google.common.collect.ImmutableMap;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.apache.solr.client.solrj.SolrQuery;
@@ -31,6 +30,7 @@ import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.Feedback;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
@@ -68,7 +68,7 @@ public class TagMigrator {
   @Reference
   private SolrServerService solrSearchService;
 
-  public void migrate(final SlingHttpServletResponse response, boolean dryRun, boolean reindexAll)
+  public void migrate(Feedback feedback, boolean dryRun, boolean reindexAll)
       throws RepositoryException, StorageClientException, AccessDeniedException, SolrServerException {
 
     org.sakaiproject.nakamura.api.lite.Session sparseSession = null;
@@ -79,12 +79,12 @@ public class TagMigrator {
       jcrSession = this.slingRepository.loginAdministrative("default");
 
       if (needsMigration(sparseSession) || reindexAll) {
-        SparseUpgradeServlet.writeToResponse("Migrating tags from JCR to Sparse...", response);
+        feedback.log("Migrating tags from JCR to Sparse...");
         Set<String> allTags = getUniqueTagsFromSolr();
         addUniqueTagsFromJCR(allTags, jcrSession);
         saveTagsInSparse(allTags, sparseSession, dryRun);
       } else {
-        SparseUpgradeServlet.writeToResponse("Tag Migrator already ran on this system, skipping migration", response);
+        feedback.log("Tag Migrator already ran on this system, skipping migration");
       }
 
     } finally {
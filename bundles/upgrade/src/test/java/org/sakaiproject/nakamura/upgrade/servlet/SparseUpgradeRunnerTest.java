@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.upgrade.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.jcr.ContentReloaderService;
+import org.sakaiproject.nakamura.api.lite.Feedback;
+import org.sakaiproject.nakamura.api.lite.MigrateContentService;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SparseUpgradeRunnerTest {
+
+  private Repository repository;
+  private MigrateContentService migrationService;
+  private TagMigrator tagMigrator;
+  private SparseUpgradeRunner runner;
+  private SparseUpgradeRunner other;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = (Repository) new BaseMemoryRepository().getRepository();
+    migrationService = mock(MigrateContentService.class);
+    tagMigrator = mock(TagMigrator.class);
+    runner = newRunner("server-a");
+  }
+
+  @After
+  public void tearDown() {
+    runner.deactivate(ImmutableMap.of());
+    if (other != null) {
+      other.deactivate(ImmutableMap.of());
+    }
+  }
+
+  private SparseUpgradeRunner newRunner(String serverId) {
+    SparseUpgradeRunner newRunner = new SparseUpgradeRunner();
+    newRunner.repository = repository;
+    newRunner.migrationService = migrationService;
+    newRunner.tagMigrator = tagMigrator;
+    newRunner.reloaderService = mock(ContentReloaderService.class);
+    newRunner.clusterTrackingService = mock(ClusterTrackingService.class);
+    when(newRunner.clusterTrackingService.getCurrentServerId()).thenReturn(serverId);
+    return newRunner;
+  }
+
+  @Test
+  public void testStartIsRefusedWhileAnUpgradeRuns() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        started.countDown();
+        release.await(10, TimeUnit.SECONDS);
+        return null;
+      }
+    }).when(migrationService).migrate(anyBoolean(), anyInt(), anyBoolean(),
+        any(Feedback.class));
+    runner.activate(ImmutableMap.of());
+    other = newRunner("server-b");
+    other.activate(ImmutableMap.of());
+
+    assertTrue(runner.start(false, 10, false));
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    assertFalse(runner.start(false, 10, false));
+    // nor can another server start or take over an upgrade that is being run.
+    assertFalse(other.start(false, 10, false));
+    other.run();
+    assertEquals("server-a", runner.getStatus().get(SparseUpgradeRunner.OWNER));
+
+    release.countDown();
+    waitFor(runner, SparseUpgradeRunner.FINISHED);
+    verify(migrationService, times(1)).migrate(anyBoolean(), anyInt(), anyBoolean(),
+        any(Feedback.class));
+    verify(tagMigrator, times(1)).migrate(any(Feedback.class), eq(false), eq(false));
+    verify(runner.reloaderService, times(1)).reloadContent();
+
+    // once finished, another upgrade can be started.
+    assertTrue(other.start(true, 10, false));
+    waitFor(other, SparseUpgradeRunner.FINISHED);
+  }
+
+  @Test
+  public void testAbandonedUpgradeIsResumedAtItsPhase() throws Exception {
+    saveState("server-b", System.currentTimeMillis() - SparseUpgradeRunner.LEASE_TIMEOUT
+        - 1000);
+    runner.activate(ImmutableMap.of());
+
+    waitFor(runner, SparseUpgradeRunner.FINISHED);
+    verify(migrationService, never()).migrate(anyBoolean(), anyInt(), anyBoolean(),
+        any(Feedback.class));
+    verify(tagMigrator, times(1)).migrate(any(Feedback.class), eq(true), eq(false));
+    assertEquals("server-a", runner.getStatus().get(SparseUpgradeRunner.OWNER));
+  }
+
+  @Test
+  public void testUpgradeWithALiveLeaseIsNotResumed() throws Exception {
+    saveState("server-b", System.currentTimeMillis());
+    runner.activate(ImmutableMap.of());
+    runner.run();
+
+    assertFalse(runner.start(false, 10, false));
+    Map<String, Object> status = runner.getStatus();
+    assertEquals(SparseUpgradeRunner.RUNNING, status.get(SparseUpgradeRunner.STATUS));
+    assertEquals("server-b", status.get(SparseUpgradeRunner.OWNER));
+    verify(tagMigrator, never()).migrate(any(Feedback.class), anyBoolean(), anyBoolean());
+  }
+
+  @Test
+  public void testInterruptedUpgradeIsPausedAndResumed() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final AtomicInteger calls = new AtomicInteger();
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        if (calls.incrementAndGet() == 1) {
+          started.countDown();
+          try {
+            Thread.sleep(10000);
+          } catch (InterruptedException e) {
+            // as a storage client would report it.
+            throw new RuntimeException("Migration interrupted", e);
+          }
+        }
+        return null;
+      }
+    }).when(migrationService).migrate(anyBoolean(), anyInt(), anyBoolean(),
+        any(Feedback.class));
+    runner.activate(ImmutableMap.of());
+    assertTrue(runner.start(false, 10, false));
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    runner.deactivate(ImmutableMap.of());
+    Map<String, Object> status = runner.getStatus();
+    assertEquals(SparseUpgradeRunner.PAUSED, status.get(SparseUpgradeRunner.STATUS));
+    assertEquals(SparseUpgradeRunner.Phase.MIGRATE.name(), status
+        .get(SparseUpgradeRunner.PHASE));
+
+    // a paused upgrade is resumed straight away, without waiting for its lease.
+    other = newRunner("server-a");
+    other.activate(ImmutableMap.of());
+    waitFor(other, SparseUpgradeRunner.FINISHED);
+    assertEquals(2, calls.get());
+    verify(tagMigrator, times(1)).migrate(any(Feedback.class), eq(false), eq(false));
+  }
+
+  private void saveState(String owner, long heartbeat) throws Exception {
+    Map<String, Object> state = new HashMap<String, Object>();
+    state.put(SparseUpgradeRunner.STATUS, SparseUpgradeRunner.RUNNING);
+    state.put(SparseUpgradeRunner.PHASE, SparseUpgradeRunner.Phase.TAGS.name());
+    state.put(SparseUpgradeRunner.DRY_RUN, true);
+    state.put(SparseUpgradeRunner.LIMIT, 10);
+    state.put(SparseUpgradeRunner.REINDEX_ALL, false);
+    state.put(SparseUpgradeRunner.OWNER, owner);
+    state.put(SparseUpgradeRunner.LEASE, "lease-of-" + owner);
+    state.put(SparseUpgradeRunner.HEARTBEAT, heartbeat);
+    Session session = repository.loginAdministrative();
+    try {
+      session.getContentManager().update(
+          new Content(SparseUpgradeRunner.STATE_PATH, state));
+    } finally {
+      session.logout();
+    }
+  }
+
+  private void waitFor(SparseUpgradeRunner upgradeRunner, String status)
+      throws InterruptedException {
+    long timeout = System.currentTimeMillis() + 10000;
+    while (System.currentTimeMillis() < timeout) {
+      if (status.equals(upgradeRunner.getStatus().get(SparseUpgradeRunner.STATUS))) {
+        return;
+      }
+      Thread.sleep(50);
+    }
+    fail("The upgrade did not reach " + status + ": " + upgradeRunner.getStatus());
+  }
+}
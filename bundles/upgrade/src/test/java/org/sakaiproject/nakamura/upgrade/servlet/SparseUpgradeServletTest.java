@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.upgrade.servlet;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import javax.servlet.http.HttpServletResponse;
+
+public class SparseUpgradeServletTest {
+
+  private SparseUpgradeServlet servlet;
+  private SlingHttpServletRequest request;
+  private SlingHttpServletResponse response;
+
+  @Before
+  public void setUp() throws Exception {
+    User admin = mock(User.class);
+    when(admin.isAdmin()).thenReturn(true);
+    AuthorizableManager authorizableManager = mock(AuthorizableManager.class);
+    when(authorizableManager.findAuthorizable("admin")).thenReturn(admin);
+    Session session = mock(Session.class);
+    when(session.getUserId()).thenReturn("admin");
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+    javax.jcr.Session jcrSession = Mockito.mock(javax.jcr.Session.class, Mockito
+        .withSettings().extraInterfaces(SessionAdaptable.class));
+    when(((SessionAdaptable) jcrSession).getSession()).thenReturn(session);
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jcrSession);
+    request = mock(SlingHttpServletRequest.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    response = mock(SlingHttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+
+    servlet = new SparseUpgradeServlet();
+    servlet.upgradeRunner = mock(SparseUpgradeRunner.class);
+    when(servlet.upgradeRunner.getStatus()).thenReturn(
+        ImmutableMap.<String, Object> of(SparseUpgradeRunner.STATUS,
+            SparseUpgradeRunner.RUNNING));
+  }
+
+  @Test
+  public void testStartIsAccepted() throws Exception {
+    when(servlet.upgradeRunner.start(true, Integer.MAX_VALUE, false)).thenReturn(true);
+    servlet.doPost(request, response);
+    verify(response).setStatus(HttpServletResponse.SC_ACCEPTED);
+  }
+
+  @Test
+  public void testStartWhileRunningIsAConflict() throws Exception {
+    when(servlet.upgradeRunner.start(true, Integer.MAX_VALUE, false)).thenReturn(false);
+    servlet.doPost(request, response);
+    verify(response).sendError(eq(HttpServletResponse.SC_CONFLICT), anyString());
+  }
+}
@@ -17,12 +17,16 @@
  */
 package org.sakaiproject.nakamura.user.counts;
 
+import com.google.common.collect.Lists;
+
 import org.apache.sling.commons.scheduler.Job;
 import org.apache.sling.commons.scheduler.JobContext;
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrQuery.ORDER;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
@@ -32,28 +36,59 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.solr.SolrServerService;
 import org.sakaiproject.nakamura.api.user.counts.CountProvider;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class CountsRefreshJob implements Job {
   private static final Logger LOGGER = LoggerFactory.getLogger(CountsRefreshJob.class);
 
+  /**
+   * Where the id of the last authorizable refreshed is kept between runs.
+   */
+  static final String CURSOR_PATH = "/var/counts/refresh";
+  static final String CURSOR_PROP = "cursor";
+
   Repository sparseRepository;
   SolrServerService solrServerService;
   CountProvider countProvider;
+  ExecutorService executor;
+  int threads;
+
+  /**
+   * authorizables updated since the job was created, for telemetry.
+   */
+  private final AtomicLong updated = new AtomicLong();
 
   public CountsRefreshJob(Repository sparseRepository,
-      SolrServerService solrServerService, CountProvider countProvider) {
+      SolrServerService solrServerService, CountProvider countProvider,
+      ExecutorService executor, int threads) {
     this.sparseRepository = sparseRepository;
     this.solrServerService = solrServerService;
     this.countProvider = countProvider;
+    this.executor = executor;
+    this.threads = Math.max(1, threads);
   }
 
   /**
-   * update the batch size number of Authorizables whose countLastUpdate is null (never
-   * updated) or whose countLastUpdate is more than the update interval minutes ago
+   * Page through the Authorizables whose countLastUpdate is null (never updated) or whose
+   * countLastUpdate is more than the update interval minutes ago, in id order, updating
+   * each page of batch size Authorizables on the worker pool. The id of the last
+   * Authorizable updated is saved after each page so that a run that is stopped, by the
+   * time limit or otherwise, is resumed by the next one.
    * {@inheritDoc}
    * 
    * @see org.apache.sling.commons.scheduler.Job#execute(org.apache.sling.commons.scheduler.JobContext)
@@ -62,60 +97,77 @@ public class CountsRefreshJob implements Job {
     Session adminSession = null;
     Integer batchSize = (Integer) context.getConfiguration().get(
         CountsRefreshScheduler.PROP_UPDATE_BATCH_SIZE);
+    Long maxRunSeconds = (Long) context.getConfiguration().get(
+        CountsRefreshScheduler.PROP_MAX_RUN_SECONDS);
     try {
       adminSession = this.sparseRepository.loginAdministrative();
-      AuthorizableManager authManager = adminSession.getAuthorizableManager();
+      ContentManager contentManager = adminSession.getContentManager();
       SolrServer solrServer = solrServerService.getServer();
       long nowTicks = System.currentTimeMillis();
       long updateIntervalTicks = this.countProvider.getUpdateIntervalMinutes() * 60 * 1000;
       long updateTicks = nowTicks - updateIntervalTicks;
-      // find all the authorizables have not been updated in the update interval
-      // or who have never been updated
-      StringBuilder querySB = new StringBuilder("+resourceType:authorizable AND -countLastUpdate:[")
-                              .append(updateTicks).append(" TO * ]");
-      String queryString = querySB.toString();
-      SolrQuery solrQuery = new SolrQuery(queryString).setStart(0).setRows(batchSize);
-      QueryResponse response;
+      long stopTicks = nowTicks + maxRunSeconds * 1000;
+      String cursor = getCursor(contentManager);
+      long startTicks = System.currentTimeMillis();
+      int count = 0;
       try {
-        response = solrServer.query(solrQuery);
-        SolrDocumentList results = response.getResults();
-        long numResults = results.getNumFound();
-        if (LOGGER.isDebugEnabled()) {
-          LOGGER.debug("with query {}, found {} results", new Object[] { queryString,
-              numResults });
-        }
-        if (numResults > 0) {
-          batchSize = (int) (batchSize < numResults ? batchSize : numResults);
-          LOGGER.info("will update counts on max of {} authorizables",
-              new Object[] { batchSize });
-          long startTicks = System.currentTimeMillis();
-          int count = 0;
+        while (true) {
+          // find the authorizables after the cursor that have not been updated in the
+          // update interval or who have never been updated
+          StringBuilder querySB = new StringBuilder(
+              "+resourceType:authorizable AND -countLastUpdate:[").append(updateTicks)
+              .append(" TO * ]");
+          if (cursor != null) {
+            querySB.append(" AND id:{").append(ClientUtils.escapeQueryChars(cursor))
+                .append(" TO *]");
+          }
+          String queryString = querySB.toString();
+          SolrQuery solrQuery = new SolrQuery(queryString).setStart(0).setRows(batchSize)
+              .setFields("id").setSortField("id", ORDER.asc);
+          QueryResponse response = solrServer.query(solrQuery);
+          SolrDocumentList results = response.getResults();
+          long numResults = results.getNumFound();
+          LOGGER.debug("with query {}, found {} results", queryString, numResults);
+          if (results.isEmpty()) {
+            // caught up, start from the beginning next time.
+            cursor = null;
+            saveCursor(contentManager, cursor);
+            TelemetryCounter.setValue("user", "CountsRefreshJob", "backlog", 0L);
+            break;
+          }
+          List<String> ids = Lists.newArrayListWithCapacity(results.size());
           for (SolrDocument solrDocument : results) {
-            String authorizableId = (String) solrDocument.getFieldValue("id");
-            Authorizable authorizable = authManager.findAuthorizable(authorizableId);
-            if (authorizable != null) {
-              if (authorizable.getId() != null) {
-                this.countProvider.update(authorizable, adminSession);
-                count++;              
-              } else {
-                LOGGER.debug(
-                    "found authorizable with id {} in Solr index but with NULL id in Sparse, not updating", 
-                    new Object[]{ authorizableId });
-              }
-            } else {
-              LOGGER.debug(
-                      "found authorizable with id {} in Solr index but couldn't find authorizable in Sparse, not updating",
-                      new Object[] { authorizableId });
-            }
+            ids.add((String) solrDocument.getFieldValue("id"));
+          }
+          int pageCount = updatePage(ids);
+          count += pageCount;
+          // published from this thread only, the workers just return their counts.
+          TelemetryCounter.setValue("user", "CountsRefreshJob", "updated",
+              updated.addAndGet(pageCount));
+          cursor = ids.get(ids.size() - 1);
+          saveCursor(contentManager, cursor);
+          TelemetryCounter.setValue("user", "CountsRefreshJob", "backlog",
+              numResults - ids.size());
+          if (System.currentTimeMillis() >= stopTicks) {
+            LOGGER.info("stopping after {} authorizables, {} left to update", count,
+                numResults - ids.size());
+            break;
           }
-          long endTicks = System.currentTimeMillis();
-          LOGGER.info("updated {} authorizables in {} seconds", new Object[] { count,
-              (endTicks - startTicks) / 1000 });
-        } else {
-          LOGGER.info("All authorizables have up to date counts");
         }
       } catch (SolrServerException e) {
         LOGGER.warn(e.getMessage(), e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOGGER.info("interrupted after {} authorizables, will resume after {}", count,
+            cursor);
+      }
+      long seconds = (System.currentTimeMillis() - startTicks) / 1000;
+      if (count > 0) {
+        TelemetryCounter.setValue("user", "CountsRefreshJob", "authorizablesPerSecond",
+            count / (double) Math.max(1, seconds));
+        LOGGER.info("updated {} authorizables in {} seconds", count, seconds);
+      } else {
+        LOGGER.info("All authorizables have up to date counts");
       }
     } catch (ClientPoolException e) {
       LOGGER.warn(e.getMessage(), e);
@@ -133,4 +185,95 @@ public class CountsRefreshJob implements Job {
       }
     }
   }
+
+  /**
+   * Update the counts of a page of authorizables, split between up to threads workers,
+   * and wait for them all.
+   *
+   * @return the number of authorizables updated.
+   */
+  private int updatePage(List<String> ids) throws InterruptedException {
+    List<Future<Integer>> futures = Lists.newArrayList();
+    int chunkSize = (ids.size() + threads - 1) / threads;
+    try {
+      for (final List<String> chunk : Lists.partition(ids, chunkSize)) {
+        futures.add(executor.submit(new Callable<Integer>() {
+          public Integer call() throws Exception {
+            return updateAll(chunk);
+          }
+        }));
+      }
+    } catch (RejectedExecutionException e) {
+      // the pool has been shut down.
+      throw new InterruptedException(e.getMessage());
+    }
+    int count = 0;
+    for (Future<Integer> future : futures) {
+      try {
+        count += future.get();
+      } catch (ExecutionException e) {
+        LOGGER.warn(e.getMessage(), e.getCause());
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Update the counts of some authorizables on a session of their own.
+   */
+  private int updateAll(List<String> authorizableIds) throws ClientPoolException,
+      StorageClientException, AccessDeniedException {
+    int count = 0;
+    Session session = this.sparseRepository.loginAdministrative();
+    try {
+      AuthorizableManager authManager = session.getAuthorizableManager();
+      for (String authorizableId : authorizableIds) {
+        try {
+          Authorizable authorizable = authManager.findAuthorizable(authorizableId);
+          if (authorizable != null) {
+            if (authorizable.getId() != null) {
+              this.countProvider.update(authorizable, session);
+              count++;
+            } else {
+              LOGGER.debug(
+                  "found authorizable with id {} in Solr index but with NULL id in Sparse, not updating",
+                  new Object[] { authorizableId });
+            }
+          } else {
+            LOGGER.debug(
+                "found authorizable with id {} in Solr index but couldn't find authorizable in Sparse, not updating",
+                new Object[] { authorizableId });
+          }
+        } catch (StorageClientException e) {
+          // one bad authorizable shouldn't hold up the rest.
+          LOGGER.warn("unable to update counts of {}: {}", authorizableId, e.getMessage());
+        } catch (AccessDeniedException e) {
+          LOGGER.warn("unable to update counts of {}: {}", authorizableId, e.getMessage());
+        }
+      }
+    } finally {
+      session.logout();
+    }
+    return count;
+  }
+
+  private String getCursor(ContentManager contentManager) throws StorageClientException,
+      AccessDeniedException {
+    Content state = contentManager.get(CURSOR_PATH);
+    return (state == null) ? null : (String) state.getProperty(CURSOR_PROP);
+  }
+
+  private void saveCursor(ContentManager contentManager, String cursor)
+      throws StorageClientException, AccessDeniedException {
+    Content state = contentManager.get(CURSOR_PATH);
+    if (state == null) {
+      state = new Content(CURSOR_PATH, new HashMap<String, Object>());
+    }
+    if (cursor == null) {
+      state.removeProperty(CURSOR_PROP);
+    } else {
+      state.setProperty(CURSOR_PROP, cursor);
+    }
+    contentManager.update(state);
+  }
 }
@@ -21,6 +21,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.commons.scheduler.Job;
 import org.apache.sling.commons.scheduler.Scheduler;
 import org.osgi.service.component.ComponentContext;
@@ -34,6 +35,11 @@ import java.io.Serializable;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 @Component(label = "Nakamura :: CountRefreshScheduler",
@@ -67,15 +73,40 @@ public class CountsRefreshScheduler {
       description = "Maximum Number of Authorizables to Update in one Job")
   public static final String PROP_UPDATE_BATCH_SIZE = "refreshcounts.batchsize";  
 
+  @Property(intValue = 4, label = "Worker Threads",
+      description = "Number of threads updating authorizables' counts at the same time")
+  public static final String PROP_THREADS = "refreshcounts.threads";
+
+  @Property(longValue = 240, label = "Maximum Run Seconds",
+      description = "How long one job may keep updating batches before leaving the rest to the next job")
+  public static final String PROP_MAX_RUN_SECONDS = "refreshcounts.maxrunseconds";
+
   protected final static String JOB_NAME = "refreshCountsJob";
+
+  private ThreadPoolExecutor executor;
   
   protected void activate(ComponentContext componentContext) throws Exception {
     Dictionary<?, ?> props = componentContext.getProperties();
     Long pollInterval = (Long) props.get(PROP_POLL_INTERVAL_SECONDS);
     Integer batchSize = (Integer) props.get(PROP_UPDATE_BATCH_SIZE);
+    int threads = Math.max(1, PropertiesUtil.toInteger(props.get(PROP_THREADS), 4));
+    long maxRunSeconds = PropertiesUtil.toLong(props.get(PROP_MAX_RUN_SECONDS), 240L);
     Map<String, Serializable> config = new HashMap<String, Serializable>();
     config.put(PROP_UPDATE_BATCH_SIZE, batchSize);
-    final Job countsRefreshJob = new CountsRefreshJob(this.sparseRepository, this.solrServerService, this.countProvider);
+    config.put(PROP_MAX_RUN_SECONDS, maxRunSeconds);
+    // the job waits for each page, so the queue never holds more than a page's workers.
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(threads), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "CountsRefresh-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    final Job countsRefreshJob = new CountsRefreshJob(this.sparseRepository,
+        this.solrServerService, this.countProvider, executor, threads);
     try {
       LOGGER.debug("Activating CountsRefreshJob...");
       this.scheduler.addPeriodicJob(JOB_NAME, countsRefreshJob, config, pollInterval, false);
@@ -88,5 +119,10 @@ public class CountsRefreshScheduler {
   protected void deactivate(ComponentContext componentContext) throws Exception {
     LOGGER.debug("Removing refreshCountsJob...");
     this.scheduler.removeJob(JOB_NAME);
+    if (executor != null) {
+      // a running job sees its workers interrupted and resumes from its cursor next time.
+      executor.shutdownNow();
+      executor = null;
+    }
   }
 }
@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.lite.servlet;
+
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The member ids of a group in id order, without duplicates, so that listings can be
+ * paged by position or resumed after a given id without loading the members.
+ *
+ * The sorted ids of the most recently listed groups are kept along with the time the
+ * group was last modified, and reused until it changes, so paging through a large group
+ * doesn't sort its members for every page.
+ */
+class GroupMemberIds {
+
+  /**
+   * How many groups to keep the sorted ids of.
+   */
+  static final int MAX_GROUPS = 64;
+
+  private static final Map<String, Sorted> SORTED = new LinkedHashMap<String, Sorted>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = -6215735290513622816L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Sorted> eldest) {
+      return size() > MAX_GROUPS;
+    }
+  };
+
+  private static class Sorted {
+    final Object lastModified;
+    final String[] ids;
+
+    Sorted(Object lastModified, String[] ids) {
+      this.lastModified = lastModified;
+      this.ids = ids;
+    }
+  }
+
+  /**
+   * The ids in ascending order, both orders are listed from them.
+   */
+  private final String[] ids;
+  private final boolean descending;
+
+  /**
+   * @param group
+   *          the group whose direct members to list.
+   * @param descending
+   *          true to list the ids in reverse order.
+   */
+  GroupMemberIds(Group group, boolean descending) {
+    this.ids = getSortedIds(group);
+    this.descending = descending;
+  }
+
+  /**
+   * @return the distinct member ids of the group in ascending order, shared between
+   *         listings so never to be modified.
+   */
+  private static String[] getSortedIds(Group group) {
+    Object lastModified = group.getProperty(Authorizable.LASTMODIFIED_FIELD);
+    if (lastModified != null) {
+      synchronized (SORTED) {
+        Sorted sorted = SORTED.get(group.getId());
+        if (sorted != null && lastModified.equals(sorted.lastModified)) {
+          return sorted.ids;
+        }
+      }
+    }
+    String[] ids = sort(group.getMembers());
+    if (lastModified != null) {
+      synchronized (SORTED) {
+        SORTED.put(group.getId(), new Sorted(lastModified, ids));
+      }
+    }
+    return ids;
+  }
+
+  private static String[] sort(String[] members) {
+    String[] sorted = members.clone();
+    Arrays.sort(sorted);
+    // remove duplicates in place, they are next to each other once sorted.
+    int size = 0;
+    for (String id : sorted) {
+      if (size == 0 || !id.equals(sorted[size - 1])) {
+        sorted[size++] = id;
+      }
+    }
+    return size == sorted.length ? sorted : Arrays.copyOf(sorted, size);
+  }
+
+  /**
+   * @return the number of distinct members.
+   */
+  int size() {
+    return ids.length;
+  }
+
+  /**
+   * @return the id at a position.
+   */
+  String get(int index) {
+    return descending ? ids[ids.length - 1 - index] : ids[index];
+  }
+
+  /**
+   * @param after
+   *          an id previously listed, may no longer be a member.
+   * @return the position of the first id that comes after it in this order.
+   */
+  int indexAfter(String after) {
+    int index = Arrays.binarySearch(ids, after);
+    if (descending) {
+      // the ids from the one found, or from the insertion point, up are listed first.
+      return ids.length - (index >= 0 ? index : -index - 1);
+    }
+    // a missing id gives -(insertion point) - 1
+    return index >= 0 ? index + 1 : -index - 1;
+  }
+}
@@ -45,8 +45,6 @@ import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.sakaiproject.nakamura.util.ServletUtils;
 
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -58,6 +56,8 @@ import javax.servlet.http.HttpServletResponse;
 @SlingServlet(resourceTypes={"sparse/group"},methods={"GET"},extensions={"json"})
 @ServiceDocumentation(name="Get Group Servlet", okForVersion = "1.2",
     description="Returns a group in json format, using all the standard Sling semantics, but includes group profile." +
+        " Members are listed in id order, all of them unless a page is asked for with items and" +
+        " page, or items and after (the last id of the previous page)." +
     		" Binds to any resource of type sparse/group although these are" +
     		"store under a: in the repo eg " +
     		"a:math101. The URL is exposed as  " +
@@ -69,7 +69,8 @@ import javax.servlet.http.HttpServletResponse;
     methods=@ServiceMethod(name="GET",
         description={"Get the group json.",
             "Example<br>" +
-            "<pre>curl http://localhost:8080/system/userManager/group/math101.json</pre>"},
+            "<pre>curl http://localhost:8080/system/userManager/group/math101.json</pre>",
+            "<pre>curl http://localhost:8080/system/userManager/group/math101.json?items=100&after=jeff</pre>"},
         response={
           @ServiceResponse(code=200,description="Success, the body contains the Group json with profile."),
           @ServiceResponse(code=404,description="Group was not found."),
@@ -124,17 +125,34 @@ public class LiteGroupGetServlet extends SlingSafeMethodsServlet {
       write.key("members");
       write.array();
 
-      Group group = (Group)authorizable;
-      Set<String> memberNames = new HashSet<String>();
-      String[] members = group.getMembers();
-      for (String name : members )
-      {
-        if (!memberNames.contains(name)) {
-          write.value(name);
+      // Members are written in id order, a page at a time if asked for one.
+      GroupMemberIds members = new GroupMemberIds((Group) authorizable, false);
+      int start = 0;
+      int end = members.size();
+      String items = request.getParameter(LiteGroupMemberServlet.ITEMS);
+      if (items != null) {
+        long pageSize = LiteGroupMemberServlet.longParameter(request,
+            LiteGroupMemberServlet.ITEMS, LiteGroupMemberServlet.DEFAULT_ITEMS);
+        if (pageSize < 0) {
+          pageSize = LiteGroupMemberServlet.DEFAULT_ITEMS;
+        }
+        pageSize = Math.min(pageSize, end);
+        String after = request.getParameter(LiteGroupMemberServlet.AFTER);
+        if (after != null) {
+          start = members.indexAfter(after);
+        } else {
+          long page = LiteGroupMemberServlet.longParameter(request,
+              LiteGroupMemberServlet.PAGE, 0);
+          start = (int) Math.min(end, pageSize * Math.min(end, Math.max(0, page)));
         }
-        memberNames.add(name);
+        end = (int) Math.min(end, start + pageSize);
+      }
+      for (int i = start; i < end; i++) {
+        write.value(members.get(i));
       }
       write.endArray();
+      write.key("membersTotal");
+      write.value(members.size());
       write.endObject();
     } catch (JSONException e) {
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Unable to render group details");
@@ -33,6 +33,7 @@ import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceExtension;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -53,9 +54,11 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeMap;
 
 import javax.jcr.RepositoryException;
@@ -89,9 +92,20 @@ import javax.servlet.http.HttpServletResponse;
     @ServiceMethod(
       name = "GET",
       description = "Create an external repository document.",
+      parameters = {
+        @ServiceParameter(name = "items", description = "The number of items per page, 25 by default."),
+        @ServiceParameter(name = "page", description = "The page to return, starting at 0. "
+            + "Can't be used with sortOn=id, which pages with the after parameter."),
+        @ServiceParameter(name = "sortOrder", description = "ascending (the default) or descending."),
+        @ServiceParameter(name = "sortOn", description = "id to sort on the member id and page with the after parameter, "
+            + "which only loads the members on the page. Sorts on name by default, which loads every member."),
+        @ServiceParameter(name = "after", description = "With sortOn=id, the id of the last member of the previous page."),
+        @ServiceParameter(name = "type", description = "user or group to list only members of that type.")
+      },
       response = {
         @ServiceResponse(code = 200, description = "All processing finished successfully."),
         @ServiceResponse(code = 204, description = "Group doesn't exist."),
+        @ServiceResponse(code = 400, description = "page was given with sortOn=id."),
         @ServiceResponse(code = 500, description = "Exception occurred during processing.")
       }
     )
@@ -110,8 +124,12 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
 
   static final String ITEMS = "items";
   static final String PAGE = "page";
+  static final String AFTER = "after";
+  static final String SORT_ON = "sortOn";
+  static final String TYPE = "type";
+  static final long DEFAULT_ITEMS = 25;
   @Reference
-  private BasicUserInfoService basicUserInfoService;
+  protected BasicUserInfoService basicUserInfoService;
 
   /**
    * {@inheritDoc}
@@ -152,30 +170,46 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
       }
     }
 
+    // Paging by id walks the sorted member ids and loads only the members it writes,
+    // rather than loading every member to sort them by name.
+    boolean byId = "id".equals(request.getParameter(SORT_ON));
+    if (byId && request.getParameter(PAGE) != null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "Pages sorted on id are found with the after parameter, not page.");
+      return;
+    }
+    String type = request.getParameter(TYPE);
+
     try {
       response.setContentType("application/json");
-      TreeMap<String, Authorizable> map = null;
-      if (selectors.contains("everyone")) {
-        map = getMembers(request, group, comparator);
-        map.putAll(getManagers(request, group, comparator));
-      } else if (selectors.contains("managers")) {
-        map = getManagers(request, group, comparator);
-      } else {
-        // Members is the default.
-        map = getMembers(request, group, comparator);
-      }
 
       // Do some paging.
-      long items = (request.getParameter(ITEMS) != null) ? Long.parseLong(request
-          .getParameter(ITEMS)) : 25;
-      long page = (request.getParameter(PAGE) != null) ? Long.parseLong(request
-          .getParameter(PAGE)) : 0;
+      long items = longParameter(request, ITEMS, DEFAULT_ITEMS);
+      long page = longParameter(request, PAGE, 0);
       if (page < 0) {
         page = 0;
       }
       if (items < 0) {
-        items = 25;
+        items = DEFAULT_ITEMS;
+      }
+
+      if (byId) {
+        writeMembersById(request, writer, group, selectors, comparator != null, type,
+            items);
+        return;
+      }
+
+      TreeMap<String, Authorizable> map = null;
+      if (selectors.contains("everyone")) {
+        map = getMembers(request, group, comparator, type);
+        map.putAll(getManagers(request, group, comparator, type));
+      } else if (selectors.contains("managers")) {
+        map = getManagers(request, group, comparator, type);
+      } else {
+        // Members is the default.
+        map = getMembers(request, group, comparator, type);
       }
+
       Iterator<Entry<String, Authorizable>> iterator = getInPlaceIterator(request, map,
           items, page);
 
@@ -220,6 +254,93 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
 
   }
 
+  /**
+   * @return the value of the parameter, or the default if it is missing or not a number.
+   */
+  static long longParameter(SlingHttpServletRequest request, String name,
+      long defaultValue) {
+    String value = request.getParameter(name);
+    if (value != null) {
+      try {
+        return Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        logger.warn("{} parameter ({}) is invalid; defaulting to {}", new Object[] { name,
+            value, defaultValue });
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Write a page of members in id order, starting after the id given in the
+   * {@link #AFTER} parameter. Only the members that are written are loaded, so the cost
+   * of a page does not depend on the size of the group.
+   *
+   * @throws JSONException
+   * @throws StorageClientException
+   */
+  private void writeMembersById(SlingHttpServletRequest request,
+      ExtendedJSONWriter writer, Group group, List<String> selectors, boolean descending,
+      String type, long items) throws JSONException, StorageClientException {
+    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    Set<String> managers = getManagerIds(group);
+    boolean includeManagers = selectors.contains("everyone")
+        || selectors.contains("managers");
+    boolean includeMembers = selectors.contains("everyone")
+        || !selectors.contains("managers");
+
+    GroupMemberIds ids = new GroupMemberIds(group, descending);
+    String after = request.getParameter(AFTER);
+    int i = (after == null) ? 0 : ids.indexAfter(after);
+    int written = 0;
+    writer.array();
+    for (; i < ids.size() && written < items; i++) {
+      String memberName = ids.get(i);
+      if (managers.contains(memberName) ? !includeManagers : !includeMembers) {
+        continue;
+      }
+      Authorizable member = findMember(authorizableManager, memberName);
+      if (member != null && isType(member, type)) {
+        writer.valueMap(new ValueMapDecorator(basicUserInfoService.getProperties(member)));
+        written++;
+      }
+    }
+    writer.endArray();
+  }
+
+  /**
+   * @return the member, or null if it doesn't exist or we aren't allowed to see it.
+   */
+  private Authorizable findMember(AuthorizableManager authorizableManager,
+      String memberName) throws StorageClientException {
+    try {
+      return authorizableManager.findAuthorizable(memberName);
+    } catch (AccessDeniedException e) {
+      // this means a group has a member we're not allowed to see
+      // that's normal, and we'll just skip over it. (KERN-2302)
+      return null;
+    }
+  }
+
+  private Set<String> getManagerIds(Group group) {
+    return new HashSet<String>(Arrays.asList(StorageClientUtils
+        .nonNullStringArray((String[]) group.getProperty(UserConstants.PROP_GROUP_MANAGERS))));
+  }
+
+  /**
+   * @param type
+   *          "user", "group" or null for either.
+   */
+  private boolean isType(Authorizable member, String type) {
+    if ("user".equals(type)) {
+      return !member.isGroup();
+    } else if ("group".equals(type)) {
+      return member.isGroup();
+    }
+    return true;
+  }
+
   /**
    * @param request
    * @param map
@@ -251,6 +372,17 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
   protected TreeMap<String, Authorizable> getMembers(SlingHttpServletRequest request,
       Group group, Comparator<String> comparator) throws
       JSONException, AccessDeniedException, StorageClientException {
+    return getMembers(request, group, comparator, null);
+  }
+
+  /**
+   * @param type
+   *          "user" or "group" to list only members of that type, null for both.
+   * @see #getMembers(SlingHttpServletRequest, Group, Comparator)
+   */
+  protected TreeMap<String, Authorizable> getMembers(SlingHttpServletRequest request,
+      Group group, Comparator<String> comparator, String type) throws
+      JSONException, AccessDeniedException, StorageClientException {
     TreeMap<String, Authorizable> map = new TreeMap<String, Authorizable>(comparator);
 
     Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
@@ -258,18 +390,14 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
 
     // Only the direct members are required.
     String[] members = group.getMembers();
-    List<String> managers = Arrays.asList(StorageClientUtils.nonNullStringArray((String[]) group.getProperty(UserConstants.PROP_GROUP_MANAGERS)));
+    Set<String> managers = getManagerIds(group);
     for ( String memberName : members) {
-      Authorizable member = null;
-      try {
-        member = authorizableManager.findAuthorizable(memberName);
-      } catch (AccessDeniedException e) {
-        // this means a group has a member we're not allowed to see
-        // that's normal, and we'll just skip over it. (KERN-2302)
+      // filter this out if it is a manager member
+      if (managers.contains(memberName)) {
         continue;
       }
-      // filter this out if it is a manager member
-      if (member != null && !managers.contains(memberName)) {
+      Authorizable member = findMember(authorizableManager, memberName);
+      if (member != null && isType(member, type)) {
         String name = getName(member);
         map.put(name, member);
       }
@@ -296,6 +424,17 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
   protected TreeMap<String, Authorizable> getManagers(SlingHttpServletRequest request,
       Group group, Comparator<String> comparator) throws
       JSONException, StorageClientException, AccessDeniedException {
+    return getManagers(request, group, comparator, null);
+  }
+
+  /**
+   * @param type
+   *          "user" or "group" to list only managers of that type, null for both.
+   * @see #getManagers(SlingHttpServletRequest, Group, Comparator)
+   */
+  protected TreeMap<String, Authorizable> getManagers(SlingHttpServletRequest request,
+      Group group, Comparator<String> comparator, String type) throws
+      JSONException, StorageClientException, AccessDeniedException {
     TreeMap<String, Authorizable> map = new TreeMap<String, Authorizable>(comparator);
 
     // KERN-949 will probably change this.
@@ -305,17 +444,13 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
     AuthorizableManager authorizableManager = session.getAuthorizableManager();
 
     String[] members = group.getMembers();
-    List<String> managers = Arrays.asList(StorageClientUtils.nonNullStringArray((String[]) group.getProperty(UserConstants.PROP_GROUP_MANAGERS)));
+    Set<String> managers = getManagerIds(group);
     for  (String memberName : members) {
-      Authorizable mau = null;
-      try {
-        mau = authorizableManager.findAuthorizable(memberName);
-      } catch (AccessDeniedException e) {
-        // this means a group has a member we're not allowed to see
-        // that's normal, and we'll just skip over it. (KERN-2302)
+      if (!managers.contains(memberName)) {
         continue;
       }
-      if (mau != null && managers.contains(memberName)) {
+      Authorizable mau = findMember(authorizableManager, memberName);
+      if (mau != null && isType(mau, type)) {
         String name = getName(mau);
         map.put(name, mau);
       }
@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.counts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.apache.sling.commons.scheduler.JobContext;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.sakaiproject.nakamura.api.user.counts.CountProvider;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class CountsRefreshJobTest {
+
+  private static final Pattern CURSOR = Pattern.compile("id:\\{(\\S+) TO");
+
+  private Repository repository;
+  private Session session;
+  private ExecutorService executor;
+  private List<String> updated;
+  private CountsRefreshJob job;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = (Repository) new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+    final List<String> ids = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      session.getAuthorizableManager().createUser("user" + i, "user" + i, "password", null);
+      ids.add("user" + i);
+    }
+
+    // the stale set is every user, in id order after the cursor.
+    SolrServer server = mock(SolrServer.class);
+    when(server.query(any(SolrParams.class))).thenAnswer(new Answer<QueryResponse>() {
+      public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+        SolrQuery query = (SolrQuery) invocation.getArguments()[0];
+        Matcher m = CURSOR.matcher(query.getQuery());
+        int from = m.find() ? ids.indexOf(m.group(1)) + 1 : 0;
+        SolrDocumentList results = new SolrDocumentList();
+        results.setNumFound(ids.size() - from);
+        for (String id : ids.subList(from, Math.min(ids.size(), from + query.getRows()))) {
+          SolrDocument doc = new SolrDocument();
+          doc.addField("id", id);
+          results.add(doc);
+        }
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(results);
+        return response;
+      }
+    });
+    SolrServerService solrServerService = mock(SolrServerService.class);
+    when(solrServerService.getServer()).thenReturn(server);
+
+    updated = Collections.synchronizedList(Lists.<String> newArrayList());
+    CountProvider countProvider = mock(CountProvider.class);
+    when(countProvider.getUpdateIntervalMinutes()).thenReturn(30L);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        updated.add(((Authorizable) invocation.getArguments()[0]).getId());
+        return null;
+      }
+    }).when(countProvider).update(any(Authorizable.class), any(Session.class));
+
+    executor = Executors.newFixedThreadPool(2);
+    job = new CountsRefreshJob(repository, solrServerService, countProvider, executor, 2);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testRunUpdatesWholeStaleSet() throws Exception {
+    job.execute(jobContext(3, 240L));
+
+    assertEquals(10, updated.size());
+    assertEquals(10, new HashSet<String>(updated).size());
+    // caught up, so the next run starts from the beginning.
+    Content state = session.getContentManager().get(CountsRefreshJob.CURSOR_PATH);
+    assertNull(state.getProperty(CountsRefreshJob.CURSOR_PROP));
+  }
+
+  @Test
+  public void testStoppedRunResumes() throws Exception {
+    // no time to spare, so each run does one page.
+    job.execute(jobContext(4, 0L));
+    assertEquals(4, updated.size());
+    assertEquals("user3", session.getContentManager().get(CountsRefreshJob.CURSOR_PATH)
+        .getProperty(CountsRefreshJob.CURSOR_PROP));
+
+    job.execute(jobContext(4, 0L));
+    assertEquals(8, updated.size());
+    assertEquals(Lists.newArrayList("user4", "user5", "user6", "user7"), Lists
+        .newArrayList(new TreeSet<String>(updated.subList(4, 8))));
+  }
+
+  private JobContext jobContext(int batchSize, long maxRunSeconds) {
+    JobContext context = mock(JobContext.class);
+    Map<String, Serializable> config = ImmutableMap.<String, Serializable> of(
+        CountsRefreshScheduler.PROP_UPDATE_BATCH_SIZE, batchSize,
+        CountsRefreshScheduler.PROP_MAX_RUN_SECONDS, maxRunSeconds);
+    when(context.getConfiguration()).thenReturn(config);
+    return context;
+  }
+}
@@ -0,0 +1,235 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.lite.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+public class LiteGroupMemberServletTest {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(LiteGroupMemberServletTest.class);
+
+  private static final int MEMBERS = 100000;
+
+  private SlingHttpServletRequest request;
+  private AuthorizableManager authorizableManager;
+  private LiteGroupMemberServlet servlet;
+  private Group group;
+
+  @Before
+  public void setUp() throws Exception {
+    // a course sized group, every tenth member is a group, with one duplicate entry.
+    String[] members = new String[MEMBERS + 1];
+    for (int i = 0; i < MEMBERS; i++) {
+      members[i] = String.format("%s%06d", i % 10 == 0 ? "g-" : "user", i);
+    }
+    members[MEMBERS] = members[0];
+    group = mock(Group.class);
+    when(group.getId()).thenReturn("g-course101");
+    when(group.getMembers()).thenReturn(members);
+
+    authorizableManager = mock(AuthorizableManager.class);
+    when(authorizableManager.findAuthorizable(anyString())).thenAnswer(
+        new Answer<Authorizable>() {
+          public Authorizable answer(InvocationOnMock invocation) throws Throwable {
+            String id = (String) invocation.getArguments()[0];
+            if (id.startsWith("g-")) {
+              return new Group(ImmutableMap.of(Group.ID_FIELD, (Object) id,
+                  "sakai:group-title", id));
+            }
+            return new User(ImmutableMap.of(User.ID_FIELD, (Object) id, "lastName", id));
+          }
+        });
+    Session session = mock(Session.class);
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+    javax.jcr.Session jcrSession = Mockito.mock(javax.jcr.Session.class, Mockito
+        .withSettings().extraInterfaces(SessionAdaptable.class));
+    when(((SessionAdaptable) jcrSession).getSession()).thenReturn(session);
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jcrSession);
+
+    Resource resource = mock(Resource.class);
+    when(resource.adaptTo(Authorizable.class)).thenReturn(group);
+    RequestPathInfo pathInfo = mock(RequestPathInfo.class);
+    when(pathInfo.getSelectors()).thenReturn(new String[] { "members" });
+    request = mock(SlingHttpServletRequest.class);
+    when(request.getResource()).thenReturn(resource);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(request.getRequestPathInfo()).thenReturn(pathInfo);
+
+    BasicUserInfoService basicUserInfoService = mock(BasicUserInfoService.class);
+    when(basicUserInfoService.getProperties(any(Authorizable.class))).thenAnswer(
+        new Answer<Map<String, Object>>() {
+          public Map<String, Object> answer(InvocationOnMock invocation) throws Throwable {
+            Authorizable au = (Authorizable) invocation.getArguments()[0];
+            return ImmutableMap.<String, Object> of(au.isGroup() ? "groupid" : "userid",
+                au.getId());
+          }
+        });
+    servlet = new LiteGroupMemberServlet();
+    servlet.basicUserInfoService = basicUserInfoService;
+  }
+
+  @Test
+  public void testPagesById() throws Exception {
+    when(request.getParameter(LiteGroupMemberServlet.SORT_ON)).thenReturn("id");
+    when(request.getParameter(LiteGroupMemberServlet.ITEMS)).thenReturn("3");
+    JSONArray first = get();
+    assertEquals(3, first.length());
+    assertEquals("g-000000", first.getJSONObject(0).getString("groupid"));
+    assertEquals("g-000010", first.getJSONObject(1).getString("groupid"));
+
+    // the groups sort first, resume after the last of them.
+    when(request.getParameter(LiteGroupMemberServlet.AFTER)).thenReturn("g-099990");
+    JSONArray second = get();
+    assertEquals(3, second.length());
+    assertEquals("user000001", second.getJSONObject(0).getString("userid"));
+
+    // only the members written were loaded.
+    verify(authorizableManager, times(6)).findAuthorizable(anyString());
+  }
+
+  @Test
+  public void testTypeFilterWhenSortingOnName() throws Exception {
+    when(request.getParameter(LiteGroupMemberServlet.ITEMS)).thenReturn("5");
+    when(request.getParameter(LiteGroupMemberServlet.TYPE)).thenReturn("group");
+    JSONArray page = get();
+    assertEquals(5, page.length());
+    for (int i = 0; i < page.length(); i++) {
+      assertTrue(page.getJSONObject(i).has("groupid"));
+    }
+  }
+
+  @Test
+  public void testPagingLargeGroup() throws Exception {
+    when(request.getParameter(LiteGroupMemberServlet.ITEMS)).thenReturn("25");
+    when(request.getParameter(LiteGroupMemberServlet.PAGE)).thenReturn("100");
+    long start = System.nanoTime();
+    JSONArray byName = get();
+    long nameMillis = (System.nanoTime() - start) / 1000000;
+
+    when(request.getParameter(LiteGroupMemberServlet.PAGE)).thenReturn(null);
+    when(request.getParameter(LiteGroupMemberServlet.SORT_ON)).thenReturn("id");
+    when(request.getParameter(LiteGroupMemberServlet.AFTER)).thenReturn("user050000");
+    start = System.nanoTime();
+    JSONArray byId = get();
+    long idMillis = (System.nanoTime() - start) / 1000000;
+
+    LOGGER.info("A page of a {} member group took {} ms sorted on name, {} ms by id",
+        new Object[] { MEMBERS, nameMillis, idMillis });
+    assertEquals(25, byName.length());
+    assertEquals(25, byId.length());
+    assertEquals("user050001", byId.getJSONObject(0).getString("userid"));
+  }
+
+  @Test
+  public void testSortedIdsAreReusedUntilTheGroupChanges() throws Exception {
+    when(group.getId()).thenReturn("g-sorted-once");
+    when(group.getProperty(Authorizable.LASTMODIFIED_FIELD)).thenReturn(1000L);
+    when(request.getParameter(LiteGroupMemberServlet.SORT_ON)).thenReturn("id");
+    when(request.getParameter(LiteGroupMemberServlet.ITEMS)).thenReturn("3");
+    get();
+    when(request.getParameter(LiteGroupMemberServlet.AFTER)).thenReturn("user050000");
+    assertEquals("user050001", get().getJSONObject(0).getString("userid"));
+    verify(group, times(1)).getMembers();
+
+    // a change to the group gives it a new modification time.
+    when(group.getProperty(Authorizable.LASTMODIFIED_FIELD)).thenReturn(2000L);
+    get();
+    verify(group, times(2)).getMembers();
+  }
+
+  @Test
+  public void testResumesAfterAnIdInDescendingOrder() throws Exception {
+    when(request.getParameter(LiteGroupMemberServlet.SORT_ON)).thenReturn("id");
+    RequestParameter descending = mock(RequestParameter.class);
+    when(descending.getString()).thenReturn("descending");
+    when(request.getRequestParameter("sortOrder")).thenReturn(descending);
+    when(request.getParameter(LiteGroupMemberServlet.ITEMS)).thenReturn("2");
+    when(request.getParameter(LiteGroupMemberServlet.AFTER)).thenReturn("user000003");
+    JSONArray page = get();
+    assertEquals("user000002", page.getJSONObject(0).getString("userid"));
+    assertEquals("user000001", page.getJSONObject(1).getString("userid"));
+
+    // an id that is not a member resumes where it would have been.
+    when(request.getParameter(LiteGroupMemberServlet.AFTER)).thenReturn("user0000025");
+    assertEquals("user000002", get().getJSONObject(0).getString("userid"));
+  }
+
+  @Test
+  public void testPageIsRejectedWhenSortingOnId() throws Exception {
+    when(request.getParameter(LiteGroupMemberServlet.SORT_ON)).thenReturn("id");
+    when(request.getParameter(LiteGroupMemberServlet.PAGE)).thenReturn("2");
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+    servlet.doGet(request, response);
+    verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+  }
+
+  @Test
+  public void testInvalidItemsFallsBackToTheDefault() throws Exception {
+    when(request.getParameter(LiteGroupMemberServlet.ITEMS)).thenReturn("lots");
+    assertEquals(LiteGroupMemberServlet.DEFAULT_ITEMS, get().length());
+  }
+
+  private JSONArray get() throws Exception {
+    StringWriter body = new StringWriter();
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(body));
+    servlet.doGet(request, response);
+    return new JSONArray(body.toString());
+  }
+}
@@ -26,6 +26,7 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -66,6 +67,9 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
   @Reference
   protected BasicUserInfoService basicUserInfoService;
 
+  @Reference
+  protected SparseVersionSummaries versionSummaries;
+
   /**
    *
    */
@@ -82,11 +86,19 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
    *
    */
   private static final String JSON_VERSIONS = "versions";
+  /**
+   * The version to pass as {@link #PARAMS_BEFORE} for the next page.
+   */
+  private static final String JSON_NEXT = "next";
   public static final String PARAMS_ITEMS_PER_PAGE = JSON_ITEMS;
   /**
   *
   */
   public static final String PARAMS_PAGE = "page";
+  /**
+   * List the versions older than this version id rather than by page number.
+   */
+  public static final String PARAMS_BEFORE = "before";
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SparseListVersionsServletHandler.class);
 
@@ -106,13 +118,19 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
       }
       path = content.getPath();
       int nitems = intRequestParameter(request, PARAMS_ITEMS_PER_PAGE, 25);
-      int offset = intRequestParameter(request, PARAMS_PAGE, 0) * nitems;
 
-      List<String> versionList = contentManager.getVersionHistory(path);
-      int total = versionList.size();
-      int start = Math.min(offset, total);
-      int end = Math.min(start+nitems, total);
-      nitems = end - start;
+      RequestParameter before = request.getRequestParameter(PARAMS_BEFORE);
+      SparseVersionSummaries.Page page;
+      try {
+        // continue after the last version of the previous page, the newest versions come
+        // first.
+        page = versionSummaries.getPage(content, before == null ? null : before.getString(),
+            intRequestParameter(request, PARAMS_PAGE, 0) * nitems, nitems, contentManager);
+      } catch (IllegalArgumentException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        return;
+      }
+      List<JSONObject> versions = page.getVersions();
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
@@ -124,40 +142,49 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
       write.key(JSON_PATH);
       write.value(path);
       write.key(JSON_ITEMS);
-      write.value(nitems);
+      write.value(versions.size());
       write.key(JSON_TOTAL);
-      write.value(total);
+      write.value(page.getTotal());
+      if (!versions.isEmpty()) {
+        JSONObject last = versions.get(versions.size() - 1);
+        if (last.getLong(SparseVersionSummaries.INDEX) > 0) {
+          write.key(JSON_NEXT);
+          write.value(last.get(SparseVersionSummaries.VERSION_ID));
+        }
+      }
       write.key(JSON_VERSIONS);
       write.object();
 
       Set<String> users = Sets.newHashSet();
-      for (int j = start; j < end ; j++) {
-        write.key("1."+(versionList.size()-j-1));
+      for (JSONObject summary : versions) {
+        write.key("1." + summary.getLong(SparseVersionSummaries.INDEX));
         write.object();
-        write.key("versionId");
-        String versionId = versionList.get(j);
-        write.value(versionId);
-        Content vContent = contentManager.getVersion(path, versionId);
+        write.key(SparseVersionSummaries.VERSION_ID);
+        write.value(summary.get(SparseVersionSummaries.VERSION_ID));
         write.key(Content.CREATED_FIELD);
-        write.value(vContent.getProperty(Content.CREATED_FIELD));
+        write.value(summary.opt(Content.CREATED_FIELD));
         write.key(Content.LASTMODIFIED_BY_FIELD);
-        write.value(vContent.getProperty(Content.LASTMODIFIED_BY_FIELD));
+        write.value(summary.opt(Content.LASTMODIFIED_BY_FIELD));
         write.key(Content.VERSION_NUMBER_FIELD);
-        write.value(vContent.getProperty(Content.VERSION_NUMBER_FIELD));
+        write.value(summary.opt(Content.VERSION_NUMBER_FIELD));
+        if (summary.has(SparseVersionSummaries.SIZE)) {
+          write.key(SparseVersionSummaries.SIZE);
+          write.value(summary.get(SparseVersionSummaries.SIZE));
+        }
 
-        if (vContent.hasProperty(FilesConstants.POOLED_CONTENT_FILENAME)) {
+        if (summary.has(FilesConstants.POOLED_CONTENT_FILENAME)) {
           write.key(FilesConstants.POOLED_CONTENT_FILENAME);
-          write.value(vContent.getProperty(FilesConstants.POOLED_CONTENT_FILENAME));
+          write.value(summary.get(FilesConstants.POOLED_CONTENT_FILENAME));
         }
-        if (vContent.hasProperty(FilesConstants.POOLED_CONTENT_CREATED_FOR)) {
+        if (summary.has(FilesConstants.POOLED_CONTENT_CREATED_FOR)) {
           write.key(FilesConstants.POOLED_CONTENT_CREATED_FOR);
-          write.value(vContent.getProperty(FilesConstants.POOLED_CONTENT_CREATED_FOR));
+          write.value(summary.get(FilesConstants.POOLED_CONTENT_CREATED_FOR));
           // collect users for output after revisions
-          users.add((String) vContent.getProperty(FilesConstants.POOLED_CONTENT_CREATED_FOR));
-        } else {
+          users.add(summary.getString(FilesConstants.POOLED_CONTENT_CREATED_FOR));
+        } else if (summary.has(Content.LASTMODIFIED_BY_FIELD)) {
           // collect users for output after revisions
           // POOLED_CONTENT_CREATED_FOR won't exist for pages so we use LASTMODIFIED_BY instead
-          users.add((String) vContent.getProperty(Content.LASTMODIFIED_BY_FIELD));
+          users.add(summary.getString(Content.LASTMODIFIED_BY_FIELD));
         }
         write.endObject();
       }
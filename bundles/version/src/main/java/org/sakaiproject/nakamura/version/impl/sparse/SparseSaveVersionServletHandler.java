@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.version.impl.sparse;
 import com.google.common.collect.Maps;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -55,6 +56,9 @@ public class SparseSaveVersionServletHandler extends AbstractAllMethodsServletRe
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SparseSaveVersionServletHandler.class);
 
+  @Reference
+  protected SparseVersionSummaries versionSummaries;
+
   /**
    * {@inheritDoc}
    * 
@@ -80,6 +84,13 @@ public class SparseSaveVersionServletHandler extends AbstractAllMethodsServletRe
 
       String versionId  = contentManager.saveVersion(content.getPath(), versionMetadata);
       Content savedVersion = contentManager.getVersion(content.getPath(), versionId);
+      try {
+        versionSummaries.putSummary(content.getPath(), versionId, savedVersion);
+      } catch (StorageClientException e) {
+        // the version is saved, listing it falls back to the history.
+        LOGGER.warn("Failed to summarize version " + versionId + " of "
+            + content.getPath(), e);
+      }
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
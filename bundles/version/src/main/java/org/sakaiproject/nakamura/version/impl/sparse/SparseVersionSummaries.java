@@ -0,0 +1,415 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.version.impl.sparse;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps a compact summary of every saved version of a content item, so a page of the
+ * version history can be listed without loading every version. Summaries are written when
+ * a version is saved into chunks of {@link #CHUNK_SIZE} versions, oldest first, so a page
+ * is read in a get or two whatever its position in the history. A head node holds the
+ * newest version and the number of versions, and a small node per version holds its
+ * position so a page can start after any version.
+ *
+ * Summaries are only readable by the administrator. They are listed for the content as
+ * read by the requesting user, so whoever can read the content now can list its versions
+ * and nobody else can.
+ *
+ * Versions saved some other way leave the summaries behind the content. They are then
+ * not used, the history is listed from the versions themselves and the summaries are
+ * rebuilt on the next save.
+ */
+@Component(immediate = true)
+@Service(value = SparseVersionSummaries.class)
+public class SparseVersionSummaries {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SparseVersionSummaries.class);
+
+  /**
+   * The summaries of a content item are stored under the path of the content below this
+   * path.
+   */
+  static final String SUMMARY_ROOT = "/var/versions/summaries";
+
+  /**
+   * The number of summaries in a chunk.
+   */
+  static final int CHUNK_SIZE = 25;
+
+  public static final String VERSION_ID = "versionId";
+  public static final String SIZE = "size";
+  /**
+   * The position of the version in the history, 0 for the oldest.
+   */
+  public static final String INDEX = "index";
+
+  /**
+   * On a chunk, the summaries as JSON ordered by their {@link #INDEX}.
+   */
+  static final String SUMMARIES = "summaries";
+  /**
+   * On the head node, the id of the newest summarized version and the number of versions.
+   */
+  static final String LATEST = "latest";
+  static final String COUNT = "count";
+
+  /**
+   * Set by sparse on content and on each version to the id of the version saved before.
+   */
+  static final String PREVIOUS_VERSION_FIELD = "_previousVersion";
+
+  private static final String[] SUMMARY_FIELDS = { Content.CREATED_FIELD,
+      Content.LASTMODIFIED_BY_FIELD, Content.VERSION_NUMBER_FIELD,
+      FilesConstants.POOLED_CONTENT_FILENAME, FilesConstants.POOLED_CONTENT_CREATED_FOR };
+
+  @Reference
+  protected Repository repository;
+
+  /**
+   * A page of the version history, newest first.
+   */
+  public static class Page {
+    private final int total;
+    private final List<JSONObject> versions;
+
+    Page(int total, List<JSONObject> versions) {
+      this.total = total;
+      this.versions = versions;
+    }
+
+    /**
+     * @return the number of versions in the history.
+     */
+    public int getTotal() {
+      return total;
+    }
+
+    /**
+     * @return the summaries on this page, each with its {@link #INDEX}.
+     */
+    public List<JSONObject> getVersions() {
+      return versions;
+    }
+  }
+
+  /**
+   * Get a page of the version history of a content item.
+   *
+   * @param content
+   *          the versioned content as read by the requesting user, having read it is what
+   *          allows the summaries to be listed.
+   * @param before
+   *          list the versions saved before this version id, or null to start at
+   *          <code>start</code>.
+   * @param start
+   *          how many of the newest versions to skip, when <code>before</code> is null.
+   * @param nitems
+   *          the maximum number of versions on the page.
+   * @param contentManager
+   *          the requesting user's content manager.
+   * @throws IllegalArgumentException
+   *           if <code>before</code> is not a version of the content.
+   */
+  public Page getPage(Content content, String before, int start, int nitems,
+      ContentManager contentManager) throws StorageClientException, AccessDeniedException {
+    String latest = (String) content.getProperty(PREVIOUS_VERSION_FIELD);
+    if (latest == null) {
+      return new Page(0, Collections.<JSONObject> emptyList());
+    }
+    String path = content.getPath();
+    Session session = repository.loginAdministrative();
+    try {
+      ContentManager adminContentManager = session.getContentManager();
+      Content head = adminContentManager.get(getSummaryPath(path));
+      if (head != null && latest.equals(head.getProperty(LATEST))) {
+        Page page = readPage(path, head, before, start, nitems, adminContentManager);
+        if (page != null) {
+          return page;
+        }
+      }
+    } finally {
+      logout(session);
+    }
+    return listPage(path, before, start, nitems, contentManager);
+  }
+
+  /**
+   * @return the page from the stored summaries, or null if a summary is missing.
+   */
+  private Page readPage(String path, Content head, String before, int start, int nitems,
+      ContentManager adminContentManager) throws StorageClientException,
+      AccessDeniedException {
+    int total = (int) StorageClientUtils.toLong(head.getProperty(COUNT));
+    long newest;
+    if (before != null) {
+      Content position = adminContentManager.get(getSummaryPath(path, before));
+      if (position == null) {
+        // either not a version or not summarized, the history will tell.
+        return null;
+      }
+      newest = StorageClientUtils.toLong(position.getProperty(INDEX)) - 1;
+      if (newest >= total - 1) {
+        // left over from an older history.
+        return null;
+      }
+    } else {
+      newest = (long) total - 1 - start;
+    }
+    List<JSONObject> versions = Lists.newArrayList();
+    long oldest = Math.max(0, newest - nitems + 1);
+    String[] chunk = null;
+    long chunkNumber = -1;
+    for (long index = newest; index >= oldest; index--) {
+      if (index / CHUNK_SIZE != chunkNumber) {
+        chunkNumber = index / CHUNK_SIZE;
+        chunk = getChunk(adminContentManager, path, chunkNumber);
+      }
+      int offset = (int) (index % CHUNK_SIZE);
+      if (offset >= chunk.length || chunk[offset] == null || chunk[offset].length() == 0) {
+        return null;
+      }
+      try {
+        versions.add(new JSONObject(chunk[offset]));
+      } catch (JSONException e) {
+        LOGGER.warn("Summary {} of {} is unreadable: {}",
+            new Object[] { index, path, e.getMessage() });
+        return null;
+      }
+    }
+    return new Page(total, versions);
+  }
+
+  /**
+   * List the page from the versions themselves.
+   */
+  private Page listPage(String path, String before, int start, int nitems,
+      ContentManager contentManager) throws StorageClientException, AccessDeniedException {
+    List<String> history = contentManager.getVersionHistory(path);
+    int total = history.size();
+    if (before != null) {
+      start = history.indexOf(before) + 1;
+      if (start == 0) {
+        throw new IllegalArgumentException("Unknown version " + before);
+      }
+    }
+    start = Math.min(start, total);
+    int end = Math.min(start + nitems, total);
+    List<JSONObject> versions = Lists.newArrayList();
+    for (int i = start; i < end; i++) {
+      Content version = contentManager.getVersion(path, history.get(i));
+      if (version != null) {
+        JSONObject summary = summarize(history.get(i), version);
+        putIndex(summary, total - i - 1);
+        versions.add(summary);
+      }
+    }
+    return new Page(total, versions);
+  }
+
+  /**
+   * Store the summary of a version that has just been saved. If the stored summaries do
+   * not end at the version before it they are rebuilt from the history.
+   */
+  public void putSummary(String path, String versionId, Content version)
+      throws StorageClientException, AccessDeniedException {
+    Session session = repository.loginAdministrative();
+    try {
+      ContentManager adminContentManager = session.getContentManager();
+      String headPath = getSummaryPath(path);
+      Content head = adminContentManager.get(headPath);
+      String previous = (String) version.getProperty(PREVIOUS_VERSION_FIELD);
+      long count;
+      if (previous == null && head == null) {
+        count = 0;
+      } else if (previous != null && head != null
+          && previous.equals(head.getProperty(LATEST))) {
+        count = StorageClientUtils.toLong(head.getProperty(COUNT));
+      } else {
+        // the newest first, starting with the version just saved.
+        List<String> history = adminContentManager.getVersionHistory(path);
+        count = rebuild(path, history.subList(Math.min(1, history.size()), history.size()),
+            adminContentManager);
+      }
+      String[] chunk = getChunk(adminContentManager, path, count / CHUNK_SIZE);
+      int offset = (int) (count % CHUNK_SIZE);
+      if (chunk.length <= offset) {
+        chunk = Arrays.copyOf(chunk, offset + 1);
+        Arrays.fill(chunk, offset, chunk.length, "");
+      }
+      chunk[offset] = toSummary(versionId, version, count);
+      putChunk(adminContentManager, path, count / CHUNK_SIZE, chunk);
+      putPosition(adminContentManager, path, versionId, count);
+      if (head == null) {
+        head = new Content(headPath, null);
+        denyAll(session, headPath);
+      }
+      head.setProperty(LATEST, versionId);
+      head.setProperty(COUNT, count + 1);
+      adminContentManager.update(head);
+    } finally {
+      logout(session);
+    }
+  }
+
+  /**
+   * Summarize the versions of a history, newest first.
+   *
+   * @return the number of versions summarized.
+   */
+  private long rebuild(String path, List<String> history,
+      ContentManager adminContentManager) throws StorageClientException,
+      AccessDeniedException {
+    List<String> summaries = Lists.newArrayList();
+    for (String versionId : Lists.reverse(history)) {
+      Content version = adminContentManager.getVersion(path, versionId);
+      if (version != null) {
+        putPosition(adminContentManager, path, versionId, summaries.size());
+        summaries.add(toSummary(versionId, version, summaries.size()));
+      }
+    }
+    for (int from = 0; from < summaries.size(); from += CHUNK_SIZE) {
+      List<String> chunk = summaries.subList(from, Math.min(from + CHUNK_SIZE,
+          summaries.size()));
+      putChunk(adminContentManager, path, from / CHUNK_SIZE,
+          chunk.toArray(new String[chunk.size()]));
+    }
+    LOGGER.info("Rebuilt the {} version summaries of {}", summaries.size(), path);
+    return summaries.size();
+  }
+
+  /**
+   * @return the summaries in a chunk, empty if it has not been written.
+   */
+  private String[] getChunk(ContentManager adminContentManager, String path, long number)
+      throws StorageClientException, AccessDeniedException {
+    Content chunk = adminContentManager.get(getChunkPath(path, number));
+    if (chunk == null || !chunk.hasProperty(SUMMARIES)) {
+      return new String[0];
+    }
+    return StorageClientUtils.nonNullStringArray((String[]) chunk.getProperty(SUMMARIES));
+  }
+
+  private void putChunk(ContentManager adminContentManager, String path, long number,
+      String[] summaries) throws StorageClientException, AccessDeniedException {
+    adminContentManager.update(new Content(getChunkPath(path, number), ImmutableMap
+        .<String, Object> of(SUMMARIES, summaries)));
+  }
+
+  private void putPosition(ContentManager adminContentManager, String path,
+      String versionId, long index) throws StorageClientException, AccessDeniedException {
+    adminContentManager.update(new Content(getSummaryPath(path, versionId), ImmutableMap
+        .<String, Object> of(INDEX, index)));
+  }
+
+  /**
+   * Only the administrator reads summaries, they are listed for content the user has read.
+   */
+  private void denyAll(Session session, String headPath) throws StorageClientException,
+      AccessDeniedException {
+    session.getAccessControlManager().setAcl(Security.ZONE_CONTENT, headPath,
+        new AclModification[] {
+            new AclModification(AclModification.denyKey(Group.EVERYONE),
+                Permissions.ALL.getPermission(), Operation.OP_REPLACE),
+            new AclModification(AclModification.denyKey(User.ANON_USER),
+                Permissions.ALL.getPermission(), Operation.OP_REPLACE) });
+  }
+
+  private void logout(Session session) {
+    try {
+      session.logout();
+    } catch (ClientPoolException e) {
+      LOGGER.warn(e.getMessage(), e);
+    }
+  }
+
+  static String getSummaryPath(String path) {
+    return StorageClientUtils.newPath(SUMMARY_ROOT, path);
+  }
+
+  static String getSummaryPath(String path, String versionId) {
+    // version ids may contain a slash.
+    return StorageClientUtils.newPath(getSummaryPath(path), "versions/"
+        + versionId.replace("%", "%25").replace("/", "%2F"));
+  }
+
+  static String getChunkPath(String path, long number) {
+    return StorageClientUtils.newPath(getSummaryPath(path), "chunks/" + number);
+  }
+
+  static JSONObject summarize(String versionId, Content version) {
+    JSONObject summary = new JSONObject();
+    try {
+      summary.put(VERSION_ID, versionId);
+      for (String field : SUMMARY_FIELDS) {
+        if (version.hasProperty(field)) {
+          summary.put(field, version.getProperty(field));
+        }
+      }
+      if (version.hasProperty(Content.LENGTH_FIELD)) {
+        summary.put(SIZE, StorageClientUtils.toLong(version.getProperty(Content.LENGTH_FIELD)));
+      }
+    } catch (JSONException e) {
+      // only thrown for null keys or non finite numbers.
+      LOGGER.warn(e.getMessage(), e);
+    }
+    return summary;
+  }
+
+  private static String toSummary(String versionId, Content version, long index) {
+    JSONObject summary = summarize(versionId, version);
+    putIndex(summary, index);
+    return summary.toString();
+  }
+
+  private static void putIndex(JSONObject summary, long index) {
+    try {
+      summary.put(INDEX, index);
+    } catch (JSONException e) {
+      LOGGER.warn(e.getMessage(), e);
+    }
+  }
+}
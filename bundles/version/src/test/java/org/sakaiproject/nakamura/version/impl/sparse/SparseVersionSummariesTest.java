@@ -0,0 +1,192 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.version.impl.sparse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.List;
+
+public class SparseVersionSummariesTest {
+
+  private static final String PATH = "pooled1";
+
+  private Repository repository;
+  private Session session;
+  private ContentManager contentManager;
+  private SparseVersionSummaries versionSummaries;
+  private int saved;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = (Repository) new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+    contentManager = session.getContentManager();
+    versionSummaries = new SparseVersionSummaries();
+    versionSummaries.repository = repository;
+    for (int i = 0; i < 3; i++) {
+      saveVersion(true);
+    }
+  }
+
+  private String saveVersion(boolean summarize) throws Exception {
+    contentManager.update(new Content(PATH, ImmutableMap.<String, Object> of(
+        FilesConstants.POOLED_CONTENT_FILENAME, "file" + saved++ + ".txt")));
+    String versionId = contentManager.saveVersion(PATH);
+    if (summarize) {
+      versionSummaries.putSummary(PATH, versionId, contentManager.getVersion(PATH,
+          versionId));
+    }
+    return versionId;
+  }
+
+  @Test
+  public void testPagesAreReadFromSummaries() throws Exception {
+    ContentManager reader = spy(contentManager);
+    SparseVersionSummaries.Page page = versionSummaries.getPage(contentManager.get(PATH),
+        null, 0, 2, reader);
+    assertEquals(3, page.getTotal());
+    List<JSONObject> versions = page.getVersions();
+    assertEquals(2, versions.size());
+    // the newest version comes first.
+    assertEquals("file2.txt", versions.get(0).getString(
+        FilesConstants.POOLED_CONTENT_FILENAME));
+    assertEquals(2, versions.get(0).getLong(SparseVersionSummaries.INDEX));
+    assertEquals(1, versions.get(1).getLong(SparseVersionSummaries.INDEX));
+
+    page = versionSummaries.getPage(contentManager.get(PATH), versions.get(1).getString(
+        SparseVersionSummaries.VERSION_ID), 0, 2, reader);
+    assertEquals(1, page.getVersions().size());
+    assertEquals("file0.txt", page.getVersions().get(0).getString(
+        FilesConstants.POOLED_CONTENT_FILENAME));
+    assertEquals(0, page.getVersions().get(0).getLong(SparseVersionSummaries.INDEX));
+
+    verify(reader, never()).getVersionHistory(anyString());
+    verify(reader, never()).getVersion(anyString(), anyString());
+  }
+
+  @Test
+  public void testVersionSavedElsewhereIsListedAndSummarizedOnNextSave()
+      throws Exception {
+    saveVersion(false);
+    SparseVersionSummaries.Page page = versionSummaries.getPage(contentManager.get(PATH),
+        null, 0, 10, contentManager);
+    assertEquals(4, page.getTotal());
+    assertEquals("file3.txt", page.getVersions().get(0).getString(
+        FilesConstants.POOLED_CONTENT_FILENAME));
+
+    saveVersion(true);
+    ContentManager reader = spy(contentManager);
+    page = versionSummaries.getPage(contentManager.get(PATH), null, 0, 10, reader);
+    assertEquals(5, page.getTotal());
+    assertEquals(5, page.getVersions().size());
+    assertEquals("file3.txt", page.getVersions().get(1).getString(
+        FilesConstants.POOLED_CONTENT_FILENAME));
+    verify(reader, never()).getVersionHistory(anyString());
+  }
+
+  @Test
+  public void testUnknownVersionIsRejected() throws Exception {
+    try {
+      versionSummaries.getPage(contentManager.get(PATH), "no-such-version", 0, 10,
+          contentManager);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testDeepPageReadsOnlyItsChunks() throws Exception {
+    while (saved < 3 * SparseVersionSummaries.CHUNK_SIZE) {
+      saveVersion(true);
+    }
+    Session adminSession = mock(Session.class);
+    ContentManager adminContentManager = spy(contentManager);
+    when(adminSession.getContentManager()).thenReturn(adminContentManager);
+    versionSummaries.repository = mock(Repository.class);
+    when(versionSummaries.repository.loginAdministrative()).thenReturn(adminSession);
+
+    // the third page of 20 runs from index 34 to 15, across the first two chunks.
+    SparseVersionSummaries.Page page = versionSummaries.getPage(contentManager.get(PATH),
+        null, 40, 20, contentManager);
+    assertEquals(75, page.getTotal());
+    assertEquals(20, page.getVersions().size());
+    assertEquals(34, page.getVersions().get(0).getLong(SparseVersionSummaries.INDEX));
+    assertEquals(15, page.getVersions().get(19).getLong(SparseVersionSummaries.INDEX));
+    assertEquals("file15.txt", page.getVersions().get(19).getString(
+        FilesConstants.POOLED_CONTENT_FILENAME));
+    // the head and two chunks, whatever the page number.
+    verify(adminContentManager, times(3)).get(anyString());
+  }
+
+  @Test
+  public void testSummariesAreOnlyListedForReadableContent() throws Exception {
+    session.getAccessControlManager().setAcl(Security.ZONE_CONTENT, PATH,
+        new AclModification[] { new AclModification(AclModification.grantKey(User.ANON_USER),
+            Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+    Session anon = repository.login();
+    assertNotNull(anon.getContentManager().get(PATH));
+    try {
+      anon.getContentManager().get(SparseVersionSummaries.getSummaryPath(PATH));
+      fail("Summaries are only read by the administrator");
+    } catch (AccessDeniedException e) {
+      // expected
+    }
+
+    // revoked after the summaries were written.
+    session.getAccessControlManager().setAcl(Security.ZONE_CONTENT, PATH,
+        new AclModification[] { new AclModification(AclModification.denyKey(User.ANON_USER),
+            Permissions.ALL.getPermission(), Operation.OP_REPLACE),
+            new AclModification(AclModification.grantKey(User.ANON_USER),
+                Permissions.CAN_READ.getPermission(), Operation.OP_DEL) });
+    anon = repository.login();
+    try {
+      anon.getContentManager().get(PATH);
+      fail("Anonymous can't read the content so must not list its versions");
+    } catch (AccessDeniedException e) {
+      // expected
+    }
+  }
+}
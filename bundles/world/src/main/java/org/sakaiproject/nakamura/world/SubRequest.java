@@ -68,9 +68,17 @@ public class SubRequest {
     }
   }
 
+  /**
+   * @throws ServletException
+   *           if the request failed, so that what was built so far is rolled back.
+   */
   public void doForward() throws IOException, ServletException, JSONException {
     this.request.getRequestDispatcher(this.requestInfo.getUrl()).forward(this.requestWrapper, this.responseWrapper);
     writeResponse(this.write, this.responseWrapper, this.requestInfo);
+    int status = this.responseWrapper.getResponseStatus();
+    if (status >= 400) {
+      throw new ServletException("Request to " + this.requestInfo.getUrl() + " failed with status " + status);
+    }
   }
 
   public String getBody() throws UnsupportedEncodingException {
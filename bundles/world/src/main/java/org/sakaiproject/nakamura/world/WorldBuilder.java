@@ -0,0 +1,499 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.world;
+
+import static org.sakaiproject.nakamura.api.user.UserConstants.GROUP_MEMBERSHIPS_PROP;
+import static org.sakaiproject.nakamura.api.user.UserConstants.GROUP_MEMBERS_PROP;
+import static org.sakaiproject.nakamura.api.user.UserConstants.PROP_GROUP_MANAGERS;
+import static org.sakaiproject.nakamura.api.user.UserConstants.PROP_GROUP_VIEWERS;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.servlets.post.ModificationType;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.user.AuthorizableCountChanger;
+import org.sakaiproject.nakamura.api.user.LiteAuthorizablePostProcessService;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.util.osgi.EventUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Builds the groups of a world in process. The group data is the same JSON the world
+ * creation steps used to post to the group servlets, but it is applied directly through
+ * the {@link AuthorizableManager}: changes to a group are staged and each group is written
+ * once per {@link Build#flush()}, the authorizable post processors run as they would after
+ * the servlets. A build that fails is rolled back by deleting what it created.
+ *
+ * The build writes with an administrative session, so it checks what the servlets would
+ * have: the creator may create groups, group names are not reserved and only groups the
+ * creator manages, or that the build created, are updated.
+ */
+@Component(metatype = true)
+@Service(value = WorldBuilder.class)
+public class WorldBuilder {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WorldBuilder.class);
+
+  private static final String MEMBER = ":member";
+  private static final String MANAGER = ":manager";
+  private static final String VIEWER = ":viewer";
+  private static final String DELETE = "@Delete";
+  private static final String TYPE_HINT = "@TypeHint";
+  /**
+   * KERN-763 - ids starting with this are reserved for the contact groups.
+   */
+  private static final String CONTACTS_PREFIX = "g-contacts-";
+
+  @Property(value = "authenticated,everyone", label = "Groups allowed to create worlds", description = "Comma separated list of groups whose members may create worlds, as for group creation. Administrators always can.")
+  public static final String GROUP_AUTHORISED_TOCREATE = "groups.authorized.tocreate";
+
+  @Reference
+  protected Repository repository;
+
+  @Reference
+  protected LiteAuthorizablePostProcessService postProcessorService;
+
+  @Reference
+  protected AuthorizableCountChanger authorizableCountChanger;
+
+  @Reference
+  protected EventAdmin eventAdmin;
+
+  private Set<String> authorizedGroups = ImmutableSet.of();
+
+  @Activate
+  @Modified
+  protected void modified(Map<?, ?> props) {
+    String[] groups = PropertiesUtil.toStringArray(props.get(GROUP_AUTHORISED_TOCREATE),
+        new String[] { "authenticated,everyone" });
+    Set<String> authorized = Sets.newHashSet();
+    for (String group : groups) {
+      for (String groupId : group.split(",")) {
+        if (groupId.trim().length() > 0) {
+          authorized.add(groupId.trim());
+        }
+      }
+    }
+    authorizedGroups = ImmutableSet.copyOf(authorized);
+  }
+
+  /**
+   * Start building a world for <code>creatorId</code>.
+   *
+   * @throws AccessDeniedException
+   *           if the creator may not create groups.
+   */
+  public Build begin(String creatorId) throws StorageClientException,
+      AccessDeniedException {
+    Session session = repository.loginAdministrative();
+    Authorizable creator;
+    try {
+      creator = session.getAuthorizableManager().findAuthorizable(creatorId);
+      if (!(creator instanceof User) || User.ANON_USER.equals(creatorId)
+          || !mayCreateGroups((User) creator)) {
+        throw new AccessDeniedException(Security.ZONE_AUTHORIZABLES, creatorId,
+            "User is not allowed to create groups", creatorId);
+      }
+    } catch (StorageClientException e) {
+      logout(session);
+      throw e;
+    } catch (AccessDeniedException e) {
+      logout(session);
+      throw e;
+    }
+    return new Build(session, (User) creator);
+  }
+
+  private boolean mayCreateGroups(User user) {
+    if (user.isAdmin()) {
+      return true;
+    }
+    for (String principal : user.getPrincipals()) {
+      if (authorizedGroups.contains(principal)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void logout(Session session) {
+    try {
+      session.logout();
+    } catch (ClientPoolException e) {
+      LOGGER.warn(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * One world being built. Not thread safe, a build belongs to the request creating the
+   * world.
+   */
+  public class Build {
+
+    private final Session session;
+    private final User creator;
+
+    /**
+     * Groups with changes that have not been written, in the order they were staged.
+     */
+    private final Map<String, Staged> staged = Maps.newLinkedHashMap();
+
+    private final List<String> createdGroups = Lists.newArrayList();
+    private final List<String> createdContent = Lists.newArrayList();
+
+    private Build(Session session, User creator) {
+      this.session = session;
+      this.creator = creator;
+    }
+
+    public String getCreatorId() {
+      return creator.getId();
+    }
+
+    /**
+     * Create a group from the parameters that would have been posted to
+     * /system/userManager/group.create. The creator becomes a manager of the group. The
+     * group exists from now on, its properties and members are written by the next
+     * {@link #flush()}.
+     */
+    public void createGroup(JSONObject params) throws JSONException,
+        StorageClientException, AccessDeniedException {
+      String groupId = params.getString(":name");
+      if (groupId.startsWith(CONTACTS_PREFIX)) {
+        throw new IllegalArgumentException("'" + CONTACTS_PREFIX + "' is a reserved prefix.");
+      }
+      AuthorizableManager authorizableManager = session.getAuthorizableManager();
+      if (authorizableManager.findAuthorizable(groupId) != null
+          || !authorizableManager.createGroup(groupId, groupId, null)) {
+        throw new StorageClientException("A principal already exists with the requested name: "
+            + groupId);
+      }
+      createdGroups.add(groupId);
+      Group group = (Group) authorizableManager.findAuthorizable(groupId);
+      Staged stage = new Staged(group, ModificationType.CREATE);
+      staged.put(groupId, stage);
+      apply(stage, params, creator.getId());
+    }
+
+    /**
+     * Update a group with the parameters that would have been posted to
+     * /system/userManager/group/&lt;id&gt;.update. Updates to a group that has not been
+     * written yet are merged with its pending changes.
+     *
+     * @throws AccessDeniedException
+     *           if the group was not created by this build and the creator may not manage
+     *           it.
+     */
+    public void updateGroup(String groupId, JSONObject params) throws JSONException,
+        StorageClientException, AccessDeniedException {
+      Staged stage = staged.get(groupId);
+      if (stage == null) {
+        Authorizable authorizable = session.getAuthorizableManager().findAuthorizable(groupId);
+        if (!(authorizable instanceof Group)) {
+          throw new StorageClientException("Group to update could not be found: " + groupId);
+        }
+        if (!createdGroups.contains(groupId)
+            && !session.getAccessControlManager().can(creator, Security.ZONE_AUTHORIZABLES,
+                groupId, Permissions.CAN_WRITE)) {
+          throw new AccessDeniedException(Security.ZONE_AUTHORIZABLES, groupId,
+              "User may not manage the group", creator.getId());
+        }
+        stage = new Staged((Group) authorizable, ModificationType.MODIFY);
+        staged.put(groupId, stage);
+      }
+      apply(stage, params, null);
+    }
+
+    /**
+     * Record content created for the world by other means, so that it is removed if the
+     * build is rolled back.
+     */
+    public void addCreatedContent(String path) {
+      createdContent.add(path);
+    }
+
+    /**
+     * Write every staged group once, new groups first so that they can be referred to by
+     * the updates, then run the post processors.
+     */
+    public void flush() throws Exception {
+      List<Staged> toWrite = Lists.newArrayList();
+      for (Staged stage : staged.values()) {
+        if (stage.type == ModificationType.CREATE) {
+          toWrite.add(stage);
+        }
+      }
+      for (Staged stage : staged.values()) {
+        if (stage.type != ModificationType.CREATE) {
+          toWrite.add(stage);
+        }
+      }
+      staged.clear();
+
+      AuthorizableManager authorizableManager = session.getAuthorizableManager();
+      for (Staged stage : toWrite) {
+        authorizableManager.updateAuthorizable(stage.group);
+      }
+      for (Staged stage : toWrite) {
+        postProcessorService.process(stage.group, session, stage.type,
+            stage.getParameters());
+        authorizableCountChanger.notify(GROUP_MEMBERS_PROP, stage.group.getId());
+        if (!stage.membersChanged.isEmpty()) {
+          authorizableCountChanger.notify(GROUP_MEMBERSHIPS_PROP, stage.membersChanged);
+        }
+        sendEvent(stage);
+      }
+    }
+
+    /**
+     * Write anything still staged and release the build.
+     */
+    public void commit() throws Exception {
+      try {
+        flush();
+      } finally {
+        logout(session);
+      }
+    }
+
+    /**
+     * Delete the groups and content created by this build and release it.
+     */
+    public void rollback() {
+      staged.clear();
+      try {
+        ContentManager contentManager = session.getContentManager();
+        for (String path : createdContent) {
+          try {
+            contentManager.delete(path, true);
+          } catch (Exception e) {
+            LOGGER.warn("Failed to remove {} of a failed world: {}", path, e.getMessage());
+          }
+        }
+        AuthorizableManager authorizableManager = session.getAuthorizableManager();
+        for (String groupId : Lists.reverse(createdGroups)) {
+          try {
+            Authorizable group = authorizableManager.findAuthorizable(groupId);
+            if (group != null) {
+              postProcessorService.process(group, session, ModificationType.DELETE,
+                  Collections.<String, Object[]> emptyMap());
+              authorizableManager.delete(groupId);
+            }
+          } catch (Exception e) {
+            LOGGER.warn("Failed to remove group {} of a failed world: {}", groupId,
+                e.getMessage());
+          }
+        }
+      } catch (StorageClientException e) {
+        LOGGER.warn("Failed to roll back world creation: {}", e.getMessage());
+      } finally {
+        logout(session);
+      }
+    }
+
+    private void sendEvent(Staged stage) {
+      try {
+        Dictionary<String, String> properties = new Hashtable<String, String>();
+        properties.put(UserConstants.EVENT_PROP_USERID, stage.group.getId());
+        properties.put("path", stage.group.getId());
+        EventUtils.sendOsgiEvent(properties,
+            stage.type == ModificationType.CREATE ? UserConstants.TOPIC_GROUP_CREATED
+                : UserConstants.TOPIC_GROUP_UPDATE, eventAdmin);
+      } catch (Exception e) {
+        // Trap all exception so we don't disrupt the normal behaviour.
+        LOGGER.error("Failed to launch an OSGi event for group " + stage.group.getId(), e);
+      }
+    }
+
+    /**
+     * Apply the parameters as the group servlets would: plain keys are properties,
+     * :member adds members and :manager and :viewer maintain the managers and viewers
+     * properties, each with @Delete to remove.
+     */
+    private void apply(Staged stage, JSONObject params, String extraManager)
+        throws JSONException, StorageClientException, AccessDeniedException {
+      Group group = stage.group;
+      Iterator<String> keys = params.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        List<String> values = values(params, key);
+        stage.addParameter(key, values);
+        if (key.startsWith(":") || key.endsWith(TYPE_HINT)) {
+          continue;
+        }
+        boolean isBoolean = "Boolean".equals(params.optString(key + TYPE_HINT));
+        if (values.size() == 1) {
+          group.setProperty(key, isBoolean ? (Object) Boolean.valueOf(values.get(0))
+              : values.get(0));
+        } else {
+          group.setProperty(key, values.toArray(new String[values.size()]));
+        }
+      }
+
+      for (String member : values(params, MEMBER + DELETE)) {
+        group.removeMember(member);
+        stage.membersChanged.add(member);
+      }
+      AuthorizableManager authorizableManager = session.getAuthorizableManager();
+      Group peerGroup = getPeerGroupOf(group);
+      List<String> membersToRemoveFromPeer = Lists.newArrayList();
+      for (String member : values(params, MEMBER)) {
+        if (createdGroups.contains(member)
+            || authorizableManager.findAuthorizable(member) != null) {
+          group.addMember(member);
+          stage.membersChanged.add(member);
+          if (peerGroup != null && peerGroup.getId().equals(group.getId())
+              && ImmutableSet.copyOf(peerGroup.getMembers()).contains(member)) {
+            membersToRemoveFromPeer.add(member);
+          }
+        } else {
+          LOGGER.warn("member not found {} ", member);
+        }
+      }
+      for (String member : membersToRemoveFromPeer) {
+        peerGroup.removeMember(member);
+      }
+
+      List<String> managers = values(params, MANAGER);
+      if (extraManager != null) {
+        managers.add(extraManager);
+      }
+      updateProperty(group, PROP_GROUP_MANAGERS, values(params, MANAGER + DELETE), managers);
+      updateProperty(group, PROP_GROUP_VIEWERS, values(params, VIEWER + DELETE),
+          values(params, VIEWER));
+    }
+
+    /**
+     * @return the managers group of the group, or the group it manages, as the group
+     *         servlets find it. A group with pending changes is taken from the build.
+     */
+    private Group getPeerGroupOf(Group group) throws StorageClientException,
+        AccessDeniedException {
+      String peerId = (String) group.getProperty(UserConstants.PROP_MANAGERS_GROUP);
+      if (peerId == null) {
+        peerId = (String) group.getProperty(UserConstants.PROP_MANAGED_GROUP);
+      }
+      if (peerId == null) {
+        return null;
+      }
+      if (group.getId().equals(peerId)) {
+        return group;
+      }
+      Staged peer = staged.get(peerId);
+      if (peer != null) {
+        return peer.group;
+      }
+      Authorizable authorizable = session.getAuthorizableManager().findAuthorizable(peerId);
+      return authorizable instanceof Group ? (Group) authorizable : null;
+    }
+
+    private void updateProperty(Group group, String propertyName, List<String> toDelete,
+        List<String> toAdd) {
+      if (toDelete.isEmpty() && toAdd.isEmpty()) {
+        return;
+      }
+      Set<String> values = Sets.newHashSet(StorageClientUtils.nonNullStringArray(
+          (String[]) group.getProperty(propertyName)));
+      values.removeAll(toDelete);
+      values.addAll(toAdd);
+      group.setProperty(propertyName, values.toArray(new String[values.size()]));
+    }
+  }
+
+  private static List<String> values(JSONObject params, String key) throws JSONException {
+    List<String> values = Lists.newArrayList();
+    Object value = params.opt(key);
+    if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      for (int i = 0; i < array.length(); i++) {
+        values.add(array.getString(i));
+      }
+    } else if (value != null) {
+      values.add(String.valueOf(value));
+    }
+    return values;
+  }
+
+  /**
+   * The pending changes to one group and the parameters to hand to the post processors.
+   */
+  private static class Staged {
+    final Group group;
+    final ModificationType type;
+    final Map<String, List<String>> parameters = Maps.newLinkedHashMap();
+    final List<String> membersChanged = Lists.newArrayList();
+
+    Staged(Group group, ModificationType type) {
+      this.group = group;
+      this.type = type;
+    }
+
+    void addParameter(String key, List<String> values) {
+      List<String> existing = parameters.get(key);
+      if (existing == null) {
+        parameters.put(key, Lists.newArrayList(values));
+      } else {
+        existing.addAll(values);
+      }
+    }
+
+    Map<String, Object[]> getParameters() {
+      Map<String, Object[]> map = Maps.newHashMap();
+      for (Entry<String, List<String>> e : parameters.entrySet()) {
+        map.put(e.getKey(), e.getValue().toArray(new String[e.getValue().size()]));
+      }
+      return map;
+    }
+  }
+}
@@ -34,6 +34,7 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.util.JSONUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.sakaiproject.nakamura.util.StringUtils;
@@ -93,6 +94,12 @@ public class WorldCreationServlet extends SlingAllMethodsServlet {
   @Reference
   protected transient SlingRepository slingRepository;
 
+  @Reference
+  protected transient WorldBuilder worldBuilder;
+
+  @Reference
+  protected transient LiteMessagingService messagingService;
+
   @Override
   protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response) throws ServletException, IOException {
 
@@ -126,9 +133,23 @@ public class WorldCreationServlet extends SlingAllMethodsServlet {
         write.endObject();
       } else {
         // validated successfully, go ahead and run thru all the steps
-        List<AbstractWorldCreationStep> steps = getSteps(request, response, data, write);
-        for (AbstractWorldCreationStep step : steps) {
-          step.handle();
+        WorldBuilder.Build build;
+        try {
+          build = worldBuilder.begin(request.getRemoteUser());
+        } catch (AccessDeniedException e) {
+          response.sendError(HttpServletResponse.SC_FORBIDDEN, "User is not allowed to create groups");
+          return;
+        }
+        try {
+          List<AbstractWorldCreationStep> steps = getSteps(request, response, data, write, build);
+          for (AbstractWorldCreationStep step : steps) {
+            step.handle();
+          }
+          build.commit();
+        } catch (Exception e) {
+          LOGGER.warn("World creation failed, removing what was created", e);
+          build.rollback();
+          throw e;
         }
         write.object();
         write.key("created");
@@ -196,15 +217,17 @@ public class WorldCreationServlet extends SlingAllMethodsServlet {
     return authz != null;
   }
 
-  private List<AbstractWorldCreationStep> getSteps(SlingHttpServletRequest request, SlingHttpServletResponse response, JSONObject data, JSONWriter write) throws RepositoryException, JSONException {
+  private List<AbstractWorldCreationStep> getSteps(SlingHttpServletRequest request, SlingHttpServletResponse response, JSONObject data, JSONWriter write, WorldBuilder.Build build) throws RepositoryException, JSONException {
     JSONObject worldTemplate = getWorldTemplate(data);
     List<AbstractWorldCreationStep> steps = new ArrayList<AbstractWorldCreationStep>();
-    steps.add(new MainGroupStep(data, worldTemplate, request, response, write));
-    steps.add(new TagStep(data, worldTemplate, request, response, write));
-    steps.add(new RoleStep(data, worldTemplate, request, response, write));
-    steps.add(new DocStep(data, worldTemplate, request, response, write));
-    steps.add(new SendMessageStep(data, worldTemplate, request, response, write));
-    steps.add(new RemoveCreatorAsExplicitManagerStep(data, worldTemplate, request, response, write));
+    // the groups are staged together and written before the first step that needs them,
+    // messages go out last once the world is written.
+    steps.add(new MainGroupStep(data, worldTemplate, request, response, write, build));
+    steps.add(new RoleStep(data, worldTemplate, request, response, write, build));
+    steps.add(new TagStep(data, worldTemplate, request, response, write, build));
+    steps.add(new DocStep(data, worldTemplate, request, response, write, build));
+    steps.add(new RemoveCreatorAsExplicitManagerStep(data, worldTemplate, request, response, write, build));
+    steps.add(new SendMessageStep(data, worldTemplate, request, response, write, build, messagingService));
     return steps;
   }
 
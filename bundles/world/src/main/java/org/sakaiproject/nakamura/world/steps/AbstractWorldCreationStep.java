@@ -20,8 +20,10 @@ package org.sakaiproject.nakamura.world.steps;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.world.WorldBuilder;
 
 public abstract class AbstractWorldCreationStep {
 
@@ -35,14 +37,31 @@ public abstract class AbstractWorldCreationStep {
 
   protected JSONObject worldTemplate;
 
-  protected AbstractWorldCreationStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write) {
+  protected WorldBuilder.Build build;
+
+  protected AbstractWorldCreationStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write, WorldBuilder.Build build) {
     this.data = data;
     this.request = request;
     this.response = response;
     this.write = write;
     this.worldTemplate = worldTemplate;
+    this.build = build;
   }
 
   public abstract void handle() throws Exception;
 
+  /**
+   * Report a change made in process the way a sub request reports its result.
+   */
+  protected void writeResult(String url) throws JSONException {
+    write.object();
+    write.key("url");
+    write.value(url);
+    write.key("success");
+    write.value(true);
+    write.key("status");
+    write.value(200);
+    write.endObject();
+  }
+
 }
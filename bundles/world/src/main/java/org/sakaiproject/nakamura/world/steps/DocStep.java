@@ -26,6 +26,7 @@ import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.util.JSONUtils;
 import org.sakaiproject.nakamura.world.SubRequest;
+import org.sakaiproject.nakamura.world.WorldBuilder;
 import org.sakaiproject.nakamura.world.WorldCreationServlet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,12 +47,14 @@ public class DocStep extends AbstractWorldCreationStep {
 
   JSONArray pooledContentIDs = new JSONArray();
 
-  public DocStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write) {
-    super(data, worldTemplate, request, response, write);
+  public DocStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write, WorldBuilder.Build build) {
+    super(data, worldTemplate, request, response, write, build);
   }
 
   @Override
   public void handle() throws Exception {
+    // the group and its home have to exist for the docs to be added to it.
+    build.flush();
     substituteTokens();
     createPooledContent();
     addDocStructureToGroup();
@@ -126,6 +129,7 @@ public class DocStep extends AbstractWorldCreationStep {
       LOGGER.debug("Created pooled content item " + poolID);
       docDefinition.put("_pid", poolID);
       this.pooledContentIDs.put(poolID);
+      build.addCreatedContent(poolID);
 
       // now fill in the actual doc content
       fillContent(docContent, poolID);
@@ -24,7 +24,7 @@ import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
-import org.sakaiproject.nakamura.world.SubRequest;
+import org.sakaiproject.nakamura.world.WorldBuilder;
 import org.sakaiproject.nakamura.world.WorldCreationServlet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,8 +33,8 @@ public class MainGroupStep extends AbstractWorldCreationStep {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(MainGroupStep.class);
 
-  public MainGroupStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write) {
-    super(data, worldTemplate, request, response, write);
+  public MainGroupStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write, WorldBuilder.Build build) {
+    super(data, worldTemplate, request, response, write, build);
   }
 
   @Override
@@ -68,9 +68,8 @@ public class MainGroupStep extends AbstractWorldCreationStep {
     }
 
     LOGGER.debug("Creating main group " + groupID + "; data = " + groupJSON.toString(2));
-    SubRequest mainGroupRequest = new SubRequest("/system/userManager/group.create.json", "POST",
-            groupJSON, request, response, write);
-    mainGroupRequest.doForward();
+    build.createGroup(groupJSON);
+    writeResult("/system/userManager/group.create.json");
   }
 
 }
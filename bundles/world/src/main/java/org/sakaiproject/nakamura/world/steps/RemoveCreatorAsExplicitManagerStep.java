@@ -24,19 +24,16 @@ import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
-import org.sakaiproject.nakamura.world.SubRequest;
+import org.sakaiproject.nakamura.world.WorldBuilder;
 import org.sakaiproject.nakamura.world.WorldCreationServlet;
 
-import java.io.IOException;
-import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
-import javax.servlet.ServletException;
 
 public class RemoveCreatorAsExplicitManagerStep extends AbstractWorldCreationStep {
 
-  public RemoveCreatorAsExplicitManagerStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write) {
-    super(data, worldTemplate, request, response, write);
+  public RemoveCreatorAsExplicitManagerStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write, WorldBuilder.Build build) {
+    super(data, worldTemplate, request, response, write, build);
   }
 
   @Override
@@ -44,15 +41,13 @@ public class RemoveCreatorAsExplicitManagerStep extends AbstractWorldCreationSte
     removeCreatorAsExplicitManager();
   }
 
-  private void removeCreatorAsExplicitManager() throws JSONException, IOException, ServletException, URISyntaxException {
-    javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(javax.jcr.Session.class);
-    String creatorID = jcrSession.getUserID();
+  private void removeCreatorAsExplicitManager() throws Exception {
+    String creatorID = build.getCreatorId();
 
     // remove creator as mgr from main group and the subgroups
     for (String group : getGroups()) {
-      SubRequest deleteRequest = new SubRequest("/system/userManager/group/" + group + ".update.json", "POST",
-              new JSONObject().put(":manager@Delete", creatorID), request, response, write);
-      deleteRequest.doForward();
+      build.updateGroup(group, new JSONObject().put(":manager@Delete", creatorID));
+      writeResult("/system/userManager/group/" + group + ".update.json");
     }
   }
 
@@ -24,16 +24,13 @@ import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
-import org.sakaiproject.nakamura.world.SubRequest;
+import org.sakaiproject.nakamura.world.WorldBuilder;
 import org.sakaiproject.nakamura.world.WorldCreationServlet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.net.URISyntaxException;
 import java.util.HashMap;
 import java.util.Map;
-import javax.servlet.ServletException;
 
 public class RoleStep extends AbstractWorldCreationStep {
 
@@ -44,8 +41,8 @@ public class RoleStep extends AbstractWorldCreationStep {
   private JSONObject mainGroupUpdateData = new JSONObject();
 
   public RoleStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request,
-                  SlingHttpServletResponse response, JSONWriter write) {
-    super(data, worldTemplate, request, response, write);
+                  SlingHttpServletResponse response, JSONWriter write, WorldBuilder.Build build) {
+    super(data, worldTemplate, request, response, write, build);
   }
 
   @Override
@@ -170,21 +167,21 @@ public class RoleStep extends AbstractWorldCreationStep {
     }
   }
 
-  private void createSubgroups() throws JSONException, URISyntaxException, IOException, ServletException {
-    // do the actual subgroup creation
+  private void createSubgroups() throws Exception {
+    // do the actual subgroup creation, the subgroups are written with the main group.
     for (JSONObject subgroup : this.subgroups.values()) {
       LOGGER.debug("Creating subgroup " + subgroup.getString(":name") + "; data = " + subgroup.toString(2));
-      SubRequest subgroupRequest = new SubRequest("/system/userManager/group.create.json", "POST",
-              subgroup, request, response, write);
-      subgroupRequest.doForward();
+      build.createGroup(subgroup);
+    }
+    for (int i = 0; i < this.subgroups.size(); i++) {
+      writeResult("/system/userManager/group.create.json");
     }
   }
 
-  private void updateMainGroup() throws JSONException, IOException, URISyntaxException, ServletException {
+  private void updateMainGroup() throws Exception {
     String mainGroupID = data.getString(WorldCreationServlet.PARAMS.id.toString());
     LOGGER.debug("Updating main group " + mainGroupID + "; data = " + this.mainGroupUpdateData.toString(2));
-    SubRequest mainGroupUpdateRequest = new SubRequest("/system/userManager/group/" + mainGroupID + ".update.json",
-            "POST", this.mainGroupUpdateData, request, response, write);
-    mainGroupUpdateRequest.doForward();
+    build.updateGroup(mainGroupID, this.mainGroupUpdateData);
+    writeResult("/system/userManager/group/" + mainGroupID + ".update.json");
   }
 }
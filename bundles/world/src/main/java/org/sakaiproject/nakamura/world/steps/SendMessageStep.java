@@ -24,14 +24,20 @@ import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
-import org.sakaiproject.nakamura.world.SubRequest;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessagingException;
+import org.sakaiproject.nakamura.world.WorldBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.regex.Pattern;
-import javax.servlet.ServletException;
 
 public class SendMessageStep extends AbstractWorldCreationStep {
 
@@ -49,8 +55,11 @@ public class SendMessageStep extends AbstractWorldCreationStep {
 
   private static final String MESSAGE_MODE = "messageMode";
 
-  public SendMessageStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write) {
-    super(data, worldTemplate, request, response, write);
+  private final LiteMessagingService messagingService;
+
+  public SendMessageStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write, WorldBuilder.Build build, LiteMessagingService messagingService) {
+    super(data, worldTemplate, request, response, write, build);
+    this.messagingService = messagingService;
   }
 
   @Override
@@ -63,12 +72,15 @@ public class SendMessageStep extends AbstractWorldCreationStep {
       return;
     }
 
+    // the world is written before anyone is told about it.
+    build.flush();
     sendMessage(message);
   }
 
-  private void sendMessage(JSONObject message) throws JSONException, IOException, ServletException, URISyntaxException {
-    javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(javax.jcr.Session.class);
-    String creatorID = jcrSession.getUserID();
+  private void sendMessage(JSONObject message) throws JSONException, MessagingException {
+    // messages are sent from the creator's outbox, as message.create would.
+    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
+    String creatorID = build.getCreatorId();
 
     JSONArray toSend = message.getJSONArray("toSend");
     for (int i = 0; i < toSend.length(); i++) {
@@ -86,9 +98,7 @@ public class SendMessageStep extends AbstractWorldCreationStep {
 
       if (wantsInternalMessage(recipient)) {
         LOGGER.debug("Sending group creation internal message with data " + messageJSON.toString(2));
-        SubRequest internalMessageRequest = new SubRequest("/~" + creatorID + "/message.create.html", "POST",
-                messageJSON, request, response, write);
-        internalMessageRequest.doForward();
+        createMessage(session, messageJSON);
       }
 
       if (wantsExternalMessage(recipient)) {
@@ -104,15 +114,28 @@ public class SendMessageStep extends AbstractWorldCreationStep {
                         + "|link=" + message.getString("link"));
 
         LOGGER.debug("Sending group creation smtp message with data " + messageJSON.toString(2));
-        SubRequest smtpMessageRequest = new SubRequest("/~" + creatorID + "/message.create.html", "POST",
-                messageJSON, request, response, write);
-        smtpMessageRequest.doForward();
+        createMessage(session, messageJSON);
       }
 
     }
 
   }
 
+  private void createMessage(Session session, JSONObject messageJSON) throws JSONException, MessagingException {
+    Map<String, Object> mapProperties = new HashMap<String, Object>();
+    Iterator<String> keys = messageJSON.keys();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      mapProperties.put(key, messageJSON.getString(key));
+    }
+    mapProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY, MessageConstants.SAKAI_MESSAGE_RT);
+    mapProperties.put(MessageConstants.PROP_SAKAI_READ, true);
+    if (messagingService.create(session, mapProperties) == null) {
+      throw new MessagingException("Unable to create the message.");
+    }
+    writeResult("/~" + build.getCreatorId() + "/message.create.html");
+  }
+
   private String replaceTokens(String input, JSONObject message, JSONObject recipient) throws JSONException {
     String s = PATTERN_CREATOR.matcher(input).replaceAll(message.getString("creatorName"));
     s = PATTERN_GROUPNAME.matcher(s).replaceAll(message.getString("groupName"));
@@ -25,20 +25,17 @@ import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.world.SubRequest;
+import org.sakaiproject.nakamura.world.WorldBuilder;
 import org.sakaiproject.nakamura.world.WorldCreationServlet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.net.URISyntaxException;
-import javax.servlet.ServletException;
-
 public class TagStep extends AbstractWorldCreationStep {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(TagStep.class);
 
-  public TagStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write) {
-    super(data, worldTemplate, request, response, write);
+  public TagStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write, WorldBuilder.Build build) {
+    super(data, worldTemplate, request, response, write, build);
   }
 
   @Override
@@ -51,18 +48,22 @@ public class TagStep extends AbstractWorldCreationStep {
       return;
     }
 
-    for (int i = 0; i < tags.length(); i++) {
-      String tagName = tags.getString(i);
-      applyTagToGroupProfile(tagName);
+    if (tags.length() > 0) {
+      applyTagsToGroupProfile(tags);
     }
   }
 
-  private void applyTagToGroupProfile(String tagName) throws JSONException, URISyntaxException, IOException, ServletException {
+  private void applyTagsToGroupProfile(JSONArray tags) throws Exception {
     String mainGroupID = data.getString(WorldCreationServlet.PARAMS.id.toString());
     JSONObject authProfileData = new JSONObject();
-    authProfileData.put("key", "/tags/" + tagName);
+    // the tag operation takes every tag at once.
+    for (int i = 0; i < tags.length(); i++) {
+      authProfileData.accumulate("key", "/tags/" + tags.getString(i));
+    }
     authProfileData.put(":operation", "tag");
-    LOGGER.debug("Marking group " + mainGroupID + "'s authprofile with tag " + tagName + "; data = " + authProfileData.toString(2));
+    LOGGER.debug("Marking group " + mainGroupID + "'s authprofile with tags " + tags + "; data = " + authProfileData.toString(2));
+    // the group profile has to exist.
+    build.flush();
     SubRequest authProfileStep = new SubRequest("/~" + mainGroupID + "/public/authprofile", "POST",
             authProfileData, request, response, write);
     authProfileStep.doForward();
@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.world;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.servlets.post.ModificationType;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.user.AuthorizableCountChanger;
+import org.sakaiproject.nakamura.api.user.LiteAuthorizablePostProcessService;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+public class WorldBuilderTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WorldBuilderTest.class);
+
+  private static final int MEMBERS = 1000;
+
+  private Session session;
+  private AuthorizableManager authorizableManager;
+  private LiteAuthorizablePostProcessService postProcessorService;
+  private WorldBuilder worldBuilder;
+
+  @Before
+  public void setUp() throws Exception {
+    Repository repository = (Repository) new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+    authorizableManager = session.getAuthorizableManager();
+    for (int i = 0; i < MEMBERS; i++) {
+      authorizableManager.createUser("user" + i, "user" + i, "password", null);
+    }
+    postProcessorService = mock(LiteAuthorizablePostProcessService.class);
+    worldBuilder = new WorldBuilder();
+    worldBuilder.repository = repository;
+    worldBuilder.postProcessorService = postProcessorService;
+    worldBuilder.authorizableCountChanger = mock(AuthorizableCountChanger.class);
+    worldBuilder.eventAdmin = mock(EventAdmin.class);
+    worldBuilder.modified(ImmutableMap.of());
+  }
+
+  @Test
+  public void testBuildWorldWithManyMembers() throws Exception {
+    long start = System.currentTimeMillis();
+    WorldBuilder.Build build = worldBuilder.begin("admin");
+
+    build.createGroup(new JSONObject().put(":name", "course").put("sakai:group-title",
+        "Course"));
+    build.flush();
+
+    JSONObject students = new JSONObject().put(":name", "course-student")
+        .put("sakai:pseudoGroup", true).put("sakai:pseudoGroup@TypeHint", "Boolean");
+    for (int i = 0; i < MEMBERS; i++) {
+      students.accumulate(":member", "user" + i);
+      students.accumulate(":viewer", "user" + i);
+    }
+    students.accumulate(":member", "nobody");
+    build.createGroup(students);
+    build.createGroup(new JSONObject().put(":name", "course-lecturer").put(":manager",
+        "course-lecturer"));
+    build.flush();
+
+    build.updateGroup("course", new JSONObject().put(":member", "course-student")
+        .accumulate(":member", "course-lecturer").put(":manager", "course-lecturer"));
+    build.flush();
+    build.updateGroup("course", new JSONObject().put(":manager@Delete", "admin"));
+    build.updateGroup("course-student", new JSONObject().put(":manager@Delete", "admin"));
+    build.commit();
+    LOGGER.info("Built a world with {} members in {} ms", MEMBERS,
+        System.currentTimeMillis() - start);
+
+    Group student = (Group) authorizableManager.findAuthorizable("course-student");
+    assertEquals(MEMBERS, student.getMembers().length);
+    assertEquals(Boolean.TRUE, student.getProperty("sakai:pseudoGroup"));
+    assertEquals(MEMBERS,
+        ((String[]) student.getProperty(UserConstants.PROP_GROUP_VIEWERS)).length);
+    assertFalse(Arrays.asList((String[]) student.getProperty(UserConstants.PROP_GROUP_MANAGERS))
+        .contains("admin"));
+    Authorizable user = authorizableManager.findAuthorizable("user" + (MEMBERS - 1));
+    assertTrue(Arrays.asList(user.getPrincipals()).contains("course-student"));
+
+    Group course = (Group) authorizableManager.findAuthorizable("course");
+    assertEquals(2, course.getMembers().length);
+    assertEquals(Arrays.asList("course-lecturer"), Arrays.asList((String[]) course
+        .getProperty(UserConstants.PROP_GROUP_MANAGERS)));
+
+    // each group is post processed once when created and once per flush that updates it.
+    verify(postProcessorService, times(3)).process(any(Authorizable.class),
+        any(Session.class), eq(ModificationType.CREATE), anyMap());
+    verify(postProcessorService, times(3)).process(any(Authorizable.class),
+        any(Session.class), eq(ModificationType.MODIFY), anyMap());
+  }
+
+  @Test
+  public void testRollbackRemovesWhatWasCreated() throws Exception {
+    WorldBuilder.Build build = worldBuilder.begin("admin");
+    build.createGroup(new JSONObject().put(":name", "broken"));
+    build.flush();
+    session.getContentManager().update(new Content("pool1", null));
+    build.addCreatedContent("pool1");
+    build.createGroup(new JSONObject().put(":name", "broken-member"));
+    build.rollback();
+
+    assertNull(authorizableManager.findAuthorizable("broken"));
+    assertNull(authorizableManager.findAuthorizable("broken-member"));
+    assertNull(session.getContentManager().get("pool1"));
+  }
+
+  @Test
+  public void testOnlyGroupsTheCreatorManagesAreUpdated() throws Exception {
+    authorizableManager.createGroup("course-creators", "course-creators", null);
+    Group creators = (Group) authorizableManager.findAuthorizable("course-creators");
+    creators.addMember("user0");
+    authorizableManager.updateAuthorizable(creators);
+    authorizableManager.createGroup("other", "other", null);
+    worldBuilder.modified(ImmutableMap.of(WorldBuilder.GROUP_AUTHORISED_TOCREATE,
+        "course-creators"));
+
+    WorldBuilder.Build build = worldBuilder.begin("user0");
+    build.createGroup(new JSONObject().put(":name", "mine"));
+    build.flush();
+    build.updateGroup("mine", new JSONObject().put("sakai:group-title", "Mine"));
+    try {
+      build.updateGroup("other", new JSONObject().put(":member", "user0"));
+      fail("user0 does not manage other");
+    } catch (AccessDeniedException e) {
+      // expected
+    }
+    build.rollback();
+    Group other = (Group) authorizableManager.findAuthorizable("other");
+    assertEquals(0, other.getMembers().length);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testContactGroupNamesAreReserved() throws Exception {
+    WorldBuilder.Build build = worldBuilder.begin("admin");
+    try {
+      build.createGroup(new JSONObject().put(":name", "g-contacts-user0"));
+    } finally {
+      build.rollback();
+    }
+  }
+
+  @Test(expected = AccessDeniedException.class)
+  public void testCreatorMustBeAllowedToCreateGroups() throws Exception {
+    worldBuilder.modified(ImmutableMap.of(WorldBuilder.GROUP_AUTHORISED_TOCREATE,
+        "course-creators"));
+    worldBuilder.begin("user0");
+  }
+}
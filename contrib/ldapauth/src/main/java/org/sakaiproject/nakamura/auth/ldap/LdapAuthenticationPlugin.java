@@ -18,10 +18,13 @@
 package org.sakaiproject.nakamura.auth.ldap;
 
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.jcr.Credentials;
 import javax.jcr.SimpleCredentials;
@@ -93,6 +96,20 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
   static final String USER_PROPS = "sakai.auth.ldap.user.props";
   private HashMap<String, String> attrsProps;
 
+  public static final int CACHE_TTL_DEFAULT = 300;
+  /**
+   * How long, in seconds, a user's DN and attributes are reused before LDAP is searched
+   * again. 0 searches on every login. The authorization filter is checked on every login
+   * whether the user is cached or not.
+   */
+  @Property(intValue = CACHE_TTL_DEFAULT)
+  static final String CACHE_TTL = "sakai.auth.ldap.cache.ttl";
+  private long cacheTtl;
+
+  private static final int MAX_CACHED_USERS = 10000;
+
+  private final Map<String, LdapUser> userCache = new ConcurrentHashMap<String, LdapUser>();
+
   @Reference
   private LdapConnectionManager connMgr;
 
@@ -128,6 +145,8 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
     userFilter = PropertiesUtil.toString(props.get(USER_FILTER), "");
     authzFilter = PropertiesUtil.toString(props.get(AUTHZ_FILTER), "");
     createAccount = PropertiesUtil.toBoolean(props.get(CREATE_ACCOUNT), CREATE_ACCOUNT_DEFAULT);
+    cacheTtl = PropertiesUtil.toInteger(props.get(CACHE_TTL), CACHE_TTL_DEFAULT) * 1000L;
+    userCache.clear();
 
     parseUserProps(props);
   }
@@ -205,8 +224,8 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
 
       long timeStart = System.currentTimeMillis();
 
-      String userDn = LdapUtil.escapeLDAPSearchFilter(userFilter.replace("{}",
-          sc.getUserID()));
+      String userId = sc.getUserID();
+      String userDn = LdapUtil.escapeLDAPSearchFilter(userFilter.replace("{}", userId));
       String userPass = new String(sc.getPassword());
 
       LDAPConnection conn = null;
@@ -220,52 +239,40 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
           // 0) Get a connection to the server
           conn = connMgr.getConnection();
           log.debug("Connected to LDAP server");
-          bindAppUser(appUser, appPass, conn);
-          // 2) Search for username (not authz).
-          // If search fails, log/report invalid username or password.
-          LDAPSearchResults results = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
-              userDn, null, true);
-          if (results.hasMore()) {
-            log.debug("Found user via search");
-          } else {
-            throw new IllegalArgumentException("Can't find user [" + userDn + "]");
-          }
-
-          // 3) Bind as user.
-          // If bind fails, log/report invalid username or password.
 
-          // value is set below. define here for use in authz check.
-          String userEntryDn = null;
-          // KERN-776 Resolve the user DN from the search results and check for an aliased
-          // entry
-          LDAPEntry userEntry = results.next();
-          LDAPAttribute objectClass = userEntry.getAttribute("objectClass");
-
-          if ("aliasObject".equals(objectClass.getStringValue())) {
-            LDAPAttribute aliasDN = userEntry.getAttribute("aliasedObjectName");
-            userEntryDn = aliasDN.getStringValue();
-          } else {
-            userEntryDn = userEntry.getDN();
+          // 1) Resolve the user, reusing a recent lookup if there is one.
+          LdapUser ldapUser = getCachedUser(userId);
+          boolean cached = ldapUser != null;
+          if (!cached) {
+            bindAppUser(appUser, appPass, conn);
+            ldapUser = searchUser(conn, userDn);
+          } else if (authzFilter.length() > 0) {
+            // authorization is not cached, so a revoked user is refused at the next login.
+            bindAppUser(appUser, appPass, conn);
+            if (!isAuthorized(conn, ldapUser.dn)) {
+              userCache.remove(userId);
+              cached = false;
+              ldapUser = searchUser(conn, userDn);
+            }
           }
 
-          conn.bind(LDAPConnection.LDAP_V3, userEntryDn, userPass.getBytes(UTF8));
-          log.debug("Bound as user");
-
-          if (authzFilter.length() > 0) {
-            // 4) Return to app user
-            conn.bind(LDAPConnection.LDAP_V3, appUser, appPass.getBytes(UTF8));
-            log.debug("Rebound as application user");
-            // 5) Search user DN with authz filter
-            // If search fails, log/report that user is not authorized
-            String userAuthzFilter = "(&(" + userEntryDn + ")(" + authzFilter + "))";
-            results = conn.search(baseDn, LDAPConnection.SCOPE_SUB, userAuthzFilter,
-                null, true);
-            if (results.hasMore()) {
-              log.debug("Found user + authz filter via search");
-            } else {
-              throw new IllegalArgumentException("User not authorized [" + userDn + "]");
+          // 2) Bind as user.
+          // If bind fails, log/report invalid username or password.
+          try {
+            conn.bind(LDAPConnection.LDAP_V3, ldapUser.dn, userPass.getBytes(UTF8));
+          } catch (LDAPException e) {
+            if (!cached) {
+              throw e;
             }
+            // the entry may have moved since it was cached, so look it up again.
+            log.debug("Bind with cached DN failed, searching for [{}] again", userDn);
+            userCache.remove(userId);
+            bindAppUser(appUser, appPass, conn);
+            ldapUser = searchUser(conn, userDn);
+            conn.bind(LDAPConnection.LDAP_V3, ldapUser.dn, userPass.getBytes(UTF8));
           }
+          log.debug("Bound as user");
+          cacheUser(userId, ldapUser);
 
           // FINALLY!
           auth = true;
@@ -273,16 +280,21 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
               System.currentTimeMillis() - timeStart);
 
           // provision & decorate the user
-          Session session = repository.loginAdministrative();
-          Authorizable authorizable = getJcrUser(session, sc.getUserID());
-
-          if (authorizable != null && attrsProps != null) {
-            log.debug("Decorating user [{}] with props from {}", userDn, USER_PROPS);
-            decorateUser(session, authorizable, conn);
-          }
+          provisionUser(userId, ldapUser);
           // if we made it this far, we can exit the retry loop
           didLdapSucceed = true;
           break;
+        } catch (IllegalArgumentException e) {
+          // unknown or unauthorized user, asking again won't change the answer.
+          log.info(e.getMessage());
+          return false;
+        } catch (LDAPException e) {
+          if (e.getResultCode() == LDAPException.INVALID_CREDENTIALS) {
+            log.info("Invalid credentials for [{}]", userDn);
+            return false;
+          }
+          ldapTrouble = e;
+          log.warn(e.getMessage(), e);
         } catch (Exception e) {
           ldapTrouble = e;
           log.warn(e.getMessage(), e);
@@ -301,6 +313,132 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
     return auth;
   }
 
+  /**
+   * Search for the user as the application user. When there is an authorization filter
+   * it is part of the same search, so a user who isn't authorized is not found.
+   *
+   * @return the user's DN and the attributes to decorate the user with.
+   * @throws IllegalArgumentException
+   *           if there is no authorized user to match the filter.
+   */
+  private LdapUser searchUser(LDAPConnection conn, String userDn) throws LDAPException {
+    String filter = userDn;
+    if (authzFilter.length() > 0) {
+      filter = "(&(" + userDn + ")" + wrapFilter(authzFilter) + ")";
+    }
+    LDAPSearchResults results = conn.search(baseDn, LDAPConnection.SCOPE_SUB, filter,
+        getSearchAttributes(), false);
+    if (results.hasMore()) {
+      log.debug("Found user via search");
+    } else if (authzFilter.length() > 0) {
+      throw new IllegalArgumentException("Can't find authorized user [" + userDn + "]");
+    } else {
+      throw new IllegalArgumentException("Can't find user [" + userDn + "]");
+    }
+
+    // KERN-776 Resolve the user DN from the search results and check for an aliased
+    // entry
+    LDAPEntry userEntry = results.next();
+    LDAPAttribute objectClass = userEntry.getAttribute("objectClass");
+    String userEntryDn = null;
+    if (objectClass != null && "aliasObject".equals(objectClass.getStringValue())) {
+      LDAPAttribute aliasDN = userEntry.getAttribute("aliasedObjectName");
+      userEntryDn = aliasDN.getStringValue();
+    } else {
+      userEntryDn = userEntry.getDN();
+    }
+
+    Map<String, String> attributes = null;
+    if (attrsProps != null) {
+      attributes = new HashMap<String, String>();
+      for (Entry<String, String> attrProp : attrsProps.entrySet()) {
+        LDAPAttribute attr = userEntry.getAttribute(attrProp.getKey());
+        if (attr != null) {
+          attributes.put(attrProp.getValue(), attr.getStringValue());
+        }
+      }
+    }
+    return new LdapUser(userEntryDn, attributes);
+  }
+
+  /**
+   * Check the authorization filter against a known entry, as the application user.
+   *
+   * @return false if the entry doesn't match the filter or no longer exists.
+   */
+  private boolean isAuthorized(LDAPConnection conn, String dn) throws LDAPException {
+    try {
+      LDAPSearchResults results = conn.search(dn, LDAPConnection.SCOPE_BASE,
+          wrapFilter(authzFilter), new String[] { "objectClass" }, true);
+      if (!results.hasMore()) {
+        return false;
+      }
+      results.next();
+      return true;
+    } catch (LDAPException e) {
+      if (e.getResultCode() == LDAPException.NO_SUCH_OBJECT) {
+        return false;
+      }
+      throw e;
+    }
+  }
+
+  private String[] getSearchAttributes() {
+    List<String> attrs = new ArrayList<String>();
+    attrs.add("objectClass");
+    attrs.add("aliasedObjectName");
+    if (attrsProps != null) {
+      attrs.addAll(attrsProps.keySet());
+    }
+    return attrs.toArray(new String[attrs.size()]);
+  }
+
+  private String wrapFilter(String filter) {
+    return filter.startsWith("(") ? filter : "(" + filter + ")";
+  }
+
+  private LdapUser getCachedUser(String userId) {
+    LdapUser ldapUser = userCache.get(userId);
+    if (ldapUser != null && ldapUser.expires < System.currentTimeMillis()) {
+      userCache.remove(userId);
+      return null;
+    }
+    return ldapUser;
+  }
+
+  private void cacheUser(String userId, LdapUser ldapUser) {
+    if (cacheTtl <= 0 || ldapUser.dn == null || ldapUser.expires > 0) {
+      return;
+    }
+    if (userCache.size() >= MAX_CACHED_USERS) {
+      // forgetting only costs a search on the next login.
+      userCache.clear();
+    }
+    ldapUser.expires = System.currentTimeMillis() + cacheTtl;
+    userCache.put(userId, ldapUser);
+  }
+
+  /**
+   * Create the user if needed and copy the LDAP attributes onto it.
+   */
+  private void provisionUser(String userId, LdapUser ldapUser) throws Exception {
+    Session session = repository.loginAdministrative();
+    try {
+      Authorizable authorizable = getJcrUser(session, userId);
+
+      if (authorizable != null && ldapUser.attributes != null) {
+        log.debug("Decorating user [{}] with props from {}", userId, USER_PROPS);
+        decorateUser(session, authorizable, ldapUser.attributes);
+      }
+    } finally {
+      try {
+        session.logout();
+      } catch (Throwable t) {
+        log.error("Unable to log out of session: " + t.getMessage(), t);
+      }
+    }
+  }
+
   private void bindAppUser(String appUser, String appPass, LDAPConnection conn)
       throws LDAPException, UnsupportedEncodingException {
     conn.bind(LDAPConnection.LDAP_V3, appUser, appPass.getBytes(UTF8));
@@ -325,37 +463,42 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
   }
 
   /**
-   * Decorate the user with extra information.
-   * 
+   * Decorate the user with extra information, only saving the user if a value changed.
+   *
    * @param session
    * @param user
- * @throws StorageClientException 
- * @throws AccessDeniedException 
+   * @param attributes
+   *          the values from LDAP keyed by the property to set.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
    */
-  private void decorateUser(Session session, Authorizable user, LDAPConnection conn)
-      throws LDAPException, AccessDeniedException, StorageClientException {
-    // fix up the user dn to search
-    String userDn = LdapUtil
-        .escapeLDAPSearchFilter(userFilter.replace("{}", user.getId()));
-
-    // get a connection to LDAP
-    String[] ldapAttrNames = attrsProps.keySet().toArray(new String[attrsProps.size()]);
-    LDAPSearchResults results = conn.search(baseDn, LDAPConnection.SCOPE_SUB, userDn,
-        ldapAttrNames, false);
-    if (results.hasMore()) {
-      LDAPEntry entry = results.next();
-
-      for (String ldapAttrName : ldapAttrNames) {
-        String jcrPropName = attrsProps.get(ldapAttrName);
-
-        LDAPAttribute attr = entry.getAttribute(ldapAttrName);
-        if (attr != null) {
-          user.setProperty(jcrPropName, attr.getStringValue());
-        }
+  private void decorateUser(Session session, Authorizable user,
+      Map<String, String> attributes) throws AccessDeniedException, StorageClientException {
+    boolean changed = false;
+    for (Entry<String, String> attribute : attributes.entrySet()) {
+      Object current = user.getProperty(attribute.getKey());
+      if (current == null || !attribute.getValue().equals(String.valueOf(current))) {
+        user.setProperty(attribute.getKey(), attribute.getValue());
+        changed = true;
       }
+    }
+    if (changed) {
       session.getAuthorizableManager().updateAuthorizable(user);
-    } else {
-      log.warn("Can't find user [" + userDn + "]");
+    }
+  }
+
+  /**
+   * A user found in LDAP, kept for a while so that logins can bind without searching. It
+   * holds the DN and attributes of the user, never whether the user is authorized.
+   */
+  private static class LdapUser {
+    private final String dn;
+    private final Map<String, String> attributes;
+    private long expires;
+
+    LdapUser(String dn, Map<String, String> attributes) {
+      this.dn = dn;
+      this.attributes = attributes;
     }
   }
 }
@@ -23,6 +23,7 @@ import static org.mockito.Answers.RETURNS_DEEP_STUBS;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Matchers.isNull;
@@ -30,6 +31,8 @@ import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -51,6 +54,8 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.user.LiteAuthorizablePostProcessService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -61,6 +66,9 @@ import javax.jcr.SimpleCredentials;
 @RunWith(MockitoJUnitRunner.class)
 public class LdapAuthenticationPluginTest {
 
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(LdapAuthenticationPluginTest.class);
+
   private final static String LDAP_USER = "uid=admin,ou=Special People,o=nyu.edu,o=nyu";
   private final static String LDAP_PASS = "admin";
   private final static String LDAP_BASE_DN = "ou=People,o=nyu.edu,o=nyu";
@@ -68,6 +76,7 @@ public class LdapAuthenticationPluginTest {
   private final static String AUTHZ_FILTER = "eduEntitlements=sakai";
   private final static String USER = "joe";
   private final static String PASS = "pass";
+  private final static int LOGINS = 1000;
 
   private LdapAuthenticationPlugin ldapAuthenticationPlugin;
 
@@ -302,7 +311,7 @@ public class LdapAuthenticationPluginTest {
   }
 
   @Test
-  public void failBindingAsAppUserAfterUserSearch() throws Exception {
+  public void authzFilterIsPartOfUserSearch() throws Exception {
     // given
     HashMap<String, Object> props = new HashMap<String, Object>();
     props.put(LdapAuthenticationPlugin.LDAP_BASE_DN, LDAP_BASE_DN);
@@ -312,8 +321,6 @@ public class LdapAuthenticationPluginTest {
     ldapAuthenticationPlugin.activate(props);
 
     when(connMgr.getConnection()).thenReturn(conn);
-    doNothing().doThrow(new LDAPException()).when(conn)
-        .bind(LDAPConnection.LDAP_V3, LDAP_USER, LDAP_PASS.getBytes("UTF-8"));
     when(
         conn.search(isA(String.class), anyInt(), isA(String.class),
             any(String[].class), anyBoolean())).thenReturn(results);
@@ -325,12 +332,13 @@ public class LdapAuthenticationPluginTest {
     String userEntryDn = USER_FILTER.replace("{}", USER) + ", " + LDAP_BASE_DN;
     when(entry.getDN()).thenReturn(userEntryDn);
 
-    LDAPAttribute attr = mock(LDAPAttribute.class);
-    when(entry.getAttribute(isA(String.class))).thenReturn(attr);
-
     // then
-    assertFalse(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
         .toCharArray())));
+
+    verify(conn).search(eq(LDAP_BASE_DN), eq(LDAPConnection.SCOPE_SUB),
+        eq("(&(uid=joe)(eduEntitlements=sakai))"), any(String[].class), eq(false));
+    verify(conn).bind(LDAPConnection.LDAP_V3, LDAP_USER, LDAP_PASS.getBytes("UTF-8"));
   }
 
   @Test
@@ -347,20 +355,15 @@ public class LdapAuthenticationPluginTest {
     when(
         conn.search(isA(String.class), anyInt(), isA(String.class),
             any(String[].class), anyBoolean())).thenReturn(results);
-    when(results.hasMore()).thenReturn(true).thenReturn(false);
-
-    LDAPEntry entry = mock(LDAPEntry.class);
-    when(results.next()).thenReturn(entry);
-
-    String userEntryDn = USER_FILTER.replace("{}", USER) + ", " + LDAP_BASE_DN;
-    when(entry.getDN()).thenReturn(userEntryDn);
-
-    LDAPAttribute attr = mock(LDAPAttribute.class);
-    when(entry.getAttribute(isA(String.class))).thenReturn(attr);
+    when(results.hasMore()).thenReturn(false);
 
     // then
     assertFalse(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
         .toCharArray())));
+
+    // not being authorized isn't retried.
+    verify(conn).search(isA(String.class), anyInt(), isA(String.class),
+        any(String[].class), anyBoolean());
   }
 
   @SuppressWarnings("unchecked")
@@ -629,4 +632,207 @@ public class LdapAuthenticationPluginTest {
 
     assertFalse(ldapAuthenticationPlugin.canDecorateUser());
   }
+
+  @Test
+  public void repeatLoginsBindWithCachedDn() throws Exception {
+    // given
+    HashMap<String, Object> props = new HashMap<String, Object>();
+    props.put(LdapAuthenticationPlugin.LDAP_BASE_DN, LDAP_BASE_DN);
+    props.put(LdapAuthenticationPlugin.USER_FILTER, USER_FILTER);
+    props.put(LdapAuthenticationPlugin.AUTHZ_FILTER, AUTHZ_FILTER);
+    props.put(LdapAuthenticationPlugin.CREATE_ACCOUNT, Boolean.FALSE);
+    ldapAuthenticationPlugin.activate(props);
+    String userEntryDn = givenUser();
+
+    // then
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < LOGINS; i++) {
+      assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+          .toCharArray())));
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    LOGGER.info("{} LDAP logins in {} ms with a cached DN", LOGINS, elapsed);
+
+    verify(conn, times(1)).search(isA(String.class), eq(LDAPConnection.SCOPE_SUB),
+        isA(String.class), any(String[].class), anyBoolean());
+    // the authorization of a cached user is checked against its entry on every login.
+    verify(conn, times(LOGINS - 1)).search(eq(userEntryDn),
+        eq(LDAPConnection.SCOPE_BASE), eq("(" + AUTHZ_FILTER + ")"), any(String[].class),
+        anyBoolean());
+    verify(conn, times(LOGINS)).bind(LDAPConnection.LDAP_V3, userEntryDn,
+        PASS.getBytes("UTF-8"));
+    verify(connMgr, times(LOGINS)).returnConnection(conn);
+  }
+
+  @Test
+  public void revokedUserIsRefusedWhileCached() throws Exception {
+    // given
+    HashMap<String, Object> props = new HashMap<String, Object>();
+    props.put(LdapAuthenticationPlugin.LDAP_BASE_DN, LDAP_BASE_DN);
+    props.put(LdapAuthenticationPlugin.USER_FILTER, USER_FILTER);
+    props.put(LdapAuthenticationPlugin.AUTHZ_FILTER, AUTHZ_FILTER);
+    props.put(LdapAuthenticationPlugin.CREATE_ACCOUNT, Boolean.FALSE);
+    ldapAuthenticationPlugin.activate(props);
+    givenUser();
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+
+    // the user loses the entitlement
+    when(results.hasMore()).thenReturn(false);
+
+    // then
+    assertFalse(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+  }
+
+  @Test
+  public void cachedUserWithoutAuthzFilterBindsWithoutSearching() throws Exception {
+    // given
+    HashMap<String, Object> props = new HashMap<String, Object>();
+    props.put(LdapAuthenticationPlugin.LDAP_BASE_DN, LDAP_BASE_DN);
+    props.put(LdapAuthenticationPlugin.USER_FILTER, USER_FILTER);
+    props.put(LdapAuthenticationPlugin.AUTHZ_FILTER, "");
+    props.put(LdapAuthenticationPlugin.CREATE_ACCOUNT, Boolean.FALSE);
+    ldapAuthenticationPlugin.activate(props);
+    givenUser();
+
+    // then
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+
+    verify(conn, times(1)).search(isA(String.class), anyInt(), isA(String.class),
+        any(String[].class), anyBoolean());
+    verify(conn, times(1)).bind(LDAPConnection.LDAP_V3, LDAP_USER,
+        LDAP_PASS.getBytes("UTF-8"));
+  }
+
+  @Test
+  public void cacheCanBeTurnedOff() throws Exception {
+    // given
+    HashMap<String, Object> props = new HashMap<String, Object>();
+    props.put(LdapAuthenticationPlugin.LDAP_BASE_DN, LDAP_BASE_DN);
+    props.put(LdapAuthenticationPlugin.USER_FILTER, USER_FILTER);
+    props.put(LdapAuthenticationPlugin.CREATE_ACCOUNT, Boolean.FALSE);
+    props.put(LdapAuthenticationPlugin.CACHE_TTL, 0);
+    ldapAuthenticationPlugin.activate(props);
+    givenUser();
+
+    // then
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+
+    verify(conn, times(2)).search(isA(String.class), anyInt(), isA(String.class),
+        any(String[].class), anyBoolean());
+  }
+
+  @Test
+  public void staleCachedDnIsSearchedAgain() throws Exception {
+    // given
+    HashMap<String, Object> props = new HashMap<String, Object>();
+    props.put(LdapAuthenticationPlugin.LDAP_BASE_DN, LDAP_BASE_DN);
+    props.put(LdapAuthenticationPlugin.USER_FILTER, USER_FILTER);
+    props.put(LdapAuthenticationPlugin.CREATE_ACCOUNT, Boolean.FALSE);
+    ldapAuthenticationPlugin.activate(props);
+    String userEntryDn = givenUser();
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+
+    // the user moves
+    String movedDn = USER_FILTER.replace("{}", USER) + ", ou=Moved," + LDAP_BASE_DN;
+    LDAPEntry moved = mock(LDAPEntry.class);
+    when(moved.getDN()).thenReturn(movedDn);
+    when(results.next()).thenReturn(moved);
+    doThrow(new LDAPException("gone", LDAPException.NO_SUCH_OBJECT, null)).when(conn).bind(
+        LDAPConnection.LDAP_V3, userEntryDn, PASS.getBytes("UTF-8"));
+
+    // then
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+
+    verify(conn, times(2)).search(isA(String.class), anyInt(), isA(String.class),
+        any(String[].class), anyBoolean());
+    verify(conn).bind(LDAPConnection.LDAP_V3, movedDn, PASS.getBytes("UTF-8"));
+  }
+
+  @Test
+  public void invalidCredentialsAreNotRetried() throws Exception {
+    // given
+    HashMap<String, Object> props = new HashMap<String, Object>();
+    props.put(LdapAuthenticationPlugin.LDAP_BASE_DN, LDAP_BASE_DN);
+    props.put(LdapAuthenticationPlugin.USER_FILTER, USER_FILTER);
+    props.put(LdapAuthenticationPlugin.CREATE_ACCOUNT, Boolean.FALSE);
+    ldapAuthenticationPlugin.activate(props);
+    String userEntryDn = givenUser();
+    doThrow(new LDAPException("bad", LDAPException.INVALID_CREDENTIALS, null)).when(conn)
+        .bind(LDAPConnection.LDAP_V3, userEntryDn, "wrong".getBytes("UTF-8"));
+
+    // then
+    assertFalse(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, "wrong"
+        .toCharArray())));
+
+    verify(conn, times(1)).bind(LDAPConnection.LDAP_V3, userEntryDn,
+        "wrong".getBytes("UTF-8"));
+  }
+
+  @Test
+  public void unchangedUserIsNotSaved() throws Exception {
+    // given
+    HashMap<String, Object> props = new HashMap<String, Object>();
+    props.put(LdapAuthenticationPlugin.LDAP_BASE_DN, LDAP_BASE_DN);
+    props.put(LdapAuthenticationPlugin.USER_FILTER, USER_FILTER);
+    props.put(LdapAuthenticationPlugin.CREATE_ACCOUNT, Boolean.FALSE);
+    props.put(LdapAuthenticationPlugin.USER_PROPS, new String[] {
+        "\"givenName\":\"firstName\"", "\"sn\":\"lastName\"" });
+    ldapAuthenticationPlugin.activate(props);
+    givenUser();
+
+    User user = mock(User.class);
+    when(user.getId()).thenReturn(USER);
+    when(user.getProperty("firstName")).thenReturn("standard");
+    when(user.getProperty("lastName")).thenReturn("standard");
+    when(authorizableManager.findAuthorizable(USER)).thenReturn(user);
+
+    // then
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+
+    verify(user, never()).setProperty(anyString(), any());
+    verify(authorizableManager, never()).updateAuthorizable(user);
+
+    // and is saved once a value changes
+    when(user.getProperty("lastName")).thenReturn("old");
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+
+    verify(user).setProperty("lastName", "standard");
+    verify(authorizableManager).updateAuthorizable(user);
+  }
+
+  /**
+   * Set up a user that is found by any search and has "standard" for every attribute.
+   *
+   * @return the user's DN.
+   */
+  private String givenUser() throws Exception {
+    when(connMgr.getConnection()).thenReturn(conn);
+    when(
+        conn.search(isA(String.class), anyInt(), isA(String.class),
+            any(String[].class), anyBoolean())).thenReturn(results);
+    when(results.hasMore()).thenReturn(true);
+
+    LDAPEntry entry = mock(LDAPEntry.class);
+    when(results.next()).thenReturn(entry);
+
+    String userEntryDn = USER_FILTER.replace("{}", USER) + ", " + LDAP_BASE_DN;
+    when(entry.getDN()).thenReturn(userEntryDn);
+
+    LDAPAttribute attr = mock(LDAPAttribute.class);
+    when(attr.getStringValue()).thenReturn("standard");
+    when(entry.getAttribute(isA(String.class))).thenReturn(attr);
+    return userEntryDn;
+  }
 }
@@ -48,6 +48,24 @@ public class TelemetryCounter {
     entry.addMetric(metricName, new TelemetryData(value));
   }
 
+  /**
+   * Set a metric that reports a level, such as a rate or the size of a backlog, rather
+   * than a running total.
+   */
+  public static void setValue(String moduleName, String serviceName, String metricName, long value) {
+    getEntry(moduleName, serviceName).addMetric(metricName, new TelemetryData(value));
+  }
+
+  public static void setValue(String moduleName, String serviceName, String metricName, double value) {
+    getEntry(moduleName, serviceName).addMetric(metricName, new TelemetryData(value));
+  }
+
+  private static TelemetryEntry getEntry(String moduleName, String serviceName) {
+    String compositeKey = moduleName + "::" + serviceName;
+    counters.putIfAbsent(compositeKey, new TelemetryEntry(moduleName, serviceName, Status.OK));
+    return counters.get(compositeKey);
+  }
+
   public static enum Status {
     BAD, WARNING, OK
   }